@@ -0,0 +1,89 @@
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the throughput of logins made through the blocking DbConnect API
+ * from a pool of platform threads with logins made through AsyncDbConnect with
+ * thousands of requests in flight.
+ *
+ * Usage: AsyncLoadBenchmark [jdbc url] [users] [requests] [caller threads]
+ * [connections]. The default url is an in-memory H2 database, which must be on
+ * the classpath.
+ */
+public class AsyncLoadBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		String url = args.length > 0 ? args[0] : "jdbc:h2:mem:async;MODE=MySQL;DB_CLOSE_DELAY=-1";
+		int users = args.length > 1 ? Integer.parseInt(args[1]) : 10000;
+		int requests = args.length > 2 ? Integer.parseInt(args[2]) : 200000;
+		int callers = args.length > 3 ? Integer.parseInt(args[3]) : 200;
+		int connections = args.length > 4 ? Integer.parseInt(args[4]) : 8;
+
+		try (DbConnect db = new DbConnect(BenchmarkDatabase.properties(connections), url);
+				AsyncDbConnect async = new AsyncDbConnect(db)) {
+			BenchmarkDatabase.seed(db, users, 0);
+			System.out.println("virtual threads: " + async.usesVirtualThreads());
+
+			for (int round = 0; round < 3; round++) {
+				long start = System.nanoTime();
+				int matched = blocking(db, users, requests, callers);
+				report("blocking x" + callers, requests, System.nanoTime() - start, matched);
+
+				start = System.nanoTime();
+				matched = asynchronous(async, users, requests);
+				report("async", requests, System.nanoTime() - start, matched);
+			}
+		}
+	}
+
+	private static int blocking(DbConnect db, int users, int requests, int callers) throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(callers);
+		ArrayList<Future<Integer>> results = new ArrayList<Future<Integer>>();
+		for (int t = 0; t < callers; t++) {
+			final int share = requests / callers + (t < requests % callers ? 1 : 0);
+			final long seed = t;
+			results.add(executor.submit(() -> {
+				Random random = new Random(seed);
+				int matched = 0;
+				for (int i = 0; i < share; i++) {
+					String user = "user" + random.nextInt(users);
+					if (db.checkLogin(user, user + "pw"))
+						matched++;
+				}
+				return matched;
+			}));
+		}
+		int matched = 0;
+		for (Future<Integer> result : results) {
+			matched += result.get();
+		}
+		executor.shutdown();
+		executor.awaitTermination(1, TimeUnit.MINUTES);
+		return matched;
+	}
+
+	private static int asynchronous(AsyncDbConnect async, int users, int requests) {
+		Random random = new Random(0);
+		ArrayList<CompletableFuture<Boolean>> results = new ArrayList<CompletableFuture<Boolean>>(requests);
+		for (int i = 0; i < requests; i++) {
+			String user = "user" + random.nextInt(users);
+			results.add(async.checkLogin(user, user + "pw"));
+		}
+		int matched = 0;
+		for (CompletableFuture<Boolean> result : results) {
+			if (result.join())
+				matched++;
+		}
+		return matched;
+	}
+
+	private static void report(String name, int requests, long nanos, int matched) {
+		System.out.printf("%-16s %10.0f ops/s %8.2f us/op (%d matched, %d live threads)%n", name,
+				requests * 1e9 / nanos, nanos / 1e3 / requests, matched, Thread.activeCount());
+	}
+}
@@ -0,0 +1,104 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.Properties;
+import java.util.Random;
+
+/**
+ * Creates the user_info and friends tables in an embedded database and seeds
+ * them with deterministic synthetic data for the benchmarks. User i is named
+ * "user" + i with the password "user" + i + "pw".
+ */
+public class BenchmarkDatabase {
+	public static final String DEFAULT_URL = "jdbc:h2:mem:bench;MODE=MySQL;DB_CLOSE_DELAY=-1";
+
+	private BenchmarkDatabase() {
+	}
+
+	/**
+	 * @return properties for a DbConnect on the embedded database with a pool
+	 *         of the given size.
+	 */
+	public static Properties properties(int connections) {
+		Properties properties = new Properties();
+		properties.setProperty("user", "sa");
+		properties.setProperty("pool.minSize", String.valueOf(connections));
+		properties.setProperty("pool.maxSize", String.valueOf(connections));
+		properties.setProperty("pool.borrowTimeoutMillis", "60000");
+		return properties;
+	}
+
+	/**
+	 * Method to create the tables and their indexes if they do not exist.
+	 */
+	public static void createSchema(DbConnect db) throws SQLException {
+		try (PooledConnection connection = db.getConnectionPool().borrow()) {
+			new SchemaManager().migrate(connection.getConnection());
+		}
+	}
+
+	/**
+	 * Method to create the tables and seed them.
+	 *
+	 * @param users
+	 *            number of users, with random high scores.
+	 * @param friendEdges
+	 *            number of accepted friendships between random users.
+	 */
+	public static void seed(DbConnect db, int users, int friendEdges) throws SQLException {
+		createSchema(db);
+		BulkResult registered = db.registerUsers(new Iterable<NewUser>() {
+			public Iterator<NewUser> iterator() {
+				return new Iterator<NewUser>() {
+					private int next;
+
+					public boolean hasNext() {
+						return next < users;
+					}
+
+					public NewUser next() {
+						int i = next++;
+						return new NewUser("user" + i, "user" + i + "pw", "nick" + i);
+					}
+				};
+			}
+		}, 1000);
+		if (registered.getInserted() != users)
+			throw new SQLException("Seeding users failed: " + registered);
+
+		Random random = new Random(42);
+		try (PooledConnection connection = db.getConnectionPool().borrow()) {
+			Connection jdbc = connection.getConnection();
+			jdbc.setAutoCommit(false);
+			PreparedStatement scores = connection
+					.prepareStatement("UPDATE user_info SET high_score = ? WHERE username = ?");
+			for (int i = 0; i < users; i++) {
+				scores.setInt(1, random.nextInt(1000000));
+				scores.setString(2, "user" + i);
+				scores.addBatch();
+				if (i % 1000 == 999)
+					scores.executeBatch();
+			}
+			scores.executeBatch();
+
+			PreparedStatement edges = connection.prepareStatement(
+					"MERGE INTO friends (user_one, user_two, relation, action_user) KEY (user_one, user_two) "
+							+ "VALUES (?, ?, 1, ?)");
+			for (int i = 0; i < friendEdges && users > 1; i++) {
+				int one = random.nextInt(users);
+				int two = random.nextInt(users - 1);
+				if (two >= one)
+					two++;
+				edges.setString(1, "user" + one);
+				edges.setString(2, "user" + two);
+				edges.setString(3, "user" + two);
+				edges.addBatch();
+				if (i % 1000 == 999)
+					edges.executeBatch();
+			}
+			edges.executeBatch();
+			jdbc.commit();
+		}
+	}
+}
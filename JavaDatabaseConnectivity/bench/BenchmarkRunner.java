@@ -0,0 +1,93 @@
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+
+/**
+ * A small benchmark harness in the style of JMH: each benchmark is warmed up,
+ * then timed for a number of measured iterations on one thread, recording the
+ * latency of every operation and the bytes allocated by the thread. Results
+ * are printed as one row per benchmark so runs can be compared for
+ * regressions.
+ */
+public class BenchmarkRunner {
+
+	/**
+	 * One operation of a benchmark. The value returned is consumed so the JIT
+	 * cannot remove the work.
+	 */
+	@FunctionalInterface
+	public interface Operation {
+		Object run(int iteration) throws Exception;
+	}
+
+	private static volatile Object sink;
+
+	private final int warmupOps;
+	private final int measuredOps;
+	private final com.sun.management.ThreadMXBean threads;
+
+	/**
+	 * Constructor
+	 *
+	 * @param warmupOps
+	 *            operations run before measuring.
+	 * @param measuredOps
+	 *            operations measured.
+	 */
+	public BenchmarkRunner(int warmupOps, int measuredOps) {
+		this.warmupOps = warmupOps;
+		this.measuredOps = measuredOps;
+		java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		this.threads = bean instanceof com.sun.management.ThreadMXBean ? (com.sun.management.ThreadMXBean) bean
+				: null;
+		if (threads != null)
+			threads.setThreadAllocatedMemoryEnabled(true);
+	}
+
+	/**
+	 * Prints the header of the result table.
+	 */
+	public static void printHeader() {
+		System.out.printf("%-28s %12s %10s %10s %10s %10s %10s %12s%n", "benchmark", "ops/s", "p50 us", "p90 us",
+				"p99 us", "p99.9 us", "max us", "bytes/op");
+	}
+
+	/**
+	 * Method to warm up, measure and print one benchmark.
+	 *
+	 * @param name
+	 *            name printed with the results.
+	 * @param operation
+	 *            the operation, called with the iteration number.
+	 * @return bytes allocated per operation, or -1 if the JVM does not measure
+	 *         allocations.
+	 */
+	public long run(String name, Operation operation) throws Exception {
+		for (int i = 0; i < warmupOps; i++) {
+			sink = operation.run(i);
+		}
+
+		long[] latencies = new long[measuredOps];
+		long threadId = Thread.currentThread().getId();
+		long allocatedBefore = threads != null ? threads.getThreadAllocatedBytes(threadId) : 0;
+		long start = System.nanoTime();
+		for (int i = 0; i < measuredOps; i++) {
+			long opStart = System.nanoTime();
+			sink = operation.run(warmupOps + i);
+			latencies[i] = System.nanoTime() - opStart;
+		}
+		long elapsed = System.nanoTime() - start;
+		long allocated = threads != null ? threads.getThreadAllocatedBytes(threadId) - allocatedBefore : -1;
+
+		Arrays.sort(latencies);
+		System.out.printf("%-28s %12.0f %10.1f %10.1f %10.1f %10.1f %10.1f %12s%n", name,
+				measuredOps * 1e9 / elapsed, percentile(latencies, 0.50), percentile(latencies, 0.90),
+				percentile(latencies, 0.99), percentile(latencies, 0.999), latencies[latencies.length - 1] / 1e3,
+				allocated < 0 ? "n/a" : String.valueOf(allocated / measuredOps));
+		return allocated < 0 ? -1 : allocated / measuredOps;
+	}
+
+	private static double percentile(long[] sorted, double fraction) {
+		int index = (int) Math.min(sorted.length - 1, Math.ceil(fraction * sorted.length) - 1);
+		return sorted[Math.max(0, index)] / 1e3;
+	}
+}
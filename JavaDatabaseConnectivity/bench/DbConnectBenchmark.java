@@ -0,0 +1,63 @@
+import java.util.Random;
+
+/**
+ * Benchmarks of the main DbConnect operations against an embedded database,
+ * reporting throughput, latency percentiles and allocations per operation.
+ *
+ * Run the main method with the bench and src folders and the H2 driver on the
+ * classpath. Settings are read from system properties:
+ * <ul>
+ * <li>bench.url - JDBC url (default an in-memory H2 database)</li>
+ * <li>bench.users - number of seeded users (default 10000)</li>
+ * <li>bench.friendEdges - number of seeded friendships (default 50000)</li>
+ * <li>bench.warmup - warm-up operations per benchmark (default 5000)</li>
+ * <li>bench.iterations - measured operations per benchmark (default 20000)</li>
+ * <li>bench.scanIterations - measured operations of benchmarks that read the
+ * whole leaderboard (default 200)</li>
+ * </ul>
+ * The leaderboard is read both into maps and into a reused ScoreTable, and
+ * the allocations per row of the two are printed after the results.
+ */
+public class DbConnectBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		String url = System.getProperty("bench.url", BenchmarkDatabase.DEFAULT_URL);
+		int users = Integer.getInteger("bench.users", 10000);
+		int friendEdges = Integer.getInteger("bench.friendEdges", 50000);
+		int warmup = Integer.getInteger("bench.warmup", 5000);
+		int iterations = Integer.getInteger("bench.iterations", 20000);
+		int scanIterations = Integer.getInteger("bench.scanIterations", 200);
+
+		try (DbConnect db = new DbConnect(BenchmarkDatabase.properties(1), url)) {
+			BenchmarkDatabase.seed(db, users, friendEdges);
+			BenchmarkRunner runner = new BenchmarkRunner(warmup, iterations);
+			BenchmarkRunner scanRunner = new BenchmarkRunner(Math.max(1, scanIterations / 10), scanIterations);
+			Random random = new Random(7);
+
+			System.out.println(users + " users, " + friendEdges + " friend edges");
+			BenchmarkRunner.printHeader();
+			runner.run("checkLogin", i -> {
+				String user = "user" + random.nextInt(users);
+				return db.checkLogin(user, user + "pw");
+			});
+			runner.run("registerUser", i -> {
+				db.registerUser("bench" + i, "password", "nickname");
+				return null;
+			});
+			runner.run("friendsList", i -> db.friendsList("user" + random.nextInt(users)));
+			int[] friends = new int[1];
+			runner.run("streamFriends", i -> {
+				db.streamFriends("user" + random.nextInt(users), friend -> friends[0]++);
+				return friends[0];
+			});
+			runner.run("checkHighScore", i -> db.checkHighScore("user" + random.nextInt(users), random.nextInt(1000000)));
+			long mapBytes = scanRunner.run("retrieveAllHighscores", i -> db.retrieveAllHighscores());
+			ScoreTable table = new ScoreTable(users);
+			long tableBytes = scanRunner.run("retrieveAllHighscores table", i -> db.retrieveAllHighscores(table));
+
+			int rows = Math.max(1, table.size());
+			System.out.printf("bytes/row of retrieveAllHighscores: map %d, table %d (%d rows)%n", mapBytes / rows,
+					tableBytes / rows, rows);
+		}
+	}
+}
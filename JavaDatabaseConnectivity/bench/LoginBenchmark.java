@@ -0,0 +1,70 @@
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Random;
+
+/**
+ * Compares the single lookup made by DbConnect.checkLogin with the previous
+ * login path, which checked that the username existed with a SELECT * and
+ * then selected the password in a second query.
+ *
+ * Usage: LoginBenchmark [jdbc url] [users] [iterations]. The default url is an
+ * in-memory H2 database, which must be on the classpath.
+ */
+public class LoginBenchmark {
+
+	public static void main(String[] args) throws SQLException {
+		String url = args.length > 0 ? args[0] : "jdbc:h2:mem:login;MODE=MySQL;DB_CLOSE_DELAY=-1";
+		int users = args.length > 1 ? Integer.parseInt(args[1]) : 10000;
+		int iterations = args.length > 2 ? Integer.parseInt(args[2]) : 200000;
+
+		try (DbConnect db = new DbConnect(BenchmarkDatabase.properties(1), url)) {
+			BenchmarkDatabase.seed(db, users, 0);
+			Random random = new Random(42);
+
+			for (int round = 0; round < 3; round++) {
+				long start = System.nanoTime();
+				int matched = 0;
+				for (int i = 0; i < iterations; i++) {
+					String user = "user" + random.nextInt(users);
+					if (twoQueryLogin(db, user, user + "pw"))
+						matched++;
+				}
+				report("two-query login", iterations, System.nanoTime() - start, matched);
+
+				start = System.nanoTime();
+				matched = 0;
+				for (int i = 0; i < iterations; i++) {
+					String user = "user" + random.nextInt(users);
+					if (db.checkLogin(user, user + "pw"))
+						matched++;
+				}
+				report("checkLogin", iterations, System.nanoTime() - start, matched);
+			}
+		}
+	}
+
+	/**
+	 * The login path DbConnect used before checkLogin made a single lookup.
+	 */
+	private static boolean twoQueryLogin(DbConnect db, String username, String password) throws SQLException {
+		try (PooledConnection connection = db.getConnectionPool().borrow()) {
+			PreparedStatement exists = connection.prepareStatement("SELECT * FROM user_info WHERE username = ?;");
+			exists.setString(1, username);
+			try (ResultSet rs = exists.executeQuery()) {
+				if (!rs.next())
+					return false;
+			}
+			PreparedStatement query = connection.prepareStatement(DbConnect.SELECT_PASSWORD);
+			query.setString(1, username);
+			try (ResultSet rs = query.executeQuery()) {
+				return rs.next() && rs.getString(1).equals(password);
+			}
+		}
+	}
+
+	private static void report(String name, int iterations, long nanos, int matched) {
+		System.out.printf("%-16s %10.0f ops/s %8.2f us/op (%d matched)%n", name, iterations * 1e9 / nanos,
+				nanos / 1e3 / iterations, matched);
+	}
+}
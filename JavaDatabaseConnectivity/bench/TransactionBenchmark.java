@@ -0,0 +1,78 @@
+import java.io.File;
+import java.util.Random;
+
+/**
+ * Compares the end of a match written in autocommit, where every update is
+ * its own transaction, with the same updates written by one UnitOfWork. Each
+ * match counts a game and offers a score for every player and accepts a
+ * friend request between two of them.
+ *
+ * Run the main method with the bench and src folders and the H2 driver on the
+ * classpath. The default database is a file, so that every commit is written
+ * to disk as it would be by a server. Settings are read from system
+ * properties:
+ * <ul>
+ * <li>bench.url - JDBC url (default a file database in the temporary
+ * directory)</li>
+ * <li>bench.users - number of seeded users (default 10000)</li>
+ * <li>bench.players - players per match (default 4)</li>
+ * <li>bench.warmup - warm-up matches per benchmark (default 500)</li>
+ * <li>bench.iterations - measured matches per benchmark (default 5000)</li>
+ * </ul>
+ */
+public class TransactionBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		File file = new File(System.getProperty("java.io.tmpdir"), "transaction-bench");
+		String url = System.getProperty("bench.url");
+		if (url == null) {
+			// start from an empty database, since seeding registers the users again
+			new File(file.getPath() + ".mv.db").delete();
+			url = "jdbc:h2:" + file.getAbsolutePath() + ";MODE=MySQL";
+		}
+		int users = Integer.getInteger("bench.users", 10000);
+		int players = Integer.getInteger("bench.players", 4);
+		int warmup = Integer.getInteger("bench.warmup", 500);
+		int iterations = Integer.getInteger("bench.iterations", 5000);
+
+		try (DbConnect db = new DbConnect(BenchmarkDatabase.properties(1), url)) {
+			BenchmarkDatabase.seed(db, users, 0);
+			BenchmarkRunner runner = new BenchmarkRunner(warmup, iterations);
+			Random random = new Random(11);
+			String[] match = new String[players];
+
+			// every update of a match is a statement, and in autocommit a commit
+			int statements = players * 2 + 1;
+			System.out.println(users + " users, " + players + " players per match");
+			System.out.println("commits per match: autocommit " + statements + ", unit of work 1");
+			BenchmarkRunner.printHeader();
+			runner.run("match autocommit", i -> {
+				pickPlayers(random, users, match);
+				endMatch(db, match, random);
+				return null;
+			});
+			runner.run("match unit of work", i -> {
+				pickPlayers(random, users, match);
+				try (UnitOfWork work = db.begin()) {
+					endMatch(db, match, random);
+					work.commit();
+				}
+				return null;
+			});
+		}
+	}
+
+	private static void pickPlayers(Random random, int users, String[] match) {
+		for (int i = 0; i < match.length; i++) {
+			match[i] = "user" + random.nextInt(users);
+		}
+	}
+
+	private static void endMatch(DbConnect db, String[] match, Random random) {
+		for (String player : match) {
+			db.updateGames(player);
+			db.checkHighScore(player, random.nextInt(1000000));
+		}
+		db.acceptFriend(match[0], match[1]);
+	}
+}
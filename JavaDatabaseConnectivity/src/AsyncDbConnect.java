@@ -0,0 +1,182 @@
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Asynchronous counterpart of DbConnectInterface, whose operations return a
+ * CompletableFuture instead of blocking the calling thread.
+ *
+ * Each operation runs the blocking call on its own virtual thread when the
+ * runtime provides them (Java 21 and later) and on a fixed pool of platform
+ * threads otherwise. At most maxConcurrency operations run at once, which
+ * should match the number of connections in the pool; the other operations
+ * wait for a permit, which costs a virtual thread nothing while it is parked.
+ */
+public class AsyncDbConnect implements AutoCloseable {
+	private final DbConnectInterface db;
+	private final ExecutorService executor;
+	private final Semaphore permits;
+	private final boolean virtualThreads;
+
+	/**
+	 * Constructor - limits the concurrency to the maximum size of the connection
+	 * pool of db.
+	 */
+	public AsyncDbConnect(DbConnect db) {
+		this(db, db.getConnectionPool().getMaxSize());
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param db
+	 *            the blocking implementation that operations are delegated to.
+	 * @param maxConcurrency
+	 *            maximum number of operations running at once.
+	 */
+	public AsyncDbConnect(DbConnectInterface db, int maxConcurrency) {
+		this(db, maxConcurrency, Executors.class);
+	}
+
+	/**
+	 * Constructor - looks up newVirtualThreadPerTaskExecutor on the given class,
+	 * so that tests can make the lookup fail.
+	 */
+	AsyncDbConnect(DbConnectInterface db, int maxConcurrency, Class<?> factories) {
+		this.db = db;
+		this.permits = new Semaphore(Math.max(1, maxConcurrency));
+		ExecutorService virtual = newVirtualThreadExecutor(factories);
+		this.virtualThreads = virtual != null;
+		this.executor = virtual != null ? virtual : Executors.newFixedThreadPool(permits.availablePermits(), r -> {
+			Thread thread = new Thread(r, "async-db-connect");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	/**
+	 * @return an executor that starts a virtual thread per task, or null if the
+	 *         factory class, normally Executors, does not provide one.
+	 */
+	static ExecutorService newVirtualThreadExecutor(Class<?> factories) {
+		try {
+			Method factory = factories.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) factory.invoke(null);
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * @return true if operations run on virtual threads.
+	 */
+	public boolean usesVirtualThreads() {
+		return virtualThreads;
+	}
+
+	/**
+	 * @return number of operations that can start without waiting.
+	 */
+	public int getAvailablePermits() {
+		return permits.availablePermits();
+	}
+
+	/**
+	 * Method to run any blocking operation asynchronously within the
+	 * concurrency limit.
+	 */
+	public <T> CompletableFuture<T> submit(Supplier<T> operation) {
+		return CompletableFuture.supplyAsync(() -> {
+			permits.acquireUninterruptibly();
+			try {
+				return operation.get();
+			} finally {
+				permits.release();
+			}
+		}, executor);
+	}
+
+	private CompletableFuture<Void> run(Runnable operation) {
+		return submit(() -> {
+			operation.run();
+			return null;
+		});
+	}
+
+	public CompletableFuture<Void> registerUser(String username, String password, String nickname) {
+		return run(() -> db.registerUser(username, password, nickname));
+	}
+
+	public CompletableFuture<Boolean> checkUsernameExists(String username) {
+		return submit(() -> db.checkUsernameExists(username));
+	}
+
+	public CompletableFuture<Boolean> checkLogin(String username, String password) {
+		return submit(() -> db.checkLogin(username, password));
+	}
+
+	public CompletableFuture<Integer> retrieveHighScore(String user) {
+		return submit(() -> db.retrieveHighScore(user));
+	}
+
+	public CompletableFuture<HashMap<String, Integer>> retrieveAllHighscores() {
+		return submit(db::retrieveAllHighscores);
+	}
+
+	public CompletableFuture<LinkedHashMap<String, Integer>> retrieveTopHighscores(int limit) {
+		return submit(() -> db.retrieveTopHighscores(limit));
+	}
+
+	public CompletableFuture<LinkedHashMap<String, Integer>> retrieveHighscoresBelow(int highScore, String username,
+			int limit) {
+		return submit(() -> db.retrieveHighscoresBelow(highScore, username, limit));
+	}
+
+	public CompletableFuture<Void> updateHighScore(String user, int highScore) {
+		return run(() -> db.updateHighScore(user, highScore));
+	}
+
+	public CompletableFuture<Boolean> checkHighScore(String username, int latestScore) {
+		return submit(() -> db.checkHighScore(username, latestScore));
+	}
+
+	public CompletableFuture<Void> updateGames(String user) {
+		return run(() -> db.updateGames(user));
+	}
+
+	public CompletableFuture<Void> addFriend(String user_one, String user_two) {
+		return run(() -> db.addFriend(user_one, user_two));
+	}
+
+	public CompletableFuture<Void> acceptFriend(String user_one, String user_two) {
+		return run(() -> db.acceptFriend(user_one, user_two));
+	}
+
+	public CompletableFuture<Void> declineFriend(String user_one, String user_two) {
+		return run(() -> db.declineFriend(user_one, user_two));
+	}
+
+	public CompletableFuture<ArrayList<String>> friendsList(String user) {
+		return submit(() -> db.friendsList(user));
+	}
+
+	/**
+	 * Waits for the running operations to finish and stops the executor. The
+	 * blocking implementation is not closed.
+	 */
+	public void close() {
+		executor.shutdown();
+		try {
+			executor.awaitTermination(30, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
@@ -0,0 +1,164 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * JUnit tests for AsyncDbConnect, run against an EmbeddedDatabase through
+ * FaultInjectingDriver so that operations can be made to fail.
+ */
+public class AsyncDbConnectTest {
+	private static final String CH4RLIE = EmbeddedDatabase.username(0);
+	private static final String DOG = EmbeddedDatabase.username(1);
+
+	private EmbeddedDatabase db;
+	private FaultInjectingDriver driver;
+	private DbConnect con;
+	private AsyncDbConnect async;
+
+	@Before
+	public void setUp() throws SQLException {
+		this.db = new EmbeddedDatabase();
+		db.seed(10, 1, 1);
+		this.driver = FaultInjectingDriver.get();
+		Properties properties = db.properties(4);
+		properties.setProperty("resilience.failFast", "true");
+		this.con = new DbConnect(properties, FaultInjectingDriver.PREFIX + db.getUrl());
+		this.async = new AsyncDbConnect(con);
+	}
+
+	@After
+	public void tearDown() throws SQLException {
+		driver.reset();
+		async.close();
+		con.close();
+		db.close();
+	}
+
+	@Test
+	public void testFuturesCompleteWithValues() {
+		assertTrue(async.checkLogin(CH4RLIE, EmbeddedDatabase.password(0)).join());
+		assertFalse(async.checkLogin(CH4RLIE, "wrong").join());
+		assertTrue(async.checkUsernameExists(DOG).join());
+		assertEquals(Integer.valueOf(db.highScore(0)), async.retrieveHighScore(CH4RLIE).join());
+		assertEquals(db.friendsOf(0), async.friendsList(CH4RLIE).join());
+		assertEquals(10, async.retrieveAllHighscores().join().size());
+		assertEquals(3, async.retrieveTopHighscores(3).join().size());
+
+		async.updateHighScore(DOG, 5).join();
+		assertEquals(5, con.retrieveHighScore(DOG));
+		assertTrue(async.checkHighScore(DOG, 6).join());
+		assertEquals(6, con.retrieveHighScore(DOG));
+	}
+
+	@Test
+	public void testFuturesCompleteWithExceptions() {
+		driver.failStatements(1, "08S01");
+		CompletableFuture<Integer> score = async.retrieveHighScore(CH4RLIE);
+		try {
+			score.join();
+			fail("The operation did not fail");
+		} catch (CompletionException e) {
+			DatabaseException cause = (DatabaseException) e.getCause();
+			assertEquals("retrieveHighScore", cause.getOperation());
+			assertEquals("08S01", cause.getSQLState());
+		}
+		assertTrue(score.isCompletedExceptionally());
+
+		RuntimeException thrown = new IllegalStateException();
+		try {
+			async.submit(() -> {
+				throw thrown;
+			}).join();
+			fail("The operation did not fail");
+		} catch (CompletionException e) {
+			assertEquals(thrown, e.getCause());
+		}
+		assertEquals(Integer.valueOf(db.highScore(0)), async.retrieveHighScore(CH4RLIE).join());
+		assertEquals(4, async.getAvailablePermits());
+	}
+
+	@Test
+	public void testConcurrencyIsLimited() throws InterruptedException {
+		AsyncDbConnect limited = new AsyncDbConnect(con, 2);
+		try {
+			CountDownLatch finish = new CountDownLatch(1);
+			AtomicInteger running = new AtomicInteger();
+			AtomicInteger maxRunning = new AtomicInteger();
+			List<CompletableFuture<Integer>> futures = new ArrayList<CompletableFuture<Integer>>();
+			for (int i = 0; i < 6; i++) {
+				int task = i;
+				futures.add(limited.submit(() -> {
+					maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+					try {
+						finish.await();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+					running.decrementAndGet();
+					return task;
+				}));
+			}
+
+			long deadline = System.currentTimeMillis() + 5000;
+			while (running.get() < 2) {
+				if (System.currentTimeMillis() > deadline)
+					fail("The operations did not start within 5 seconds");
+				Thread.sleep(5);
+			}
+			Thread.sleep(50);
+			assertEquals(2, running.get());
+			assertEquals(0, limited.getAvailablePermits());
+
+			finish.countDown();
+			for (int i = 0; i < futures.size(); i++) {
+				assertEquals(Integer.valueOf(i), futures.get(i).join());
+			}
+			assertEquals(2, maxRunning.get());
+			assertEquals(2, limited.getAvailablePermits());
+		} finally {
+			limited.close();
+		}
+	}
+
+	@Test
+	public void testVirtualThreadLookup() {
+		assertNull(AsyncDbConnect.newVirtualThreadExecutor(Object.class));
+		boolean supported = false;
+		try {
+			Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			supported = true;
+		} catch (NoSuchMethodException e) {
+			// the runtime is older than Java 21
+		}
+		assertEquals(supported, async.usesVirtualThreads());
+	}
+
+	@Test
+	public void testFallbackToFixedPool() {
+		AsyncDbConnect fallback = new AsyncDbConnect(con, 2, Object.class);
+		try {
+			assertFalse(fallback.usesVirtualThreads());
+			assertEquals("async-db-connect", fallback.submit(() -> Thread.currentThread().getName()).join());
+			assertTrue(fallback.submit(() -> Thread.currentThread().isDaemon()).join());
+			assertEquals(Integer.valueOf(db.highScore(0)), fallback.retrieveHighScore(CH4RLIE).join());
+		} finally {
+			fallback.close();
+		}
+	}
+}
@@ -0,0 +1,184 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A Bloom filter of strings, e.g. usernames. mightContain never returns false
+ * for a string that has been put, and returns true for a string that has not
+ * been put with roughly the false positive probability the filter was sized
+ * for, as long as no more strings than expected have been put. Putting and
+ * testing strings is lock free, so the filter can be shared between threads.
+ *
+ * The k bit positions of a string are derived from two 64-bit hashes by double
+ * hashing, as described by Kirsch and Mitzenmacher.
+ */
+public class BloomFilter {
+	private static final int MAGIC = 0x426c6f6d;
+	private static final int VERSION = 1;
+
+	private final AtomicLongArray words;
+	private final long bitCount;
+	private final int hashCount;
+	private final AtomicLong insertions = new AtomicLong();
+
+	/**
+	 * Constructor - creates an empty filter.
+	 *
+	 * @param expectedInsertions
+	 *            number of strings the filter is sized for.
+	 * @param falsePositiveRate
+	 *            probability that mightContain returns true for a string that
+	 *            has not been put, between 0 and 1 exclusive.
+	 */
+	public BloomFilter(long expectedInsertions, double falsePositiveRate) {
+		if (expectedInsertions < 1)
+			throw new IllegalArgumentException("expectedInsertions must be positive");
+		if (!(falsePositiveRate > 0 && falsePositiveRate < 1))
+			throw new IllegalArgumentException("falsePositiveRate must be between 0 and 1");
+		double ln2 = Math.log(2);
+		long bits = (long) Math.ceil(-expectedInsertions * Math.log(falsePositiveRate) / (ln2 * ln2));
+		this.bitCount = Math.max(64, (bits + 63) / 64 * 64);
+		this.hashCount = Math.max(1, (int) Math.round((double) bitCount / expectedInsertions * ln2));
+		if (bitCount / 64 > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("Filter of " + bitCount + " bits is too large");
+		this.words = new AtomicLongArray((int) (bitCount / 64));
+	}
+
+	private BloomFilter(AtomicLongArray words, int hashCount, long insertions) {
+		this.words = words;
+		this.bitCount = (long) words.length() * 64;
+		this.hashCount = hashCount;
+		this.insertions.set(insertions);
+	}
+
+	/**
+	 * Method to add a string to the filter.
+	 */
+	public void put(String value) {
+		long hash = hash(value);
+		long h1 = mix(hash);
+		long h2 = mix(hash ^ 0x9e3779b97f4a7c15L) | 1;
+		for (int i = 0; i < hashCount; i++) {
+			long bit = Long.remainderUnsigned(h1 + i * h2, bitCount);
+			int word = (int) (bit >>> 6);
+			long mask = 1L << bit;
+			long current;
+			while (((current = words.get(word)) & mask) == 0 && !words.compareAndSet(word, current, current | mask)) {
+				// retry until the bit is set
+			}
+		}
+		insertions.incrementAndGet();
+	}
+
+	/**
+	 * @return false if the string has definitely not been put, true if it
+	 *         probably has.
+	 */
+	public boolean mightContain(String value) {
+		long hash = hash(value);
+		long h1 = mix(hash);
+		long h2 = mix(hash ^ 0x9e3779b97f4a7c15L) | 1;
+		for (int i = 0; i < hashCount; i++) {
+			long bit = Long.remainderUnsigned(h1 + i * h2, bitCount);
+			if ((words.get((int) (bit >>> 6)) & (1L << bit)) == 0)
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * 64-bit hash of the characters of a string.
+	 */
+	private static long hash(String value) {
+		long hash = 0xcbf29ce484222325L;
+		for (int i = 0; i < value.length(); i++) {
+			hash = (hash ^ value.charAt(i)) * 0x100000001b3L;
+		}
+		return hash;
+	}
+
+	/**
+	 * The finalizer of MurmurHash3, which spreads every input bit over the
+	 * output.
+	 */
+	private static long mix(long hash) {
+		hash ^= hash >>> 33;
+		hash *= 0xff51afd7ed558ccdL;
+		hash ^= hash >>> 33;
+		hash *= 0xc4ceb9fe1a85ec53L;
+		hash ^= hash >>> 33;
+		return hash;
+	}
+
+	/**
+	 * @return number of bits in the filter.
+	 */
+	public long getBitCount() {
+		return bitCount;
+	}
+
+	/**
+	 * @return number of bits set per string.
+	 */
+	public int getHashCount() {
+		return hashCount;
+	}
+
+	/**
+	 * @return number of times put has been called.
+	 */
+	public long getInsertions() {
+		return insertions.get();
+	}
+
+	/**
+	 * @return the false positive probability expected for the strings put so
+	 *         far.
+	 */
+	public double getExpectedFalsePositiveRate() {
+		return Math.pow(1 - Math.exp(-(double) hashCount * insertions.get() / bitCount), hashCount);
+	}
+
+	/**
+	 * Method to write the filter to a stream, e.g. a file read on the next
+	 * start. The stream is not closed.
+	 */
+	public void writeTo(OutputStream out) throws IOException {
+		DataOutputStream data = new DataOutputStream(out);
+		data.writeInt(MAGIC);
+		data.writeInt(VERSION);
+		data.writeInt(hashCount);
+		data.writeLong(insertions.get());
+		data.writeInt(words.length());
+		for (int i = 0; i < words.length(); i++) {
+			data.writeLong(words.get(i));
+		}
+		data.flush();
+	}
+
+	/**
+	 * Method to read a filter written by writeTo. The stream is not closed.
+	 *
+	 * @throws IOException
+	 *             if the stream cannot be read or does not hold a filter.
+	 */
+	public static BloomFilter readFrom(InputStream in) throws IOException {
+		DataInputStream data = new DataInputStream(in);
+		if (data.readInt() != MAGIC || data.readInt() != VERSION)
+			throw new IOException("Not a Bloom filter");
+		int hashCount = data.readInt();
+		long insertions = data.readLong();
+		int length = data.readInt();
+		if (hashCount < 1 || length < 1)
+			throw new IOException("Corrupt Bloom filter");
+		AtomicLongArray words = new AtomicLongArray(length);
+		for (int i = 0; i < length; i++) {
+			words.set(i, data.readLong());
+		}
+		return new BloomFilter(words, hashCount, insertions);
+	}
+}
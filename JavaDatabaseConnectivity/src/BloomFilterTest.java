@@ -0,0 +1,76 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import org.junit.Test;
+
+/**
+ * JUnit tests for BloomFilter
+ */
+public class BloomFilterTest {
+	private static final int USERS = 100000;
+
+	@Test
+	public void testNoFalseNegatives() {
+		BloomFilter filter = new BloomFilter(USERS, 0.01);
+		for (int i = 0; i < USERS; i++) {
+			filter.put("user" + i);
+		}
+
+		for (int i = 0; i < USERS; i++) {
+			assertTrue(filter.mightContain("user" + i));
+		}
+	}
+
+	@Test
+	public void testMeasuredFalsePositiveRate() {
+		for (double rate : new double[] { 0.1, 0.01, 0.001 }) {
+			BloomFilter filter = new BloomFilter(USERS, rate);
+			for (int i = 0; i < USERS; i++) {
+				filter.put("user" + i);
+			}
+
+			int falsePositives = 0;
+			int trials = 1000000;
+			for (int i = 0; i < trials; i++) {
+				if (filter.mightContain("absent" + i))
+					falsePositives++;
+			}
+			double measured = (double) falsePositives / trials;
+			assertTrue("measured " + measured + " for " + rate, measured < rate * 1.25);
+			assertTrue(filter.getExpectedFalsePositiveRate() < rate * 1.1);
+		}
+	}
+
+	@Test
+	public void testSerialization() throws IOException {
+		BloomFilter filter = new BloomFilter(1000, 0.01);
+		for (int i = 0; i < 1000; i++) {
+			filter.put("user" + i);
+		}
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		filter.writeTo(out);
+
+		BloomFilter read = BloomFilter.readFrom(new ByteArrayInputStream(out.toByteArray()));
+
+		assertEquals(filter.getBitCount(), read.getBitCount());
+		assertEquals(filter.getHashCount(), read.getHashCount());
+		assertEquals(1000, read.getInsertions());
+		for (int i = 0; i < 2000; i++) {
+			assertEquals(filter.mightContain("user" + i), read.mightContain("user" + i));
+		}
+	}
+
+	@Test(expected = IOException.class)
+	public void testReadRejectsOtherData() throws IOException {
+		BloomFilter.readFrom(new ByteArrayInputStream(new byte[64]));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testRejectsInvalidRate() {
+		new BloomFilter(1000, 1.0);
+	}
+}
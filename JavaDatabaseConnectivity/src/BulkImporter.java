@@ -0,0 +1,124 @@
+import java.sql.BatchUpdateException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.function.Consumer;
+
+/**
+ * Inserts rows with JDBC batches, committing one transaction per batch. When a
+ * batch is rejected, e.g. because of a duplicate username, it is rolled back
+ * and its rows are inserted one at a time behind savepoints, so only the rows
+ * that fail are left out. When the connection is already in a transaction,
+ * e.g. of a UnitOfWork, each batch is rolled back to a savepoint instead and
+ * nothing is committed.
+ */
+class BulkImporter<T> {
+
+	/**
+	 * Binds the parameters of the insert statement for one row.
+	 */
+	interface RowBinder<T> {
+		void bind(PreparedStatement statement, T row) throws SQLException;
+
+		String key(T row);
+	}
+
+	private final String sql;
+	private final RowBinder<T> binder;
+	private final int batchSize;
+
+	BulkImporter(String sql, RowBinder<T> binder, int batchSize) {
+		this.sql = sql;
+		this.binder = binder;
+		this.batchSize = Math.max(1, batchSize);
+	}
+
+	/**
+	 * Method to insert every row.
+	 *
+	 * @param connection
+	 *            connection the rows are inserted with.
+	 * @param rows
+	 *            rows to insert, which are read one batch at a time.
+	 * @param inserted
+	 *            receives every row that was inserted, once its batch has been
+	 *            committed.
+	 * @return the number of rows inserted and the rows that failed.
+	 * @throws SQLException
+	 *             if the database could not be reached; the batches committed
+	 *             before the error remain.
+	 */
+	BulkResult run(PooledConnection connection, Iterable<T> rows, Consumer<T> inserted) throws SQLException {
+		BulkResult result = new BulkResult();
+		Iterator<T> iterator = rows.iterator();
+		ArrayList<T> batch = new ArrayList<T>(Math.min(batchSize, 10000));
+		long index = 0;
+
+		Connection jdbc = connection.getConnection();
+		boolean commit = jdbc.getAutoCommit();
+		jdbc.setAutoCommit(false);
+		PreparedStatement statement = connection.prepareStatement(sql);
+
+		while (iterator.hasNext()) {
+			batch.clear();
+			while (batch.size() < batchSize && iterator.hasNext()) {
+				batch.add(iterator.next());
+			}
+
+			ArrayList<T> committed = insertBatch(jdbc, commit, statement, batch, index, result);
+			for (T row : committed) {
+				inserted.accept(row);
+			}
+			index += batch.size();
+		}
+		return result;
+	}
+
+	/**
+	 * @param commit
+	 *            true to commit the batch, false to leave it in the transaction
+	 *            of the caller.
+	 */
+	private ArrayList<T> insertBatch(Connection jdbc, boolean commit, PreparedStatement statement,
+			ArrayList<T> batch, long firstIndex, BulkResult result) throws SQLException {
+		Savepoint start = commit ? null : jdbc.setSavepoint();
+		try {
+			for (T row : batch) {
+				binder.bind(statement, row);
+				statement.addBatch();
+			}
+			statement.executeBatch();
+			if (commit)
+				jdbc.commit();
+			result.addInserted(batch.size());
+			return batch;
+		} catch (BatchUpdateException e) {
+			statement.clearBatch();
+			if (commit)
+				jdbc.rollback();
+			else
+				jdbc.rollback(start);
+		}
+
+		ArrayList<T> committed = new ArrayList<T>(batch.size());
+		for (int i = 0; i < batch.size(); i++) {
+			T row = batch.get(i);
+			Savepoint savepoint = jdbc.setSavepoint();
+			try {
+				binder.bind(statement, row);
+				statement.executeUpdate();
+				committed.add(row);
+			} catch (SQLException e) {
+				jdbc.rollback(savepoint);
+				result.addFailure(firstIndex + i, binder.key(row), e.getSQLState(), e.getMessage());
+			}
+		}
+		if (commit)
+			jdbc.commit();
+		result.addInserted(committed.size());
+		return committed;
+	}
+}
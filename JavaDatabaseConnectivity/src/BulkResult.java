@@ -0,0 +1,88 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The outcome of a bulk import: how many rows were inserted, and why each of
+ * the other rows was rejected.
+ */
+public class BulkResult {
+
+	/**
+	 * A row that could not be inserted.
+	 */
+	public static class Failure {
+		private final long index;
+		private final String key;
+		private final String sqlState;
+		private final String message;
+
+		Failure(long index, String key, String sqlState, String message) {
+			this.index = index;
+			this.key = key;
+			this.sqlState = sqlState;
+			this.message = message;
+		}
+
+		/**
+		 * @return position of the row in the input, starting at 0.
+		 */
+		public long getIndex() {
+			return index;
+		}
+
+		/**
+		 * @return the username, or pair of usernames, of the row.
+		 */
+		public String getKey() {
+			return key;
+		}
+
+		/**
+		 * @return SQLState reported by the database, e.g. 23xxx for a duplicate
+		 *         username.
+		 */
+		public String getSqlState() {
+			return sqlState;
+		}
+
+		public String getMessage() {
+			return message;
+		}
+
+		@Override
+		public String toString() {
+			return "row " + index + " (" + key + "): " + sqlState + " " + message;
+		}
+	}
+
+	private long inserted;
+	private final ArrayList<Failure> failures = new ArrayList<Failure>();
+
+	void addInserted(long rows) {
+		inserted += rows;
+	}
+
+	void addFailure(long index, String key, String sqlState, String message) {
+		failures.add(new Failure(index, key, sqlState, message));
+	}
+
+	/**
+	 * @return number of rows inserted.
+	 */
+	public long getInserted() {
+		return inserted;
+	}
+
+	/**
+	 * @return the rows that could not be inserted, in input order.
+	 */
+	public List<Failure> getFailures() {
+		return Collections.unmodifiableList(failures);
+	}
+
+	@Override
+	public String toString() {
+		return inserted + " inserted, " + failures.size() + " failed";
+	}
+}
@@ -0,0 +1,25 @@
+import java.util.Properties;
+
+/**
+ * Runs the tests of DbConnectTest with every in-memory structure enabled, so
+ * that each method is also tested where it is answered without a query: the
+ * leaderboard, rank snapshot, username filter, friend graph, friend cache and
+ * profile cache. The change feed is enabled too, so that every write also
+ * publishes its event.
+ */
+public class CachedDbConnectTest extends DbConnectTest {
+
+	@Override
+	protected Properties configure() {
+		Properties properties = new Properties();
+		properties.setProperty("leaderboard.enabled", "true");
+		properties.setProperty("snapshot.enabled", "true");
+		properties.setProperty("filter.enabled", "true");
+		properties.setProperty("filter.expectedUsers", "1000");
+		properties.setProperty("friends.graph", "true");
+		properties.setProperty("friends.cacheSize", "100");
+		properties.setProperty("profiles.cacheSize", "100");
+		properties.setProperty("changes.enabled", "true");
+		return properties;
+	}
+}
@@ -0,0 +1,102 @@
+/**
+ * A change written by DbConnect, as published by a ChangeFeed. Events are
+ * numbered in the order they were published, from 1, so a client that has
+ * applied every event up to a sequence number can resume after it. Updates
+ * buffered by a WriteBehindBuffer are published once a flush has committed
+ * them, so several games of a user may be counted by one event.
+ */
+public class ChangeEvent {
+	/**
+	 * Kinds of change.
+	 */
+	public enum Type {
+		/**
+		 * A user was registered, with a high score of 0.
+		 */
+		USER_REGISTERED,
+		/**
+		 * The high score of a user was set to value.
+		 */
+		SCORE_UPDATED,
+		/**
+		 * A user played value more games.
+		 */
+		GAMES_INCREMENTED,
+		/**
+		 * A user sent a friend request to otherUser.
+		 */
+		FRIEND_REQUESTED,
+		/**
+		 * A user accepted the friend request sent by otherUser.
+		 */
+		FRIEND_ACCEPTED,
+		/**
+		 * A user declined the friend request sent by otherUser.
+		 */
+		FRIEND_DECLINED
+	}
+
+	private final long sequence;
+	private final Type type;
+	private final String username;
+	private final String otherUser;
+	private final int value;
+	private final long timeMillis;
+
+	ChangeEvent(long sequence, Type type, String username, String otherUser, int value, long timeMillis) {
+		this.sequence = sequence;
+		this.type = type;
+		this.username = username;
+		this.otherUser = otherUser;
+		this.value = value;
+		this.timeMillis = timeMillis;
+	}
+
+	/**
+	 * @return number of the event, from 1.
+	 */
+	public long getSequence() {
+		return sequence;
+	}
+
+	public Type getType() {
+		return type;
+	}
+
+	/**
+	 * @return username of the user who changed, or who sent, accepted or
+	 *         declined a friend request.
+	 */
+	public String getUsername() {
+		return username;
+	}
+
+	/**
+	 * @return username of the other user of a friend request, or null for the
+	 *         other types.
+	 */
+	public String getOtherUser() {
+		return otherUser;
+	}
+
+	/**
+	 * @return the new high score of SCORE_UPDATED or the number of games of
+	 *         GAMES_INCREMENTED, otherwise 0.
+	 */
+	public int getValue() {
+		return value;
+	}
+
+	/**
+	 * @return time the event was published, in milliseconds since the epoch.
+	 */
+	public long getTimeMillis() {
+		return timeMillis;
+	}
+
+	@Override
+	public String toString() {
+		return "#" + sequence + " " + type + " " + username + (otherUser == null ? "" : " " + otherUser)
+				+ (value == 0 ? "" : " " + value);
+	}
+}
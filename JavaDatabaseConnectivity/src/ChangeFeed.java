@@ -0,0 +1,253 @@
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Publishes the changes written by DbConnect to subscribers in the same
+ * process, so that a client can apply each change to its copy of the
+ * leaderboard or of a friends list instead of polling for them.
+ *
+ * The last capacity events are kept in a ring buffer. Publishing never waits
+ * for a subscriber: each subscriber reads the ring at its own pace and gets
+ * no more events than it has requested. A subscriber that falls more than
+ * capacity events behind has missed events and fails with an
+ * EventsLostException, after which it should read the state again and
+ * subscribe after the last sequence number it saw. A subscriber can also
+ * resume after a sequence number, e.g. after reconnecting, as long as the
+ * following events are still in the ring.
+ */
+public class ChangeFeed implements Flow.Publisher<ChangeEvent>, AutoCloseable {
+	/**
+	 * Signalled to a subscriber when events it has not received are no longer
+	 * in the ring.
+	 */
+	public static class EventsLostException extends IllegalStateException {
+		private static final long serialVersionUID = 1L;
+		private final long afterSequence;
+		private final long oldestSequence;
+
+		EventsLostException(long afterSequence, long oldestSequence) {
+			super("Events after " + afterSequence + " are lost; the oldest kept is " + oldestSequence);
+			this.afterSequence = afterSequence;
+			this.oldestSequence = oldestSequence;
+		}
+
+		/**
+		 * @return sequence number of the last event the subscriber received.
+		 */
+		public long getAfterSequence() {
+			return afterSequence;
+		}
+
+		/**
+		 * @return sequence number of the oldest event still in the ring.
+		 */
+		public long getOldestSequence() {
+			return oldestSequence;
+		}
+	}
+
+	private final AtomicReferenceArray<ChangeEvent> ring;
+	private final int mask;
+	private final Executor executor;
+	private final CopyOnWriteArrayList<RingSubscription> subscriptions = new CopyOnWriteArrayList<RingSubscription>();
+	private long lastSequence;
+	private volatile long published;
+	private volatile boolean closed;
+
+	/**
+	 * Constructor
+	 *
+	 * @param capacity
+	 *            number of events kept, rounded up to a power of two.
+	 * @param executor
+	 *            runs the delivery of events to subscribers.
+	 */
+	public ChangeFeed(int capacity, Executor executor) {
+		if (capacity < 1)
+			throw new IllegalArgumentException("capacity must be at least 1");
+		this.ring = new AtomicReferenceArray<ChangeEvent>(capacity == 1 ? 1 : Integer.highestOneBit(capacity - 1) << 1);
+		this.mask = ring.length() - 1;
+		this.executor = executor;
+	}
+
+	/**
+	 * Method to publish an event to every subscriber. Events published after
+	 * the feed is closed, e.g. by a write that commits while DbConnect is being
+	 * closed, are dropped.
+	 *
+	 * @return the event, or null if the feed is closed.
+	 */
+	public ChangeEvent publish(ChangeEvent.Type type, String username, String otherUser, int value) {
+		ChangeEvent event;
+		synchronized (this) {
+			if (closed)
+				return null;
+			event = new ChangeEvent(++lastSequence, type, username, otherUser, value, System.currentTimeMillis());
+			ring.set((int) (event.getSequence() & mask), event);
+			published = event.getSequence();
+		}
+		for (RingSubscription subscription : subscriptions) {
+			subscription.signal();
+		}
+		return event;
+	}
+
+	/**
+	 * Method to subscribe to the events published from now on.
+	 */
+	@Override
+	public void subscribe(Flow.Subscriber<? super ChangeEvent> subscriber) {
+		subscribe(subscriber, published);
+	}
+
+	/**
+	 * Method to subscribe to the events published after a sequence number. If
+	 * some of them are no longer in the ring the subscriber fails with an
+	 * EventsLostException once it requests events.
+	 *
+	 * @param afterSequence
+	 *            sequence number of the last event the subscriber has applied,
+	 *            or 0 for every event still in the ring.
+	 */
+	public void subscribe(Flow.Subscriber<? super ChangeEvent> subscriber, long afterSequence) {
+		RingSubscription subscription = new RingSubscription(subscriber,
+				afterSequence == 0 ? Math.max(0, published - ring.length()) : afterSequence);
+		subscriptions.add(subscription);
+		subscriber.onSubscribe(subscription);
+		// a feed closed before the subscription was added has no signal left for it
+		if (closed)
+			subscription.signal();
+	}
+
+	/**
+	 * @return sequence number of the last event published, or 0 if there is
+	 *         none.
+	 */
+	public long getLastSequence() {
+		return published;
+	}
+
+	/**
+	 * @return sequence number of the oldest event in the ring, or 1 if no event
+	 *         has been published.
+	 */
+	public long getOldestSequence() {
+		return Math.max(1, published - ring.length() + 1);
+	}
+
+	/**
+	 * @return number of events kept.
+	 */
+	public int getCapacity() {
+		return ring.length();
+	}
+
+	/**
+	 * @return number of subscribers that have not cancelled, failed or
+	 *         completed.
+	 */
+	public int getSubscriberCount() {
+		return subscriptions.size();
+	}
+
+	/**
+	 * Method to stop publishing. Subscribers complete once they have received
+	 * the events published before.
+	 */
+	@Override
+	public void close() {
+		synchronized (this) {
+			closed = true;
+		}
+		for (RingSubscription subscription : subscriptions) {
+			subscription.signal();
+		}
+	}
+
+	/**
+	 * The position of one subscriber in the ring. Events are delivered by a
+	 * single drain at a time, which runs on the executor while there are events
+	 * the subscriber has requested.
+	 */
+	private final class RingSubscription implements Flow.Subscription {
+		private final Flow.Subscriber<? super ChangeEvent> subscriber;
+		private final AtomicLong requested = new AtomicLong();
+		private final AtomicInteger pending = new AtomicInteger();
+		private volatile boolean done;
+		private volatile Throwable error;
+		// only read and written by the drain
+		private long cursor;
+
+		RingSubscription(Flow.Subscriber<? super ChangeEvent> subscriber, long cursor) {
+			this.subscriber = subscriber;
+			this.cursor = cursor;
+		}
+
+		@Override
+		public void request(long n) {
+			if (n <= 0)
+				error = new IllegalArgumentException("Requested " + n + " events; must be positive");
+			else
+				requested.getAndAccumulate(n, (current, add) -> current + add < 0 ? Long.MAX_VALUE : current + add);
+			signal();
+		}
+
+		@Override
+		public void cancel() {
+			done = true;
+			subscriptions.remove(this);
+		}
+
+		void signal() {
+			if (pending.getAndIncrement() == 0)
+				executor.execute(this::drain);
+		}
+
+		private void drain() {
+			do {
+				if (done)
+					return;
+				if (error != null) {
+					finish(error);
+					return;
+				}
+				long delivered = 0;
+				long demand = requested.get();
+				while (delivered < demand && cursor < published && !done) {
+					ChangeEvent event = ring.get((int) ((cursor + 1) & mask));
+					if (event == null || event.getSequence() != cursor + 1) {
+						finish(new EventsLostException(cursor, getOldestSequence()));
+						return;
+					}
+					cursor++;
+					delivered++;
+					try {
+						subscriber.onNext(event);
+					} catch (RuntimeException e) {
+						// a subscriber that throws has broken the contract and gets nothing more
+						cancel();
+						return;
+					}
+				}
+				if (delivered > 0 && demand != Long.MAX_VALUE)
+					requested.addAndGet(-delivered);
+				if (closed && cursor >= published && !done) {
+					finish(null);
+					return;
+				}
+			} while (pending.decrementAndGet() != 0);
+		}
+
+		private void finish(Throwable failure) {
+			cancel();
+			if (failure == null)
+				subscriber.onComplete();
+			else
+				subscriber.onError(failure);
+		}
+	}
+}
@@ -0,0 +1,250 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.concurrent.Flow;
+
+import org.junit.Test;
+
+/**
+ * JUnit tests for ChangeFeed. Events are delivered on the thread that
+ * publishes or requests them, so each test can check them straight away.
+ */
+public class ChangeFeedTest {
+
+	/**
+	 * A subscriber that records what it is sent and requests nothing by itself.
+	 */
+	private static class Recorder implements Flow.Subscriber<ChangeEvent> {
+		private final ArrayList<ChangeEvent> events = new ArrayList<ChangeEvent>();
+		private Flow.Subscription subscription;
+		private Throwable error;
+		private boolean completed;
+
+		@Override
+		public void onSubscribe(Flow.Subscription subscription) {
+			this.subscription = subscription;
+		}
+
+		@Override
+		public void onNext(ChangeEvent event) {
+			events.add(event);
+		}
+
+		@Override
+		public void onError(Throwable error) {
+			this.error = error;
+		}
+
+		@Override
+		public void onComplete() {
+			completed = true;
+		}
+
+		long lastSequence() {
+			return events.get(events.size() - 1).getSequence();
+		}
+	}
+
+	private static ChangeFeed feed(int capacity) {
+		return new ChangeFeed(capacity, Runnable::run);
+	}
+
+	private static void score(ChangeFeed feed, String user, int value) {
+		feed.publish(ChangeEvent.Type.SCORE_UPDATED, user, null, value);
+	}
+
+	@Test
+	public void testEventsInOrder() {
+		ChangeFeed feed = feed(16);
+		Recorder recorder = new Recorder();
+		feed.subscribe(recorder);
+		recorder.subscription.request(Long.MAX_VALUE);
+
+		score(feed, "dog", 100);
+		feed.publish(ChangeEvent.Type.FRIEND_REQUESTED, "dog", "ch4rlie", 0);
+		feed.publish(ChangeEvent.Type.FRIEND_ACCEPTED, "ch4rlie", "dog", 0);
+
+		assertEquals(3, recorder.events.size());
+		assertEquals(1, recorder.events.get(0).getSequence());
+		assertEquals(100, recorder.events.get(0).getValue());
+		assertEquals(ChangeEvent.Type.FRIEND_ACCEPTED, recorder.events.get(2).getType());
+		assertEquals("dog", recorder.events.get(2).getOtherUser());
+		assertEquals(3, feed.getLastSequence());
+	}
+
+	@Test
+	public void testOnlyRequestedEvents() {
+		ChangeFeed feed = feed(16);
+		Recorder recorder = new Recorder();
+		feed.subscribe(recorder);
+
+		for (int i = 1; i <= 5; i++) {
+			score(feed, "dog", i);
+		}
+		assertTrue(recorder.events.isEmpty());
+
+		recorder.subscription.request(2);
+		assertEquals(2, recorder.events.size());
+		score(feed, "dog", 6);
+		assertEquals(2, recorder.events.size());
+
+		recorder.subscription.request(10);
+		assertEquals(6, recorder.events.size());
+		assertEquals(6, recorder.lastSequence());
+	}
+
+	@Test
+	public void testSubscribeFromNow() {
+		ChangeFeed feed = feed(16);
+		score(feed, "dog", 1);
+		score(feed, "dog", 2);
+
+		Recorder recorder = new Recorder();
+		feed.subscribe(recorder);
+		recorder.subscription.request(Long.MAX_VALUE);
+		score(feed, "tomo", 3);
+
+		assertEquals(1, recorder.events.size());
+		assertEquals(3, recorder.lastSequence());
+	}
+
+	@Test
+	public void testResumeAfterSequence() {
+		ChangeFeed feed = feed(16);
+		for (int i = 1; i <= 10; i++) {
+			score(feed, "dog", i);
+		}
+
+		Recorder recorder = new Recorder();
+		feed.subscribe(recorder, 7);
+		recorder.subscription.request(Long.MAX_VALUE);
+
+		assertEquals(3, recorder.events.size());
+		assertEquals(8, recorder.events.get(0).getSequence());
+		assertNull(recorder.error);
+	}
+
+	@Test
+	public void testSubscribeToEverythingKept() {
+		ChangeFeed feed = feed(4);
+		for (int i = 1; i <= 10; i++) {
+			score(feed, "dog", i);
+		}
+
+		Recorder recorder = new Recorder();
+		feed.subscribe(recorder, 0);
+		recorder.subscription.request(Long.MAX_VALUE);
+
+		assertEquals(4, recorder.events.size());
+		assertEquals(feed.getOldestSequence(), recorder.events.get(0).getSequence());
+		assertEquals(7, feed.getOldestSequence());
+	}
+
+	@Test
+	public void testSlowSubscriberLosesEvents() {
+		ChangeFeed feed = feed(4);
+		Recorder recorder = new Recorder();
+		feed.subscribe(recorder);
+		recorder.subscription.request(1);
+
+		for (int i = 1; i <= 10; i++) {
+			score(feed, "dog", i);
+		}
+		recorder.subscription.request(Long.MAX_VALUE);
+
+		assertEquals(1, recorder.events.size());
+		assertTrue(recorder.error instanceof ChangeFeed.EventsLostException);
+		ChangeFeed.EventsLostException lost = (ChangeFeed.EventsLostException) recorder.error;
+		assertEquals(1, lost.getAfterSequence());
+		assertEquals(7, lost.getOldestSequence());
+		assertEquals(0, feed.getSubscriberCount());
+	}
+
+	@Test
+	public void testResumeAfterLostEvents() {
+		ChangeFeed feed = feed(4);
+		for (int i = 1; i <= 10; i++) {
+			score(feed, "dog", i);
+		}
+
+		Recorder recorder = new Recorder();
+		feed.subscribe(recorder, 2);
+		recorder.subscription.request(Long.MAX_VALUE);
+
+		assertTrue(recorder.events.isEmpty());
+		assertTrue(recorder.error instanceof ChangeFeed.EventsLostException);
+	}
+
+	@Test
+	public void testCapacityRoundedUp() {
+		assertEquals(1, feed(1).getCapacity());
+		assertEquals(8, feed(5).getCapacity());
+		assertEquals(8, feed(8).getCapacity());
+	}
+
+	@Test
+	public void testCancel() {
+		ChangeFeed feed = feed(16);
+		Recorder recorder = new Recorder();
+		feed.subscribe(recorder);
+		recorder.subscription.request(Long.MAX_VALUE);
+		score(feed, "dog", 1);
+
+		recorder.subscription.cancel();
+		score(feed, "dog", 2);
+
+		assertEquals(1, recorder.events.size());
+		assertEquals(0, feed.getSubscriberCount());
+		assertFalse(recorder.completed);
+	}
+
+	@Test
+	public void testCloseCompletesAfterPendingEvents() {
+		ChangeFeed feed = feed(16);
+		Recorder recorder = new Recorder();
+		feed.subscribe(recorder);
+		score(feed, "dog", 1);
+		score(feed, "dog", 2);
+
+		feed.close();
+		assertFalse(recorder.completed);
+
+		recorder.subscription.request(Long.MAX_VALUE);
+		assertEquals(2, recorder.events.size());
+		assertTrue(recorder.completed);
+	}
+
+	@Test
+	public void testSubscribeAfterClose() {
+		ChangeFeed feed = feed(16);
+		feed.close();
+
+		Recorder recorder = new Recorder();
+		feed.subscribe(recorder);
+
+		assertTrue(recorder.completed);
+	}
+
+	@Test
+	public void testPublishAfterClose() {
+		ChangeFeed feed = feed(16);
+		feed.close();
+
+		assertNull(feed.publish(ChangeEvent.Type.SCORE_UPDATED, "dog", null, 1));
+		assertEquals(0, feed.getLastSequence());
+	}
+
+	@Test
+	public void testNonPositiveRequest() {
+		ChangeFeed feed = feed(16);
+		Recorder recorder = new Recorder();
+		feed.subscribe(recorder);
+		recorder.subscription.request(0);
+
+		assertTrue(recorder.error instanceof IllegalArgumentException);
+		assertEquals(0, feed.getSubscriberCount());
+	}
+}
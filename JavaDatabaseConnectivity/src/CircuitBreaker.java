@@ -0,0 +1,145 @@
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * A circuit breaker that stops calls to the database once it has failed
+ * failureThreshold times in a row, so that during an outage calls fail at once
+ * instead of each waiting out a connect or query timeout.
+ *
+ * The breaker is closed while the database is healthy. After failureThreshold
+ * consecutive failures it opens and rejects every call for openMillis. It then
+ * becomes half open and lets a single trial call through: if the trial
+ * succeeds the breaker closes, and if it fails the breaker opens again.
+ */
+public class CircuitBreaker {
+	/**
+	 * States of a circuit breaker.
+	 */
+	public enum State {
+		CLOSED, OPEN, HALF_OPEN
+	}
+
+	/**
+	 * Receives the changes of state of a circuit breaker.
+	 */
+	public interface Listener {
+		void stateChanged(State from, State to);
+	}
+
+	private final int failureThreshold;
+	private final long openMillis;
+	private final LongSupplier clock;
+	private final CopyOnWriteArrayList<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+
+	private State state = State.CLOSED;
+	private int consecutiveFailures;
+	private long openedAt;
+
+	private final AtomicLong rejectedCount = new AtomicLong();
+	private final AtomicLong openCount = new AtomicLong();
+
+	/**
+	 * Constructor
+	 *
+	 * @param failureThreshold
+	 *            consecutive failures that open the breaker.
+	 * @param openMillis
+	 *            time the breaker stays open before a trial call.
+	 */
+	public CircuitBreaker(int failureThreshold, long openMillis) {
+		this(failureThreshold, openMillis, System::currentTimeMillis);
+	}
+
+	CircuitBreaker(int failureThreshold, long openMillis, LongSupplier clock) {
+		if (failureThreshold < 1)
+			throw new IllegalArgumentException("failureThreshold must be at least 1");
+		this.failureThreshold = failureThreshold;
+		this.openMillis = openMillis;
+		this.clock = clock;
+	}
+
+	public void addListener(Listener listener) {
+		listeners.add(listener);
+	}
+
+	/**
+	 * Method to ask whether a call may go to the database. A call that is
+	 * allowed must be reported to recordSuccess or recordFailure.
+	 *
+	 * @return false if the breaker is open, or half open with a trial call in
+	 *         flight.
+	 */
+	public boolean allow() {
+		State from;
+		synchronized (this) {
+			if (state == State.CLOSED)
+				return true;
+			if (state == State.HALF_OPEN || clock.getAsLong() - openedAt < openMillis) {
+				rejectedCount.incrementAndGet();
+				return false;
+			}
+			from = state;
+			state = State.HALF_OPEN;
+		}
+		fire(from, State.HALF_OPEN);
+		return true;
+	}
+
+	/**
+	 * Method to report a call that reached the database, even if the database
+	 * then refused it, e.g. because a username was taken.
+	 */
+	public void recordSuccess() {
+		State from;
+		synchronized (this) {
+			consecutiveFailures = 0;
+			if (state != State.HALF_OPEN)
+				return;
+			from = state;
+			state = State.CLOSED;
+		}
+		fire(from, State.CLOSED);
+	}
+
+	/**
+	 * Method to report a call that failed because the database is unavailable.
+	 */
+	public void recordFailure() {
+		State from;
+		synchronized (this) {
+			consecutiveFailures++;
+			if (state == State.OPEN || (state == State.CLOSED && consecutiveFailures < failureThreshold))
+				return;
+			from = state;
+			state = State.OPEN;
+			openedAt = clock.getAsLong();
+		}
+		openCount.incrementAndGet();
+		fire(from, State.OPEN);
+	}
+
+	private void fire(State from, State to) {
+		for (Listener listener : listeners) {
+			listener.stateChanged(from, to);
+		}
+	}
+
+	public synchronized State getState() {
+		return state;
+	}
+
+	/**
+	 * @return number of calls rejected while the breaker was open.
+	 */
+	public long getRejectedCount() {
+		return rejectedCount.get();
+	}
+
+	/**
+	 * @return number of times the breaker has opened.
+	 */
+	public long getOpenCount() {
+		return openCount.get();
+	}
+}
@@ -0,0 +1,77 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * JUnit tests for CircuitBreaker, using a clock the tests move by hand.
+ */
+public class CircuitBreakerTest {
+	private long now;
+	private CircuitBreaker breaker;
+	private final List<String> changes = new ArrayList<String>();
+
+	@Before
+	public void setUp() {
+		this.breaker = new CircuitBreaker(3, 1000, () -> now);
+		breaker.addListener((from, to) -> changes.add(from + "->" + to));
+	}
+
+	private void fail(int times) {
+		for (int i = 0; i < times; i++) {
+			assertTrue(breaker.allow());
+			breaker.recordFailure();
+		}
+	}
+
+	@Test
+	public void testOpensAfterConsecutiveFailures() {
+		fail(2);
+		breaker.recordSuccess();
+		fail(2);
+		assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+
+		fail(1);
+		assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+		assertFalse(breaker.allow());
+		assertEquals(1, breaker.getRejectedCount());
+		assertEquals(1, breaker.getOpenCount());
+	}
+
+	@Test
+	public void testTrialCallClosesBreaker() {
+		fail(3);
+		now += 999;
+		assertFalse(breaker.allow());
+
+		now += 1;
+		assertTrue(breaker.allow());
+		assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+		assertFalse(breaker.allow());
+		breaker.recordSuccess();
+
+		assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+		assertTrue(breaker.allow());
+		assertEquals(Arrays.asList("CLOSED->OPEN", "OPEN->HALF_OPEN", "HALF_OPEN->CLOSED"), changes);
+	}
+
+	@Test
+	public void testFailedTrialReopensBreaker() {
+		fail(3);
+		now += 1000;
+		assertTrue(breaker.allow());
+		breaker.recordFailure();
+
+		assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+		assertFalse(breaker.allow());
+		now += 1000;
+		assertTrue(breaker.allow());
+		assertEquals(2, breaker.getOpenCount());
+	}
+}
@@ -0,0 +1,358 @@
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.util.Iterator;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A bounded pool of database connections. The pool is configured from the
+ * same properties that are passed to the JDBC driver, using the following keys
+ * (which are not forwarded to the driver):
+ * <ul>
+ * <li>pool.minSize - connections kept open even when idle (default 1)</li>
+ * <li>pool.maxSize - maximum number of open connections (default 10)</li>
+ * <li>pool.idleTimeoutMillis - idle time before a connection above the minimum
+ * is closed (default 60000)</li>
+ * <li>pool.borrowTimeoutMillis - time to wait for a free connection before
+ * failing (default 5000)</li>
+ * <li>pool.validationTimeoutSeconds - timeout of the validation check made on
+ * every borrow (default 2)</li>
+ * <li>pool.statementCacheSize - prepared statements cached per connection, or
+ * 0 to close them when the connection is returned (default 32)</li>
+ * </ul>
+ */
+public class ConnectionPool implements AutoCloseable {
+	/**
+	 * Prefixes of the property keys that configure DbConnect itself rather than
+	 * the JDBC driver.
+	 */
+	static final String[] RESERVED_PREFIXES = { "pool.", "leaderboard.", "writeBehind.", "friends.", "metrics.",
+			"profiles.", "filter.", "replica.", "primary.", "shard.",
+			"transaction.", "schema.", "startup.", "resilience.", "snapshot.", "changes." };
+
+	private final String url;
+	private final Properties connectionProperties;
+	private final int minSize;
+	private final int maxSize;
+	private final long idleTimeoutMillis;
+	private final long borrowTimeoutMillis;
+	private final int validationTimeoutSeconds;
+	private final int statementCacheSize;
+
+	private final LinkedBlockingDeque<PooledConnection> idle = new LinkedBlockingDeque<PooledConnection>();
+	private final Semaphore permits;
+	private final ScheduledExecutorService evictor;
+	private volatile boolean closed;
+
+	private final AtomicInteger open = new AtomicInteger();
+	private final AtomicLong borrowCount = new AtomicLong();
+	private final AtomicLong borrowWaitNanos = new AtomicLong();
+	private final AtomicLong timeoutCount = new AtomicLong();
+	private final AtomicLong createdCount = new AtomicLong();
+	private final AtomicLong destroyedCount = new AtomicLong();
+	private final AtomicLong validationFailureCount = new AtomicLong();
+	private final LongAdder statementCacheHits = new LongAdder();
+	private final LongAdder statementCacheMisses = new LongAdder();
+	private final LongAdder statementCacheEvictions = new LongAdder();
+
+	/**
+	 * Constructor - creates an empty pool. No connection is opened until
+	 * {@link #fill()} or {@link #borrow()} is called.
+	 *
+	 * @param url
+	 *            JDBC url of the database.
+	 * @param properties
+	 *            driver properties, which may also contain the pool settings.
+	 */
+	public ConnectionPool(String url, Properties properties) {
+		this.url = url;
+		this.connectionProperties = new Properties();
+		for (String key : properties.stringPropertyNames()) {
+			if (!isReservedKey(key))
+				connectionProperties.setProperty(key, properties.getProperty(key));
+		}
+		this.maxSize = Math.max(1, intProperty(properties, "pool.maxSize", 10));
+		this.minSize = Math.min(maxSize, Math.max(0, intProperty(properties, "pool.minSize", 1)));
+		this.idleTimeoutMillis = longProperty(properties, "pool.idleTimeoutMillis", 60000L);
+		this.borrowTimeoutMillis = longProperty(properties, "pool.borrowTimeoutMillis", 5000L);
+		this.validationTimeoutSeconds = intProperty(properties, "pool.validationTimeoutSeconds", 2);
+		this.statementCacheSize = intProperty(properties, "pool.statementCacheSize", 32);
+		this.permits = new Semaphore(maxSize, true);
+
+		this.evictor = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "connection-pool-evictor");
+			thread.setDaemon(true);
+			return thread;
+		});
+		long period = Math.max(1000L, idleTimeoutMillis / 2);
+		evictor.scheduleWithFixedDelay(this::evictIdle, period, period, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Opens connections until the pool holds at least the minimum number.
+	 *
+	 * @throws SQLException
+	 *             if a connection could not be opened.
+	 */
+	public void fill() throws SQLException {
+		while (!closed && open.get() < minSize) {
+			if (!permits.tryAcquire())
+				return;
+			try {
+				idle.offerLast(create());
+			} finally {
+				permits.release();
+			}
+		}
+	}
+
+	/**
+	 * Borrows a connection from the pool, waiting at most the borrow timeout for
+	 * one to become free. The connection must be returned by closing it.
+	 *
+	 * @return a validated connection.
+	 * @throws SQLException
+	 *             if the pool is closed, the timeout expires or a new connection
+	 *             could not be opened.
+	 */
+	public PooledConnection borrow() throws SQLException {
+		if (closed)
+			throw new SQLException("Connection pool is closed", "08003");
+		long start = System.nanoTime();
+		try {
+			if (!permits.tryAcquire(borrowTimeoutMillis, TimeUnit.MILLISECONDS)) {
+				timeoutCount.incrementAndGet();
+				throw new SQLTimeoutException("Timed out waiting for a pooled connection", "08001");
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrupted waiting for a pooled connection", "08001", e);
+		}
+		try {
+			PooledConnection connection;
+			while ((connection = idle.pollFirst()) != null) {
+				if (validate(connection))
+					break;
+				validationFailureCount.incrementAndGet();
+				destroy(connection);
+			}
+			if (connection == null)
+				connection = create();
+			connection.borrowed = true;
+			borrowCount.incrementAndGet();
+			borrowWaitNanos.addAndGet(System.nanoTime() - start);
+			return connection;
+		} catch (SQLException | RuntimeException e) {
+			permits.release();
+			throw e;
+		}
+	}
+
+	/**
+	 * Returns a borrowed connection to the pool. Connections that are broken, or
+	 * returned after the pool was closed, are closed instead.
+	 */
+	void release(PooledConnection connection) {
+		if (!connection.borrowed)
+			return;
+		connection.borrowed = false;
+		connection.closeStatements();
+		try {
+			if (closed || connection.getConnection().isClosed()) {
+				destroy(connection);
+			} else {
+				if (!connection.getConnection().getAutoCommit())
+					connection.getConnection().rollback();
+				connection.getConnection().setAutoCommit(true);
+				connection.lastUsedMillis = System.currentTimeMillis();
+				idle.offerFirst(connection);
+			}
+		} catch (SQLException e) {
+			destroy(connection);
+		} finally {
+			permits.release();
+		}
+	}
+
+	private boolean validate(PooledConnection connection) {
+		try {
+			return connection.getConnection().isValid(validationTimeoutSeconds);
+		} catch (SQLException e) {
+			return false;
+		}
+	}
+
+	private PooledConnection create() throws SQLException {
+		Connection connection = DriverManager.getConnection(url, connectionProperties);
+		open.incrementAndGet();
+		createdCount.incrementAndGet();
+		StatementCache statementCache = null;
+		if (statementCacheSize > 0)
+			statementCache = new StatementCache(connection, statementCacheSize, statementCacheHits,
+					statementCacheMisses, statementCacheEvictions);
+		return new PooledConnection(this, connection, statementCache);
+	}
+
+	private void destroy(PooledConnection connection) {
+		open.decrementAndGet();
+		destroyedCount.incrementAndGet();
+		connection.closePhysical();
+	}
+
+	/**
+	 * Closes connections that have been idle for at least the idle timeout while
+	 * keeping the minimum number of connections open.
+	 */
+	void evictIdle() {
+		long cutoff = System.currentTimeMillis() - idleTimeoutMillis;
+		Iterator<PooledConnection> oldestFirst = idle.descendingIterator();
+		while (oldestFirst.hasNext() && open.get() > minSize) {
+			PooledConnection connection = oldestFirst.next();
+			if (connection.lastUsedMillis <= cutoff && idle.removeLastOccurrence(connection))
+				destroy(connection);
+		}
+		try {
+			fill();
+		} catch (SQLException e) {
+			System.err.println("Error connecting to database");
+		}
+	}
+
+	/**
+	 * Closes every idle connection and stops the pool. Connections that are
+	 * still borrowed are closed when they are returned.
+	 */
+	public void close() {
+		closed = true;
+		evictor.shutdownNow();
+		PooledConnection connection;
+		while ((connection = idle.pollFirst()) != null)
+			destroy(connection);
+	}
+
+	/**
+	 * @return number of connections currently borrowed.
+	 */
+	public int getActiveCount() {
+		return maxSize - permits.availablePermits();
+	}
+
+	/**
+	 * @return number of open connections waiting in the pool.
+	 */
+	public int getIdleCount() {
+		return idle.size();
+	}
+
+	/**
+	 * @return number of open connections, borrowed or idle.
+	 */
+	public int getOpenCount() {
+		return open.get();
+	}
+
+	/**
+	 * @return number of threads waiting to borrow a connection.
+	 */
+	public int getWaitingCount() {
+		return permits.getQueueLength();
+	}
+
+	public int getMinSize() {
+		return minSize;
+	}
+
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	public long getBorrowCount() {
+		return borrowCount.get();
+	}
+
+	/**
+	 * @return average time spent waiting in {@link #borrow()}, in nanoseconds.
+	 */
+	public long getAverageBorrowWaitNanos() {
+		long borrows = borrowCount.get();
+		return borrows == 0 ? 0 : borrowWaitNanos.get() / borrows;
+	}
+
+	public long getTimeoutCount() {
+		return timeoutCount.get();
+	}
+
+	public long getCreatedCount() {
+		return createdCount.get();
+	}
+
+	public long getDestroyedCount() {
+		return destroyedCount.get();
+	}
+
+	public long getValidationFailureCount() {
+		return validationFailureCount.get();
+	}
+
+	/**
+	 * @return number of statements found in the statement caches.
+	 */
+	public long getStatementCacheHits() {
+		return statementCacheHits.sum();
+	}
+
+	/**
+	 * @return number of statements that had to be prepared.
+	 */
+	public long getStatementCacheMisses() {
+		return statementCacheMisses.sum();
+	}
+
+	/**
+	 * @return number of statements closed to keep the caches within their size.
+	 */
+	public long getStatementCacheEvictions() {
+		return statementCacheEvictions.sum();
+	}
+
+	static boolean isReservedKey(String key) {
+		for (String prefix : RESERVED_PREFIXES) {
+			if (key.startsWith(prefix))
+				return true;
+		}
+		return false;
+	}
+
+	static int intProperty(Properties properties, String key, int defaultValue) {
+		String value = properties.getProperty(key);
+		if (value == null)
+			return defaultValue;
+		try {
+			return Integer.parseInt(value.trim());
+		} catch (NumberFormatException e) {
+			System.err.println("Invalid value for property " + key);
+			return defaultValue;
+		}
+	}
+
+	static long longProperty(Properties properties, String key, long defaultValue) {
+		String value = properties.getProperty(key);
+		if (value == null)
+			return defaultValue;
+		try {
+			return Long.parseLong(value.trim());
+		} catch (NumberFormatException e) {
+			System.err.println("Invalid value for property " + key);
+			return defaultValue;
+		}
+	}
+}
@@ -0,0 +1,92 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.util.Properties;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * JUnit tests for ConnectionPool, run against an in-memory H2 database.
+ */
+public class ConnectionPoolTest {
+	private ConnectionPool pool;
+
+	@Before
+	public void setUp() throws SQLException {
+		Properties properties = new Properties();
+		properties.setProperty("user", "sa");
+		properties.setProperty("pool.minSize", "1");
+		properties.setProperty("pool.maxSize", "2");
+		properties.setProperty("pool.borrowTimeoutMillis", "100");
+		properties.setProperty("pool.idleTimeoutMillis", "0");
+		this.pool = new ConnectionPool("jdbc:h2:mem:pool;DB_CLOSE_DELAY=-1", properties);
+		pool.fill();
+	}
+
+	@After
+	public void tearDown() {
+		pool.close();
+	}
+
+	@Test
+	public void testFillOpensMinimum() {
+		assertEquals(1, pool.getOpenCount());
+		assertEquals(1, pool.getIdleCount());
+	}
+
+	@Test
+	public void testReleasedConnectionIsReused() throws SQLException {
+		PooledConnection first = pool.borrow();
+		first.close();
+		PooledConnection second = pool.borrow();
+		second.close();
+
+		assertSame(first, second);
+		assertEquals(1, pool.getCreatedCount());
+	}
+
+	@Test(expected = SQLTimeoutException.class)
+	public void testBorrowTimesOutWhenExhausted() throws SQLException {
+		PooledConnection first = pool.borrow();
+		PooledConnection second = pool.borrow();
+		assertNotSame(first, second);
+		assertEquals(2, pool.getActiveCount());
+
+		try {
+			pool.borrow();
+		} finally {
+			assertEquals(1, pool.getTimeoutCount());
+		}
+	}
+
+	@Test
+	public void testBrokenConnectionIsReplacedOnBorrow() throws SQLException {
+		PooledConnection first = pool.borrow();
+		first.close();
+		first.getConnection().close();
+
+		PooledConnection second = pool.borrow();
+		second.close();
+
+		assertNotSame(first, second);
+		assertEquals(1, pool.getValidationFailureCount());
+	}
+
+	@Test
+	public void testIdleConnectionsAboveMinimumAreEvicted() throws SQLException {
+		PooledConnection first = pool.borrow();
+		PooledConnection second = pool.borrow();
+		first.close();
+		second.close();
+		assertEquals(2, pool.getOpenCount());
+
+		pool.evictIdle();
+
+		assertEquals(1, pool.getOpenCount());
+	}
+}
@@ -0,0 +1,103 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Maps keys, e.g. usernames, to one of a list of nodes by consistent hashing.
+ * Each node is placed on a ring of 64-bit hashes at a number of virtual
+ * points derived from its name, and a key belongs to the node of the first
+ * point at or after the hash of the key. Adding a node only moves keys to the
+ * new node, roughly 1/n of them, and never between the existing nodes.
+ * Instances are immutable.
+ */
+public class ConsistentHashRing {
+	private final List<String> nodes;
+	private final int virtualNodes;
+	private final long[] points;
+	private final int[] owners;
+
+	/**
+	 * Constructor
+	 *
+	 * @param nodes
+	 *            names of the nodes, e.g. JDBC urls, which must be unique. A key
+	 *            is mapped to the index of its node in this list.
+	 * @param virtualNodes
+	 *            number of points per node; more points spread the keys more
+	 *            evenly.
+	 */
+	public ConsistentHashRing(List<String> nodes, int virtualNodes) {
+		if (nodes.isEmpty())
+			throw new IllegalArgumentException("A ring needs at least one node");
+		this.nodes = Collections.unmodifiableList(new ArrayList<String>(nodes));
+		this.virtualNodes = Math.max(1, virtualNodes);
+
+		TreeMap<Long, Integer> ring = new TreeMap<Long, Integer>();
+		for (int node = 0; node < nodes.size(); node++) {
+			for (int point = 0; point < this.virtualNodes; point++) {
+				ring.put(hash(nodes.get(node) + "#" + point), node);
+			}
+		}
+		this.points = new long[ring.size()];
+		this.owners = new int[ring.size()];
+		int i = 0;
+		for (Map.Entry<Long, Integer> point : ring.entrySet()) {
+			points[i] = point.getKey();
+			owners[i++] = point.getValue();
+		}
+	}
+
+	/**
+	 * @return a ring holding the nodes of this ring followed by another node.
+	 */
+	public ConsistentHashRing withNode(String node) {
+		if (nodes.contains(node))
+			throw new IllegalArgumentException("The ring already holds " + node);
+		ArrayList<String> grown = new ArrayList<String>(nodes);
+		grown.add(node);
+		return new ConsistentHashRing(grown, virtualNodes);
+	}
+
+	/**
+	 * @return index of the node that a key belongs to.
+	 */
+	public int nodeFor(String key) {
+		long hash = hash(key);
+		int low = 0;
+		int high = points.length;
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			if (points[middle] < hash)
+				low = middle + 1;
+			else
+				high = middle;
+		}
+		return owners[low == points.length ? 0 : low];
+	}
+
+	/**
+	 * @return names of the nodes, in index order.
+	 */
+	public List<String> getNodes() {
+		return nodes;
+	}
+
+	/**
+	 * FNV-1a over the characters of the string, followed by the finalizer of
+	 * MurmurHash3 so that similar keys land far apart on the ring.
+	 */
+	private static long hash(String value) {
+		long hash = 0xcbf29ce484222325L;
+		for (int i = 0; i < value.length(); i++) {
+			hash = (hash ^ value.charAt(i)) * 0x100000001b3L;
+		}
+		hash ^= hash >>> 33;
+		hash *= 0xff51afd7ed558ccdL;
+		hash ^= hash >>> 33;
+		hash *= 0xc4ceb9fe1a85ec53L;
+		hash ^= hash >>> 33;
+		return hash;
+	}
+}
@@ -0,0 +1,48 @@
+import java.sql.SQLException;
+
+/**
+ * Thrown instead of returning a default value when a DbConnect operation fails
+ * and failures are configured to be thrown, so that callers can tell the
+ * database being unavailable from there being no data.
+ */
+public class DatabaseException extends RuntimeException {
+	private static final long serialVersionUID = 1L;
+
+	private final String operation;
+
+	/**
+	 * Constructor
+	 *
+	 * @param operation
+	 *            name of the DbConnect method that failed.
+	 * @param cause
+	 *            the error of the database or driver.
+	 */
+	public DatabaseException(String operation, SQLException cause) {
+		super("Error processing " + operation + (cause.getSQLState() == null ? "" : " (" + cause.getSQLState() + ")"),
+				cause);
+		this.operation = operation;
+	}
+
+	/**
+	 * @return name of the DbConnect method that failed.
+	 */
+	public String getOperation() {
+		return operation;
+	}
+
+	/**
+	 * @return the error of the database or driver.
+	 */
+	@Override
+	public SQLException getCause() {
+		return (SQLException) super.getCause();
+	}
+
+	/**
+	 * @return the SQLState of the error, or null if the driver gave none.
+	 */
+	public String getSQLState() {
+		return getCause().getSQLState();
+	}
+}
@@ -1,15 +1,43 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
 import java.sql.Connection;
-import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
+import java.sql.Timestamp;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.OptionalInt;
 import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -20,35 +48,1091 @@ import java.util.regex.Pattern;
  * @author Charlie Cox
  * @version 2-3-2018
  */
-public class DbConnect implements DbConnectInterface {
+public class DbConnect implements DbConnectInterface, AutoCloseable {
+	static final String REGISTER_USER = "INSERT INTO user_info(username,password,nickname) VALUES (?, ?, ?);";
+	static final String UPDATE_NICKNAME = "UPDATE user_info SET nickname = ? WHERE username = ?;";
+	static final String USERNAME_EXISTS = "SELECT 1 FROM user_info WHERE username = ?;";
+	static final String SELECT_PASSWORD = "SELECT password FROM user_info WHERE username = ?;";
+	static final String SELECT_HIGH_SCORE = "SELECT high_score FROM user_info WHERE username = ?;";
+	static final String SELECT_PROFILE = "SELECT high_score, number_games_played, number_wins, nickname FROM user_info WHERE username = ?;";
+	static final String SELECT_ALL_HIGH_SCORES = "SELECT username, high_score FROM user_info ORDER BY high_score DESC;";
+	static final String UPDATE_HIGH_SCORE = "UPDATE user_info SET high_score = ? WHERE username = ?;";
+	static final String RAISE_HIGH_SCORE = "UPDATE user_info SET high_score = ? WHERE username = ? AND high_score <= ?;";
+	static final String ADD_GAMES = "UPDATE user_info SET number_games_played = number_games_played + ? WHERE username = ?;";
+	static final String INCREMENT_GAMES = "UPDATE user_info SET number_games_played = number_games_played +1 WHERE username = ?;";
+	static final String ADD_FRIEND = "INSERT INTO friends (user_one, user_two, relation, action_user) VALUES (?, ?, 0, ?);";
+	static final String ACCEPT_FRIEND = "UPDATE friends SET relation = 1, action_user = ? WHERE user_one = ? AND user_two = ?;";
+	static final String DECLINE_FRIEND = "UPDATE friends SET relation = 2, action_user = ? WHERE user_one = ? AND user_two = ?;";
+	static final String CHECK_FRIENDSHIP = "SELECT * FROM friends WHERE user_one = ? AND user_two = ? AND relation = 2;";
+	static final String FRIENDS_LIST = "SELECT user_two FROM friends WHERE user_one = ? AND relation = 1 UNION ALL SELECT user_one FROM friends WHERE user_two = ? AND relation = 1;";
+	static final String SCAN_HIGH_SCORES = "SELECT username, high_score FROM user_info;";
+	static final String SCAN_USERNAMES = "SELECT username FROM user_info;";
+	static final String SCAN_FRIENDS = "SELECT user_one, user_two, relation FROM friends WHERE relation < 2;";
+	static final String PENDING_REQUESTS = "SELECT user_one FROM friends WHERE user_two = ? AND relation = 0;";
+	static final String TOP_HIGH_SCORES = "SELECT username, high_score FROM user_info ORDER BY high_score DESC, username LIMIT ?;";
+	static final String HIGH_SCORES_AFTER = "SELECT username, high_score FROM user_info WHERE high_score < ? OR (high_score = ? AND username > ?) ORDER BY high_score DESC, username LIMIT ?;";
+	static final String HIGH_SCORES_BELOW = "SELECT username, high_score FROM user_info WHERE high_score < ? ORDER BY high_score DESC, username LIMIT ?;";
+	static final String STREAM_HIGH_SCORES = "SELECT username, high_score FROM user_info ORDER BY high_score DESC, username;";
+	static final String RANK_OF = "SELECT COUNT(*) FROM user_info u JOIN user_info me ON me.username = ? WHERE u.high_score > me.high_score OR (u.high_score = me.high_score AND u.username <= me.username);";
+	// the rank_snapshot table is optional, so these are not in STATEMENTS
+	static final String DELETE_RANK_SNAPSHOT = "DELETE FROM rank_snapshot;";
+	static final String INSERT_RANK_SNAPSHOT = "INSERT INTO rank_snapshot (place, username, high_score, taken_at) VALUES (?, ?, ?, ?);";
+	// each database has its own hash functions, so these are not in STATEMENTS
+	static final String CHECKSUM_USERNAMES_MYSQL = "SELECT COUNT(*), SUM(CRC32(username)) FROM user_info;";
+	static final String CHECKSUM_USERNAMES_H2 = "SELECT COUNT(*), SUM(ORA_HASH(username)) FROM user_info;";
+	static final String CHECKSUM_USERNAMES_POSTGRESQL = "SELECT COUNT(*), SUM(('x' || SUBSTR(MD5(username), 1, 8))::BIT(32)::BIGINT) FROM user_info;";
+
+	/**
+	 * Number of rows fetched from the database at a time when streaming.
+	 */
+	static final int FETCH_SIZE = 1000;
+
+	/**
+	 * Every statement issued by this class, e.g. to prepare them in advance.
+	 */
+	static final String[] STATEMENTS = { REGISTER_USER, UPDATE_NICKNAME, USERNAME_EXISTS, SELECT_PASSWORD,
+			SELECT_HIGH_SCORE, SELECT_PROFILE, SELECT_ALL_HIGH_SCORES, UPDATE_HIGH_SCORE, RAISE_HIGH_SCORE,
+			INCREMENT_GAMES, ADD_GAMES, ADD_FRIEND, ACCEPT_FRIEND, DECLINE_FRIEND, CHECK_FRIENDSHIP, FRIENDS_LIST,
+			SCAN_HIGH_SCORES, SCAN_USERNAMES, TOP_HIGH_SCORES, HIGH_SCORES_AFTER, HIGH_SCORES_BELOW,
+			STREAM_HIGH_SCORES, RANK_OF, SCAN_FRIENDS, PENDING_REQUESTS };
+
+	/**
+	 * Statements that read every row of a table by design, or every row above
+	 * a user to count their rank, which the index advisor does not report.
+	 */
+	static final List<String> FULL_SCANS = Arrays.asList(SELECT_ALL_HIGH_SCORES, SCAN_HIGH_SCORES, SCAN_USERNAMES,
+			STREAM_HIGH_SCORES, RANK_OF, SCAN_FRIENDS);
+
 	private Properties properties;
-	private Connection connection;
+	private ConnectionPool pool;
+
+	/**
+	 * Spreads reads over the replicas in replica.urls, as described by
+	 * ReplicaRouter, when it is set. Writes go to the primary url.
+	 */
+	private ReplicaRouter replicas;
+
+	/**
+	 * The high score of every user, loaded when leaderboard.enabled is true.
+	 */
+	private Leaderboard leaderboard;
+
+	/**
+	 * Buffers games played and high score updates when writeBehind.enabled is
+	 * true. They are written in batches, on close and at JVM shutdown.
+	 */
+	private WriteBehindBuffer writeBehind;
+
+	/**
+	 * Caches the friends of up to friends.cacheSize users, when it is positive.
+	 */
+	private FriendCache friendCache;
+
+	/**
+	 * The friends table, loaded when friends.graph is true, which answers
+	 * friendsList, mutualFriends, friendSuggestions and pendingRequests
+	 * without a query.
+	 */
+	private FriendGraph friendGraph;
+
+	/**
+	 * Caches the profiles of up to profiles.cacheSize users, when it is
+	 * positive, for profiles.ttlMillis (default 60000).
+	 */
+	private ProfileCache profileCache;
+
+	/**
+	 * Every username, loaded when filter.enabled is true, so checking a
+	 * username that is not taken does not query the database.
+	 */
+	private BloomFilter usernames;
+	// checksum of the usernames the filter was loaded from, or null if unknown
+	private volatile String usernamesChecksum;
 
 	/**
-	 * Constructor - creates a connection to the database
+	 * Metrics of every operation, configured by the metrics.* properties.
+	 */
+	private QueryMetrics metrics;
+	private Thread shutdownHook;
+	private final ThreadLocal<UnitOfWork> units = new ThreadLocal<UnitOfWork>();
+
+	/**
+	 * Isolation level of a UnitOfWork, from transaction.isolation, e.g.
+	 * READ_COMMITTED.
+	 */
+	private final int isolationLevel;
+
+	/**
+	 * When the database is first used, from startup.mode. In blocking mode (the
+	 * default) the constructor connects and loads the caches. In lazy mode the
+	 * first operation does so while other operations wait. In prewarm mode the
+	 * constructor also prepares every statement on each of the pool.minSize
+	 * connections.
+	 */
+	private final String startupMode;
+	private final ReentrantLock startupLock = new ReentrantLock();
+	private volatile boolean ready;
+	private volatile long startupMillis = -1;
+
+	/**
+	 * Whether a failed operation throws a DatabaseException instead of
+	 * returning a default value, from resilience.failFast.
+	 */
+	private final boolean throwErrors;
+	// set on the threads of operations made through throwingErrors
+	private final ThreadLocal<Boolean> throwing = new ThreadLocal<Boolean>();
+
+	/**
+	 * Time limits in seconds of the statements of one method, from
+	 * resilience.queryTimeoutSeconds.&lt;operation&gt;, e.g.
+	 * resilience.queryTimeoutSeconds.checkLogin.
+	 */
+	private final HashMap<String, Integer> queryTimeouts = new HashMap<String, Integer>();
+
+	/**
+	 * Time limit in seconds of every other statement, from
+	 * resilience.queryTimeoutSeconds.
+	 */
+	private final int queryTimeout;
+
+	/**
+	 * The podium and ranks when snapshot.enabled is true: the top
+	 * snapshot.topSize (default 100) places and the rank of every user, rebuilt
+	 * every snapshot.refreshMillis (default 5000). They are also written to the
+	 * rank_snapshot table when snapshot.table is true.
+	 */
+	private final AtomicReference<RankSnapshot> rankSnapshot = new AtomicReference<RankSnapshot>();
+	private ScheduledExecutorService snapshotRefresher;
+
+	/**
+	 * Publishes every committed write when changes.enabled is true, keeping the
+	 * last changes.capacity (default 4096) events.
+	 */
+	private ChangeFeed changeFeed;
+
+	/**
+	 * Constructor - creates a pool of connections to the database
 	 * 
 	 * @param path
 	 *            The path to the location of the properties file which cannot be
 	 *            null.
+	 * @param url
+	 *            JDBC url of the database.
 	 */
 	public DbConnect(String path, String url) {
-		this.properties = new Properties();
+		this(loadProperties(path), url);
+	}
 
-		try {
-			FileInputStream in = new FileInputStream(path);
-			this.properties.load(in);
+	/**
+	 * Constructor - creates a pool of connections to the database whose url is
+	 * the primary.url property.
+	 * 
+	 * @param path
+	 *            The path to the location of the properties file which cannot be
+	 *            null.
+	 */
+	public DbConnect(String path) {
+		this(loadProperties(path));
+	}
 
-			connection = DriverManager.getConnection(url, properties);
-			
+	private DbConnect(Properties properties) {
+		this(properties, properties.getProperty("primary.url"));
+	}
+
+	/**
+	 * Constructor - creates a pool of connections to the database using
+	 * properties that have already been loaded, e.g. for an embedded database.
+	 * Each optional feature is enabled by the properties described on the
+	 * field that holds it.
+	 * 
+	 * @param properties
+	 *            driver and pool properties.
+	 * @param url
+	 *            JDBC url of the database.
+	 */
+	public DbConnect(Properties properties, String url) {
+		this.properties = properties;
+		this.pool = new ConnectionPool(url, properties);
+		this.metrics = new QueryMetrics(properties);
+		this.isolationLevel = isolationLevel(properties.getProperty("transaction.isolation"));
+		this.startupMode = startupMode(properties.getProperty("startup.mode"));
+		this.throwErrors = Boolean.parseBoolean(properties.getProperty("resilience.failFast"));
+		String prefix = "resilience.queryTimeoutSeconds.";
+		for (String key : properties.stringPropertyNames()) {
+			if (key.startsWith(prefix))
+				queryTimeouts.put(key.substring(prefix.length()), ConnectionPool.intProperty(properties, key, 0));
+		}
+		// with only some operations limited, the others clear the limit left on a cached statement
+		this.queryTimeout = ConnectionPool.intProperty(properties, "resilience.queryTimeoutSeconds",
+				queryTimeouts.isEmpty() ? -1 : 0);
+
+		if (!properties.getProperty("replica.urls", "").trim().isEmpty())
+			this.replicas = new ReplicaRouter(pool, properties);
+
+		int friendCacheSize = ConnectionPool.intProperty(properties, "friends.cacheSize", 0);
+		if (friendCacheSize > 0)
+			this.friendCache = new FriendCache(friendCacheSize);
+
+		int profileCacheSize = ConnectionPool.intProperty(properties, "profiles.cacheSize", 0);
+		if (profileCacheSize > 0)
+			this.profileCache = new ProfileCache(profileCacheSize,
+					ConnectionPool.longProperty(properties, "profiles.ttlMillis", 60000L));
+
+		if (Boolean.parseBoolean(properties.getProperty("writeBehind.enabled"))) {
+			this.writeBehind = new WriteBehindBuffer(pool, metrics, properties);
+			writeBehind.addListener(new WriteBehindBuffer.Listener() {
+				@Override
+				public void highScoreBuffered(String user, int highScore, boolean set) {
+					scoreBuffered(user, highScore, set);
+				}
+
+				@Override
+				public void gamesWritten(String user, int games) {
+					changed(ChangeEvent.Type.GAMES_INCREMENTED, user, null, games);
+				}
+
+				@Override
+				public void highScoreWritten(String user, int highScore) {
+					changed(ChangeEvent.Type.SCORE_UPDATED, user, null, highScore);
+				}
+			});
+			this.shutdownHook = new Thread(writeBehind::close, "write-behind-shutdown");
+			Runtime.getRuntime().addShutdownHook(shutdownHook);
+		}
+
+		if (Boolean.parseBoolean(properties.getProperty("changes.enabled")))
+			this.changeFeed = new ChangeFeed(ConnectionPool.intProperty(properties, "changes.capacity", 4096),
+					ForkJoinPool.commonPool());
+
+		if (Boolean.parseBoolean(properties.getProperty("snapshot.enabled"))) {
+			long period = ConnectionPool.longProperty(properties, "snapshot.refreshMillis", 5000L);
+			this.snapshotRefresher = Executors.newSingleThreadScheduledExecutor(r -> {
+				Thread thread = new Thread(r, "rank-snapshot");
+				thread.setDaemon(true);
+				return thread;
+			});
+			snapshotRefresher.scheduleWithFixedDelay(() -> {
+				if (ready)
+					refreshRankSnapshot();
+			}, period, period, TimeUnit.MILLISECONDS);
+		}
+
+		if (!startupMode.equals("lazy")) {
+			startupLock.lock();
+			try {
+				start();
+			} catch (SQLException e) {
+				metrics.recordError("startup", e);
+				System.err.println("Error connecting to database");
+			} finally {
+				startupLock.unlock();
+			}
+		}
+	}
+
+	static Properties loadProperties(String path) {
+		Properties properties = new Properties();
+
+		try (FileInputStream in = new FileInputStream(path)) {
+			properties.load(in);
 		} catch (FileNotFoundException e) {
 			System.err.println("Properties file could not be located");
 		} catch (IOException e) {
 			System.err.println("Error loading properties file");
+		}
+		return properties;
+	}
+
+	/**
+	 * @return the Connection.TRANSACTION_ constant named by a property, or -1
+	 *         to use the level of the driver.
+	 */
+	private static int isolationLevel(String name) {
+		if (name == null)
+			return -1;
+		switch (name.trim().toUpperCase()) {
+		case "READ_UNCOMMITTED":
+			return Connection.TRANSACTION_READ_UNCOMMITTED;
+		case "READ_COMMITTED":
+			return Connection.TRANSACTION_READ_COMMITTED;
+		case "REPEATABLE_READ":
+			return Connection.TRANSACTION_REPEATABLE_READ;
+		case "SERIALIZABLE":
+			return Connection.TRANSACTION_SERIALIZABLE;
+		default:
+			System.err.println("Invalid value for property transaction.isolation");
+			return -1;
+		}
+	}
+
+	/**
+	 * @return the startup.mode named by a property: blocking, lazy or prewarm.
+	 */
+	private static String startupMode(String name) {
+		if (name == null)
+			return "blocking";
+		String mode = name.trim().toLowerCase();
+		switch (mode) {
+		case "blocking":
+		case "lazy":
+		case "prewarm":
+			return mode;
+		default:
+			System.err.println("Invalid value for property startup.mode");
+			return "blocking";
+		}
+	}
+
+	/**
+	 * Method to connect to the database and prepare what the operations use:
+	 * the schema, the leaderboard and the username filter, and in prewarm mode
+	 * the statements. Must be called holding the startup lock. The tables and
+	 * indexes are created by SchemaManager when schema.bootstrap is true, and
+	 * the statements that read a whole table are reported when schema.advisor
+	 * is true.
+	 * 
+	 * @throws SQLException
+	 *             if no connection could be opened, in which case the next
+	 *             operation starts again.
+	 */
+	private void start() throws SQLException {
+		long begin = System.nanoTime();
+		connect();
+
+		if (Boolean.parseBoolean(properties.getProperty("schema.bootstrap")))
+			bootstrapSchema();
+
+		if (Boolean.parseBoolean(properties.getProperty("schema.advisor"))) {
+			for (String finding : adviseIndexes()) {
+				System.err.println("Index advisor: " + finding);
+			}
+		}
+
+		if (startupMode.equals("prewarm")) {
+			prewarm();
+		} else {
+			if (Boolean.parseBoolean(properties.getProperty("leaderboard.enabled")))
+				loadLeaderboard();
+			if (Boolean.parseBoolean(properties.getProperty("filter.enabled")))
+				loadUsernameFilter();
+			if (Boolean.parseBoolean(properties.getProperty("friends.graph")))
+				loadFriendGraph();
+		}
+		if (snapshotRefresher != null)
+			refreshRankSnapshot();
+		this.startupMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - begin);
+		this.ready = true;
+	}
+
+	/**
+	 * Method to open the minimum number of connections, or one if the minimum is
+	 * zero. It is retried startup.retries times (default 3), waiting
+	 * startup.backoffMillis (default 100) and then twice as long each time up
+	 * to startup.maxBackoffMillis (default 5000).
+	 */
+	private void connect() throws SQLException {
+		int retries = ConnectionPool.intProperty(properties, "startup.retries", 3);
+		long backoff = ConnectionPool.longProperty(properties, "startup.backoffMillis", 100L);
+		long maxBackoff = ConnectionPool.longProperty(properties, "startup.maxBackoffMillis", 5000L);
+		for (int attempt = 0;; attempt++) {
+			try {
+				pool.fill();
+				if (pool.getMinSize() == 0)
+					pool.borrow().close();
+				return;
+			} catch (SQLException e) {
+				if (attempt >= retries)
+					throw e;
+				metrics.recordError("connect", e);
+			}
+			try {
+				Thread.sleep(backoff);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new SQLException("Interrupted connecting to database", "08001", e);
+			}
+			backoff = Math.min(backoff * 2, maxBackoff);
+		}
+	}
+
+	/**
+	 * Method to prepare the statements on every connection of the pool, in
+	 * parallel, and then load the leaderboard, username filter and friend graph
+	 * in parallel on the prepared connections. The loaders wait for the
+	 * connections to be returned so that the pool opens no more than its
+	 * minimum size.
+	 */
+	private void prewarm() {
+		int connections = pool.getMinSize();
+		ExecutorService workers = Executors.newFixedThreadPool(Math.max(1, connections), r -> {
+			Thread thread = new Thread(r, "db-prewarm");
+			thread.setDaemon(true);
+			return thread;
+		});
+		try {
+			CountDownLatch borrowed = new CountDownLatch(connections);
+			ArrayList<CompletableFuture<Void>> tasks = new ArrayList<CompletableFuture<Void>>();
+			for (int i = 0; i < connections; i++) {
+				tasks.add(CompletableFuture.runAsync(() -> prepareStatements(borrowed), workers));
+			}
+			CompletableFuture.allOf(tasks.toArray(new CompletableFuture<?>[tasks.size()])).join();
+
+			tasks.clear();
+			if (Boolean.parseBoolean(properties.getProperty("leaderboard.enabled")))
+				tasks.add(CompletableFuture.runAsync(this::loadLeaderboard, workers));
+			if (Boolean.parseBoolean(properties.getProperty("filter.enabled")))
+				tasks.add(CompletableFuture.runAsync(this::loadUsernameFilter, workers));
+			if (Boolean.parseBoolean(properties.getProperty("friends.graph")))
+				tasks.add(CompletableFuture.runAsync(this::loadFriendGraph, workers));
+			CompletableFuture.allOf(tasks.toArray(new CompletableFuture<?>[tasks.size()])).join();
+		} finally {
+			workers.shutdown();
+		}
+	}
+
+	/**
+	 * Method to prepare every statement on one connection, so that it is in the
+	 * connection's statement cache. The connection is kept until every other
+	 * task has borrowed one, so that each task prepares a different connection.
+	 */
+	private void prepareStatements(CountDownLatch borrowed) {
+		try (PooledConnection connection = borrowStartup("prepareStatements", "PREPARE")) {
+			borrowed.countDown();
+			for (String sql : STATEMENTS) {
+				try {
+					connection.prepareStatement(sql);
+				} catch (SQLException e) {
+					metrics.recordError("prepareStatements", e);
+					System.err.println("Error preparing SQL statement");
+				}
+			}
+			borrowed.await();
 		} catch (SQLException e) {
+			borrowed.countDown();
+			metrics.recordError("prepareStatements", e);
 			System.err.println("Error connecting to database");
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * @return true once the database has been connected to and the leaderboard
+	 *         and username filter loaded, if they are enabled.
+	 */
+	public boolean isReady() {
+		return ready;
+	}
+
+	/**
+	 * Method to wait until this object is ready, starting it if it is lazy and
+	 * no operation has started it yet.
+	 * 
+	 * @return true if it is ready, false if it could not connect or the timeout
+	 *         expired first.
+	 */
+	public boolean awaitReady(long timeout, TimeUnit unit) throws InterruptedException {
+		if (ready)
+			return true;
+		if (!startupLock.tryLock(timeout, unit))
+			return false;
+		try {
+			if (!ready)
+				start();
+		} catch (SQLException e) {
+			metrics.recordError("startup", e);
+			System.err.println("Error connecting to database");
+		} finally {
+			startupLock.unlock();
+		}
+		return ready;
+	}
+
+	/**
+	 * @return the time it took to connect and load, in milliseconds, or -1 if
+	 *         this object is not ready.
+	 */
+	public long getStartupMillis() {
+		return startupMillis;
+	}
+
+	/**
+	 * Method to wait for the startup of this object, or to run it if it has not
+	 * run or failed. The thread running the startup does not wait.
+	 */
+	private void awaitStartup() throws SQLException {
+		if (ready || startupLock.isHeldByCurrentThread())
+			return;
+		startupLock.lock();
+		try {
+			if (!ready)
+				start();
+		} finally {
+			startupLock.unlock();
+		}
+	}
+
+	/**
+	 * Method to create the tables and indexes that are missing and apply every
+	 * migration of SchemaManager the database has not had yet.
+	 */
+	private void bootstrapSchema() {
+		try (PooledConnection connection = borrowStartup("bootstrapSchema", SchemaManager.SELECT_VERSION)) {
+			new SchemaManager().migrate(connection.getConnection());
+		} catch (SQLException e) {
+			metrics.recordError("bootstrapSchema", e);
+			System.err.println("Error creating schema");
+		}
+	}
+
+	/**
+	 * Method to run EXPLAIN on every statement of this class and find those that
+	 * read a whole table, other than the FULL_SCANS, which suggests that an
+	 * index is missing.
+	 * 
+	 * @return a description of every full scan found, empty if there are none.
+	 */
+	public List<String> adviseIndexes() {
+		try (PooledConnection connection = borrow("adviseIndexes", "EXPLAIN")) {
+			return new SchemaManager().advise(connection.getConnection(), STATEMENTS, FULL_SCANS);
+		} catch (SQLException e) {
+			failed("adviseIndexes", e);
+			return new ArrayList<String>();
+		}
+	}
+
+	/**
+	 * Method to load the high score of every user into the leaderboard. The
+	 * leaderboard is only used once it has been loaded.
+	 */
+	private void loadLeaderboard() {
+		Leaderboard loaded = new Leaderboard();
+		try (PooledConnection connection = borrowStartup("loadLeaderboard", SCAN_HIGH_SCORES)) {
+			PreparedStatement query = connection.prepareStatement(SCAN_HIGH_SCORES);
+			query.setFetchSize(FETCH_SIZE);
+			try (ResultSet rs = query.executeQuery()) {
+				while (rs.next()) {
+					loaded.putIfAbsent(rs.getString(1), rs.getInt(2));
+				}
+			}
+			this.leaderboard = loaded;
+		} catch (SQLException e) {
+			metrics.recordError("loadLeaderboard", e);
+			System.err.println("Error loading leaderboard");
+		}
+	}
+
+	/**
+	 * Method to load the pending and accepted friend requests into the friend
+	 * graph. The graph is only used once it has been loaded.
+	 */
+	private void loadFriendGraph() {
+		FriendGraph.Builder loaded = new FriendGraph.Builder();
+		try (PooledConnection connection = borrowStartup("loadFriendGraph", SCAN_FRIENDS)) {
+			PreparedStatement query = connection.prepareStatement(SCAN_FRIENDS);
+			query.setFetchSize(FETCH_SIZE);
+			try (ResultSet rs = query.executeQuery()) {
+				while (rs.next()) {
+					loaded.add(rs.getString(1), rs.getString(2), rs.getInt(3));
+				}
+			}
+			this.friendGraph = loaded.build();
+		} catch (SQLException e) {
+			metrics.recordError("loadFriendGraph", e);
+			System.err.println("Error loading friend graph");
+		}
+	}
+
+	/**
+	 * Method to load the Bloom filter of usernames. The filter is read from
+	 * filter.file if it was saved there by the last DbConnect for the same
+	 * usernames, as told by their checksum; otherwise it is built by streaming
+	 * every username from the database, sized for filter.expectedUsers with a
+	 * false positive rate of filter.fpp. The filter is only used once it has
+	 * been loaded.
+	 */
+	private void loadUsernameFilter() {
+		String file = properties.getProperty("filter.file");
+		try (PooledConnection connection = borrowStartup("loadUsernameFilter", SCAN_USERNAMES)) {
+			String checksum = file == null ? null : checksumUsernames(connection);
+			if (checksum != null && new File(file).isFile()) {
+				BloomFilter saved = readUsernameFilter(file, checksum);
+				if (saved != null) {
+					this.usernames = saved;
+					this.usernamesChecksum = checksum;
+					return;
+				}
+			}
+
+			long expectedUsers = ConnectionPool.longProperty(properties, "filter.expectedUsers", 1000000L);
+			double fpp = Double.parseDouble(properties.getProperty("filter.fpp", "0.01"));
+			BloomFilter loaded = new BloomFilter(expectedUsers, fpp);
+			PreparedStatement query = connection.prepareStatement(SCAN_USERNAMES);
+			query.setFetchSize(FETCH_SIZE);
+			try (ResultSet rs = query.executeQuery()) {
+				while (rs.next()) {
+					loaded.put(rs.getString(1));
+				}
+			}
+			this.usernames = loaded;
+			// read before the scan, so it never matches usernames the scan missed
+			this.usernamesChecksum = checksum;
+		} catch (SQLException e) {
+			metrics.recordError("loadUsernameFilter", e);
+			System.err.println("Error loading username filter");
+		}
+	}
+
+	/**
+	 * @return the filter saved in a file, or null if it cannot be read or was
+	 *         saved for different usernames.
+	 */
+	private static BloomFilter readUsernameFilter(String file, String checksum) {
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+			if (!in.readUTF().equals(checksum))
+				return null;
+			return BloomFilter.readFrom(in);
+		} catch (IOException e) {
+			System.err.println("Error reading username filter");
+			return null;
+		}
+	}
+
+	/**
+	 * @return the statement that counts the users and sums a hash of every
+	 *         username on a database product, or null if none is known for it.
+	 */
+	static String checksumUsernamesSql(String product) {
+		switch (product) {
+		case "MySQL":
+		case "MariaDB":
+			return CHECKSUM_USERNAMES_MYSQL;
+		case "H2":
+			return CHECKSUM_USERNAMES_H2;
+		case "PostgreSQL":
+			return CHECKSUM_USERNAMES_POSTGRESQL;
+		default:
+			return null;
+		}
+	}
+
+	/**
+	 * @return the number of users and the sum of a hash of every username, or
+	 *         null if the database has no hash function this class knows.
+	 */
+	private static String checksumUsernames(PooledConnection connection) throws SQLException {
+		String sql = checksumUsernamesSql(connection.getConnection().getMetaData().getDatabaseProductName());
+		if (sql == null)
+			return null;
+		PreparedStatement query = connection.prepareStatement(sql);
+		try (ResultSet rs = query.executeQuery()) {
+			if (!rs.next())
+				return null;
+			return rs.getLong(1) + " " + rs.getString(2);
+		}
+	}
+
+	/**
+	 * Method to save the Bloom filter of usernames to filter.file, together with
+	 * the checksum of the usernames, so the next DbConnect can read it instead
+	 * of scanning the database. The file is replaced atomically. A filter is
+	 * only saved if the usernames have not changed since it was loaded, since
+	 * it may lack those registered by other processes; after any registration
+	 * the next DbConnect scans the database again.
+	 */
+	private void saveUsernameFilter() {
+		String file = properties.getProperty("filter.file");
+		String loaded = usernamesChecksum;
+		if (usernames == null || file == null || loaded == null)
+			return;
+		File target = new File(file);
+		File temporary = new File(target.getPath() + ".tmp");
+		try (PooledConnection connection = borrow("saveUsernameFilter", "CHECKSUM")) {
+			if (!loaded.equals(checksumUsernames(connection)))
+				return;
+			try (DataOutputStream out = new DataOutputStream(
+					new BufferedOutputStream(new FileOutputStream(temporary)))) {
+				out.writeUTF(loaded);
+				usernames.writeTo(out);
+			}
+			Files.move(temporary.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		} catch (SQLException e) {
+			metrics.recordError("saveUsernameFilter", e);
+			System.err.println("Error saving username filter");
+		} catch (IOException e) {
+			System.err.println("Error saving username filter");
+		}
+	}
+
+	/**
+	 * @return the in-memory leaderboard, or null if it is disabled or could not
+	 *         be loaded.
+	 */
+	public Leaderboard getLeaderboard() {
+		return leaderboard;
+	}
+
+	/**
+	 * @return the write-behind buffer, e.g. to read its metrics, or null if it is
+	 *         disabled.
+	 */
+	public WriteBehindBuffer getWriteBehindBuffer() {
+		return writeBehind;
+	}
+
+	/**
+	 * @return the cache of friends lists, e.g. to read its hit rate, or null if
+	 *         it is disabled.
+	 */
+	public FriendCache getFriendCache() {
+		return friendCache;
+	}
+
+	/**
+	 * @return the feed of committed changes, to subscribe to, or null if it is
+	 *         disabled.
+	 */
+	public ChangeFeed getChangeFeed() {
+		return changeFeed;
+	}
+
+	/**
+	 * @return the graph of friends, e.g. to read its size, or null if it is
+	 *         disabled or has not been loaded.
+	 */
+	public FriendGraph getFriendGraph() {
+		return friendGraph;
+	}
+
+	/**
+	 * @return the cache of user profiles, e.g. to read its hit rate, or null if
+	 *         it is disabled.
+	 */
+	public ProfileCache getProfileCache() {
+		return profileCache;
+	}
+
+	/**
+	 * @return the Bloom filter of usernames, e.g. to read its expected false
+	 *         positive rate, or null if it is disabled or could not be loaded.
+	 */
+	public BloomFilter getUsernameFilter() {
+		return usernames;
+	}
+
+	/**
+	 * @return the router of reads to the replicas, e.g. to read its metrics, or
+	 *         null if there are no replicas.
+	 */
+	public ReplicaRouter getReplicaRouter() {
+		return replicas;
+	}
+
+	/**
+	 * @return the call counts, errors and latencies of every operation.
+	 */
+	public QueryMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * @return the pool of connections used by this object, e.g. to read its
+	 *         metrics.
+	 */
+	public ConnectionPool getConnectionPool() {
+		return pool;
+	}
+
+	/**
+	 * Method to flush any buffered updates, save the username filter, complete
+	 * the subscribers of the change feed and close every connection to the
+	 * database.
+	 *
+	 * @throws DatabaseException
+	 *             if the buffered updates could not be written, after
+	 *             everything else has been closed.
+	 */
+	public void close() {
+		saveUsernameFilter();
+		try {
+			if (writeBehind != null) {
+				try {
+					Runtime.getRuntime().removeShutdownHook(shutdownHook);
+				} catch (IllegalStateException e) {
+					// the JVM is already shutting down and runs the hook itself
+				}
+				writeBehind.close();
+			}
+		} finally {
+			if (snapshotRefresher != null)
+				snapshotRefresher.shutdownNow();
+			if (changeFeed != null)
+				changeFeed.close();
+			if (replicas != null)
+				replicas.close();
+			pool.close();
+			metrics.close();
+		}
+	}
+
+	/**
+	 * Method to begin a unit of work on the current thread, at the isolation
+	 * level of the transaction.isolation property.
+	 * 
+	 * @return the unit of work, which must be closed.
+	 * @throws SQLException
+	 *             if no connection could be borrowed.
+	 * @throws IllegalStateException
+	 *             if the thread already has a unit of work; use savepoints to
+	 *             nest transactions.
+	 */
+	public UnitOfWork begin() throws SQLException {
+		return begin(isolationLevel);
+	}
+
+	/**
+	 * Method to begin a unit of work on the current thread: every operation the
+	 * thread makes until the unit of work is closed runs in one transaction.
+	 * 
+	 * @param isolationLevel
+	 *            one of the Connection.TRANSACTION_ levels, or -1 for the level
+	 *            of the driver.
+	 * @return the unit of work, which must be closed.
+	 * @throws SQLException
+	 *             if no connection could be borrowed.
+	 * @throws IllegalStateException
+	 *             if the thread already has a unit of work.
+	 */
+	public UnitOfWork begin(int isolationLevel) throws SQLException {
+		if (unitOfWork() != null)
+			throw new IllegalStateException("A unit of work is already active on this thread");
+		awaitStartup();
+		PooledConnection connection = pool.borrow();
+		try {
+			UnitOfWork work = new UnitOfWork(this, connection, isolationLevel);
+			units.set(work);
+			return work;
+		} catch (SQLException e) {
+			connection.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Method to unbind a unit of work that has ended from the current thread.
+	 */
+	void ended(UnitOfWork work) {
+		if (units.get() == work)
+			units.remove();
+	}
+
+	/**
+	 * @return the active unit of work of the current thread, or null.
+	 */
+	private UnitOfWork unitOfWork() {
+		UnitOfWork work = units.get();
+		if (work != null && work.connection() == null) {
+			units.remove();
+			return null;
+		}
+		return work;
+	}
+
+	/**
+	 * Method to change the in-memory state once the current unit of work
+	 * commits, or now if there is none.
+	 */
+	/**
+	 * @return true if the updates of this thread are buffered by the
+	 *         write-behind buffer rather than written at once.
+	 */
+	private boolean writesBehind() {
+		return writeBehind != null && unitOfWork() == null;
+	}
+
+	private void afterCommit(Runnable change) {
+		UnitOfWork work = unitOfWork();
+		if (work != null)
+			work.afterCommit(change);
+		else
+			change.run();
+	}
+
+	/**
+	 * Method to forget the cached state of a user whose rows have been moved to
+	 * another database, e.g. by ShardedDbConnect.addShard. The rank snapshot is
+	 * dropped, since the ranks of the users below have changed, and ranks are
+	 * read without it until refreshRankSnapshot is called.
+	 */
+	void evict(String user) {
+		if (leaderboard != null)
+			leaderboard.remove(user);
+		if (profileCache != null)
+			profileCache.invalidate(user);
+		if (friendCache != null)
+			friendCache.invalidate(user);
+		rankSnapshot.set(null);
+	}
+
+	/**
+	 * Method to forget a friend request whose row has been moved to another
+	 * database, e.g. by ShardedDbConnect.addShard.
+	 */
+	void evictFriendRequest(String user_one, String user_two) {
+		if (friendGraph != null)
+			friendGraph.removeEdge(user_one, user_two);
+	}
+
+	/**
+	 * Method to update the in-memory state after the row of the friend request
+	 * from sender to receiver has been put back as it was, e.g. by
+	 * ShardedDbConnect when a change to the request failed on the shard of the
+	 * other user.
+	 *
+	 * @param relation
+	 *            relation of the restored row, or null if there is no row.
+	 */
+	void friendRequestRestored(String sender, String receiver, Integer relation) {
+		boolean pending = relation != null && relation == 0;
+		boolean accepted = relation != null && relation == 1;
+		afterCommit(() -> {
+			if (friendCache != null) {
+				if (accepted)
+					friendCache.addEdge(sender, receiver);
+				else
+					friendCache.removeEdge(sender, receiver);
+			}
+			if (friendGraph != null) {
+				friendGraph.removeEdge(sender, receiver);
+				if (pending)
+					friendGraph.requestSent(sender, receiver);
+				else if (accepted)
+					friendGraph.requestAccepted(receiver, sender);
+			}
+			if (pending)
+				changed(ChangeEvent.Type.FRIEND_REQUESTED, sender, receiver, 0);
+			else if (accepted)
+				changed(ChangeEvent.Type.FRIEND_ACCEPTED, receiver, sender, 0);
+			else
+				changed(ChangeEvent.Type.FRIEND_DECLINED, receiver, sender, 0);
+		});
+	}
+
+	/**
+	 * Method to borrow a connection for an operation. The time from now until
+	 * the connection is returned is recorded in the metrics of the operation.
+	 * 
+	 * @param operation
+	 *            name of the method borrowing the connection.
+	 * @param sql
+	 *            the statement the operation runs, for the slow query log.
+	 */
+	private PooledConnection borrow(String operation, String sql) throws SQLException {
+		long start = System.nanoTime();
+		try {
+			awaitStartup();
+			UnitOfWork work = unitOfWork();
+			PooledConnection connection = work != null ? work.connection() : pool.borrow();
+			connection.track(metrics, operation, sql, start);
+			connection.setQueryTimeout(queryTimeouts.getOrDefault(operation, queryTimeout));
+			return connection;
+		} catch (SQLException e) {
+			metrics.record(operation, sql, System.nanoTime() - start);
+			throw e;
+		}
+	}
+
+	/**
+	 * Method to borrow a connection for the startup, which unlike borrow does
+	 * not wait for the startup to finish.
+	 */
+	private PooledConnection borrowStartup(String operation, String sql) throws SQLException {
+		long start = System.nanoTime();
+		try {
+			PooledConnection connection = pool.borrow();
+			connection.track(metrics, operation, sql, start);
+			return connection;
+		} catch (SQLException e) {
+			metrics.record(operation, sql, System.nanoTime() - start);
+			throw e;
+		}
+	}
+
+	/**
+	 * Method to borrow a connection for an operation that only reads. When there
+	 * are replicas the connection is to a replica, unless the user was written
+	 * to recently.
+	 * 
+	 * @param user
+	 *            the user the operation reads about, or null.
+	 */
+	private PooledConnection borrowRead(String operation, String sql, String user) throws SQLException {
+		ReplicaRouter replicas = this.replicas;
+		if (replicas == null || unitOfWork() != null)
+			return borrow(operation, sql);
+		long start = System.nanoTime();
+		try {
+			awaitStartup();
+			PooledConnection connection = replicas.borrowRead(user);
+			connection.track(metrics, operation, sql, start);
+			connection.setQueryTimeout(queryTimeouts.getOrDefault(operation, queryTimeout));
+			return connection;
+		} catch (SQLException e) {
+			metrics.record(operation, sql, System.nanoTime() - start);
+			throw e;
+		}
+	}
+
+	/**
+	 * Method to record a write about a user, so that reads about the user are
+	 * not served by a replica that has not applied it yet.
+	 */
+	private void wrote(String user) {
+		if (replicas != null)
+			replicas.wrote(user);
+	}
+
+	/**
+	 * Method to report an error of an operation.
+	 * 
+	 * @throws DatabaseException
+	 *             if failures are thrown rather than printed.
+	 */
+	private void failed(String operation, SQLException e) {
+		UnitOfWork work = unitOfWork();
+		if (work != null)
+			work.failed();
+		metrics.recordError(operation, e);
+		if (throwErrors || throwing.get() != null)
+			throw new DatabaseException(operation, e);
+		System.err.println("Error processing SQL statement");
+	}
+
+	/**
+	 * Method to make an operation that throws a DatabaseException if it fails,
+	 * e.g. for a ResilientDbConnect, rather than print an error and return a
+	 * default value. Only the operation is affected, not other callers of this
+	 * object.
+	 */
+	<T> T throwingErrors(Supplier<T> operation) {
+		Boolean previous = throwing.get();
+		throwing.set(Boolean.TRUE);
+		try {
+			return operation.get();
+		} finally {
+			if (previous == null)
+				throwing.remove();
 		}
 	}
 
+	/**
+	 * @return true if the current thread has an active unit of work.
+	 */
+	boolean inUnitOfWork() {
+		return unitOfWork() != null;
+	}
+
 
 	/**
 	 * Method to update the database user_info table to register a new user to the
@@ -62,149 +1146,456 @@ public class DbConnect implements DbConnectInterface {
 	 * @param nickname
 	 */
 	public void registerUser(String username, String password, String nickname) {
-		try {
-			PreparedStatement query = connection
-					.prepareStatement("INSERT INTO user_info(username,password,nickname) VALUES (?, ?, ?);");
+		wrote(username);
+		// added before the insert so the filter never misses a registered user
+		if (usernames != null)
+			usernames.put(username);
+
+		try (PooledConnection connection = borrow("registerUser", REGISTER_USER)) {
+			PreparedStatement query = connection.prepareStatement(REGISTER_USER);
 			query.setString(1, username);
 			query.setString(2, password);
 			query.setString(3, nickname);
-			query.executeUpdate();
+			if (query.executeUpdate() > 0 && (leaderboard != null || changeFeed != null)) {
+				afterCommit(() -> {
+					if (leaderboard != null)
+						leaderboard.putIfAbsent(username, 0);
+					changed(ChangeEvent.Type.USER_REGISTERED, username, null, 0);
+				});
+			}
+		} catch (SQLException e) {
+			failed("registerUser", e);
+		}
+	}
+
+	/**
+	 * Method to register many users, e.g. when migrating users from another
+	 * database. The users are inserted in JDBC batches, one transaction per
+	 * batch. A user that cannot be registered, e.g. because the username is
+	 * taken, is reported in the result and the other users are still
+	 * registered.
+	 * 
+	 * @param users
+	 *            users to register, which are read one batch at a time, so a
+	 *            stream can be passed as stream::iterator.
+	 * @param batchSize
+	 *            number of users inserted per batch and transaction.
+	 * @return the number of users registered and the users that failed.
+	 */
+	public BulkResult registerUsers(Iterable<NewUser> users, int batchSize) {
+		BulkImporter<NewUser> importer = new BulkImporter<NewUser>(REGISTER_USER,
+				new BulkImporter.RowBinder<NewUser>() {
+					public void bind(PreparedStatement statement, NewUser user) throws SQLException {
+						if (usernames != null)
+							usernames.put(user.getUsername());
+						statement.setString(1, user.getUsername());
+						statement.setString(2, user.getPassword());
+						statement.setString(3, user.getNickname());
+					}
+
+					public String key(NewUser user) {
+						return user.getUsername();
+					}
+				}, batchSize);
+		try (PooledConnection connection = borrow("registerUsers", REGISTER_USER)) {
+			return importer.run(connection, users, user -> afterCommit(() -> {
+				if (leaderboard != null)
+					leaderboard.putIfAbsent(user.getUsername(), 0);
+				changed(ChangeEvent.Type.USER_REGISTERED, user.getUsername(), null, 0);
+			}));
+		} catch (SQLException e) {
+			failed("registerUsers", e);
+			return new BulkResult();
+		}
+	}
+
+	/**
+	 * Method to update the nickname of a user.
+	 * 
+	 * @param username
+	 *            username of the user.
+	 * @param nickname
+	 *            new nickname that the user wants to change their nickname too.
+	 */
+	public void updateNickname(String username, String nickname) {
+		wrote(username);
+		try (PooledConnection connection = borrow("updateNickname", UPDATE_NICKNAME)) {
+			PreparedStatement query = connection.prepareStatement(UPDATE_NICKNAME);
+			query.setString(1, nickname);
+			query.setString(2, username);
+			if (query.executeUpdate() > 0 && profileCache != null)
+				afterCommit(() -> profileCache.update(username, profile -> profile.withNickname(nickname)));
+		} catch (SQLException e) {
+			failed("updateNickname", e);
+		}
+	}
+
+	/**
+	 * Method to check that a username exists in the database
+	 * 
+	 * @param username
+	 *            The username to be checked
+	 * @return true if the username exists in the database, false otherwise.
+	 */
+	public boolean checkUsernameExists(String username) {
+		BloomFilter usernames = this.usernames;
+		if (usernames != null && !usernames.mightContain(username))
+			return false;
+		if (profileCache != null)
+			return retrieveProfile(username) != null;
+
+		try (PooledConnection connection = borrowRead("checkUsernameExists", USERNAME_EXISTS, username)) {
+			PreparedStatement query = connection.prepareStatement(USERNAME_EXISTS);
+			query.setString(1, username);
+			try (ResultSet rs = query.executeQuery()) {
+				return rs.next();
+			}
+		} catch (SQLException e) {
+			failed("checkUsernameExists", e);
+			return false;
+		}
+
+	}
+
+	/**
+	 * Method to check that a password matches a username. The password is read
+	 * with a single lookup by username and compared in constant time, so the
+	 * time taken does not reveal how much of the password matched.
+	 * 
+	 * @param username
+	 *            The username that the user has input.
+	 * @param password
+	 *            The password that the user has input.
+	 * @return true if the password matches the provided username.
+	 */
+	public boolean checkLogin(String username, String password) {
+		if (username == null || password == null)
+			return false;
+		try (PooledConnection connection = borrowRead("checkLogin", SELECT_PASSWORD, username)) {
+			PreparedStatement query = connection.prepareStatement(SELECT_PASSWORD);
+			query.setString(1, username);
+			String stored = null;
+			try (ResultSet rs = query.executeQuery()) {
+				if (rs.next())
+					stored = rs.getString(1);
+			}
+			boolean matches = MessageDigest.isEqual(password.getBytes(StandardCharsets.UTF_8),
+					(stored == null ? "" : stored).getBytes(StandardCharsets.UTF_8));
+			return stored != null && matches;
+		} catch (SQLException e) {
+			failed("checkLogin", e);
+			return false;
+		}
+	}
+
+	/**
+	 * Method to retrieve the high score for a given user
+	 * 
+	 * @param user
+	 *            username of the user whose highscore is to be retrieved.
+	 * @return high score of user, including any score that is buffered but not
+	 *         yet written.
+	 */
+	public int retrieveHighScore(String user) {
+		if (profileCache != null) {
+			UserProfile profile = retrieveProfile(user);
+			return profile == null ? 0 : profile.getHighScore();
+		}
+
+		try (PooledConnection connection = borrowRead("retrieveHighScore", SELECT_HIGH_SCORE, user)) {
+			PreparedStatement query = connection.prepareStatement(SELECT_HIGH_SCORE);
+			query.setString(1, user);
+			int highScore = 0;
+			try (ResultSet rs = query.executeQuery()) {
+				while (rs.next()) {
+					highScore = rs.getInt(1);
+				}
+			}
+			return writeBehind == null ? highScore : writeBehind.getHighScore(user, highScore);
+		} catch (SQLException e) {
+			failed("retrieveHighScore", e);
+			return 0;
+		}
+	}
+
+	/**
+	 * Method to retrieve the high score, games played, wins and nickname of a
+	 * user with a single lookup. When profiles are cached the profile is read
+	 * through the cache.
+	 * 
+	 * @param user
+	 *            username of the user.
+	 * @return the profile of the user, including any updates that are buffered
+	 *         but not yet written, or null if the user does not exist.
+	 */
+	public UserProfile retrieveProfile(String user) {
+		ProfileCache profileCache = unitOfWork() == null ? this.profileCache : null;
+		long generation = 0;
+		if (profileCache != null) {
+			UserProfile cached = profileCache.get(user);
+			if (cached != null)
+				return cached;
+			generation = profileCache.generation();
+		}
+
+		try (PooledConnection connection = borrowRead("retrieveProfile", SELECT_PROFILE, user)) {
+			PreparedStatement query = connection.prepareStatement(SELECT_PROFILE);
+			query.setString(1, user);
+			UserProfile profile = null;
+			try (ResultSet rs = query.executeQuery()) {
+				if (rs.next())
+					profile = new UserProfile(rs.getInt(1), rs.getInt(2), rs.getInt(3), rs.getString(4));
+			}
+			if (profile != null && writeBehind != null) {
+				profile = profile.withHighScore(writeBehind.getHighScore(user, profile.getHighScore()));
+				profile = profile.withGamesPlayed(profile.getGamesPlayed() + writeBehind.getPendingGames(user));
+			}
+			if (profile != null && profileCache != null)
+				profileCache.put(user, profile, generation);
+			return profile;
+		} catch (SQLException e) {
+			failed("retrieveProfile", e);
+			return null;
+		}
+	}
+
+	/**
+	 * Method to retrieve the number of games a user has played.
+	 * 
+	 * @param user
+	 *            username of the user.
+	 * @return number of games played, or 0 if the user does not exist.
+	 */
+	public int getNumberGamesPlayed(String user) {
+		UserProfile profile = retrieveProfile(user);
+		return profile == null ? 0 : profile.getGamesPlayed();
+	}
+
+	/**
+	 * Method to retrieve the number of games a user has won.
+	 * 
+	 * @param user
+	 *            username of the user.
+	 * @return number of wins, or 0 if the user does not exist.
+	 */
+	public int getNumberWins(String user) {
+		UserProfile profile = retrieveProfile(user);
+		return profile == null ? 0 : profile.getWins();
+	}
+
+	/**
+	 * Method to retrieve all high scores and their associated usernames. The
+	 * user_info table must not be empty. When the leaderboard is enabled the
+	 * scores are read from it rather than the database.
+	 * 
+	 * @return HashMap<String, Integer> corresponding to username and high score,
+	 *         iterating from the highest score.
+	 */
+	public HashMap<String, Integer> retrieveAllHighscores() {
+		Leaderboard leaderboard = unitOfWork() == null ? this.leaderboard : null;
+		if (leaderboard != null)
+			return leaderboard.top(Integer.MAX_VALUE);
+
+		try (PooledConnection connection = borrowRead("retrieveAllHighscores", SELECT_ALL_HIGH_SCORES, null)) {
+			PreparedStatement query = connection.prepareStatement(SELECT_ALL_HIGH_SCORES);
+			HashMap<String, Integer> map = new LinkedHashMap<String, Integer>();
+
+			try (ResultSet rs = query.executeQuery()) {
+				while (rs.next()) {
+					map.put(rs.getString(1), rs.getInt(2));
+				}
+			}
+			return map;
+			
 		} catch (SQLException e) {
-			System.err.println("Error processing SQL statement");
+			failed("retrieveAllHighscores", e);
+			return new HashMap<String, Integer>();
 		}
 	}
 
 	/**
-	 * Method to update the nickname of a user.
+	 * Method to retrieve the highest scores and their associated usernames.
 	 * 
-	 * @param username
-	 *            username of the user.
-	 * @param nickname
-	 *            new nickname that the user wants to change their nickname too.
+	 * @param limit
+	 *            maximum number of scores to retrieve.
+	 * @return LinkedHashMap<String, Integer> corresponding to username and high
+	 *         score, iterating from the highest score.
 	 */
-	public void updateNickname(String username, String nickname) {
-		try {
-			PreparedStatement query = connection
-					.prepareStatement("INSERT INTO user_info(nickname) VALUES (?) WHERE username = ?;");
-			query.setString(1, nickname);
-			query.setString(2, username);
-			query.executeUpdate();
+	public LinkedHashMap<String, Integer> retrieveTopHighscores(int limit) {
+		Leaderboard leaderboard = unitOfWork() == null ? this.leaderboard : null;
+		if (leaderboard != null)
+			return leaderboard.top(limit);
+
+		try (PooledConnection connection = borrowRead("retrieveTopHighscores", TOP_HIGH_SCORES, null)) {
+			PreparedStatement query = connection.prepareStatement(TOP_HIGH_SCORES);
+			query.setInt(1, limit);
+			return readScores(query);
 		} catch (SQLException e) {
-			System.err.println("Error processing SQL statement");
+			failed("retrieveTopHighscores", e);
+			return new LinkedHashMap<String, Integer>();
 		}
 	}
 
 	/**
-	 * Method to check that a username exists in the database
+	 * Method to retrieve a page of high scores using the last row of the previous
+	 * page as the key, so that later pages cost no more than the first.
 	 * 
+	 * @param highScore
+	 *            high score of the last row of the previous page.
 	 * @param username
-	 *            The username to be checked
-	 * @return true if the username exists in the database, false otherwise.
+	 *            username of the last row of the previous page, or null to
+	 *            retrieve the scores strictly below highScore.
+	 * @param limit
+	 *            maximum number of scores to retrieve.
+	 * @return LinkedHashMap<String, Integer> corresponding to username and high
+	 *         score, iterating from the highest score.
 	 */
-	public boolean checkUsernameExists(String username) {
-		try {
-			PreparedStatement query = connection.prepareStatement("SELECT * FROM user_info WHERE username = ?;");
-			query.setString(1, username);
-			ResultSet rs = query.executeQuery();
-			while (rs.next()) {
-				if (!rs.wasNull())
-					return true;
+	public LinkedHashMap<String, Integer> retrieveHighscoresBelow(int highScore, String username, int limit) {
+		Leaderboard leaderboard = unitOfWork() == null ? this.leaderboard : null;
+		if (leaderboard != null)
+			return leaderboard.below(highScore, username, limit);
+
+		try (PooledConnection connection = borrowRead("retrieveHighscoresBelow",
+				username == null ? HIGH_SCORES_BELOW : HIGH_SCORES_AFTER, null)) {
+			PreparedStatement query;
+			if (username == null) {
+				query = connection.prepareStatement(HIGH_SCORES_BELOW);
+				query.setInt(1, highScore);
+				query.setInt(2, limit);
+			} else {
+				query = connection.prepareStatement(HIGH_SCORES_AFTER);
+				query.setInt(1, highScore);
+				query.setInt(2, highScore);
+				query.setString(3, username);
+				query.setInt(4, limit);
 			}
-			return false;
+			return readScores(query);
 		} catch (SQLException e) {
-			System.err.println("Error processing SQL statement");
-			return false;
+			failed("retrieveHighscoresBelow", e);
+			return new LinkedHashMap<String, Integer>();
 		}
-
 	}
 
 	/**
-	 * Method to check that a password matches a username.
+	 * Method to pass every high score and its associated username to a consumer,
+	 * highest score first. Rows are fetched from the database FETCH_SIZE at a
+	 * time (MySQL only honours this with useCursorFetch=true) and the consumer
+	 * is called while a connection is held, so it should not block.
 	 * 
-	 * @param username
-	 *            The username that the user has input.
-	 * @param password
-	 *            The password that the user has input.
-	 * @return true if the password matches the provided username.
+	 * @param consumer
+	 *            receives each username and high score.
 	 */
-	public boolean checkLogin(String username, String password) {
-		if (checkUsernameExists(username)) {
-			try {
-				PreparedStatement query = connection
-						.prepareStatement("SELECT password FROM user_info WHERE username = ?;");
-				query.setString(1, username);
-				ResultSet rs = query.executeQuery();
-				
+	public void streamHighscores(ScoreConsumer consumer) {
+		Leaderboard leaderboard = unitOfWork() == null ? this.leaderboard : null;
+		if (leaderboard != null) {
+			int rank = 1;
+			LinkedHashMap<String, Integer> page;
+			do {
+				page = leaderboard.page(rank, FETCH_SIZE);
+				for (Map.Entry<String, Integer> entry : page.entrySet()) {
+					consumer.accept(entry.getKey(), entry.getValue());
+				}
+				rank += FETCH_SIZE;
+			} while (page.size() == FETCH_SIZE);
+			return;
+		}
+
+		try (PooledConnection connection = borrowRead("streamHighscores", STREAM_HIGH_SCORES, null)) {
+			PreparedStatement query = connection.prepareStatement(STREAM_HIGH_SCORES);
+			query.setFetchSize(FETCH_SIZE);
+			try (ResultSet rs = query.executeQuery()) {
 				while (rs.next()) {
-					System.out.println(rs.getString(1));
-					System.out.println(password);
-					if (rs.getString(1).equals(password))
-						return true;
-					else
-						return false;
+					consumer.accept(rs.getString(1), rs.getInt(2));
 				}
-				
-			} catch (SQLException e) {
-				System.err.println("Error processing SQL statement");
-				return false;
 			}
-		} else {
-			System.out.println("username does not exist");
-			return false;
+		} catch (SQLException e) {
+			failed("streamHighscores", e);
 		}
-		return false;
+	}
+
+	private static LinkedHashMap<String, Integer> readScores(PreparedStatement query) throws SQLException {
+		LinkedHashMap<String, Integer> map = new LinkedHashMap<String, Integer>();
+		try (ResultSet rs = query.executeQuery()) {
+			while (rs.next()) {
+				map.put(rs.getString(1), rs.getInt(2));
+			}
+		}
+		return map;
 	}
 
 	/**
-	 * Method to retrieve the high score for a given user
+	 * Method to read the high score of every user into a table, highest first,
+	 * like retrieveAllHighscores but without boxing a score or allocating a map
+	 * entry per user. The table is cleared first and keeps its arrays, so
+	 * passing the same table to every call only allocates the usernames.
 	 * 
-	 * @param user
-	 *            username of the user whose highscore is to be retrieved.
-	 * @return high score of user.
+	 * @param table
+	 *            table the scores are read into.
+	 * @return the table.
 	 */
-	public int retrieveHighScore(String user) {
-		try {
-			PreparedStatement query = connection
-					.prepareStatement("SELECT high_score FROM user_info WHERE username = ?;");
-			query.setString(1, user);
-			ResultSet rs = query.executeQuery();
-			int highScore = 0;
-			while (rs.next()) {
-				highScore = rs.getInt(1);
-			}
-			return highScore;
+	public ScoreTable retrieveAllHighscores(ScoreTable table) {
+		table.clear();
+		Leaderboard leaderboard = unitOfWork() == null ? this.leaderboard : null;
+		if (leaderboard != null) {
+			leaderboard.forEach(table);
+			return table;
+		}
+
+		try (PooledConnection connection = borrowRead("retrieveAllHighscores", STREAM_HIGH_SCORES, null)) {
+			PreparedStatement query = connection.prepareStatement(STREAM_HIGH_SCORES);
+			query.setFetchSize(FETCH_SIZE);
+			readScores(query, table);
 		} catch (SQLException e) {
-			System.err.println("Error processing SQL statement");
-			return 0;
+			failed("retrieveAllHighscores", e);
+			table.clear();
 		}
+		return table;
 	}
 
 	/**
-	 * Method to retrieve all high scores and their associated usernames. The
-	 * user_info table must not be empty.
+	 * Method to read the highest scores into a table, like
+	 * retrieveTopHighscores but without boxing.
 	 * 
-	 * @return HashMap<String, Integer> corresponding to username and high score.
+	 * @param limit
+	 *            maximum number of scores to retrieve.
+	 * @param table
+	 *            table the scores are read into, which is cleared first.
+	 * @return the table.
 	 */
-	public HashMap<String, Integer> retrieveAllHighscores() {
-		try {
-			PreparedStatement query = connection
-					.prepareStatement("SELECT username, high_score FROM user_info ORDER BY high_score DESC;");
-			ResultSet rs = query.executeQuery();
-			HashMap<String, Integer> map = new HashMap<String, Integer>();
-			
+	public ScoreTable retrieveTopHighscores(int limit, ScoreTable table) {
+		table.clear();
+		Leaderboard leaderboard = unitOfWork() == null ? this.leaderboard : null;
+		if (leaderboard != null) {
+			leaderboard.forEach(limit, table);
+			return table;
+		}
+
+		try (PooledConnection connection = borrowRead("retrieveTopHighscores", TOP_HIGH_SCORES, null)) {
+			PreparedStatement query = connection.prepareStatement(TOP_HIGH_SCORES);
+			query.setInt(1, limit);
+			readScores(query, table);
+		} catch (SQLException e) {
+			failed("retrieveTopHighscores", e);
+			table.clear();
+		}
+		return table;
+	}
+
+	/**
+	 * Method to pass the rows of a query of usernames and scores to a consumer,
+	 * reading the columns by index with no boxing.
+	 */
+	private static void readScores(PreparedStatement query, ScoreConsumer consumer) throws SQLException {
+		try (ResultSet rs = query.executeQuery()) {
 			while (rs.next()) {
-				map.put(rs.getString(1), rs.getInt(2));
+				consumer.accept(rs.getString(1), rs.getInt(2));
 			}
-			return map;
-			
-		} catch (SQLException e) {
-			System.err.println("Error processing SQL statement");
-			return new HashMap<String, Integer>();
 		}
 	}
 
 	/**
-	 * Method to update the high score of a user.
+	 * Method to update the high score of a user, even if it is lower. When
+	 * updates are written behind the score is buffered.
 	 * 
 	 * @param user
 	 *            username of the user whose high score is to be updated.
@@ -212,14 +1603,21 @@ public class DbConnect implements DbConnectInterface {
 	 *            the new high score of the user.
 	 */
 	public void updateHighScore(String user, int highScore) {
-		try {
-			PreparedStatement query = connection
-					.prepareStatement("UPDATE user_info SET high_score = ? WHERE username = ?;");
+		wrote(user);
+		if (writesBehind()) {
+			writeBehind.setHighScore(user, highScore);
+			highScoreSet(user, highScore);
+			return;
+		}
+
+		try (PooledConnection connection = borrow("updateHighScore", UPDATE_HIGH_SCORE)) {
+			PreparedStatement query = connection.prepareStatement(UPDATE_HIGH_SCORE);
 			query.setInt(1, highScore);
 			query.setString(2, user);
-			query.executeUpdate();
+			if (query.executeUpdate() > 0)
+				highScoreSet(user, highScore);
 		} catch (SQLException e) {
-			System.err.println("Error processing SQL statement");
+			failed("updateHighScore", e);
 		}
 	}
 
@@ -232,13 +1630,20 @@ public class DbConnect implements DbConnectInterface {
 	 *            to be incremented.
 	 */
 	public void updateGames(String user) {
-		try {
-			PreparedStatement query = connection.prepareStatement(
-					"UPDATE user_info SET number_games_played = number_games_played +1 WHERE username = ?;");
+		wrote(user);
+		if (writesBehind()) {
+			writeBehind.incrementGames(user);
+			gamePlayed(user);
+			return;
+		}
+
+		try (PooledConnection connection = borrow("updateGames", INCREMENT_GAMES)) {
+			PreparedStatement query = connection.prepareStatement(INCREMENT_GAMES);
 			query.setString(1, user);
-			query.executeUpdate();
+			if (query.executeUpdate() > 0)
+				gamePlayed(user);
 		} catch (SQLException e) {
-			System.err.println("Error processing SQL statement");
+			failed("updateGames", e);
 		}
 	}
 
@@ -255,15 +1660,59 @@ public class DbConnect implements DbConnectInterface {
 	 *            friend request.
 	 */
 	public void addFriend(String user_one, String user_two) {
-		try {
-			PreparedStatement query = connection.prepareStatement(
-					"INSERT INTO friends (user_one, user_two, relation, action_user) VALUES (?, ?, 0, ?);");
+		wrote(user_one);
+		wrote(user_two);
+		try (PooledConnection connection = borrow("addFriend", ADD_FRIEND)) {
+			PreparedStatement query = connection.prepareStatement(ADD_FRIEND);
 			query.setString(1, user_one);
 			query.setString(2, user_two);
 			query.setString(3, user_one);
-			query.executeUpdate();
+			if (query.executeUpdate() > 0) {
+				afterCommit(() -> {
+					if (friendGraph != null)
+						friendGraph.requestSent(user_one, user_two);
+					changed(ChangeEvent.Type.FRIEND_REQUESTED, user_one, user_two, 0);
+				});
+			}
+		} catch (SQLException e) {
+			failed("addFriend", e);
+		}
+	}
+
+	/**
+	 * Method to add many pending friend requests, e.g. when migrating users from
+	 * another database. The requests are inserted in JDBC batches, one
+	 * transaction per batch. A request that cannot be added is reported in the
+	 * result and the other requests are still added.
+	 * 
+	 * @param requests
+	 *            friend requests to add, which are read one batch at a time.
+	 * @param batchSize
+	 *            number of requests inserted per batch and transaction.
+	 * @return the number of requests added and the requests that failed.
+	 */
+	public BulkResult addFriends(Iterable<FriendPair> requests, int batchSize) {
+		BulkImporter<FriendPair> importer = new BulkImporter<FriendPair>(ADD_FRIEND,
+				new BulkImporter.RowBinder<FriendPair>() {
+					public void bind(PreparedStatement statement, FriendPair pair) throws SQLException {
+						statement.setString(1, pair.getUserOne());
+						statement.setString(2, pair.getUserTwo());
+						statement.setString(3, pair.getUserOne());
+					}
+
+					public String key(FriendPair pair) {
+						return pair.toString();
+					}
+				}, batchSize);
+		try (PooledConnection connection = borrow("addFriends", ADD_FRIEND)) {
+			return importer.run(connection, requests, pair -> afterCommit(() -> {
+				if (friendGraph != null)
+					friendGraph.requestSent(pair.getUserOne(), pair.getUserTwo());
+				changed(ChangeEvent.Type.FRIEND_REQUESTED, pair.getUserOne(), pair.getUserTwo(), 0);
+			}));
 		} catch (SQLException e) {
-			System.err.println("Error processing SQL statement");
+			failed("addFriends", e);
+			return new BulkResult();
 		}
 	}
 
@@ -280,15 +1729,24 @@ public class DbConnect implements DbConnectInterface {
 	 *            sent the friend request.
 	 */
 	public void acceptFriend(String user_one, String user_two) {
-		try {
-			PreparedStatement query = connection.prepareStatement(
-					"UPDATE friends SET relation = 1, action_user = ?, WHERE user_one = ? AND user_two = ?;");
+		wrote(user_one);
+		wrote(user_two);
+		try (PooledConnection connection = borrow("acceptFriend", ACCEPT_FRIEND)) {
+			PreparedStatement query = connection.prepareStatement(ACCEPT_FRIEND);
 			query.setString(1, user_one);
 			query.setString(2, user_two);
 			query.setString(3, user_one);
-			query.executeUpdate();
+			if (query.executeUpdate() > 0) {
+				afterCommit(() -> {
+					if (friendCache != null)
+						friendCache.addEdge(user_one, user_two);
+					if (friendGraph != null)
+						friendGraph.requestAccepted(user_one, user_two);
+					changed(ChangeEvent.Type.FRIEND_ACCEPTED, user_one, user_two, 0);
+				});
+			}
 		} catch (SQLException e) {
-			System.err.println("Error processing SQL statement");
+			failed("acceptFriend", e);
 		}
 	}
 
@@ -305,15 +1763,24 @@ public class DbConnect implements DbConnectInterface {
 	 *            sent the friend request.
 	 */
 	public void declineFriend(String user_one, String user_two) {
-		try {
-			PreparedStatement query = connection.prepareStatement(
-					"UPDATE friends SET relation = 2, action_user = ?, WHERE user_one = ? AND user_two = ?;");
+		wrote(user_one);
+		wrote(user_two);
+		try (PooledConnection connection = borrow("declineFriend", DECLINE_FRIEND)) {
+			PreparedStatement query = connection.prepareStatement(DECLINE_FRIEND);
 			query.setString(1, user_one);
 			query.setString(2, user_two);
 			query.setString(3, user_one);
-			query.executeUpdate();
+			if (query.executeUpdate() > 0) {
+				afterCommit(() -> {
+					if (friendCache != null)
+						friendCache.removeEdge(user_one, user_two);
+					if (friendGraph != null)
+						friendGraph.requestDeclined(user_one, user_two);
+					changed(ChangeEvent.Type.FRIEND_DECLINED, user_one, user_two, 0);
+				});
+			}
 		} catch (SQLException e) {
-			System.err.println("Error processing SQL statement");
+			failed("declineFriend", e);
 		}
 	}
 
@@ -329,19 +1796,20 @@ public class DbConnect implements DbConnectInterface {
 	 *            checks to see if they are friends.
 	 */
 	public void checkFriendship(String user_one, String user_two) {
-		try {
-			PreparedStatement query = connection
-					.prepareStatement("SELECT * FROM friends WHERE user_one = ? AND user_two = ? AND relation = 2;");
+		try (PooledConnection connection = borrow("checkFriendship", CHECK_FRIENDSHIP)) {
+			PreparedStatement query = connection.prepareStatement(CHECK_FRIENDSHIP);
 			query.setString(1, user_one);
 			query.setString(2, user_two);
 			query.executeUpdate();
 		} catch (SQLException e) {
-			System.err.println("Error processing SQL statement");
+			failed("checkFriendship", e);
 		}
 	}
 
 	/**
-	 * Method to retrieve the usernames of all friends a particular user has.
+	 * Method to retrieve the usernames of all friends a particular user has,
+	 * i.e. the other user of every accepted friend request the user sent or
+	 * received. Each direction is a separate indexed lookup rather than an OR.
 	 * 
 	 * @param user
 	 *            String corresponding to the ID of the user who is checking their
@@ -349,19 +1817,142 @@ public class DbConnect implements DbConnectInterface {
 	 * @return ArrayList<String> corresponding to the appropriate SQL query, empty ArrayList if the user has no friends.
 	 */
 	public ArrayList<String> friendsList(String user) {
-		try {
-			PreparedStatement query = connection
-					.prepareStatement("SELECT * FROM friends WHERE (user_one = ? OR user_two = ?) AND relation = 1;");
+		FriendGraph friendGraph = unitOfWork() == null ? this.friendGraph : null;
+		if (friendGraph != null)
+			return friendGraph.friends(user);
+		FriendCache friendCache = unitOfWork() == null ? this.friendCache : null;
+		long generation = 0;
+		if (friendCache != null) {
+			ArrayList<String> cached = friendCache.get(user);
+			if (cached != null)
+				return cached;
+			generation = friendCache.generation();
+		}
+
+		try (PooledConnection connection = borrowRead("friendsList", FRIENDS_LIST, user)) {
+			PreparedStatement query = connection.prepareStatement(FRIENDS_LIST);
 			query.setString(1, user);
 			query.setString(2, user);
-			ResultSet rs = query.executeQuery();
 			ArrayList<String> friends = new ArrayList<String>();
-			while (rs.next()) {
-				friends.add(rs.getString(1));
+			try (ResultSet rs = query.executeQuery()) {
+				while (rs.next()) {
+					friends.add(rs.getString(1));
+				}
 			}
+			if (friendCache != null)
+				friendCache.put(user, friends, generation);
 			return friends;
 		} catch (SQLException e) {
-			System.err.println("Error processing SQL statement");
+			failed("friendsList", e);
+			return new ArrayList<String>();
+		}
+	}
+
+	/**
+	 * Method to pass the usernames of a user's friends to a consumer, like
+	 * friendsList but without building a list.
+	 * 
+	 * @param user
+	 *            username of the user.
+	 * @param consumer
+	 *            receives the username of every friend.
+	 */
+	public void streamFriends(String user, Consumer<String> consumer) {
+		FriendGraph friendGraph = unitOfWork() == null ? this.friendGraph : null;
+		if (friendGraph != null) {
+			friendGraph.forEachFriend(user, consumer);
+			return;
+		}
+
+		try (PooledConnection connection = borrowRead("friendsList", FRIENDS_LIST, user)) {
+			PreparedStatement query = connection.prepareStatement(FRIENDS_LIST);
+			query.setString(1, user);
+			query.setString(2, user);
+			try (ResultSet rs = query.executeQuery()) {
+				while (rs.next()) {
+					consumer.accept(rs.getString(1));
+				}
+			}
+		} catch (SQLException e) {
+			failed("friendsList", e);
+		}
+	}
+
+	/**
+	 * Method to retrieve the friends two users have in common.
+	 * 
+	 * @return ArrayList<String> of the usernames of the users who are friends of
+	 *         both users, sorted, empty if there are none.
+	 */
+	public ArrayList<String> mutualFriends(String user_one, String user_two) {
+		FriendGraph friendGraph = unitOfWork() == null ? this.friendGraph : null;
+		if (friendGraph != null)
+			return friendGraph.mutualFriends(user_one, user_two);
+		ArrayList<String> mutual = friendsList(user_one);
+		mutual.retainAll(new HashSet<String>(friendsList(user_two)));
+		Collections.sort(mutual);
+		return mutual;
+	}
+
+	/**
+	 * Method to suggest friends of a user's friends as new friends. Users who
+	 * are friends of the user already, or have a pending request to or from
+	 * them, are not suggested. Without the friend graph this takes a query per
+	 * friend of the user, and pending requests are not excluded.
+	 * 
+	 * @param limit
+	 *            maximum number of suggestions.
+	 * @return LinkedHashMap<String, Integer> of username to the number of
+	 *         friends in common, most in common first and then by username.
+	 */
+	public LinkedHashMap<String, Integer> friendSuggestions(String user, int limit) {
+		FriendGraph friendGraph = unitOfWork() == null ? this.friendGraph : null;
+		if (friendGraph != null)
+			return friendGraph.suggestions(user, limit);
+
+		ArrayList<String> friends = friendsList(user);
+		HashSet<String> direct = new HashSet<String>(friends);
+		HashMap<String, Integer> counts = new HashMap<String, Integer>();
+		for (String friend : friends) {
+			for (String other : friendsList(friend)) {
+				if (!other.equals(user) && !direct.contains(other))
+					counts.merge(other, 1, Integer::sum);
+			}
+		}
+		ArrayList<Map.Entry<String, Integer>> ranked = new ArrayList<Map.Entry<String, Integer>>(counts.entrySet());
+		ranked.sort((a, b) -> !a.getValue().equals(b.getValue()) ? b.getValue().compareTo(a.getValue())
+				: a.getKey().compareTo(b.getKey()));
+		LinkedHashMap<String, Integer> suggestions = new LinkedHashMap<String, Integer>();
+		for (int i = 0; i < Math.min(limit, ranked.size()); i++) {
+			suggestions.put(ranked.get(i).getKey(), ranked.get(i).getValue());
+		}
+		return suggestions;
+	}
+
+	/**
+	 * Method to retrieve the users whose friend requests to a user are still
+	 * pending.
+	 * 
+	 * @return ArrayList<String> of the usernames of the users who sent the
+	 *         requests, empty if there are none.
+	 */
+	public ArrayList<String> pendingRequests(String user) {
+		FriendGraph friendGraph = unitOfWork() == null ? this.friendGraph : null;
+		if (friendGraph != null)
+			return friendGraph.pendingRequests(user);
+
+		try (PooledConnection connection = borrowRead("pendingRequests", PENDING_REQUESTS, user)) {
+			PreparedStatement query = connection.prepareStatement(PENDING_REQUESTS);
+			query.setString(1, user);
+			ArrayList<String> requests = new ArrayList<String>();
+			try (ResultSet rs = query.executeQuery()) {
+				while (rs.next()) {
+					requests.add(rs.getString(1));
+				}
+			}
+			return requests;
+		} catch (SQLException e) {
+			failed("pendingRequests", e);
 			return new ArrayList<String>();
 		}
 	}
@@ -369,7 +1960,12 @@ public class DbConnect implements DbConnectInterface {
 
 	/**
 	 * Method that will check whether the high score needs to be updated after
-	 * latest game played.
+	 * latest game played. The check and the update are made by a single
+	 * conditional UPDATE, so concurrent games can never replace a higher score
+	 * with a lower one. When updates are written behind the score is buffered if
+	 * it is at least the current high score, which the buffer decides
+	 * atomically. The stored score it compares with is read from the
+	 * leaderboard when it is loaded and holds the user, otherwise with a query.
 	 * 
 	 * @param username
 	 *            username of the user whose high score is to be updated.
@@ -378,12 +1974,311 @@ public class DbConnect implements DbConnectInterface {
 	 * @return True if the high score has now been changed to the latest score.
 	 */
 	public boolean checkHighScore(String username, int latestScore) {
-		int currentHighScore = retrieveHighScore(username);
-
-		if (latestScore >= currentHighScore) {
-			updateHighScore(username, latestScore);
+		wrote(username);
+		if (writesBehind()) {
+			try {
+				if (!writeBehind.offerHighScore(username, latestScore, this::storedHighScore))
+					return false;
+			} catch (SQLException e) {
+				failed("checkHighScore", e);
+				return false;
+			}
+			highScoreRaised(username, latestScore);
 			return true;
-		} else
+		}
+
+		try (PooledConnection connection = borrow("checkHighScore", RAISE_HIGH_SCORE)) {
+			PreparedStatement query = connection.prepareStatement(RAISE_HIGH_SCORE);
+			query.setInt(1, latestScore);
+			query.setString(2, username);
+			query.setInt(3, latestScore);
+			boolean applied = query.executeUpdate() > 0;
+			if (applied)
+				highScoreRaised(username, latestScore);
+			return applied;
+		} catch (SQLException e) {
+			failed("checkHighScore", e);
 			return false;
+		}
+	}
+
+	/**
+	 * Method to read the high score of a user for the write-behind buffer to
+	 * compare a new score with. The leaderboard is raised under the lock of the
+	 * buffer whenever a score is buffered, so its score can be used in place of
+	 * the stored one. Otherwise the score is read from the primary database.
+	 *
+	 * @return the high score, or an empty OptionalInt if there is no such user.
+	 */
+	private OptionalInt storedHighScore(String user) throws SQLException {
+		Leaderboard leaderboard = this.leaderboard;
+		Integer score = leaderboard == null ? null : leaderboard.getScore(user);
+		if (score != null)
+			return OptionalInt.of(score);
+
+		try (PooledConnection connection = borrow("checkHighScore", SELECT_HIGH_SCORE)) {
+			PreparedStatement query = connection.prepareStatement(SELECT_HIGH_SCORE);
+			query.setString(1, user);
+			try (ResultSet rs = query.executeQuery()) {
+				return rs.next() ? OptionalInt.of(rs.getInt(1)) : OptionalInt.empty();
+			}
+		}
+	}
+
+	/**
+	 * Method for the write-behind buffer to update the leaderboard when a high
+	 * score is buffered. A set only changes a user already on the leaderboard,
+	 * since the buffer does not know whether the user exists.
+	 */
+	private void scoreBuffered(String user, int highScore, boolean set) {
+		Leaderboard leaderboard = this.leaderboard;
+		if (leaderboard == null)
+			return;
+		if (set)
+			leaderboard.replace(user, highScore);
+		else
+			leaderboard.raise(user, highScore);
+	}
+
+	/**
+	 * @return username of the user with the highest score, or null if there are
+	 *         no users.
+	 */
+	public String getFirstPlace() {
+		return getPlace(1);
+	}
+
+	/**
+	 * @return username of the user with the second highest score, or null if
+	 *         there are fewer than two users.
+	 */
+	public String getSecondPlace() {
+		return getPlace(2);
+	}
+
+	/**
+	 * @return username of the user with the third highest score, or null if
+	 *         there are fewer than three users.
+	 */
+	public String getThirdPlace() {
+		return getPlace(3);
+	}
+
+	/**
+	 * Method to retrieve the user in a place of the leaderboard. The place is
+	 * read from the rank snapshot when it is enabled and keeps that place,
+	 * otherwise from the leaderboard or the database.
+	 * 
+	 * @param place
+	 *            place on the leaderboard, starting at 1.
+	 * @return username in that place, or null if there are fewer users.
+	 */
+	public String getPlace(int place) {
+		if (place < 1)
+			return null;
+		RankSnapshot snapshot = rankSnapshot.get();
+		if (snapshot != null && place <= snapshot.getTopSize())
+			return snapshot.getPlace(place);
+		int current = 0;
+		for (String user : retrieveTopHighscores(place).keySet()) {
+			if (++current == place)
+				return user;
+		}
+		return null;
+	}
+
+	/**
+	 * Method to retrieve the rank of a user, where users with equal scores are
+	 * ranked by username. The rank is read from the rank snapshot when it is
+	 * enabled, in which case it may be up to snapshot.refreshMillis old outside
+	 * the top places, otherwise from the leaderboard or by counting the users
+	 * above in the database.
+	 * 
+	 * @param user
+	 *            username of the user.
+	 * @return rank of the user, starting at 1, or 0 if the user does not exist.
+	 */
+	public int getRank(String user) {
+		RankSnapshot snapshot = rankSnapshot.get();
+		if (snapshot != null)
+			return snapshot.getRank(user);
+		Leaderboard leaderboard = unitOfWork() == null ? this.leaderboard : null;
+		if (leaderboard != null)
+			return leaderboard.rankOf(user);
+
+		try (PooledConnection connection = borrowRead("getRank", RANK_OF, user)) {
+			PreparedStatement query = connection.prepareStatement(RANK_OF);
+			query.setString(1, user);
+			try (ResultSet rs = query.executeQuery()) {
+				return rs.next() ? rs.getInt(1) : 0;
+			}
+		} catch (SQLException e) {
+			failed("getRank", e);
+			return 0;
+		}
+	}
+
+	/**
+	 * Method to build a new rank snapshot from the leaderboard, or from the
+	 * database when there is no leaderboard, and write its top places to the
+	 * rank_snapshot table when snapshot.table is true. The snapshot is rebuilt
+	 * every snapshot.refreshMillis, so this only needs to be called to see a
+	 * change sooner.
+	 */
+	public void refreshRankSnapshot() {
+		if (snapshotRefresher == null)
+			return;
+		RankSnapshot.Builder builder = new RankSnapshot.Builder(
+				Math.max(1, ConnectionPool.intProperty(properties, "snapshot.topSize", 100)));
+		long takenAt = System.currentTimeMillis();
+		Leaderboard leaderboard = this.leaderboard;
+		if (leaderboard != null) {
+			leaderboard.forEach(builder::add);
+		} else {
+			try (PooledConnection connection = borrow("refreshRankSnapshot", STREAM_HIGH_SCORES)) {
+				PreparedStatement query = connection.prepareStatement(STREAM_HIGH_SCORES);
+				query.setFetchSize(FETCH_SIZE);
+				try (ResultSet rs = query.executeQuery()) {
+					while (rs.next()) {
+						builder.add(rs.getString(1), rs.getInt(2));
+					}
+				}
+			} catch (SQLException e) {
+				metrics.recordError("refreshRankSnapshot", e);
+				System.err.println("Error refreshing rank snapshot");
+				return;
+			}
+		}
+		RankSnapshot snapshot = builder.build(takenAt);
+		rankSnapshot.set(snapshot);
+
+		if (Boolean.parseBoolean(properties.getProperty("snapshot.table")))
+			writeRankSnapshot(snapshot);
+	}
+
+	/**
+	 * Method to replace the rows of the rank_snapshot table with the top places
+	 * of a snapshot, in one transaction.
+	 */
+	private void writeRankSnapshot(RankSnapshot snapshot) {
+		try (PooledConnection connection = borrow("writeRankSnapshot", INSERT_RANK_SNAPSHOT)) {
+			Connection jdbc = connection.getConnection();
+			boolean transaction = jdbc.getAutoCommit();
+			if (transaction)
+				jdbc.setAutoCommit(false);
+			connection.prepareStatement(DELETE_RANK_SNAPSHOT).executeUpdate();
+			PreparedStatement insert = connection.prepareStatement(INSERT_RANK_SNAPSHOT);
+			Timestamp takenAt = new Timestamp(snapshot.getTakenAtMillis());
+			for (int place = 1; snapshot.getPlace(place) != null; place++) {
+				insert.setInt(1, place);
+				insert.setString(2, snapshot.getPlace(place));
+				insert.setInt(3, snapshot.getScoreAt(place));
+				insert.setTimestamp(4, takenAt);
+				insert.addBatch();
+			}
+			insert.executeBatch();
+			// a failed write is rolled back when the connection is returned
+			if (transaction)
+				jdbc.commit();
+		} catch (SQLException e) {
+			metrics.recordError("writeRankSnapshot", e);
+			System.err.println("Error writing rank snapshot");
+		}
+	}
+
+	/**
+	 * @return the current rank snapshot, or null if it is disabled or has not
+	 *         been built yet.
+	 */
+	public RankSnapshot getRankSnapshot() {
+		return rankSnapshot.get();
+	}
+
+	/**
+	 * @return time since the users of the rank snapshot were read, in
+	 *         milliseconds, or -1 if there is no snapshot.
+	 */
+	public long getRankSnapshotAgeMillis() {
+		RankSnapshot snapshot = rankSnapshot.get();
+		return snapshot == null ? -1 : System.currentTimeMillis() - snapshot.getTakenAtMillis();
+	}
+
+	/**
+	 * Method to set the in-memory copies of a user's high score after it has
+	 * been updated, which may have lowered it. A buffered score is already on
+	 * the leaderboard, and only enters the rank snapshot if the leaderboard
+	 * holds the user, since the buffer does not know whether the user exists.
+	 * Its change is published once the buffer has written it.
+	 */
+	private void highScoreSet(String user, int highScore) {
+		boolean buffered = writesBehind();
+		afterCommit(() -> {
+			if (leaderboard != null && !buffered)
+				leaderboard.update(user, highScore);
+			if (profileCache != null)
+				profileCache.update(user, profile -> profile.withHighScore(highScore));
+			if (!buffered || (leaderboard != null && leaderboard.getScore(user) != null))
+				rankRaised(user, highScore);
+			if (!buffered)
+				changed(ChangeEvent.Type.SCORE_UPDATED, user, null, highScore);
+		});
+	}
+
+	/**
+	 * Method to raise the in-memory copies of a user's high score after a higher
+	 * score has been written. Scores are only ever raised, so concurrent updates
+	 * applied out of order still leave the highest score. A buffered score is
+	 * already on the leaderboard, and its change is published once the buffer
+	 * has written it.
+	 */
+	private void highScoreRaised(String user, int highScore) {
+		if (leaderboard == null && profileCache == null && snapshotRefresher == null && changeFeed == null)
+			return;
+		boolean buffered = writesBehind();
+		afterCommit(() -> {
+			if (!buffered)
+				changed(ChangeEvent.Type.SCORE_UPDATED, user, null, highScore);
+			rankRaised(user, highScore);
+			if (leaderboard != null && !buffered)
+				leaderboard.raise(user, highScore);
+			if (profileCache != null)
+				profileCache.update(user,
+						profile -> highScore > profile.getHighScore() ? profile.withHighScore(highScore) : profile);
+		});
+	}
+
+	/**
+	 * Method to move a user whose high score was raised into the top places of
+	 * the rank snapshot, if the score reaches them. A lowered score is only
+	 * seen by the next snapshot.
+	 */
+	private void rankRaised(String user, int highScore) {
+		if (snapshotRefresher != null)
+			rankSnapshot.updateAndGet(snapshot -> snapshot == null ? null : snapshot.withRaisedScore(user, highScore));
+	}
+
+	/**
+	 * Method to count a game in the cached profile of a user. The change of a
+	 * buffered game is published once the buffer has written it.
+	 */
+	private void gamePlayed(String user) {
+		if (profileCache == null && changeFeed == null)
+			return;
+		boolean buffered = writesBehind();
+		afterCommit(() -> {
+			if (profileCache != null)
+				profileCache.update(user, profile -> profile.withGamesPlayed(profile.getGamesPlayed() + 1));
+			if (!buffered)
+				changed(ChangeEvent.Type.GAMES_INCREMENTED, user, null, 1);
+		});
+	}
+
+	/**
+	 * Method to publish a committed change to the change feed, if it is
+	 * enabled.
+	 */
+	private void changed(ChangeEvent.Type type, String user, String otherUser, int value) {
+		if (changeFeed != null)
+			changeFeed.publish(type, user, otherUser, value);
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,119 @@
+import static org.junit.Assert.assertEquals;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Stress test for DbConnect, which runs a mix of reads and writes on many
+ * threads against an EmbeddedDatabase and then checks that the database and
+ * the in-memory structures agree with what was written.
+ */
+public class DbConnectConcurrencyTest {
+	private static final int USERS = 1000;
+	private static final int FRIENDS = 3;
+	private static final int THREADS = 8;
+	private static final int OPERATIONS_PER_THREAD = 1000;
+
+	private EmbeddedDatabase database;
+	private DbConnect con;
+
+	@Before
+	public void setUp() throws SQLException {
+		this.database = new EmbeddedDatabase();
+		database.seed(USERS, FRIENDS, 0);
+		Properties properties = new Properties();
+		properties.setProperty("leaderboard.enabled", "true");
+		properties.setProperty("snapshot.enabled", "true");
+		properties.setProperty("friends.graph", "true");
+		properties.setProperty("profiles.cacheSize", "200");
+		this.con = database.open(properties);
+	}
+
+	@After
+	public void tearDown() throws SQLException {
+		con.close();
+		database.close();
+	}
+
+	@Test
+	public void testMixedWorkloadKeepsEveryStructureConsistent() throws Exception {
+		AtomicIntegerArray maxScores = new AtomicIntegerArray(USERS);
+		AtomicIntegerArray games = new AtomicIntegerArray(USERS);
+		for (int i = 0; i < USERS; i++) {
+			maxScores.set(i, database.highScore(i));
+		}
+
+		ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+		CountDownLatch start = new CountDownLatch(1);
+		ArrayList<Future<Integer>> results = new ArrayList<Future<Integer>>();
+		for (int t = 0; t < THREADS; t++) {
+			final long seed = t;
+			results.add(executor.submit(new Callable<Integer>() {
+				public Integer call() throws Exception {
+					Random random = new Random(seed);
+					int failures = 0;
+					start.await();
+					for (int i = 0; i < OPERATIONS_PER_THREAD; i++) {
+						int user = random.nextInt(USERS);
+						String username = EmbeddedDatabase.username(user);
+						switch (random.nextInt(4)) {
+						case 0:
+							int score = random.nextInt(1200000);
+							con.checkHighScore(username, score);
+							maxScores.accumulateAndGet(user, score, Math::max);
+							break;
+						case 1:
+							con.updateGames(username);
+							games.incrementAndGet(user);
+							break;
+						case 2:
+							if (con.friendsList(username).size() != 2 * FRIENDS)
+								failures++;
+							break;
+						default:
+							if (!con.checkLogin(username, EmbeddedDatabase.password(user)))
+								failures++;
+						}
+					}
+					return failures;
+				}
+			}));
+		}
+		start.countDown();
+		for (Future<Integer> result : results) {
+			assertEquals(Integer.valueOf(0), result.get());
+		}
+		executor.shutdown();
+
+		for (int i = 0; i < USERS; i++) {
+			String username = EmbeddedDatabase.username(i);
+			assertEquals(maxScores.get(i), con.retrieveHighScore(username));
+			assertEquals(Integer.valueOf(maxScores.get(i)), con.getLeaderboard().getScore(username));
+			assertEquals(games.get(i), con.getNumberGamesPlayed(username));
+		}
+
+		int best = 0;
+		for (int i = 1; i < USERS; i++) {
+			// equal scores are ranked by username
+			if (maxScores.get(i) > maxScores.get(best) || (maxScores.get(i) == maxScores.get(best)
+					&& EmbeddedDatabase.username(i).compareTo(EmbeddedDatabase.username(best)) < 0))
+				best = i;
+		}
+		assertEquals(EmbeddedDatabase.username(best), con.getFirstPlace());
+		con.refreshRankSnapshot();
+		assertEquals(con.getLeaderboard().rankOf("user7"), con.getRank("user7"));
+		assertEquals(0, con.getConnectionPool().getActiveCount());
+	}
+}
@@ -1,5 +1,6 @@
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 
 /**
  * Interface for Database connectivity class.
@@ -16,6 +17,12 @@ public interface DbConnectInterface {
 	 */
 	public void registerUser(String username, String password, String nickname);
 
+	/**
+	 * Method to register many users with batched inserts, reporting the users
+	 * that could not be registered without abandoning the others.
+	 */
+	public BulkResult registerUsers(Iterable<NewUser> users, int batchSize);
+
 	/**
 	 * Method to update the nickname of a user.
 	 * 
@@ -38,12 +45,47 @@ public interface DbConnectInterface {
 	 */
 	public int retrieveHighScore(String user);
 
+	/**
+	 * Method to retrieve the high score, games played, wins and nickname of a
+	 * user.
+	 */
+	public UserProfile retrieveProfile(String user);
+
+	/**
+	 * Method to retrieve the number of games a user has played.
+	 */
+	public int getNumberGamesPlayed(String user);
+
+	/**
+	 * Method to retrieve the number of games a user has won.
+	 */
+	public int getNumberWins(String user);
+
 	/**
 	 * Method to retrieve all high scores and their associated usernames. The
 	 * user_info table must not be empty.
 	 */
 	public HashMap<String, Integer> retrieveAllHighscores();
 
+	/**
+	 * Method to retrieve the highest scores and their associated usernames, in
+	 * rank order.
+	 */
+	public LinkedHashMap<String, Integer> retrieveTopHighscores(int limit);
+
+	/**
+	 * Method to retrieve the page of high scores ranked after the given score and
+	 * username, in rank order. A null username returns the scores strictly below
+	 * the given score.
+	 */
+	public LinkedHashMap<String, Integer> retrieveHighscoresBelow(int highScore, String username, int limit);
+
+	/**
+	 * Method to pass every high score and its associated username to a consumer,
+	 * in rank order, without holding them all in memory.
+	 */
+	public void streamHighscores(ScoreConsumer consumer);
+
 	/**
 	 * Method to update the high score of a user.
 	 */
@@ -62,6 +104,12 @@ public interface DbConnectInterface {
 	 */
 	public void addFriend(String user_one, String user_two);
 
+	/**
+	 * Method to add many pending friend requests with batched inserts, reporting
+	 * the requests that could not be added without abandoning the others.
+	 */
+	public BulkResult addFriends(Iterable<FriendPair> requests, int batchSize);
+
 	/**
 	 * Method to update the database friends table whereby user_one accepts a friend
 	 * request sent by user_two. The relation will be set to "1" which corresponds
@@ -0,0 +1,97 @@
+import static org.junit.Assert.assertEquals;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Properties;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests DbConnect against an EmbeddedDatabase of many users, loading every
+ * in-memory structure and checking it against the seeded data. The number of
+ * users is read from the embedded.users system property (default 10000), so
+ * the same tests can be run at any scale from a thousand to ten million users
+ * given the heap.
+ */
+public class DbConnectScaleTest {
+	private static final int USERS = Integer.getInteger("embedded.users", 10000);
+	private static final int FRIENDS = 5;
+
+	private EmbeddedDatabase database;
+	private DbConnect con;
+	private Integer[] ranking;
+
+	@Before
+	public void setUp() throws SQLException {
+		this.database = new EmbeddedDatabase(Long.getLong("embedded.seed", 42L));
+		database.seed(USERS, FRIENDS, 1);
+		Properties properties = new Properties();
+		properties.setProperty("leaderboard.enabled", "true");
+		properties.setProperty("snapshot.enabled", "true");
+		properties.setProperty("friends.graph", "true");
+		this.con = database.open(properties);
+
+		this.ranking = new Integer[USERS];
+		for (int i = 0; i < USERS; i++) {
+			ranking[i] = i;
+		}
+		Arrays.sort(ranking, (a, b) -> database.highScore(a) != database.highScore(b)
+				? Integer.compare(database.highScore(b), database.highScore(a))
+				: EmbeddedDatabase.username(a).compareTo(EmbeddedDatabase.username(b)));
+	}
+
+	@After
+	public void tearDown() throws SQLException {
+		con.close();
+		database.close();
+	}
+
+	@Test
+	public void testEveryUserIsLoaded() {
+		assertEquals(USERS, con.getLeaderboard().size());
+		assertEquals(USERS, con.getRankSnapshot().size());
+		assertEquals(USERS, con.getFriendGraph().size());
+		assertEquals(USERS * FRIENDS, con.getFriendGraph().friendshipCount());
+	}
+
+	@Test
+	public void testLeaderboardMatchesSeed() {
+		ScoreTable table = con.retrieveAllHighscores(new ScoreTable(USERS));
+
+		assertEquals(USERS, table.size());
+		for (int rank = 0; rank < USERS; rank += Math.max(1, USERS / 1000)) {
+			assertEquals(EmbeddedDatabase.username(ranking[rank]), table.getUsername(rank));
+			assertEquals(database.highScore(ranking[rank]), table.getScore(rank));
+		}
+		assertEquals(EmbeddedDatabase.username(ranking[0]), con.getFirstPlace());
+		assertEquals(EmbeddedDatabase.username(ranking[2]), con.getThirdPlace());
+	}
+
+	@Test
+	public void testRanksMatchSeed() {
+		Random random = new Random(1);
+		for (int i = 0; i < 200; i++) {
+			int rank = random.nextInt(USERS);
+			assertEquals(rank + 1, con.getRank(EmbeddedDatabase.username(ranking[rank])));
+		}
+	}
+
+	@Test
+	public void testFriendsMatchSeed() {
+		Random random = new Random(2);
+		for (int i = 0; i < 200; i++) {
+			int user = random.nextInt(USERS);
+			ArrayList<String> expected = database.friendsOf(user);
+			ArrayList<String> actual = con.friendsList(EmbeddedDatabase.username(user));
+			Collections.sort(expected);
+			Collections.sort(actual);
+			assertEquals(expected, actual);
+			assertEquals(database.requestsTo(user), con.pendingRequests(EmbeddedDatabase.username(user)));
+		}
+	}
+}
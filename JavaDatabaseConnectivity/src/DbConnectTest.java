@@ -1,282 +1,323 @@
-package db;
-/**
- * JUnit tests for DbConnect
- * @author Charlie Cox
- * @version 21/03/2018
- */
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Properties;
 
+import org.junit.After;
 import org.junit.Before;
-import org.junit.Rule;
 import org.junit.Test;
-import org.junit.rules.ExpectedException;
+
 /**
- * At the time of writing, these tests all passed and since then the database has altered.
- * @author chc578
+ * JUnit tests for every method of DbConnectInterface, run offline against an
+ * EmbeddedDatabase seeded with 50 synthetic users, who each have two friends
+ * on either side and one pending request to and from them. ch4rlie, dog and
+ * tomo are registered on top with the three highest scores.
  *
+ * Subclasses run the same tests with other properties, e.g. with the
+ * in-memory caches enabled.
  */
 public class DbConnectTest {
-	private DbConnect con;
-	@Rule public final ExpectedException exception = ExpectedException.none();
+	private static final int USERS = 50;
+
+	private EmbeddedDatabase database;
+	protected DbConnect con;
+
+	/**
+	 * @return properties added to those of the embedded database, none by
+	 *         default.
+	 */
+	protected Properties configure() {
+		return new Properties();
+	}
 
 	@Before
-	public void setUp() {
-		try {
-			this.con = new DbConnect();
-		} catch (SQLException e) {
-			e.printStackTrace();
+	public void setUp() throws SQLException {
+		this.database = new EmbeddedDatabase();
+		database.seed(USERS, 2, 1);
+		this.con = database.open(configure());
+		con.registerUser("ch4rlie", "1234a", "charlie");
+		con.registerUser("dog", "woof", "doggo");
+		con.registerUser("tomo", "t0m0", "tomo");
+		con.updateHighScore("ch4rlie", 3000000);
+		con.updateHighScore("dog", 2000000);
+		con.updateHighScore("tomo", 1000000);
+		con.refreshRankSnapshot();
+	}
+
+	@After
+	public void tearDown() throws SQLException {
+		con.close();
+		database.close();
+	}
+
+	/**
+	 * @return every username, highest score first and then by username.
+	 */
+	private ArrayList<String> ranking() {
+		HashMap<String, Integer> scores = expectedScores();
+		ArrayList<String> ranking = new ArrayList<String>(scores.keySet());
+		ranking.sort((a, b) -> !scores.get(a).equals(scores.get(b)) ? scores.get(b).compareTo(scores.get(a))
+				: a.compareTo(b));
+		return ranking;
+	}
+
+	private HashMap<String, Integer> expectedScores() {
+		HashMap<String, Integer> scores = new HashMap<String, Integer>();
+		for (int i = 0; i < USERS; i++) {
+			scores.put(EmbeddedDatabase.username(i), database.highScore(i));
 		}
+		scores.put("ch4rlie", 3000000);
+		scores.put("dog", 2000000);
+		scores.put("tomo", 1000000);
+		return scores;
+	}
+
+	private static ArrayList<String> sorted(ArrayList<String> list) {
+		Collections.sort(list);
+		return list;
 	}
 
 	@Test
 	public void testRegisterUser() {
-		boolean expected1 = true;
-		boolean expected2 = false;
+		con.registerUser("doggo12345", "doggo12345", "doggo");
+		con.registerUser("doggo12345", "hi", "imposter");
 
-		boolean actual1 = con.registerUser("doggo12345", "doggo12345");
-		boolean actual2 = con.registerUser("doggo1234", "hi");
+		assertTrue(con.checkUsernameExists("doggo12345"));
+		assertTrue(con.checkLogin("doggo12345", "doggo12345"));
+		assertFalse(con.checkLogin("doggo12345", "hi"));
+		assertEquals("doggo", con.retrieveProfile("doggo12345").getNickname());
+	}
 
-		assertEquals(expected1, actual1);
-		assertEquals(expected2, actual2);
+	@Test
+	public void testRegisterUsers() {
+		BulkResult result = con.registerUsers(
+				Arrays.asList(new NewUser("amy", "pw1", "amy"), new NewUser("dog", "pw2", "dog2"),
+						new NewUser("ben", "pw3", "ben")), 2);
+
+		assertEquals(2, result.getInserted());
+		assertEquals(1, result.getFailures().size());
+		assertEquals("dog", result.getFailures().get(0).getKey());
+		assertTrue(con.checkLogin("ben", "pw3"));
+		assertTrue(con.checkLogin("dog", "woof"));
 	}
 
 	@Test
 	public void testCheckUsernameExists() {
-		boolean expected1 = true;
-		boolean expected2 = false;
-
-		boolean actual1 = con.checkUsernameExists("ch4rlie");
-		boolean actual2 = con.checkUsernameExists("do");
+		assertTrue(con.checkUsernameExists("ch4rlie"));
+		assertTrue(con.checkUsernameExists(EmbeddedDatabase.username(USERS - 1)));
+		assertFalse(con.checkUsernameExists("do"));
+		assertFalse(con.checkUsernameExists(EmbeddedDatabase.username(USERS)));
+	}
 
-		assertEquals(expected1, actual1);
-		assertEquals(expected2, actual2);
+	@Test
+	public void testCheckLogin() {
+		assertTrue(con.checkLogin("ch4rlie", "1234a"));
+		assertTrue(con.checkLogin(EmbeddedDatabase.username(7), EmbeddedDatabase.password(7)));
+		assertFalse(con.checkLogin("ch4rlie", "1234"));
+		assertFalse(con.checkLogin(EmbeddedDatabase.username(7), EmbeddedDatabase.password(8)));
+		assertFalse(con.checkLogin("nobody", "1234a"));
 	}
 
 	@Test
-	public void testCheckUsernamePassword() {
-		boolean expected1 = true;
-		boolean expected2 = false;
+	public void testCheckLoginRejectsNull() {
+		assertFalse(con.checkLogin(null, null));
+		assertFalse(con.checkLogin(null, "1234a"));
+		assertFalse(con.checkLogin("ch4rlie", null));
+	}
 
-		boolean actual1 = con.checkUsernamePassword("doggo12345");
-		boolean actual2 = con.checkUsernamePassword("Iamnotinthedatabase");
+	@Test
+	public void testUpdateNickname() {
+		con.updateNickname("ch4rlie", "chaz");
 
-		assertEquals(expected1, actual1);
-		assertEquals(expected2, actual2);
+		assertEquals("chaz", con.retrieveProfile("ch4rlie").getNickname());
 	}
 
 	@Test
-	public void testCheckLogin() {
-		boolean expected1 = true;
-		boolean expected2 = false;
+	public void testRetrieveHighScore() {
+		assertEquals(3000000, con.retrieveHighScore("ch4rlie"));
+		assertEquals(database.highScore(3), con.retrieveHighScore(EmbeddedDatabase.username(3)));
+		assertEquals(0, con.retrieveHighScore("nobody"));
+	}
 
-		boolean actual1 = con.checkLogin("ch4rlie", "1234a");
-		boolean actual2 = con.checkLogin("doggo12345", "doggo12");
+	@Test
+	public void testRetrieveProfile() {
+		UserProfile profile = con.retrieveProfile(EmbeddedDatabase.username(5));
+
+		assertEquals(database.highScore(5), profile.getHighScore());
+		assertEquals(0, profile.getGamesPlayed());
+		assertEquals(0, profile.getWins());
+		assertEquals("nick5", profile.getNickname());
+		assertNull(con.retrieveProfile("nobody"));
+	}
 
-		assertEquals(expected1, actual1);
-		assertEquals(expected2, actual2);
+	@Test
+	public void testUpdateGames() {
+		con.updateGames("ch4rlie");
+		con.updateGames("ch4rlie");
+
+		assertEquals(2, con.getNumberGamesPlayed("ch4rlie"));
+		assertEquals(0, con.getNumberWins("ch4rlie"));
+		assertEquals(0, con.getNumberGamesPlayed("dog"));
+		assertEquals(0, con.getNumberGamesPlayed("nobody"));
 	}
 
 	@Test
-	public void testRetrieveHighScore() {
-		int expected1 = 1;
+	public void testRetrieveAllHighscores() {
+		assertEquals(expectedScores(), con.retrieveAllHighscores());
+		assertEquals(ranking(), new ArrayList<String>(con.retrieveAllHighscores(new ScoreTable()).toMap().keySet()));
+	}
 
-		int actual1 = con.retrieveHighScore("ch4rlie");
+	@Test
+	public void testRetrieveTopHighscores() {
+		LinkedHashMap<String, Integer> top = con.retrieveTopHighscores(5);
 
-		assertEquals(expected1, actual1);
+		assertEquals(ranking().subList(0, 5), new ArrayList<String>(top.keySet()));
+		assertEquals(Integer.valueOf(3000000), top.get("ch4rlie"));
+		assertEquals(top, con.retrieveTopHighscores(5, new ScoreTable()).toMap());
 	}
 
 	@Test
-	public void testRetrieveAllHighscores() {
-		HashMap<String, Integer> expected1 = new HashMap();
-
-		expected1.put("ass", 0);
-		expected1.put("aaa", 0);
-		expected1.put("teste", 0);
-		expected1.put("Gui23", 0);
-		expected1.put("fgh", 0);
-		expected1.put("Hellloooo", 0);
-		expected1.put("ben", 0);
-		expected1.put("fffd", 0);
-		expected1.put("George", 0);
-		expected1.put("doggo1234", 0);
-		expected1.put("gdfgdf", 0);
-		expected1.put("Gui2", 0);
-		expected1.put("ch4rlie", 1);
-		expected1.put("dog", 0);
-		expected1.put("tomo", 0);
-		expected1.put("user", 0);
-		expected1.put("weaverfever", 0);
-		expected1.put("HelloGui", 0);
-		expected1.put("ch4rli", 0);
-		expected1.put("HelloSparta", 0);
-		expected1.put("HelloSparta2", 0);
-		expected1.put("rachel", 0);
-		expected1.put("me", 0);
-		expected1.put("fff", 0);
-		expected1.put("cc", 0);
-		expected1.put("12345", 0);
-		expected1.put("asdfgh", 0);
-		expected1.put("charlie", 0);
-		expected1.put("asdsad", 0);
-		expected1.put("madting", 0);
-		expected1.put("sdfsdfsd", 0);
-		expected1.put("fds", 0);
-		expected1.put("h", 0);
-		expected1.put("GHGH", 0);
-		expected1.put("ffff", 0);
-		expected1.put("fgfg", 0);
-		expected1.put("f", 0);
-		expected1.put("fd", 0);
-		expected1.put("Rob", 0);
-		expected1.put("rob2", 0);
-		expected1.put("robert1234", 0);
-		expected1.put("1+1=2", 0);
-		expected1.put("doggo123", 0);
-		expected1.put("aards", 0);
-		expected1.put("zanal", 0);
-		expected1.put("g", 0);
-		expected1.put("doggo", 0);
-
-		HashMap<String, Integer> actual1 = con.retrieveAllHighscores();
-
-		assertEquals(expected1, actual1);
+	public void testRetrieveHighscoresBelow() {
+		LinkedHashMap<String, Integer> page = con.retrieveHighscoresBelow(1000000, "tomo", 4);
+
+		assertEquals(ranking().subList(3, 7), new ArrayList<String>(page.keySet()));
+		assertEquals(ranking().subList(3, 7),
+				new ArrayList<String>(con.retrieveHighscoresBelow(1000000, null, 4).keySet()));
 	}
 
 	@Test
-	public void testCheckNotNull() {
-		boolean expected1 = false;
-		boolean expected2 = false;
-		boolean expected3 = false;
-		boolean expected4 = false;
-
-		boolean actual1 = con.checkLogin(null, null);
-		boolean actual2 = con.checkLogin(null, "doggo12");
-		boolean actual3 = con.checkLogin("hi", null);
-		boolean actual4 = con.checkLogin("hi", "doggo12");
-
-		assertEquals(expected1, actual1);
-		assertEquals(expected2, actual2);
-		assertEquals(expected3, actual3);
-		assertEquals(expected4, actual4);
+	public void testStreamHighscores() {
+		ScoreTable table = new ScoreTable();
+		con.streamHighscores(table);
+
+		assertEquals(ranking(), new ArrayList<String>(table.toMap().keySet()));
 	}
 
 	@Test
-	public void testCheckPassword() {
-		boolean expected1 = false;
-		boolean expected2 = false;
-		boolean expected3 = false;
-		boolean expected4 = false;
-		boolean expected5 = true;
-
-		boolean actual1 = con.checkPassword("");
-		boolean actual2 = con.checkPassword("123456");
-		boolean actual3 = con.checkPassword("asdfgh");
-		boolean actual4 = con.checkPassword("1a2s3d");
-		boolean actual5 = con.checkPassword("1A2s3d");
-
-		assertEquals(expected1, actual1);
-		assertEquals(expected2, actual2);//fails
-		assertEquals(expected3, actual3);
-		assertEquals(expected4, actual4);
-		assertEquals(expected5, actual5);
+	public void testUpdateHighScore() {
+		con.updateHighScore("ch4rlie", 5);
+
+		assertEquals(5, con.retrieveHighScore("ch4rlie"));
+		assertEquals(Arrays.asList("dog"), new ArrayList<String>(con.retrieveTopHighscores(1).keySet()));
 	}
 
 	@Test
 	public void testCheckHighScore() {
-		boolean expected1 = false;
-		boolean expected2 = false;
-		boolean expected3 = true;
-		
-		boolean actual1 = con.checkHighScore("ch4rlie", 0);
-		boolean actual2 = con.checkHighScore("ch4rlie", 1);
-		boolean actual3 = con.checkHighScore("ch4rlie", 2);
-		
-		assertEquals(expected1, actual1);
-		assertEquals(expected2, actual2);
-		assertEquals(expected3, actual3);
+		assertFalse(con.checkHighScore("ch4rlie", 0));
+		assertFalse(con.checkHighScore("ch4rlie", 2999999));
+		// a score equal to the high score is accepted, as RAISE_HIGH_SCORE matches it
+		assertTrue(con.checkHighScore("ch4rlie", 3000000));
+		assertEquals(3000000, con.retrieveHighScore("ch4rlie"));
+		assertTrue(con.checkHighScore("ch4rlie", 3000001));
+		assertEquals(3000001, con.retrieveHighScore("ch4rlie"));
+
+		assertTrue(con.checkHighScore("tomo", 2500000));
+		assertEquals("tomo", con.getSecondPlace());
 	}
 
 	@Test
-	public void testCheckConfirmPassword() {
-		boolean expected1 = false;
-		boolean expected2 = true;
-		
-		boolean actual1 = con.checkConfirmPassword("1234", "1234a");
-		boolean actual2 = con.checkConfirmPassword("1234a", "1234a");
-		
-		assertEquals(expected1, actual1);
-		assertEquals(expected2, actual2);
+	public void testPodium() {
+		assertEquals("ch4rlie", con.getFirstPlace());
+		assertEquals("dog", con.getSecondPlace());
+		assertEquals("tomo", con.getThirdPlace());
+		assertEquals(ranking().get(9), con.getPlace(10));
+		assertNull(con.getPlace(USERS + 4));
+		assertNull(con.getPlace(0));
+		assertNull(con.getPlace(-1));
 	}
 
 	@Test
-	public void testGetFirstPlace() {
-		String expected = "ch4rlie";
-		String actual = con.getFirstPlace();
-		
-		assertEquals(expected, actual);
+	public void testGetRank() {
+		ArrayList<String> ranking = ranking();
+
+		assertEquals(2, con.getRank("dog"));
+		assertEquals(ranking.indexOf("user11") + 1, con.getRank("user11"));
+		assertEquals(0, con.getRank("nobody"));
 	}
 
 	@Test
-	public void testGetSecondPlace() {
-		String expected = "dog";
-		String actual = con.getSecondPlace();
-		
-		assertEquals(expected, actual);
+	public void testFriendsList() {
+		assertEquals(sorted(database.friendsOf(0)), sorted(con.friendsList(EmbeddedDatabase.username(0))));
+		assertEquals(sorted(database.friendsOf(USERS - 1)),
+				sorted(con.friendsList(EmbeddedDatabase.username(USERS - 1))));
+		assertEquals(new ArrayList<String>(), con.friendsList("ch4rlie"));
+
+		ArrayList<String> streamed = new ArrayList<String>();
+		con.streamFriends(EmbeddedDatabase.username(0), streamed::add);
+		assertEquals(sorted(database.friendsOf(0)), sorted(streamed));
 	}
 
 	@Test
-	public void testGetThirdPlace() {
-		String expected = "tomo";
-		String actual = con.getThirdPlace();
-		
-		assertEquals(expected, actual);
+	public void testAddAcceptAndDeclineFriend() {
+		con.addFriend("ch4rlie", "dog");
+		assertEquals(Arrays.asList("ch4rlie"), con.pendingRequests("dog"));
+		assertEquals(new ArrayList<String>(), con.friendsList("dog"));
+
+		con.acceptFriend("dog", "ch4rlie");
+		assertEquals(new ArrayList<String>(), con.pendingRequests("dog"));
+		assertEquals(Arrays.asList("dog"), con.friendsList("ch4rlie"));
+		assertEquals(Arrays.asList("ch4rlie"), con.friendsList("dog"));
+
+		con.declineFriend("dog", "ch4rlie");
+		assertEquals(new ArrayList<String>(), con.friendsList("ch4rlie"));
+		assertEquals(new ArrayList<String>(), con.friendsList("dog"));
 	}
 
 	@Test
-	public void testGetNumberGamesPlayed() {
-		int expected = 1;
-		
-		int actual = con.getNumberGamesPlayed("ch4rlie");
-		
-		assertEquals(expected, actual);
+	public void testAddFriends() {
+		BulkResult result = con.addFriends(Arrays.asList(new FriendPair("ch4rlie", "dog"),
+				new FriendPair("tomo", "dog"), new FriendPair("ch4rlie", "dog")), 10);
+
+		assertEquals(2, result.getInserted());
+		assertEquals(1, result.getFailures().size());
+		assertEquals(Arrays.asList("ch4rlie", "tomo"), sorted(con.pendingRequests("dog")));
 	}
 
 	@Test
-	public void testGetNumberWins() {
-		int expected = 0;
-		
-		int actual = con.getNumberWins("ch4rlie");
-		
-		assertEquals(expected, actual);
-	}
+	public void testCheckFriendshipLeavesFriends() {
+		con.checkFriendship(EmbeddedDatabase.username(0), EmbeddedDatabase.username(1));
 
+		assertEquals(sorted(database.friendsOf(0)), sorted(con.friendsList(EmbeddedDatabase.username(0))));
+	}
 
 	@Test
-	public void testRetrieveAllFollowingUsernames() {
-		ArrayList<String> expected1 = new ArrayList<String>(Arrays.asList("ben"));
-		ArrayList<String> expected2 = new ArrayList<String>(Arrays.asList());
-		
-		ArrayList<String> actual1 = con.retrieveAllFollowingUsernames("ch4rlie");
-		ArrayList<String> actual2 = con.retrieveAllFollowingUsernames("doggo");
-		
-		assertEquals(expected1, actual1);
-		assertEquals(expected2, actual2);
+	public void testPendingRequests() {
+		assertEquals(database.requestsTo(0), con.pendingRequests(EmbeddedDatabase.username(0)));
+		assertEquals(database.requestsTo(10), con.pendingRequests(EmbeddedDatabase.username(10)));
+		assertEquals(new ArrayList<String>(), con.pendingRequests("ch4rlie"));
 	}
 
 	@Test
-	public void testRetrieveFollowingUser() {
-		boolean expected1 = true;
-		boolean expected2 = false;
-		
-		boolean actual1 = con.retrieveFollowingUser("ch4rlie", "ben");
-		boolean actual2 = con.retrieveFollowingUser("ch4rlie", "doggo");
-		
-		assertEquals(expected1, actual1);
-		assertEquals(expected2, actual2);
+	public void testMutualFriends() {
+		// user0 and user2 are both friends of user1 and of nobody else in common
+		assertEquals(Arrays.asList("user1"), con.mutualFriends("user0", "user2"));
+		assertEquals(Arrays.asList("user1", "user2"), con.mutualFriends("user0", "user3"));
+		assertEquals(new ArrayList<String>(), con.mutualFriends("user0", "ch4rlie"));
 	}
 
+	@Test
+	public void testFriendSuggestions() {
+		con.addFriend("ch4rlie", "dog");
+		con.acceptFriend("dog", "ch4rlie");
+		con.addFriend("dog", "tomo");
+		con.acceptFriend("tomo", "dog");
+		con.registerUser("amy", "pw", "amy");
+		con.addFriend("amy", "ch4rlie");
+		con.acceptFriend("ch4rlie", "amy");
+		con.addFriend("amy", "tomo");
+		con.acceptFriend("tomo", "amy");
+
+		LinkedHashMap<String, Integer> suggestions = con.friendSuggestions("ch4rlie", 5);
+		assertEquals(Arrays.asList("tomo"), new ArrayList<String>(suggestions.keySet()));
+		assertEquals(Integer.valueOf(2), suggestions.get("tomo"));
+		assertEquals(new LinkedHashMap<String, Integer>(), con.friendSuggestions("ch4rlie", 0));
+	}
 }
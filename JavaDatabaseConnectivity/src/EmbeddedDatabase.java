@@ -0,0 +1,220 @@
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A self-contained database for tests: an in-memory H2 database in MySQL mode
+ * with the tables and indexes of SchemaManager, seeded with deterministic
+ * synthetic users and friendships, so that tests need no database server and
+ * always see the same data. The H2 driver, lib/h2-2.2.224.jar, is on the
+ * classpath of the project.
+ *
+ * User i is named "user" + i, with the password "user" + i + "pw", the
+ * nickname "nick" + i and a high score that depends only on i and the seed, so
+ * a test can work out what it expects without reading it back. Each user is
+ * friends with the friendsPerUser users numbered after them and has sent a
+ * pending request to the requestsPerUser users after those, wrapping around
+ * at the last user.
+ *
+ * Rows are inserted in JDBC batches, so the database can be seeded with
+ * anything from a few users to millions; ten million users need a heap of
+ * several gigabytes. Every instance is a separate database, which is dropped
+ * when the instance is closed.
+ */
+public class EmbeddedDatabase implements AutoCloseable {
+	private static final AtomicInteger NEXT_ID = new AtomicInteger();
+	private static final int BATCH_SIZE = 10000;
+
+	static final String INSERT_USER = "INSERT INTO user_info (username, password, nickname, high_score) VALUES (?, ?, ?, ?)";
+	static final String INSERT_FRIEND = "INSERT INTO friends (user_one, user_two, relation, action_user) VALUES (?, ?, ?, ?)";
+
+	private final String url;
+	private final long seed;
+	private final Connection keepAlive;
+	private int users;
+	private int friendsPerUser;
+	private int requestsPerUser;
+
+	/**
+	 * Constructor - creates an empty database with the seed 42.
+	 */
+	public EmbeddedDatabase() throws SQLException {
+		this(42L);
+	}
+
+	/**
+	 * Constructor - creates an empty database.
+	 *
+	 * @param seed
+	 *            seed of the high scores of the users.
+	 */
+	public EmbeddedDatabase(long seed) throws SQLException {
+		this.url = "jdbc:h2:mem:embedded" + NEXT_ID.incrementAndGet() + ";MODE=MySQL;DB_CLOSE_DELAY=-1";
+		this.seed = seed;
+		// an in-memory database is dropped when its last connection closes
+		this.keepAlive = DriverManager.getConnection(url, "sa", "");
+		new SchemaManager().migrate(keepAlive);
+	}
+
+	/**
+	 * @return JDBC url of the database.
+	 */
+	public String getUrl() {
+		return url;
+	}
+
+	/**
+	 * @return properties for a DbConnect on the database with a pool of up to
+	 *         the given number of connections.
+	 */
+	public Properties properties(int connections) {
+		Properties properties = new Properties();
+		properties.setProperty("user", "sa");
+		properties.setProperty("pool.minSize", "1");
+		properties.setProperty("pool.maxSize", String.valueOf(connections));
+		properties.setProperty("pool.borrowTimeoutMillis", "30000");
+		return properties;
+	}
+
+	/**
+	 * Method to open a DbConnect on the database.
+	 *
+	 * @param extra
+	 *            properties added to those of properties(8), e.g. to enable the
+	 *            leaderboard.
+	 */
+	public DbConnect open(Properties extra) {
+		Properties properties = properties(8);
+		properties.putAll(extra);
+		return new DbConnect(properties, url);
+	}
+
+	/**
+	 * Method to insert the synthetic users and friendships. A database is seeded
+	 * once, before it is opened with caches that load it.
+	 *
+	 * @param users
+	 *            number of users.
+	 * @param friendsPerUser
+	 *            accepted friendships each user has with the users after them.
+	 * @param requestsPerUser
+	 *            pending friend requests each user has sent.
+	 */
+	public void seed(int users, int friendsPerUser, int requestsPerUser) throws SQLException {
+		if (this.users > 0)
+			throw new IllegalStateException("Database is already seeded");
+		if (users <= 2 * (friendsPerUser + requestsPerUser))
+			throw new IllegalArgumentException("Too few users for " + friendsPerUser + " friends and "
+					+ requestsPerUser + " requests each");
+
+		keepAlive.setAutoCommit(false);
+		try (PreparedStatement insert = keepAlive.prepareStatement(INSERT_USER)) {
+			for (int i = 0; i < users; i++) {
+				insert.setString(1, username(i));
+				insert.setString(2, password(i));
+				insert.setString(3, "nick" + i);
+				insert.setInt(4, highScore(i));
+				insert.addBatch();
+				if (i % BATCH_SIZE == BATCH_SIZE - 1)
+					flush(insert);
+			}
+			flush(insert);
+		}
+
+		try (PreparedStatement insert = keepAlive.prepareStatement(INSERT_FRIEND)) {
+			int rows = 0;
+			for (int i = 0; i < users; i++) {
+				for (int k = 1; k <= friendsPerUser + requestsPerUser; k++) {
+					String other = username((i + k) % users);
+					boolean accepted = k <= friendsPerUser;
+					insert.setString(1, username(i));
+					insert.setString(2, other);
+					insert.setInt(3, accepted ? 1 : 0);
+					insert.setString(4, accepted ? other : username(i));
+					insert.addBatch();
+					if (++rows % BATCH_SIZE == 0)
+						flush(insert);
+				}
+			}
+			flush(insert);
+		} finally {
+			keepAlive.setAutoCommit(true);
+		}
+		this.users = users;
+		this.friendsPerUser = friendsPerUser;
+		this.requestsPerUser = requestsPerUser;
+	}
+
+	private void flush(PreparedStatement insert) throws SQLException {
+		insert.executeBatch();
+		keepAlive.commit();
+	}
+
+	/**
+	 * @return number of users seeded.
+	 */
+	public int getUserCount() {
+		return users;
+	}
+
+	public static String username(int user) {
+		return "user" + user;
+	}
+
+	public static String password(int user) {
+		return "user" + user + "pw";
+	}
+
+	/**
+	 * @return the high score seeded for a user, from 0 to 999999.
+	 */
+	public int highScore(int user) {
+		// the SplitMix64 finalizer, so nearby users get unrelated scores
+		long z = seed + (user + 1) * 0x9E3779B97F4A7C15L;
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		z = z ^ (z >>> 31);
+		return (int) ((z >>> 1) % 1000000);
+	}
+
+	/**
+	 * @return usernames of the seeded friends of a user.
+	 */
+	public ArrayList<String> friendsOf(int user) {
+		ArrayList<String> friends = new ArrayList<String>();
+		for (int k = 1; k <= friendsPerUser; k++) {
+			friends.add(username((user + k) % users));
+			friends.add(username((user - k + users) % users));
+		}
+		return friends;
+	}
+
+	/**
+	 * @return usernames of the users whose seeded requests to a user are
+	 *         pending.
+	 */
+	public ArrayList<String> requestsTo(int user) {
+		ArrayList<String> senders = new ArrayList<String>();
+		for (int k = friendsPerUser + 1; k <= friendsPerUser + requestsPerUser; k++) {
+			senders.add(username((user - k + users) % users));
+		}
+		return senders;
+	}
+
+	/**
+	 * Method to drop the database.
+	 */
+	@Override
+	public void close() throws SQLException {
+		try (Statement statement = keepAlive.createStatement()) {
+			statement.execute("DROP ALL OBJECTS");
+		} finally {
+			keepAlive.close();
+		}
+	}
+}
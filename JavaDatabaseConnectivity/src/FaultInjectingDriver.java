@@ -0,0 +1,211 @@
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.Driver;
+import java.sql.DriverManager;
+import java.sql.DriverPropertyInfo;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.SQLTimeoutException;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * A JDBC driver for tests that passes everything to another database but can
+ * be told to fail, e.g. to test ResiliencePolicy without a real outage. The url
+ * jdbc:faulty:&lt;url&gt; opens a connection to &lt;url&gt; through the
+ * driver. While the driver is down no connection can be opened, open
+ * connections are not valid and their statements fail with SQLState 08S01.
+ * Statements can also be made to fail with any SQLState, or to take longer
+ * than their query timeout.
+ */
+public class FaultInjectingDriver implements Driver {
+	public static final String PREFIX = "jdbc:faulty:";
+
+	private static final FaultInjectingDriver INSTANCE = new FaultInjectingDriver();
+
+	static {
+		try {
+			DriverManager.registerDriver(INSTANCE);
+		} catch (SQLException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+
+	private volatile boolean down;
+	private volatile String failureState;
+	private final AtomicInteger failuresLeft = new AtomicInteger();
+	private volatile long statementMillis;
+	private volatile int lastQueryTimeout = -1;
+	private final AtomicInteger connectCount = new AtomicInteger();
+	private final AtomicInteger executeCount = new AtomicInteger();
+
+	private FaultInjectingDriver() {
+	}
+
+	/**
+	 * @return the registered driver, with no faults.
+	 */
+	public static FaultInjectingDriver get() {
+		return INSTANCE.reset();
+	}
+
+	/**
+	 * Method to remove every fault and reset the counts.
+	 */
+	public FaultInjectingDriver reset() {
+		down = false;
+		failuresLeft.set(0);
+		statementMillis = 0;
+		lastQueryTimeout = -1;
+		connectCount.set(0);
+		executeCount.set(0);
+		return this;
+	}
+
+	/**
+	 * Method to take the database down or bring it back up.
+	 */
+	public void setDown(boolean down) {
+		this.down = down;
+	}
+
+	/**
+	 * Method to make the next statements executed fail.
+	 *
+	 * @param count
+	 *            number of statements that fail.
+	 * @param sqlState
+	 *            SQLState of their errors, e.g. 40001 for a deadlock.
+	 */
+	public void failStatements(int count, String sqlState) {
+		this.failureState = sqlState;
+		failuresLeft.set(count);
+	}
+
+	/**
+	 * Method to make every statement take some time. A statement whose query
+	 * timeout is shorter waits out the timeout and fails with a
+	 * SQLTimeoutException.
+	 */
+	public void setStatementMillis(long millis) {
+		this.statementMillis = millis;
+	}
+
+	/**
+	 * @return the query timeout of the last statement executed, or -1 if none
+	 *         has been.
+	 */
+	public int getLastQueryTimeout() {
+		return lastQueryTimeout;
+	}
+
+	/**
+	 * @return number of connections opened or attempted.
+	 */
+	public int getConnectCount() {
+		return connectCount.get();
+	}
+
+	/**
+	 * @return number of statements executed or attempted.
+	 */
+	public int getExecuteCount() {
+		return executeCount.get();
+	}
+
+	public boolean acceptsURL(String url) {
+		return url != null && url.startsWith(PREFIX);
+	}
+
+	public Connection connect(String url, Properties info) throws SQLException {
+		if (!acceptsURL(url))
+			return null;
+		connectCount.incrementAndGet();
+		if (down)
+			throw new SQLException("Database is down", "08001");
+		Connection connection = DriverManager.getConnection(url.substring(PREFIX.length()), info);
+		return (Connection) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { Connection.class },
+				new ConnectionHandler(connection));
+	}
+
+	private class ConnectionHandler implements InvocationHandler {
+		private final Connection connection;
+
+		ConnectionHandler(Connection connection) {
+			this.connection = connection;
+		}
+
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			if (method.getName().equals("isValid") && down)
+				return false;
+			Object result = delegate(connection, method, args);
+			if (result instanceof PreparedStatement)
+				return Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { PreparedStatement.class },
+						new StatementHandler((PreparedStatement) result));
+			return result;
+		}
+	}
+
+	private class StatementHandler implements InvocationHandler {
+		private final PreparedStatement statement;
+		private int queryTimeout;
+
+		StatementHandler(PreparedStatement statement) {
+			this.statement = statement;
+		}
+
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			if (method.getName().equals("setQueryTimeout"))
+				queryTimeout = (Integer) args[0];
+			if (method.getName().startsWith("execute")) {
+				executeCount.incrementAndGet();
+				lastQueryTimeout = queryTimeout;
+				if (down)
+					throw new SQLException("Connection to the database was lost", "08S01");
+				if (failuresLeft.getAndUpdate(left -> Math.max(0, left - 1)) > 0)
+					throw new SQLException("Injected failure", failureState);
+				long millis = statementMillis;
+				if (queryTimeout > 0 && millis > queryTimeout * 1000L) {
+					Thread.sleep(queryTimeout * 1000L);
+					throw new SQLTimeoutException("Query timed out", "HYT00");
+				}
+				if (millis > 0)
+					Thread.sleep(millis);
+			}
+			return delegate(statement, method, args);
+		}
+	}
+
+	private static Object delegate(Object target, Method method, Object[] args) throws Throwable {
+		try {
+			return method.invoke(target, args);
+		} catch (InvocationTargetException e) {
+			throw e.getCause();
+		}
+	}
+
+	public DriverPropertyInfo[] getPropertyInfo(String url, Properties info) {
+		return new DriverPropertyInfo[0];
+	}
+
+	public int getMajorVersion() {
+		return 1;
+	}
+
+	public int getMinorVersion() {
+		return 0;
+	}
+
+	public boolean jdbcCompliant() {
+		return false;
+	}
+
+	public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+		throw new SQLFeatureNotSupportedException();
+	}
+}
@@ -0,0 +1,132 @@
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A least recently used cache of the accepted friends of each user. The cache
+ * is updated by DbConnect when friend requests are accepted or declined, so
+ * cached lists stay consistent with the friends table.
+ *
+ * A list read from the database is only cached if no friendship changed while
+ * it was being read, so a concurrent update can never be overwritten by an
+ * older list.
+ */
+public class FriendCache {
+	private final int maxUsers;
+	private final LinkedHashMap<String, HashSet<String>> friends;
+	private long generation;
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	/**
+	 * Constructor - creates an empty cache.
+	 *
+	 * @param maxUsers
+	 *            maximum number of users whose friends are cached.
+	 */
+	public FriendCache(int maxUsers) {
+		this.maxUsers = maxUsers;
+		this.friends = new LinkedHashMap<String, HashSet<String>>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, HashSet<String>> eldest) {
+				return size() > FriendCache.this.maxUsers;
+			}
+		};
+	}
+
+	/**
+	 * Method to retrieve the cached friends of a user.
+	 *
+	 * @return a copy of the friends of the user, or null if they are not cached.
+	 */
+	public synchronized ArrayList<String> get(String user) {
+		HashSet<String> set = friends.get(user);
+		if (set == null) {
+			misses.incrementAndGet();
+			return null;
+		}
+		hits.incrementAndGet();
+		return new ArrayList<String>(set);
+	}
+
+	/**
+	 * @return a value to pass to {@link #put} when the friends of a user are
+	 *         read from the database.
+	 */
+	public synchronized long generation() {
+		return generation;
+	}
+
+	/**
+	 * Method to cache the friends of a user read from the database, unless a
+	 * friendship has changed since generation was called.
+	 */
+	public synchronized void put(String user, ArrayList<String> list, long readGeneration) {
+		if (readGeneration == generation)
+			friends.put(user, new HashSet<String>(list));
+	}
+
+	/**
+	 * Method to forget the cached friends of a user, e.g. when the user has been
+	 * moved to another database. A list being read when this is called is not
+	 * cached.
+	 */
+	public synchronized void invalidate(String user) {
+		generation++;
+		friends.remove(user);
+	}
+
+	/**
+	 * Method to record that two users have become friends.
+	 */
+	public synchronized void addEdge(String user_one, String user_two) {
+		generation++;
+		HashSet<String> set = friends.get(user_one);
+		if (set != null)
+			set.add(user_two);
+		set = friends.get(user_two);
+		if (set != null)
+			set.add(user_one);
+	}
+
+	/**
+	 * Method to record that two users are no longer friends.
+	 */
+	public synchronized void removeEdge(String user_one, String user_two) {
+		generation++;
+		HashSet<String> set = friends.get(user_one);
+		if (set != null)
+			set.remove(user_two);
+		set = friends.get(user_two);
+		if (set != null)
+			set.remove(user_one);
+	}
+
+	/**
+	 * @return number of users whose friends are cached.
+	 */
+	public synchronized int size() {
+		return friends.size();
+	}
+
+	public long getHitCount() {
+		return hits.get();
+	}
+
+	public long getMissCount() {
+		return misses.get();
+	}
+
+	/**
+	 * @return fraction of lookups answered from the cache.
+	 */
+	public double getHitRate() {
+		long hit = hits.get();
+		long total = hit + misses.get();
+		return total == 0 ? 0.0 : (double) hit / total;
+	}
+}
@@ -0,0 +1,99 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * JUnit tests for FriendCache
+ */
+public class FriendCacheTest {
+	private FriendCache cache;
+
+	@Before
+	public void setUp() {
+		this.cache = new FriendCache(2);
+	}
+
+	private static ArrayList<String> list(String... users) {
+		return new ArrayList<String>(Arrays.asList(users));
+	}
+
+	private static ArrayList<String> sorted(ArrayList<String> users) {
+		Collections.sort(users);
+		return users;
+	}
+
+	@Test
+	public void testHitsAndMisses() {
+		assertNull(cache.get("ch4rlie"));
+		cache.put("ch4rlie", list("dog"), cache.generation());
+		assertEquals(list("dog"), cache.get("ch4rlie"));
+		assertEquals(list("dog"), cache.get("ch4rlie"));
+
+		assertEquals(2, cache.getHitCount());
+		assertEquals(1, cache.getMissCount());
+		assertEquals(2.0 / 3, cache.getHitRate(), 1e-9);
+	}
+
+	@Test
+	public void testLeastRecentlyUsedIsEvicted() {
+		cache.put("ch4rlie", list("dog"), cache.generation());
+		cache.put("dog", list("ch4rlie"), cache.generation());
+		cache.get("ch4rlie");
+		cache.put("tomo", list(), cache.generation());
+
+		assertEquals(2, cache.size());
+		assertNull(cache.get("dog"));
+		assertEquals(list("dog"), cache.get("ch4rlie"));
+		assertEquals(list(), cache.get("tomo"));
+	}
+
+	@Test
+	public void testEdgesUpdateCachedLists() {
+		cache.put("ch4rlie", list("dog"), cache.generation());
+		cache.addEdge("ch4rlie", "tomo");
+		assertEquals(list("dog", "tomo"), sorted(cache.get("ch4rlie")));
+		assertNull(cache.get("tomo"));
+
+		cache.removeEdge("dog", "ch4rlie");
+		assertEquals(list("tomo"), cache.get("ch4rlie"));
+	}
+
+	@Test
+	public void testChangeDuringLoadIsNotCached() {
+		long generation = cache.generation();
+		cache.addEdge("ch4rlie", "dog");
+		cache.put("ch4rlie", list(), generation);
+		assertNull(cache.get("ch4rlie"));
+
+		generation = cache.generation();
+		cache.invalidate("ch4rlie");
+		cache.put("ch4rlie", list("dog"), generation);
+		assertNull(cache.get("ch4rlie"));
+
+		cache.put("ch4rlie", list("dog"), cache.generation());
+		assertEquals(list("dog"), cache.get("ch4rlie"));
+	}
+
+	@Test
+	public void testInvalidate() {
+		cache.put("ch4rlie", list("dog"), cache.generation());
+		cache.invalidate("ch4rlie");
+
+		assertNull(cache.get("ch4rlie"));
+		assertEquals(0, cache.size());
+	}
+
+	@Test
+	public void testReturnedListIsACopy() {
+		cache.put("ch4rlie", list("dog"), cache.generation());
+		cache.get("ch4rlie").add("tomo");
+
+		assertEquals(list("dog"), cache.get("ch4rlie"));
+	}
+}
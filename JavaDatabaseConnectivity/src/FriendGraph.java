@@ -0,0 +1,531 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+
+/**
+ * An in-memory copy of the friends table, for the queries that would take a
+ * round trip per friend: the friends two users have in common, friends of
+ * friends to suggest, and the friend requests a user has received.
+ *
+ * Every username is given an int id, and each set of edges is kept in
+ * compressed sparse row layout: the ids of the neighbours of all users in one
+ * int array, sorted per user, and the offset of each user's neighbours in a
+ * second array. Later changes go to a small overlay of added and removed
+ * edges, which is merged into the arrays once it reaches an eighth of their
+ * size, so that an update does not copy them.
+ */
+public class FriendGraph {
+	private static final int MIN_COMPACT_CHANGES = 1024;
+
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+	private final HashMap<String, Integer> ids = new HashMap<String, Integer>();
+	private String[] names = new String[64];
+	private int userCount;
+
+	// accepted friendships, stored in both directions
+	private final Adjacency friends = new Adjacency();
+	// pending requests, from the user who received each to the user who sent it
+	private final Adjacency requests = new Adjacency();
+
+	/**
+	 * One set of directed edges, in compressed sparse row layout with an
+	 * overlay of changes. Only used under the lock of the graph.
+	 */
+	private static final class Adjacency {
+		private int[] offsets = { 0 };
+		private int[] targets = new int[0];
+		// edges not in targets, unsorted
+		private final HashMap<Integer, int[]> added = new HashMap<Integer, int[]>();
+		// edges in targets that no longer exist
+		private final HashSet<Long> removed = new HashSet<Long>();
+		private int changes;
+
+		/**
+		 * Method to replace every edge with those given, in any order and with
+		 * duplicates.
+		 */
+		void load(int[] from, int[] to, int count, int users) {
+			int[] starts = new int[users + 1];
+			for (int i = 0; i < count; i++) {
+				starts[from[i] + 1]++;
+			}
+			for (int user = 0; user < users; user++) {
+				starts[user + 1] += starts[user];
+			}
+			int[] sorted = new int[count];
+			int[] next = Arrays.copyOf(starts, users);
+			for (int i = 0; i < count; i++) {
+				sorted[next[from[i]]++] = to[i];
+			}
+
+			// sort each user's neighbours and drop duplicates in place
+			int length = 0;
+			int[] offsets = new int[users + 1];
+			for (int user = 0; user < users; user++) {
+				Arrays.sort(sorted, starts[user], starts[user + 1]);
+				offsets[user] = length;
+				for (int i = starts[user]; i < starts[user + 1]; i++) {
+					if (length == offsets[user] || sorted[length - 1] != sorted[i])
+						sorted[length++] = sorted[i];
+				}
+			}
+			offsets[users] = length;
+			this.offsets = offsets;
+			this.targets = Arrays.copyOf(sorted, length);
+			added.clear();
+			removed.clear();
+			changes = 0;
+		}
+
+		private boolean inTargets(int from, int to) {
+			return from < offsets.length - 1 && Arrays.binarySearch(targets, offsets[from], offsets[from + 1], to) >= 0;
+		}
+
+		private static int indexOf(int[] array, int value) {
+			if (array != null) {
+				for (int i = 0; i < array.length; i++) {
+					if (array[i] == value)
+						return i;
+				}
+			}
+			return -1;
+		}
+
+		private static long key(int from, int to) {
+			return ((long) from << 32) | (to & 0xFFFFFFFFL);
+		}
+
+		boolean contains(int from, int to) {
+			if (inTargets(from, to))
+				return !removed.contains(key(from, to));
+			return indexOf(added.get(from), to) >= 0;
+		}
+
+		void add(int from, int to, int users) {
+			if (!removed.remove(key(from, to))) {
+				if (inTargets(from, to))
+					return;
+				int[] edges = added.get(from);
+				if (indexOf(edges, to) >= 0)
+					return;
+				edges = edges == null ? new int[1] : Arrays.copyOf(edges, edges.length + 1);
+				edges[edges.length - 1] = to;
+				added.put(from, edges);
+			}
+			changed(users);
+		}
+
+		void remove(int from, int to, int users) {
+			int[] edges = added.get(from);
+			int index = indexOf(edges, to);
+			if (index >= 0) {
+				if (edges.length == 1) {
+					added.remove(from);
+				} else {
+					edges[index] = edges[edges.length - 1];
+					added.put(from, Arrays.copyOf(edges, edges.length - 1));
+				}
+			} else if (!inTargets(from, to) || !removed.add(key(from, to))) {
+				return;
+			}
+			changed(users);
+		}
+
+		private void changed(int users) {
+			if (++changes >= Math.max(MIN_COMPACT_CHANGES, targets.length / 8))
+				compact(users);
+		}
+
+		/**
+		 * @return the sorted ids of the neighbours of a user.
+		 */
+		int[] neighbours(int from) {
+			int start = from < offsets.length - 1 ? offsets[from] : 0;
+			int end = from < offsets.length - 1 ? offsets[from + 1] : 0;
+			int[] extra = added.get(from);
+			int[] result = new int[end - start + (extra == null ? 0 : extra.length)];
+			int length = 0;
+			for (int i = start; i < end; i++) {
+				if (removed.isEmpty() || !removed.contains(key(from, targets[i])))
+					result[length++] = targets[i];
+			}
+			if (extra != null) {
+				System.arraycopy(extra, 0, result, length, extra.length);
+				length += extra.length;
+				Arrays.sort(result, 0, length);
+			}
+			return length == result.length ? result : Arrays.copyOf(result, length);
+		}
+
+		/**
+		 * Method to merge the overlay into the arrays.
+		 */
+		void compact(int users) {
+			int[] offsets = new int[users + 1];
+			int[][] lists = new int[users][];
+			int length = 0;
+			for (int user = 0; user < users; user++) {
+				lists[user] = neighbours(user);
+				offsets[user] = length;
+				length += lists[user].length;
+			}
+			offsets[users] = length;
+			int[] targets = new int[length];
+			for (int user = 0; user < users; user++) {
+				System.arraycopy(lists[user], 0, targets, offsets[user], lists[user].length);
+			}
+			this.offsets = offsets;
+			this.targets = targets;
+			added.clear();
+			removed.clear();
+			changes = 0;
+		}
+
+		int size() {
+			int size = targets.length - removed.size();
+			for (int[] edges : added.values()) {
+				size += edges.length;
+			}
+			return size;
+		}
+	}
+
+	/**
+	 * Collects the rows of the friends table and builds a graph of them.
+	 */
+	public static class Builder {
+		private final FriendGraph graph = new FriendGraph();
+		private int[] friendFrom = new int[1024];
+		private int[] friendTo = new int[1024];
+		private int friendCount;
+		private int[] requestFrom = new int[64];
+		private int[] requestTo = new int[64];
+		private int requestCount;
+
+		/**
+		 * Method to add a row of the friends table. Declined requests are
+		 * ignored.
+		 *
+		 * @param relation
+		 *            0 for a pending request, 1 for an accepted one.
+		 */
+		public Builder add(String user_one, String user_two, int relation) {
+			int one = graph.id(user_one);
+			int two = graph.id(user_two);
+			if (relation == 1) {
+				if (friendCount + 2 > friendFrom.length) {
+					friendFrom = Arrays.copyOf(friendFrom, friendFrom.length * 2);
+					friendTo = Arrays.copyOf(friendTo, friendTo.length * 2);
+				}
+				friendFrom[friendCount] = one;
+				friendTo[friendCount++] = two;
+				friendFrom[friendCount] = two;
+				friendTo[friendCount++] = one;
+			} else if (relation == 0) {
+				if (requestCount == requestFrom.length) {
+					requestFrom = Arrays.copyOf(requestFrom, requestCount * 2);
+					requestTo = Arrays.copyOf(requestTo, requestCount * 2);
+				}
+				requestFrom[requestCount] = two;
+				requestTo[requestCount++] = one;
+			}
+			return this;
+		}
+
+		public FriendGraph build() {
+			graph.friends.load(friendFrom, friendTo, friendCount, graph.userCount);
+			graph.requests.load(requestFrom, requestTo, requestCount, graph.userCount);
+			return graph;
+		}
+	}
+
+	/**
+	 * @return the id of a user, given a new id if the user has none.
+	 */
+	private int id(String user) {
+		Integer id = ids.get(user);
+		if (id != null)
+			return id;
+		if (userCount == names.length)
+			names = Arrays.copyOf(names, userCount * 2);
+		names[userCount] = user;
+		ids.put(user, userCount);
+		return userCount++;
+	}
+
+	private ArrayList<String> names(int[] users) {
+		ArrayList<String> list = new ArrayList<String>(users.length);
+		for (int user : users) {
+			list.add(names[user]);
+		}
+		return list;
+	}
+
+	/**
+	 * Method to record a friend request sent by user_one to user_two.
+	 */
+	public void requestSent(String user_one, String user_two) {
+		lock.writeLock().lock();
+		try {
+			requests.add(id(user_two), id(user_one), userCount);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Method to record that user_one accepted the friend request sent by
+	 * user_two, so that they are friends.
+	 */
+	public void requestAccepted(String user_one, String user_two) {
+		lock.writeLock().lock();
+		try {
+			int one = id(user_one);
+			int two = id(user_two);
+			requests.remove(one, two, userCount);
+			friends.add(one, two, userCount);
+			friends.add(two, one, userCount);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Method to record that user_one declined the friend request sent by
+	 * user_two, so that they are not friends.
+	 */
+	public void requestDeclined(String user_one, String user_two) {
+		lock.writeLock().lock();
+		try {
+			int one = id(user_one);
+			int two = id(user_two);
+			requests.remove(one, two, userCount);
+			friends.remove(one, two, userCount);
+			friends.remove(two, one, userCount);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Method to forget the friend request between two users, sent by either of
+	 * them, and their friendship, e.g. when the row of the request is deleted.
+	 */
+	public void removeEdge(String user_one, String user_two) {
+		lock.writeLock().lock();
+		try {
+			int one = id(user_one);
+			int two = id(user_two);
+			requests.remove(one, two, userCount);
+			requests.remove(two, one, userCount);
+			friends.remove(one, two, userCount);
+			friends.remove(two, one, userCount);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * @return usernames of the friends of a user, in the order of their ids.
+	 */
+	public ArrayList<String> friends(String user) {
+		lock.readLock().lock();
+		try {
+			Integer id = ids.get(user);
+			return id == null ? new ArrayList<String>() : names(friends.neighbours(id));
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Method to pass the usernames of the friends of a user to a consumer, in
+	 * the order of their ids. The consumer is called after the lock is
+	 * released, so it may be slow.
+	 */
+	public void forEachFriend(String user, Consumer<String> consumer) {
+		int[] friendIds;
+		String[] names;
+		lock.readLock().lock();
+		try {
+			Integer id = ids.get(user);
+			if (id == null)
+				return;
+			friendIds = friends.neighbours(id);
+			names = this.names;
+		} finally {
+			lock.readLock().unlock();
+		}
+		for (int friend : friendIds) {
+			consumer.accept(names[friend]);
+		}
+	}
+
+	/**
+	 * @return true if two users are friends.
+	 */
+	public boolean areFriends(String user_one, String user_two) {
+		lock.readLock().lock();
+		try {
+			Integer one = ids.get(user_one);
+			Integer two = ids.get(user_two);
+			return one != null && two != null && friends.contains(one, two);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return usernames of the users who are friends of both users, sorted.
+	 */
+	public ArrayList<String> mutualFriends(String user_one, String user_two) {
+		ArrayList<String> mutual = new ArrayList<String>();
+		lock.readLock().lock();
+		try {
+			Integer one = ids.get(user_one);
+			Integer two = ids.get(user_two);
+			if (one == null || two == null)
+				return mutual;
+			int[] a = friends.neighbours(one);
+			int[] b = friends.neighbours(two);
+			for (int i = 0, j = 0; i < a.length && j < b.length;) {
+				if (a[i] < b[j]) {
+					i++;
+				} else if (a[i] > b[j]) {
+					j++;
+				} else {
+					mutual.add(names[a[i]]);
+					i++;
+					j++;
+				}
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+		Collections.sort(mutual);
+		return mutual;
+	}
+
+	/**
+	 * Method to suggest friends of friends to a user. Users who are already
+	 * friends of the user, or have a pending request to or from the user, are
+	 * not suggested.
+	 *
+	 * @param limit
+	 *            maximum number of suggestions.
+	 * @return LinkedHashMap<String, Integer> of username to the number of
+	 *         friends in common, most in common first and then by username.
+	 */
+	public LinkedHashMap<String, Integer> suggestions(String user, int limit) {
+		LinkedHashMap<String, Integer> suggestions = new LinkedHashMap<String, Integer>();
+		int[] candidates;
+		int[] counts;
+		String[] names;
+		int found = 0;
+		lock.readLock().lock();
+		try {
+			names = this.names;
+			Integer id = ids.get(user);
+			if (id == null || limit <= 0)
+				return suggestions;
+			int[] direct = friends.neighbours(id);
+
+			// every friend of a friend, once per friend in common
+			int[] reached = new int[64];
+			int length = 0;
+			for (int friend : direct) {
+				for (int other : friends.neighbours(friend)) {
+					if (other == id || Arrays.binarySearch(direct, other) >= 0)
+						continue;
+					if (length == reached.length)
+						reached = Arrays.copyOf(reached, length * 2);
+					reached[length++] = other;
+				}
+			}
+			Arrays.sort(reached, 0, length);
+
+			candidates = new int[length];
+			counts = new int[length];
+			for (int i = 0; i < length;) {
+				int other = reached[i];
+				int end = i;
+				while (end < length && reached[end] == other)
+					end++;
+				if (!requests.contains(id, other) && !requests.contains(other, id)) {
+					candidates[found] = other;
+					counts[found++] = end - i;
+				}
+				i = end;
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+
+		Integer[] order = new Integer[found];
+		for (int i = 0; i < found; i++) {
+			order[i] = i;
+		}
+		Arrays.sort(order, (a, b) -> counts[a] != counts[b] ? Integer.compare(counts[b], counts[a])
+				: names[candidates[a]].compareTo(names[candidates[b]]));
+		for (int i = 0; i < Math.min(limit, found); i++) {
+			suggestions.put(names[candidates[order[i]]], counts[order[i]]);
+		}
+		return suggestions;
+	}
+
+	/**
+	 * @return usernames of the users whose friend requests to a user are
+	 *         pending, in the order of their ids.
+	 */
+	public ArrayList<String> pendingRequests(String user) {
+		lock.readLock().lock();
+		try {
+			Integer id = ids.get(user);
+			return id == null ? new ArrayList<String>() : names(requests.neighbours(id));
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return number of users in the graph.
+	 */
+	public int size() {
+		lock.readLock().lock();
+		try {
+			return userCount;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return number of friendships in the graph.
+	 */
+	public int friendshipCount() {
+		lock.readLock().lock();
+		try {
+			return friends.size() / 2;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Method to merge every change into the arrays, e.g. before measuring them.
+	 */
+	public void compact() {
+		lock.writeLock().lock();
+		try {
+			friends.compact(userCount);
+			requests.compact(userCount);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+}
@@ -0,0 +1,127 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * JUnit tests for FriendGraph
+ */
+public class FriendGraphTest {
+	private FriendGraph graph;
+
+	@Before
+	public void setUp() {
+		// ch4rlie and tomo are friends of dog and ben, and ben has sent a request to dog
+		this.graph = new FriendGraph.Builder().add("dog", "ch4rlie", 1).add("tomo", "dog", 1)
+				.add("ben", "ch4rlie", 1).add("ben", "tomo", 1).add("ben", "ch4rlie", 1).add("amy", "tomo", 1)
+				.add("ben", "dog", 0).add("eve", "dog", 2).build();
+	}
+
+	private static ArrayList<String> sorted(ArrayList<String> list) {
+		Collections.sort(list);
+		return list;
+	}
+
+	@Test
+	public void testLoadedFriends() {
+		assertEquals(Arrays.asList("ben", "dog"), sorted(graph.friends("ch4rlie")));
+		assertEquals(Arrays.asList("amy", "ben", "dog"), sorted(graph.friends("tomo")));
+		assertTrue(graph.areFriends("tomo", "amy"));
+		assertFalse(graph.areFriends("eve", "dog"));
+		assertEquals(new ArrayList<String>(), graph.friends("nobody"));
+		assertEquals(5, graph.friendshipCount());
+	}
+
+	@Test
+	public void testMutualFriends() {
+		assertEquals(Arrays.asList("ch4rlie", "tomo"), graph.mutualFriends("dog", "ben"));
+		assertEquals(Arrays.asList("tomo"), graph.mutualFriends("amy", "dog"));
+		assertEquals(new ArrayList<String>(), graph.mutualFriends("dog", "nobody"));
+	}
+
+	@Test
+	public void testSuggestionsRankedByFriendsInCommon() {
+		LinkedHashMap<String, Integer> suggestions = graph.suggestions("amy", 10);
+
+		assertEquals(Arrays.asList("ben", "dog"), new ArrayList<String>(suggestions.keySet()));
+		assertEquals(Arrays.asList(1, 1), new ArrayList<Integer>(suggestions.values()));
+	}
+
+	@Test
+	public void testSuggestionsSkipFriendsAndPendingRequests() {
+		// dog's friends of friends are ben (through two friends) and amy, but ben has a pending request
+		assertEquals(Arrays.asList("amy"), new ArrayList<String>(graph.suggestions("dog", 10).keySet()));
+
+		graph.requestDeclined("dog", "ben");
+		LinkedHashMap<String, Integer> suggestions = graph.suggestions("dog", 1);
+		assertEquals(1, suggestions.size());
+		assertEquals(Integer.valueOf(2), suggestions.get("ben"));
+	}
+
+	@Test
+	public void testPendingRequests() {
+		assertEquals(Arrays.asList("ben"), graph.pendingRequests("dog"));
+		assertEquals(new ArrayList<String>(), graph.pendingRequests("ben"));
+
+		graph.requestSent("amy", "dog");
+		assertEquals(Arrays.asList("ben", "amy"), graph.pendingRequests("dog"));
+	}
+
+	@Test
+	public void testAcceptAndDeclineUpdateGraph() {
+		graph.requestSent("zed", "dog");
+		graph.requestAccepted("dog", "zed");
+
+		assertTrue(graph.areFriends("zed", "dog"));
+		assertEquals(Arrays.asList("ben"), graph.pendingRequests("dog"));
+		assertEquals(new ArrayList<String>(), graph.mutualFriends("zed", "ben"));
+		assertEquals(Arrays.asList("dog"), graph.mutualFriends("zed", "tomo"));
+
+		graph.requestDeclined("ch4rlie", "dog");
+		assertFalse(graph.areFriends("dog", "ch4rlie"));
+		assertEquals(Arrays.asList("ben"), graph.friends("ch4rlie"));
+	}
+
+	private static String edge(String one, String two) {
+		return one.compareTo(two) < 0 ? one + " " + two : two + " " + one;
+	}
+
+	@Test
+	public void testOverlayMatchesCompactedGraph() {
+		Random random = new Random(42);
+		HashSet<String> expected = new HashSet<String>();
+		for (int i = 0; i < 5000; i++) {
+			String one = "user" + random.nextInt(100);
+			String two = "user" + random.nextInt(100);
+			if (one.equals(two))
+				continue;
+			String edge = edge(one, two);
+			if (random.nextInt(3) == 0) {
+				graph.requestDeclined(one, two);
+				expected.remove(edge);
+			} else {
+				graph.requestAccepted(one, two);
+				expected.add(edge);
+			}
+		}
+
+		for (int user = 0; user < 100; user++) {
+			ArrayList<String> friends = sorted(graph.friends("user" + user));
+			graph.compact();
+			assertEquals(friends, sorted(graph.friends("user" + user)));
+			for (String friend : friends) {
+				assertTrue(expected.contains(edge(friend, "user" + user)));
+			}
+		}
+		assertEquals(expected.size() + 5, graph.friendshipCount());
+	}
+}
@@ -0,0 +1,34 @@
+/**
+ * A friend request sent by one user to another, to be added by
+ * DbConnect.addFriends.
+ */
+public class FriendPair {
+	private final String userOne;
+	private final String userTwo;
+
+	/**
+	 * Constructor
+	 * 
+	 * @param userOne
+	 *            username of the user who sent the friend request.
+	 * @param userTwo
+	 *            username of the user who received the friend request.
+	 */
+	public FriendPair(String userOne, String userTwo) {
+		this.userOne = userOne;
+		this.userTwo = userTwo;
+	}
+
+	public String getUserOne() {
+		return userOne;
+	}
+
+	public String getUserTwo() {
+		return userTwo;
+	}
+
+	@Override
+	public String toString() {
+		return userOne + " -> " + userTwo;
+	}
+}
@@ -0,0 +1,103 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Stress test for DbConnect.checkHighScore, which hammers one user from many
+ * threads against an in-memory H2 database.
+ */
+public class HighScoreConcurrencyTest {
+	private static final String URL = "jdbc:h2:mem:highscore;MODE=MySQL;DB_CLOSE_DELAY=-1";
+	private static final int THREADS = 16;
+	private static final int UPDATES_PER_THREAD = 500;
+
+	private Connection setupConnection;
+	private DbConnect con;
+
+	@Before
+	public void setUp() throws SQLException {
+		this.setupConnection = DriverManager.getConnection(URL, "sa", "");
+		try (Statement statement = setupConnection.createStatement()) {
+			statement.execute("CREATE TABLE user_info (username VARCHAR(64) PRIMARY KEY, password VARCHAR(64), "
+					+ "nickname VARCHAR(64), high_score INT DEFAULT 0 NOT NULL, "
+					+ "number_games_played INT DEFAULT 0 NOT NULL, number_wins INT DEFAULT 0 NOT NULL)");
+		}
+
+		Properties properties = new Properties();
+		properties.setProperty("user", "sa");
+		properties.setProperty("pool.maxSize", "8");
+		properties.setProperty("leaderboard.enabled", "true");
+		this.con = new DbConnect(properties, URL);
+		con.registerUser("ch4rlie", "1234a", "charlie");
+	}
+
+	@After
+	public void tearDown() throws SQLException {
+		con.close();
+		try (Statement statement = setupConnection.createStatement()) {
+			statement.execute("DROP ALL OBJECTS");
+		}
+		setupConnection.close();
+	}
+
+	@Test
+	public void testLowerScoreIsNotApplied() {
+		assertTrue(con.checkHighScore("ch4rlie", 5));
+		assertTrue(con.checkHighScore("ch4rlie", 5));
+		assertFalse(con.checkHighScore("ch4rlie", 4));
+		assertFalse(con.checkHighScore("doggo", 10));
+
+		assertEquals(5, con.retrieveHighScore("ch4rlie"));
+	}
+
+	@Test
+	public void testConcurrentUpdatesKeepMaximum() throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+		CountDownLatch start = new CountDownLatch(1);
+		ArrayList<Future<Integer>> results = new ArrayList<Future<Integer>>();
+
+		for (int t = 0; t < THREADS; t++) {
+			final long seed = t;
+			results.add(executor.submit(new Callable<Integer>() {
+				public Integer call() throws Exception {
+					Random random = new Random(seed);
+					int max = 0;
+					start.await();
+					for (int i = 0; i < UPDATES_PER_THREAD; i++) {
+						int score = random.nextInt(1000000);
+						con.checkHighScore("ch4rlie", score);
+						max = Math.max(max, score);
+					}
+					return max;
+				}
+			}));
+		}
+		start.countDown();
+
+		int expected = 0;
+		for (Future<Integer> result : results) {
+			expected = Math.max(expected, result.get());
+		}
+		executor.shutdown();
+
+		assertEquals(expected, con.retrieveHighScore("ch4rlie"));
+		assertEquals(Integer.valueOf(expected), con.getLeaderboard().getScore("ch4rlie"));
+	}
+}
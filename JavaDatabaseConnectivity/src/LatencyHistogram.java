@@ -0,0 +1,103 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of latencies in the style of HdrHistogram. Values are counted in
+ * buckets whose width grows with the value: each power of two is split into
+ * SUB_BUCKETS / 2 linear buckets, so every recorded value is reported to
+ * within 2/SUB_BUCKETS of itself. Recording a value is lock free and allocates
+ * nothing.
+ */
+public class LatencyHistogram {
+	private static final int SUB_BUCKET_BITS = 4;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+	private final AtomicLongArray counts = new AtomicLongArray((64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong sum = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * Method to record one value.
+	 *
+	 * @param value
+	 *            the value, e.g. a latency in nanoseconds; negative values are
+	 *            recorded as 0.
+	 */
+	public void record(long value) {
+		if (value < 0)
+			value = 0;
+		counts.incrementAndGet(bucketOf(value));
+		count.incrementAndGet();
+		sum.addAndGet(value);
+		long current;
+		while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+			// retry until the maximum is at least value
+		}
+	}
+
+	/**
+	 * Values below SUB_BUCKETS have a bucket each. Larger values are shifted
+	 * right until they fit in SUB_BUCKET_BITS bits, and the shift selects the
+	 * group of buckets.
+	 */
+	private static int bucketOf(long value) {
+		int magnitude = Math.max(0, 64 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS);
+		int subBucket = (int) (value >>> magnitude);
+		return magnitude * SUB_BUCKETS + subBucket;
+	}
+
+	/**
+	 * @return the highest value counted in a bucket.
+	 */
+	private static long highestValueOf(int bucket) {
+		int magnitude = bucket / SUB_BUCKETS;
+		long subBucket = bucket % SUB_BUCKETS;
+		long highest = ((subBucket + 1) << magnitude) - 1;
+		return highest < 0 ? Long.MAX_VALUE : highest;
+	}
+
+	/**
+	 * @return number of values recorded.
+	 */
+	public long getCount() {
+		return count.get();
+	}
+
+	/**
+	 * @return highest value recorded.
+	 */
+	public long getMax() {
+		return max.get();
+	}
+
+	/**
+	 * @return mean of the values recorded.
+	 */
+	public double getMean() {
+		long n = count.get();
+		return n == 0 ? 0.0 : (double) sum.get() / n;
+	}
+
+	/**
+	 * Method to estimate a percentile of the recorded values.
+	 *
+	 * @param percentile
+	 *            the percentile, between 0 and 100.
+	 * @return a value at least as high as the requested fraction of the recorded
+	 *         values, and within the bucket precision of the true percentile.
+	 */
+	public long getValueAtPercentile(double percentile) {
+		long n = count.get();
+		if (n == 0)
+			return 0;
+		long target = Math.max(1, (long) Math.ceil(percentile / 100.0 * n));
+		long seen = 0;
+		for (int bucket = 0; bucket < counts.length(); bucket++) {
+			seen += counts.get(bucket);
+			if (seen >= target)
+				return Math.min(highestValueOf(bucket), max.get());
+		}
+		return max.get();
+	}
+}
@@ -0,0 +1,53 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * JUnit tests for LatencyHistogram
+ */
+public class LatencyHistogramTest {
+
+	@Test
+	public void testSmallValuesAreExact() {
+		for (long value = 0; value < 100; value++) {
+			LatencyHistogram histogram = new LatencyHistogram();
+			histogram.record(value);
+
+			assertEquals(value, histogram.getValueAtPercentile(50));
+		}
+	}
+
+	@Test
+	public void testPercentilesWithinPrecision() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		Random random = new Random(1);
+		long[] values = new long[100000];
+		for (int i = 0; i < values.length; i++) {
+			values[i] = (long) Math.exp(random.nextGaussian() * 2 + 10);
+			histogram.record(values[i]);
+		}
+		Arrays.sort(values);
+
+		for (double percentile : new double[] { 50, 90, 99, 99.9 }) {
+			long exact = values[(int) Math.ceil(percentile / 100 * values.length) - 1];
+			long estimate = histogram.getValueAtPercentile(percentile);
+			assertTrue(estimate >= exact);
+			assertTrue(estimate <= exact + exact / 8 + 1);
+		}
+		assertEquals(values[values.length - 1], histogram.getValueAtPercentile(100));
+		assertEquals(values.length, histogram.getCount());
+	}
+
+	@Test
+	public void testLargestValue() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		histogram.record(Long.MAX_VALUE);
+
+		assertEquals(Long.MAX_VALUE, histogram.getMax());
+		assertEquals(Long.MAX_VALUE, histogram.getValueAtPercentile(99));
+	}
+}
@@ -0,0 +1,389 @@
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Random;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * An in-memory leaderboard of the high score of every user. Users are kept in
+ * an order statistic tree (a treap whose nodes know the size of their subtree)
+ * ordered by high score, highest first, and then by username, so updates, rank
+ * lookups and the start of a page by rank all take logarithmic time.
+ *
+ * Ranks start at 1 for the highest score.
+ */
+public class Leaderboard {
+
+	private static final class Node {
+		final String username;
+		final int score;
+		final int priority;
+		int size = 1;
+		Node left;
+		Node right;
+
+		Node(String username, int score, int priority) {
+			this.username = username;
+			this.score = score;
+			this.priority = priority;
+		}
+	}
+
+	private final HashMap<String, Integer> scores = new HashMap<String, Integer>();
+	private final Random random = new Random();
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+	private Node root;
+
+	/**
+	 * Method to set the high score of a user, adding the user if necessary.
+	 *
+	 * @param username
+	 *            username of the user.
+	 * @param score
+	 *            the new high score of the user.
+	 */
+	public void update(String username, int score) {
+		lock.writeLock().lock();
+		try {
+			put(username, score);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Method to set the high score of a user only if it is at least the current
+	 * high score, adding the user if necessary.
+	 *
+	 * @return true if the high score has now been changed to the given score.
+	 */
+	public boolean offer(String username, int score) {
+		lock.writeLock().lock();
+		try {
+			Integer current = scores.get(username);
+			if (current != null && score < current)
+				return false;
+			put(username, score);
+			return true;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Method to raise the high score of a user who is already on the
+	 * leaderboard, if the given score is at least the current high score.
+	 *
+	 * @return true if the high score has now been changed to the given score.
+	 */
+	public boolean raise(String username, int score) {
+		lock.writeLock().lock();
+		try {
+			Integer current = scores.get(username);
+			if (current == null || score < current)
+				return false;
+			put(username, score);
+			return true;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Method to set the high score of a user who is already on the leaderboard,
+	 * even if it is lower.
+	 *
+	 * @return true if the user is on the leaderboard.
+	 */
+	public boolean replace(String username, int score) {
+		lock.writeLock().lock();
+		try {
+			if (!scores.containsKey(username))
+				return false;
+			put(username, score);
+			return true;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Method to add a user only if the leaderboard does not already hold a score
+	 * for them, so that loading a snapshot of the database never overwrites a
+	 * newer update.
+	 */
+	public void putIfAbsent(String username, int score) {
+		lock.writeLock().lock();
+		try {
+			if (!scores.containsKey(username))
+				put(username, score);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Method to remove a user from the leaderboard.
+	 */
+	public void remove(String username) {
+		lock.writeLock().lock();
+		try {
+			Integer current = scores.remove(username);
+			if (current != null)
+				root = delete(root, username, current);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * @return the high score of the user, or null if the user is not on the
+	 *         leaderboard.
+	 */
+	public Integer getScore(String username) {
+		lock.readLock().lock();
+		try {
+			return scores.get(username);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return number of users on the leaderboard.
+	 */
+	public int size() {
+		lock.readLock().lock();
+		try {
+			return scores.size();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Method to retrieve the rank of a user. Users with equal scores are ranked
+	 * by username.
+	 *
+	 * @return rank of the user, or 0 if the user is not on the leaderboard.
+	 */
+	public int rankOf(String username) {
+		lock.readLock().lock();
+		try {
+			Integer score = scores.get(username);
+			if (score == null)
+				return 0;
+			int rank = 1;
+			Node node = root;
+			while (node != null) {
+				int cmp = compare(username, score, node.username, node.score);
+				if (cmp < 0) {
+					node = node.left;
+				} else {
+					rank += size(node.left);
+					if (cmp == 0)
+						return rank;
+					rank++;
+					node = node.right;
+				}
+			}
+			return 0;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Method to pass every user and score to a consumer in rank order. Updates
+	 * wait until every user has been passed, so the consumer should be quick.
+	 */
+	public void forEach(ScoreConsumer consumer) {
+		forEach(Integer.MAX_VALUE, consumer);
+	}
+
+	/**
+	 * Method to pass the users with the highest scores to a consumer in rank
+	 * order, without building a map of them.
+	 *
+	 * @param n
+	 *            maximum number of users to pass.
+	 */
+	public void forEach(int n, ScoreConsumer consumer) {
+		lock.readLock().lock();
+		try {
+			forEach(root, n, consumer);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return number of users still to pass.
+	 */
+	private static int forEach(Node node, int remaining, ScoreConsumer consumer) {
+		while (node != null && remaining > 0) {
+			remaining = forEach(node.left, remaining, consumer);
+			if (remaining == 0)
+				break;
+			consumer.accept(node.username, node.score);
+			remaining--;
+			node = node.right;
+		}
+		return remaining;
+	}
+
+	/**
+	 * Method to retrieve the users with the highest scores.
+	 *
+	 * @param n
+	 *            maximum number of users to return.
+	 * @return LinkedHashMap<String, Integer> of username to high score, highest
+	 *         first.
+	 */
+	public LinkedHashMap<String, Integer> top(int n) {
+		return page(1, n);
+	}
+
+	/**
+	 * Method to retrieve a page of the leaderboard.
+	 *
+	 * @param fromRank
+	 *            rank of the first user of the page, starting at 1.
+	 * @param count
+	 *            maximum number of users on the page.
+	 * @return LinkedHashMap<String, Integer> of username to high score, in rank
+	 *         order.
+	 */
+	public LinkedHashMap<String, Integer> page(int fromRank, int count) {
+		LinkedHashMap<String, Integer> page = new LinkedHashMap<String, Integer>();
+		lock.readLock().lock();
+		try {
+			collect(root, Math.max(0, fromRank - 1), count, page);
+		} finally {
+			lock.readLock().unlock();
+		}
+		return page;
+	}
+
+	/**
+	 * Method to retrieve the page of users ranked after the given score and
+	 * username, for keyset pagination.
+	 *
+	 * @param score
+	 *            high score of the last user of the previous page.
+	 * @param username
+	 *            username of the last user of the previous page, or null to start
+	 *            below every user with the given score.
+	 * @param count
+	 *            maximum number of users on the page.
+	 * @return LinkedHashMap<String, Integer> of username to high score, in rank
+	 *         order.
+	 */
+	public LinkedHashMap<String, Integer> below(int score, String username, int count) {
+		LinkedHashMap<String, Integer> page = new LinkedHashMap<String, Integer>();
+		lock.readLock().lock();
+		try {
+			int ahead = 0;
+			Node node = root;
+			while (node != null) {
+				boolean before = node.score != score ? node.score > score
+						: username == null || node.username.compareTo(username) <= 0;
+				if (before) {
+					ahead += size(node.left) + 1;
+					node = node.right;
+				} else {
+					node = node.left;
+				}
+			}
+			collect(root, ahead, count, page);
+		} finally {
+			lock.readLock().unlock();
+		}
+		return page;
+	}
+
+	/**
+	 * Adds up to count users to the page, skipping the first skip users of the
+	 * subtree. Subtrees that are skipped entirely are never visited.
+	 */
+	private static void collect(Node node, int skip, int count, LinkedHashMap<String, Integer> page) {
+		if (node == null || page.size() >= count || skip >= node.size)
+			return;
+		int leftSize = size(node.left);
+		if (skip < leftSize)
+			collect(node.left, skip, count, page);
+		if (skip <= leftSize && page.size() < count)
+			page.put(node.username, node.score);
+		collect(node.right, Math.max(0, skip - leftSize - 1), count, page);
+	}
+
+	private void put(String username, int score) {
+		Integer current = scores.put(username, score);
+		if (current != null)
+			root = delete(root, username, current);
+		Node[] parts = split(root, username, score);
+		root = merge(merge(parts[0], new Node(username, score, random.nextInt())), parts[1]);
+	}
+
+	/**
+	 * Splits a subtree into the nodes ordered before the given entry and the
+	 * nodes ordered at or after it.
+	 */
+	private static Node[] split(Node node, String username, int score) {
+		if (node == null)
+			return new Node[2];
+		if (compare(node.username, node.score, username, score) < 0) {
+			Node[] parts = split(node.right, username, score);
+			node.right = parts[0];
+			parts[0] = update(node);
+			return parts;
+		}
+		Node[] parts = split(node.left, username, score);
+		node.left = parts[1];
+		parts[1] = update(node);
+		return parts;
+	}
+
+	private static Node merge(Node left, Node right) {
+		if (left == null)
+			return right;
+		if (right == null)
+			return left;
+		if (left.priority > right.priority) {
+			left.right = merge(left.right, right);
+			return update(left);
+		}
+		right.left = merge(left, right.left);
+		return update(right);
+	}
+
+	private static Node delete(Node node, String username, int score) {
+		if (node == null)
+			return null;
+		int cmp = compare(username, score, node.username, node.score);
+		if (cmp == 0)
+			return merge(node.left, node.right);
+		if (cmp < 0)
+			node.left = delete(node.left, username, score);
+		else
+			node.right = delete(node.right, username, score);
+		return update(node);
+	}
+
+	private static Node update(Node node) {
+		node.size = 1 + size(node.left) + size(node.right);
+		return node;
+	}
+
+	private static int size(Node node) {
+		return node == null ? 0 : node.size;
+	}
+
+	/**
+	 * Orders entries by score, highest first, and then by username.
+	 */
+	private static int compare(String username1, int score1, String username2, int score2) {
+		if (score1 != score2)
+			return score1 > score2 ? -1 : 1;
+		return username1.compareTo(username2);
+	}
+}
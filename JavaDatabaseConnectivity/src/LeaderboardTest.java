@@ -0,0 +1,116 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * JUnit tests for Leaderboard
+ */
+public class LeaderboardTest {
+	private Leaderboard leaderboard;
+
+	@Before
+	public void setUp() {
+		this.leaderboard = new Leaderboard();
+		leaderboard.update("ch4rlie", 10);
+		leaderboard.update("dog", 30);
+		leaderboard.update("tomo", 20);
+		leaderboard.update("ben", 20);
+	}
+
+	@Test
+	public void testTopIsOrderedByScoreThenUsername() {
+		LinkedHashMap<String, Integer> top = leaderboard.top(3);
+
+		assertEquals(Arrays.asList("dog", "ben", "tomo"), new ArrayList<String>(top.keySet()));
+		assertEquals(Arrays.asList(30, 20, 20), new ArrayList<Integer>(top.values()));
+	}
+
+	@Test
+	public void testRankOf() {
+		assertEquals(1, leaderboard.rankOf("dog"));
+		assertEquals(2, leaderboard.rankOf("ben"));
+		assertEquals(4, leaderboard.rankOf("ch4rlie"));
+		assertEquals(0, leaderboard.rankOf("doggo"));
+	}
+
+	@Test
+	public void testUpdateMovesUser() {
+		leaderboard.update("ch4rlie", 40);
+
+		assertEquals(1, leaderboard.rankOf("ch4rlie"));
+		assertEquals(2, leaderboard.rankOf("dog"));
+		assertEquals(4, leaderboard.size());
+	}
+
+	@Test
+	public void testOfferOnlyRaisesScore() {
+		assertFalse(leaderboard.offer("dog", 5));
+		assertTrue(leaderboard.offer("dog", 30));
+		assertTrue(leaderboard.offer("rachel", 1));
+
+		assertEquals(Integer.valueOf(30), leaderboard.getScore("dog"));
+		assertEquals(5, leaderboard.size());
+	}
+
+	@Test
+	public void testReplaceOnlyChangesExistingUsers() {
+		assertTrue(leaderboard.replace("dog", 5));
+		assertFalse(leaderboard.replace("rachel", 1));
+
+		assertEquals(Integer.valueOf(5), leaderboard.getScore("dog"));
+		assertEquals(4, leaderboard.rankOf("dog"));
+		assertEquals(4, leaderboard.size());
+	}
+
+	@Test
+	public void testPutIfAbsentKeepsNewerScore() {
+		leaderboard.putIfAbsent("dog", 0);
+
+		assertEquals(Integer.valueOf(30), leaderboard.getScore("dog"));
+	}
+
+	@Test
+	public void testBelowContinuesAfterKey() {
+		assertEquals(Arrays.asList("tomo", "ch4rlie"),
+				new ArrayList<String>(leaderboard.below(20, "ben", 10).keySet()));
+		assertEquals(Arrays.asList("ch4rlie"), new ArrayList<String>(leaderboard.below(20, null, 10).keySet()));
+		assertEquals(Arrays.asList("dog"), new ArrayList<String>(leaderboard.below(50, null, 1).keySet()));
+	}
+
+	@Test
+	public void testRemove() {
+		leaderboard.remove("ben");
+
+		assertNull(leaderboard.getScore("ben"));
+		assertEquals(2, leaderboard.rankOf("tomo"));
+		assertEquals(3, leaderboard.size());
+	}
+
+	@Test
+	public void testPagesMatchSortedOrder() {
+		Leaderboard large = new Leaderboard();
+		Random random = new Random(1);
+		int[] scores = new int[1000];
+		for (int i = 0; i < scores.length; i++) {
+			scores[i] = random.nextInt(100);
+			large.update("user" + i, scores[i]);
+		}
+
+		ArrayList<String> all = new ArrayList<String>(large.top(Integer.MAX_VALUE).keySet());
+		assertEquals(scores.length, all.size());
+		for (int rank = 1; rank <= all.size(); rank += 97) {
+			ArrayList<String> page = new ArrayList<String>(large.page(rank, 10).keySet());
+			assertEquals(all.subList(rank - 1, Math.min(all.size(), rank + 9)), page);
+			assertEquals(rank, large.rankOf(all.get(rank - 1)));
+		}
+	}
+}
@@ -0,0 +1,15 @@
+import java.util.Collection;
+
+/**
+ * Receives the metrics of every DbConnect operation at a fixed period, e.g.
+ * to publish them to a monitoring system.
+ */
+@FunctionalInterface
+public interface MetricsExporter {
+
+	/**
+	 * Method called with the current metrics. The statistics are live and keep
+	 * counting after the call returns.
+	 */
+	public void export(Collection<OperationStats> operations);
+}
@@ -0,0 +1,36 @@
+/**
+ * The details of a user to be registered by DbConnect.registerUsers.
+ */
+public class NewUser {
+	private final String username;
+	private final String password;
+	private final String nickname;
+
+	/**
+	 * Constructor
+	 * 
+	 * @param username
+	 *            username that the user requires.
+	 * @param password
+	 *            password that the user has chosen.
+	 * @param nickname
+	 *            nickname of the user.
+	 */
+	public NewUser(String username, String password, String nickname) {
+		this.username = username;
+		this.password = password;
+		this.nickname = nickname;
+	}
+
+	public String getUsername() {
+		return username;
+	}
+
+	public String getPassword() {
+		return password;
+	}
+
+	public String getNickname() {
+		return nickname;
+	}
+}
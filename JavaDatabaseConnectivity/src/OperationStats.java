@@ -0,0 +1,87 @@
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The call count, error counts and latency histogram of one DbConnect
+ * operation.
+ */
+public class OperationStats implements OperationStatsMXBean {
+	private final String operation;
+	private final LongAdder calls = new LongAdder();
+	private final LongAdder errors = new LongAdder();
+	private final ConcurrentHashMap<String, LongAdder> errorsBySqlState = new ConcurrentHashMap<String, LongAdder>();
+	private final LatencyHistogram latency = new LatencyHistogram();
+
+	OperationStats(String operation) {
+		this.operation = operation;
+	}
+
+	void record(long nanos) {
+		calls.increment();
+		latency.record(nanos);
+	}
+
+	void recordError(String sqlState) {
+		errors.increment();
+		errorsBySqlState.computeIfAbsent(sqlState == null ? "unknown" : sqlState, state -> new LongAdder())
+				.increment();
+	}
+
+	/**
+	 * @return name of the operation, i.e. the DbConnect method.
+	 */
+	public String getOperation() {
+		return operation;
+	}
+
+	/**
+	 * @return histogram of the latencies of the operation, in nanoseconds.
+	 */
+	public LatencyHistogram getLatency() {
+		return latency;
+	}
+
+	public long getCalls() {
+		return calls.sum();
+	}
+
+	public long getErrors() {
+		return errors.sum();
+	}
+
+	public Map<String, Long> getErrorsBySqlState() {
+		TreeMap<String, Long> copy = new TreeMap<String, Long>();
+		for (Map.Entry<String, LongAdder> entry : errorsBySqlState.entrySet()) {
+			copy.put(entry.getKey(), entry.getValue().sum());
+		}
+		return copy;
+	}
+
+	public double getMeanMicros() {
+		return latency.getMean() / 1000.0;
+	}
+
+	public long getP50Micros() {
+		return latency.getValueAtPercentile(50) / 1000;
+	}
+
+	public long getP99Micros() {
+		return latency.getValueAtPercentile(99) / 1000;
+	}
+
+	public long getP999Micros() {
+		return latency.getValueAtPercentile(99.9) / 1000;
+	}
+
+	public long getMaxMicros() {
+		return latency.getMax() / 1000;
+	}
+
+	@Override
+	public String toString() {
+		return operation + ": calls=" + getCalls() + " errors=" + getErrors() + " p50=" + getP50Micros()
+				+ "us p99=" + getP99Micros() + "us max=" + getMaxMicros() + "us";
+	}
+}
@@ -0,0 +1,27 @@
+import java.util.Map;
+
+/**
+ * JMX view of the metrics of one DbConnect operation. Latencies are in
+ * microseconds.
+ */
+public interface OperationStatsMXBean {
+
+	public long getCalls();
+
+	public long getErrors();
+
+	/**
+	 * @return number of errors by SQLState.
+	 */
+	public Map<String, Long> getErrorsBySqlState();
+
+	public double getMeanMicros();
+
+	public long getP50Micros();
+
+	public long getP99Micros();
+
+	public long getP999Micros();
+
+	public long getMaxMicros();
+}
@@ -0,0 +1,127 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+
+/**
+ * A connection borrowed from a {@link ConnectionPool}. Closing it returns the
+ * underlying connection to the pool instead of closing it.
+ */
+public class PooledConnection implements AutoCloseable {
+	private final ConnectionPool pool;
+	private final Connection connection;
+	volatile boolean borrowed;
+	volatile long lastUsedMillis;
+	private final ArrayList<Statement> statements = new ArrayList<Statement>();
+	private final StatementCache statementCache;
+	private QueryMetrics metrics;
+	private String operation;
+	private String sql;
+	private long startNanos;
+	private boolean pinned;
+	private int queryTimeoutSeconds = -1;
+
+	PooledConnection(ConnectionPool pool, Connection connection, StatementCache statementCache) {
+		this.pool = pool;
+		this.connection = connection;
+		this.statementCache = statementCache;
+		this.lastUsedMillis = System.currentTimeMillis();
+	}
+
+	/**
+	 * @return the underlying JDBC connection.
+	 */
+	public Connection getConnection() {
+		return connection;
+	}
+
+	/**
+	 * Method to prepare a statement on the underlying connection. When the pool
+	 * caches statements the statement is reused by later borrowers, otherwise it
+	 * is closed when the connection is returned to the pool. Either way it must
+	 * not be closed by the caller.
+	 *
+	 * @param sql
+	 *            SQL text of the statement.
+	 * @return the prepared statement.
+	 */
+	public PreparedStatement prepareStatement(String sql) throws SQLException {
+		PreparedStatement statement;
+		if (statementCache != null) {
+			statement = statementCache.prepare(sql);
+		} else {
+			statement = connection.prepareStatement(sql);
+			statements.add(statement);
+		}
+		if (queryTimeoutSeconds >= 0)
+			statement.setQueryTimeout(queryTimeoutSeconds);
+		return statement;
+	}
+
+	/**
+	 * Method to record the time until the connection is returned in the metrics
+	 * of an operation.
+	 */
+	void track(QueryMetrics metrics, String operation, String sql, long startNanos) {
+		this.metrics = metrics;
+		this.operation = operation;
+		this.sql = sql;
+		this.startNanos = startNanos;
+	}
+
+	/**
+	 * Method to set the query timeout of the statements prepared until the
+	 * connection is returned.
+	 *
+	 * @param seconds
+	 *            the timeout, 0 for none, or -1 to leave the timeout of each
+	 *            statement as it is.
+	 */
+	void setQueryTimeout(int seconds) {
+		this.queryTimeoutSeconds = seconds;
+	}
+
+	/**
+	 * Method to keep the connection borrowed when it is closed, e.g. while a
+	 * UnitOfWork runs several operations on it, or to return it to the pool
+	 * when it is next closed.
+	 */
+	void setPinned(boolean pinned) {
+		this.pinned = pinned;
+	}
+
+	/**
+	 * Returns the connection to the pool, unless it is pinned.
+	 */
+	public void close() {
+		if (operation != null) {
+			metrics.record(operation, sql, System.nanoTime() - startNanos);
+			operation = null;
+		}
+		queryTimeoutSeconds = -1;
+		if (!pinned)
+			pool.release(this);
+	}
+
+	void closeStatements() {
+		for (Statement statement : statements) {
+			try {
+				statement.close();
+			} catch (SQLException e) {
+				System.err.println("Error closing SQL statement");
+			}
+		}
+		statements.clear();
+	}
+
+	void closePhysical() {
+		if (statementCache != null)
+			statementCache.clear();
+		try {
+			connection.close();
+		} catch (SQLException e) {
+			System.err.println("Error closing database connection");
+		}
+	}
+}
@@ -0,0 +1,141 @@
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.UnaryOperator;
+
+/**
+ * A read-through cache of user profiles keyed by username, bounded in size
+ * with least recently used eviction and with a time to live for each entry.
+ * DbConnect updates cached profiles when it changes them, so the time to live
+ * only bounds how long changes made by other processes can go unseen.
+ *
+ * A profile read from the database is only cached if no profile changed while
+ * it was being read, so a concurrent update can never be overwritten by an
+ * older profile.
+ */
+public class ProfileCache {
+
+	private static final class CachedProfile {
+		final UserProfile profile;
+		final long expiresAtMillis;
+
+		CachedProfile(UserProfile profile, long expiresAtMillis) {
+			this.profile = profile;
+			this.expiresAtMillis = expiresAtMillis;
+		}
+	}
+
+	private final int maxUsers;
+	private final long ttlMillis;
+	private final LinkedHashMap<String, CachedProfile> profiles;
+	private long generation;
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong expirations = new AtomicLong();
+
+	/**
+	 * Constructor - creates an empty cache.
+	 *
+	 * @param maxUsers
+	 *            maximum number of profiles cached.
+	 * @param ttlMillis
+	 *            time a profile read from the database stays cached.
+	 */
+	public ProfileCache(int maxUsers, long ttlMillis) {
+		this.maxUsers = maxUsers;
+		this.ttlMillis = ttlMillis;
+		this.profiles = new LinkedHashMap<String, CachedProfile>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, CachedProfile> eldest) {
+				return size() > ProfileCache.this.maxUsers;
+			}
+		};
+	}
+
+	/**
+	 * @return the cached profile of the user, or null if it is not cached or has
+	 *         expired.
+	 */
+	public synchronized UserProfile get(String user) {
+		CachedProfile entry = profiles.get(user);
+		if (entry != null && entry.expiresAtMillis < System.currentTimeMillis()) {
+			profiles.remove(user);
+			expirations.incrementAndGet();
+			entry = null;
+		}
+		if (entry == null) {
+			misses.incrementAndGet();
+			return null;
+		}
+		hits.incrementAndGet();
+		return entry.profile;
+	}
+
+	/**
+	 * @return a value to pass to {@link #put} when a profile is read from the
+	 *         database.
+	 */
+	public synchronized long generation() {
+		return generation;
+	}
+
+	/**
+	 * Method to cache a profile read from the database, unless a profile has
+	 * changed since generation was called.
+	 */
+	public synchronized void put(String user, UserProfile profile, long readGeneration) {
+		if (readGeneration == generation)
+			profiles.put(user, new CachedProfile(profile, System.currentTimeMillis() + ttlMillis));
+	}
+
+	/**
+	 * Method to apply a change to the cached profile of a user, if it is cached.
+	 */
+	public synchronized void update(String user, UnaryOperator<UserProfile> change) {
+		generation++;
+		CachedProfile entry = profiles.get(user);
+		if (entry != null)
+			profiles.put(user, new CachedProfile(change.apply(entry.profile), entry.expiresAtMillis));
+	}
+
+	/**
+	 * Method to remove the cached profile of a user.
+	 */
+	public synchronized void invalidate(String user) {
+		generation++;
+		profiles.remove(user);
+	}
+
+	/**
+	 * @return number of profiles cached.
+	 */
+	public synchronized int size() {
+		return profiles.size();
+	}
+
+	public long getHitCount() {
+		return hits.get();
+	}
+
+	public long getMissCount() {
+		return misses.get();
+	}
+
+	/**
+	 * @return number of profiles removed because their time to live expired.
+	 */
+	public long getExpiredCount() {
+		return expirations.get();
+	}
+
+	/**
+	 * @return fraction of lookups answered from the cache.
+	 */
+	public double getHitRate() {
+		long hit = hits.get();
+		long total = hit + misses.get();
+		return total == 0 ? 0.0 : (double) hit / total;
+	}
+}
@@ -0,0 +1,105 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * JUnit tests for ProfileCache
+ */
+public class ProfileCacheTest {
+	private static final UserProfile CH4RLIE = new UserProfile(3000000, 10, 4, "charlie");
+	private static final UserProfile DOG = new UserProfile(200, 1, 0, null);
+
+	private ProfileCache cache;
+
+	@Before
+	public void setUp() {
+		this.cache = new ProfileCache(2, 60000);
+	}
+
+	@Test
+	public void testHitsAndMisses() {
+		assertNull(cache.get("ch4rlie"));
+		cache.put("ch4rlie", CH4RLIE, cache.generation());
+		assertEquals(CH4RLIE, cache.get("ch4rlie"));
+		assertEquals(CH4RLIE, cache.get("ch4rlie"));
+
+		assertEquals(2, cache.getHitCount());
+		assertEquals(1, cache.getMissCount());
+		assertEquals(2.0 / 3, cache.getHitRate(), 1e-9);
+	}
+
+	@Test
+	public void testLeastRecentlyUsedIsEvicted() {
+		cache.put("ch4rlie", CH4RLIE, cache.generation());
+		cache.put("dog", DOG, cache.generation());
+		cache.get("ch4rlie");
+		cache.put("tomo", DOG, cache.generation());
+
+		assertEquals(2, cache.size());
+		assertNull(cache.get("dog"));
+		assertEquals(CH4RLIE, cache.get("ch4rlie"));
+		assertEquals(DOG, cache.get("tomo"));
+	}
+
+	@Test
+	public void testExpiredProfileIsRemoved() throws InterruptedException {
+		ProfileCache cache = new ProfileCache(2, 20);
+		cache.put("ch4rlie", CH4RLIE, cache.generation());
+		assertEquals(CH4RLIE, cache.get("ch4rlie"));
+
+		Thread.sleep(50);
+
+		assertNull(cache.get("ch4rlie"));
+		assertEquals(0, cache.size());
+		assertEquals(1, cache.getExpiredCount());
+		assertEquals(1, cache.getHitCount());
+		assertEquals(1, cache.getMissCount());
+	}
+
+	@Test
+	public void testUpdateKeepsExpiry() throws InterruptedException {
+		ProfileCache cache = new ProfileCache(2, 200);
+		cache.put("ch4rlie", CH4RLIE, cache.generation());
+		Thread.sleep(100);
+		cache.update("ch4rlie", profile -> profile.withHighScore(3000001));
+		assertEquals(3000001, cache.get("ch4rlie").getHighScore());
+
+		Thread.sleep(150);
+
+		assertNull(cache.get("ch4rlie"));
+	}
+
+	@Test
+	public void testUpdateIgnoresUncachedProfile() {
+		cache.update("dog", profile -> profile.withHighScore(300));
+
+		assertNull(cache.get("dog"));
+	}
+
+	@Test
+	public void testChangeDuringLoadIsNotCached() {
+		long generation = cache.generation();
+		cache.update("ch4rlie", profile -> profile.withNickname("ch4rlie"));
+		cache.put("ch4rlie", CH4RLIE, generation);
+		assertNull(cache.get("ch4rlie"));
+
+		generation = cache.generation();
+		cache.invalidate("ch4rlie");
+		cache.put("ch4rlie", CH4RLIE, generation);
+		assertNull(cache.get("ch4rlie"));
+
+		cache.put("ch4rlie", CH4RLIE, cache.generation());
+		assertEquals(CH4RLIE, cache.get("ch4rlie"));
+	}
+
+	@Test
+	public void testInvalidate() {
+		cache.put("ch4rlie", CH4RLIE, cache.generation());
+		cache.invalidate("ch4rlie");
+
+		assertNull(cache.get("ch4rlie"));
+		assertEquals(0, cache.size());
+	}
+}
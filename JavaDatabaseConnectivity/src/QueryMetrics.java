@@ -0,0 +1,149 @@
+import java.lang.management.ManagementFactory;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Records the call count, errors by SQLState and latency of every DbConnect
+ * operation, from borrowing a connection to returning it. The metrics can be
+ * read directly, through JMX when metrics.jmx is true, or by a
+ * MetricsExporter. Operations slower than metrics.slowQueryMillis are logged
+ * with their SQL; only the placeholders of the bound parameters are logged,
+ * never their values.
+ */
+public class QueryMetrics implements AutoCloseable {
+	private final ConcurrentHashMap<String, OperationStats> operations = new ConcurrentHashMap<String, OperationStats>();
+	private final long slowQueryNanos;
+	private final String jmxName;
+	private final ArrayList<ObjectName> registered = new ArrayList<ObjectName>();
+	private ScheduledExecutorService exporters;
+
+	/**
+	 * Constructor
+	 *
+	 * @param properties
+	 *            properties holding the metrics settings.
+	 */
+	public QueryMetrics(Properties properties) {
+		long slowQueryMillis = ConnectionPool.longProperty(properties, "metrics.slowQueryMillis", -1L);
+		this.slowQueryNanos = slowQueryMillis < 0 ? Long.MAX_VALUE : TimeUnit.MILLISECONDS.toNanos(slowQueryMillis);
+		this.jmxName = Boolean.parseBoolean(properties.getProperty("metrics.jmx"))
+				? properties.getProperty("metrics.name", "DbConnect-" + Integer.toHexString(System.identityHashCode(this)))
+				: null;
+	}
+
+	/**
+	 * Method to record one call of an operation.
+	 *
+	 * @param operation
+	 *            name of the DbConnect method.
+	 * @param sql
+	 *            SQL of the statement, for the slow query log.
+	 * @param nanos
+	 *            time taken.
+	 */
+	public void record(String operation, String sql, long nanos) {
+		stats(operation).record(nanos);
+		if (nanos >= slowQueryNanos)
+			System.err.println("Slow query in " + operation + " (" + TimeUnit.NANOSECONDS.toMillis(nanos) + " ms): "
+					+ sql + redacted(sql));
+	}
+
+	/**
+	 * Method to record an error of an operation.
+	 */
+	public void recordError(String operation, SQLException e) {
+		stats(operation).recordError(e.getSQLState());
+	}
+
+	private static String redacted(String sql) {
+		int parameters = 0;
+		for (int i = 0; i < sql.length(); i++) {
+			if (sql.charAt(i) == '?')
+				parameters++;
+		}
+		return parameters == 0 ? "" : " [" + parameters + " bound parameters redacted]";
+	}
+
+	/**
+	 * @return the metrics of an operation, created if it has not been called.
+	 */
+	public OperationStats stats(String operation) {
+		OperationStats stats = operations.get(operation);
+		if (stats != null)
+			return stats;
+		stats = new OperationStats(operation);
+		OperationStats existing = operations.putIfAbsent(operation, stats);
+		if (existing != null)
+			return existing;
+		if (jmxName != null)
+			register(stats);
+		return stats;
+	}
+
+	/**
+	 * @return the metrics of every operation that has been called.
+	 */
+	public Collection<OperationStats> getOperations() {
+		return Collections.unmodifiableCollection(operations.values());
+	}
+
+	/**
+	 * Method to pass the metrics to an exporter at a fixed period.
+	 */
+	public synchronized void addExporter(MetricsExporter exporter, long periodMillis) {
+		if (exporters == null) {
+			exporters = Executors.newSingleThreadScheduledExecutor(r -> {
+				Thread thread = new Thread(r, "metrics-exporter");
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+		exporters.scheduleAtFixedRate(() -> {
+			try {
+				exporter.export(getOperations());
+			} catch (RuntimeException e) {
+				System.err.println("Error exporting metrics");
+			}
+		}, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+	}
+
+	private synchronized void register(OperationStats stats) {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName("DbConnect:type=Operation,name=" + ObjectName.quote(jmxName)
+					+ ",operation=" + stats.getOperation());
+			server.registerMBean(stats, name);
+			registered.add(name);
+		} catch (JMException e) {
+			System.err.println("Error registering metrics with JMX");
+		}
+	}
+
+	/**
+	 * Stops the exporters and unregisters the JMX beans.
+	 */
+	public synchronized void close() {
+		if (exporters != null)
+			exporters.shutdown();
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		for (ObjectName name : registered) {
+			try {
+				server.unregisterMBean(name);
+			} catch (JMException e) {
+				System.err.println("Error unregistering metrics from JMX");
+			}
+		}
+		registered.clear();
+	}
+}
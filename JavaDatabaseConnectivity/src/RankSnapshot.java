@@ -0,0 +1,241 @@
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+
+/**
+ * An immutable snapshot of the leaderboard: the usernames and scores of the
+ * top places, and the rank of every user, so that the podium and a player's
+ * rank are read in constant time without a query. Users with equal scores are
+ * ranked by username, as by the database and Leaderboard.
+ *
+ * The ranks are kept in an open addressing hash table of usernames and ranks,
+ * which needs two array slots per user instead of a map entry and a boxed
+ * rank. A snapshot is built from the users in rank order with a Builder, and
+ * a raised score can be patched into the top places with withRaisedScore
+ * until the next snapshot is built. The users that patches push out of the
+ * top places are ranked right below them.
+ */
+public class RankSnapshot {
+	private final int topSize;
+	private final String[] topUsers;
+	private final int[] topScores;
+	private final String[] keys;
+	private final int[] ranks;
+	private final String[] pushedOut;
+	private final int size;
+	private final long takenAtMillis;
+	private final boolean patched;
+
+	private RankSnapshot(int topSize, String[] topUsers, int[] topScores, String[] keys, int[] ranks,
+			String[] pushedOut, int size, long takenAtMillis, boolean patched) {
+		this.topSize = topSize;
+		this.topUsers = topUsers;
+		this.topScores = topScores;
+		this.keys = keys;
+		this.ranks = ranks;
+		this.pushedOut = pushedOut;
+		this.size = size;
+		this.takenAtMillis = takenAtMillis;
+		this.patched = patched;
+	}
+
+	/**
+	 * Collects the users in rank order and builds a snapshot of them.
+	 */
+	public static class Builder {
+		private final int topSize;
+		private String[] users = new String[1024];
+		private int[] scores = new int[64];
+		private int size;
+
+		/**
+		 * @param topSize
+		 *            number of top places whose scores are kept.
+		 */
+		public Builder(int topSize) {
+			if (topSize < 1)
+				throw new IllegalArgumentException("topSize must be at least 1");
+			this.topSize = topSize;
+		}
+
+		/**
+		 * Method to add the user with the next rank.
+		 */
+		public Builder add(String username, int score) {
+			if (size == users.length)
+				users = Arrays.copyOf(users, size * 2);
+			if (size < topSize) {
+				if (size == scores.length)
+					scores = Arrays.copyOf(scores, Math.min(topSize, size * 2));
+				scores[size] = score;
+			}
+			users[size++] = username;
+			return this;
+		}
+
+		/**
+		 * @param takenAtMillis
+		 *            time the users were read, for the freshness of the
+		 *            snapshot.
+		 */
+		public RankSnapshot build(long takenAtMillis) {
+			int top = Math.min(topSize, size);
+			String[] keys = new String[Integer.highestOneBit(Math.max(1, size) * 2 - 1) << 1];
+			int[] ranks = new int[keys.length];
+			int mask = keys.length - 1;
+			for (int i = 0; i < size; i++) {
+				int slot = spread(users[i].hashCode()) & mask;
+				while (keys[slot] != null)
+					slot = (slot + 1) & mask;
+				keys[slot] = users[i];
+				ranks[slot] = i + 1;
+			}
+			return new RankSnapshot(topSize, Arrays.copyOf(users, top), Arrays.copyOf(scores, top), keys, ranks,
+					new String[0], size, takenAtMillis, false);
+		}
+	}
+
+	private static int spread(int hash) {
+		return (hash ^ (hash >>> 16)) * 0x9E3779B9;
+	}
+
+	/**
+	 * @param place
+	 *            place on the leaderboard, starting at 1.
+	 * @return username in that place, or null if it is beyond the top places or
+	 *         the number of users.
+	 */
+	public String getPlace(int place) {
+		return place >= 1 && place <= topUsers.length ? topUsers[place - 1] : null;
+	}
+
+	/**
+	 * @return score of the user in a top place, or 0 if there is none.
+	 */
+	public int getScoreAt(int place) {
+		return place >= 1 && place <= topScores.length ? topScores[place - 1] : 0;
+	}
+
+	/**
+	 * @return the rank of a user, which is current for the top places and for
+	 *         the users pushed out of them, and as it was when the snapshot was
+	 *         built for the others, or 0 if the user was not in it.
+	 */
+	public int getRank(String username) {
+		if (patched) {
+			for (int i = 0; i < topUsers.length; i++) {
+				if (topUsers[i].equals(username))
+					return i + 1;
+			}
+			for (int i = 0; i < pushedOut.length; i++) {
+				if (pushedOut[i].equals(username))
+					return topSize + 1 + i;
+			}
+		}
+		int mask = keys.length - 1;
+		int slot = spread(username.hashCode()) & mask;
+		String key;
+		while ((key = keys[slot]) != null) {
+			if (key.equals(username))
+				return ranks[slot];
+			slot = (slot + 1) & mask;
+		}
+		return 0;
+	}
+
+	/**
+	 * @return LinkedHashMap<String, Integer> of username to high score of at
+	 *         most n top places, highest first.
+	 */
+	public LinkedHashMap<String, Integer> top(int n) {
+		LinkedHashMap<String, Integer> top = new LinkedHashMap<String, Integer>();
+		for (int i = 0; i < Math.min(n, topUsers.length); i++) {
+			top.put(topUsers[i], topScores[i]);
+		}
+		return top;
+	}
+
+	/**
+	 * Method to place a user whose score has been raised in the top places.
+	 * When they are full, the last user is pushed out and ranked first below
+	 * them. The ranks of the other users are not changed until the next
+	 * snapshot.
+	 *
+	 * @return a snapshot with the user in the top places, or this snapshot if
+	 *         the score does not reach them.
+	 */
+	public RankSnapshot withRaisedScore(String username, int score) {
+		int top = topUsers.length;
+		int current = -1;
+		for (int i = 0; i < top; i++) {
+			if (topUsers[i].equals(username)) {
+				current = i;
+				break;
+			}
+		}
+		if (current >= 0 && topScores[current] >= score)
+			return this;
+		int place = 0;
+		while (place < top && (topScores[place] > score
+				|| (topScores[place] == score && topUsers[place].compareTo(username) < 0)))
+			place++;
+		if (current < 0 && place == topSize)
+			return this;
+
+		// a user new to the top places pushes the last one out once they are full
+		int length = current >= 0 ? top : Math.min(top + 1, topSize);
+		String[] below = current >= 0 ? pushedOut : pushedOut(username, length == top ? topUsers[top - 1] : null);
+		String[] users = new String[length];
+		int[] scores = new int[length];
+		for (int to = 0, from = 0; to < length; to++) {
+			if (to == place) {
+				users[to] = username;
+				scores[to] = score;
+				continue;
+			}
+			if (from == current)
+				from++;
+			users[to] = topUsers[from];
+			scores[to] = topScores[from++];
+		}
+		return new RankSnapshot(topSize, users, scores, keys, ranks, below, size, takenAtMillis, true);
+	}
+
+	/**
+	 * @return the users pushed out of the top places without a user who has
+	 *         entered them, and with the user who has been pushed out, if any,
+	 *         first.
+	 */
+	private String[] pushedOut(String entered, String pushed) {
+		String[] below = new String[pushedOut.length + (pushed != null ? 1 : 0)];
+		int length = 0;
+		if (pushed != null)
+			below[length++] = pushed;
+		for (String user : pushedOut) {
+			if (!user.equals(entered))
+				below[length++] = user;
+		}
+		return Arrays.copyOf(below, length);
+	}
+
+	/**
+	 * @return number of users in the snapshot.
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return number of top places whose scores are kept.
+	 */
+	public int getTopSize() {
+		return topSize;
+	}
+
+	/**
+	 * @return time the users of the snapshot were read, in milliseconds since
+	 *         the epoch.
+	 */
+	public long getTakenAtMillis() {
+		return takenAtMillis;
+	}
+}
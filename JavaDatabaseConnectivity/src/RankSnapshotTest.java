@@ -0,0 +1,139 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * JUnit tests for RankSnapshot
+ */
+public class RankSnapshotTest {
+	private Leaderboard leaderboard;
+
+	@Before
+	public void setUp() {
+		this.leaderboard = new Leaderboard();
+		leaderboard.update("ch4rlie", 10);
+		leaderboard.update("dog", 30);
+		leaderboard.update("tomo", 20);
+		leaderboard.update("ben", 20);
+	}
+
+	private RankSnapshot snapshot(int topSize) {
+		RankSnapshot.Builder builder = new RankSnapshot.Builder(topSize);
+		leaderboard.forEach(builder::add);
+		return builder.build(1000L);
+	}
+
+	@Test
+	public void testPodiumAndRanksMatchLeaderboard() {
+		RankSnapshot snapshot = snapshot(3);
+
+		assertEquals("dog", snapshot.getPlace(1));
+		assertEquals("ben", snapshot.getPlace(2));
+		assertEquals("tomo", snapshot.getPlace(3));
+		assertNull(snapshot.getPlace(4));
+		assertEquals(20, snapshot.getScoreAt(2));
+		for (String user : Arrays.asList("dog", "ben", "tomo", "ch4rlie")) {
+			assertEquals(leaderboard.rankOf(user), snapshot.getRank(user));
+		}
+		assertEquals(0, snapshot.getRank("nobody"));
+		assertEquals(4, snapshot.size());
+		assertEquals(1000L, snapshot.getTakenAtMillis());
+	}
+
+	@Test
+	public void testFewerUsersThanTopPlaces() {
+		RankSnapshot snapshot = snapshot(10);
+
+		assertEquals(Arrays.asList("dog", "ben", "tomo", "ch4rlie"), new ArrayList<String>(snapshot.top(10).keySet()));
+		assertNull(snapshot.getPlace(5));
+	}
+
+	@Test
+	public void testEmptySnapshot() {
+		RankSnapshot snapshot = new RankSnapshot.Builder(3).build(0L);
+
+		assertNull(snapshot.getPlace(1));
+		assertEquals(0, snapshot.getRank("dog"));
+		assertEquals(0, snapshot.size());
+	}
+
+	@Test
+	public void testRaisedScoreMovesUserUp() {
+		RankSnapshot snapshot = snapshot(3).withRaisedScore("tomo", 40);
+
+		assertEquals(Arrays.asList("tomo", "dog", "ben"), new ArrayList<String>(snapshot.top(3).keySet()));
+		assertEquals(1, snapshot.getRank("tomo"));
+		assertEquals(2, snapshot.getRank("dog"));
+	}
+
+	@Test
+	public void testRaisedScoreEntersFullTopPlaces() {
+		RankSnapshot snapshot = snapshot(3).withRaisedScore("ch4rlie", 25);
+
+		assertEquals(Arrays.asList("dog", "ch4rlie", "ben"), new ArrayList<String>(snapshot.top(3).keySet()));
+		assertEquals(25, snapshot.getScoreAt(2));
+	}
+
+	@Test
+	public void testUsersPushedOutAreRankedBelowTopPlaces() {
+		leaderboard.update("ann", 5);
+		RankSnapshot snapshot = snapshot(3).withRaisedScore("ch4rlie", 25);
+		assertEquals(2, snapshot.getRank("ch4rlie"));
+		assertEquals(4, snapshot.getRank("tomo"));
+
+		snapshot = snapshot.withRaisedScore("ann", 35);
+		assertEquals(Arrays.asList("ann", "dog", "ch4rlie"), new ArrayList<String>(snapshot.top(3).keySet()));
+		assertEquals(4, snapshot.getRank("ben"));
+		assertEquals(5, snapshot.getRank("tomo"));
+
+		snapshot = snapshot.withRaisedScore("tomo", 40);
+		assertEquals(1, snapshot.getRank("tomo"));
+		assertEquals(4, snapshot.getRank("ch4rlie"));
+		assertEquals(5, snapshot.getRank("ben"));
+	}
+
+	@Test
+	public void testRaisedScoreBreaksTieByUsername() {
+		RankSnapshot snapshot = snapshot(3).withRaisedScore("ch4rlie", 20);
+
+		assertEquals(Arrays.asList("dog", "ben", "ch4rlie"), new ArrayList<String>(snapshot.top(3).keySet()));
+	}
+
+	@Test
+	public void testScoreBelowTopPlacesKeepsSnapshot() {
+		RankSnapshot snapshot = snapshot(3);
+
+		assertSame(snapshot, snapshot.withRaisedScore("ch4rlie", 15));
+		assertSame(snapshot, snapshot.withRaisedScore("dog", 25));
+	}
+
+	@Test
+	public void testRaisedScoreFillsTopPlaces() {
+		RankSnapshot snapshot = snapshot(10).withRaisedScore("newbie", 5);
+
+		assertEquals("newbie", snapshot.getPlace(5));
+		assertEquals(5, snapshot.getRank("newbie"));
+	}
+
+	@Test
+	public void testManyUsers() {
+		RankSnapshot.Builder builder = new RankSnapshot.Builder(100);
+		for (int i = 0; i < 5000; i++) {
+			builder.add("user" + i, 5000 - i);
+		}
+		RankSnapshot snapshot = builder.build(0L);
+
+		assertEquals(5000, snapshot.size());
+		for (int i = 0; i < 5000; i += 37) {
+			assertEquals(i + 1, snapshot.getRank("user" + i));
+		}
+		assertEquals("user99", snapshot.getPlace(100));
+		assertNull(snapshot.getPlace(101));
+	}
+}
@@ -0,0 +1,240 @@
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Routes reads across read replicas of the primary database. Each replica has
+ * its own ConnectionPool, configured by the same pool.* properties as the
+ * primary. The router is configured by the following keys, which are not
+ * forwarded to the driver:
+ * <ul>
+ * <li>replica.urls - comma separated JDBC urls of the replicas</li>
+ * <li>replica.healthCheckMillis - period of the health check of every replica
+ * (default 5000)</li>
+ * <li>replica.stickyMillis - time after a write about a user during which reads
+ * about that user go to the primary, so they see the write even if the
+ * replicas lag behind, or 0 to always read from the replicas (default
+ * 5000)</li>
+ * </ul>
+ * Reads are spread over the healthy replicas in turn. A replica is marked
+ * unhealthy when a connection to it cannot be opened, and healthy again when
+ * the health check can borrow a valid connection. When no replica is healthy
+ * reads go to the primary.
+ */
+public class ReplicaRouter implements AutoCloseable {
+
+	private static final class Replica {
+		final String url;
+		final ConnectionPool pool;
+		final LongAdder reads = new LongAdder();
+		volatile boolean healthy = true;
+
+		Replica(String url, ConnectionPool pool) {
+			this.url = url;
+			this.pool = pool;
+		}
+	}
+
+	private final ConnectionPool primary;
+	private final Replica[] replicas;
+	private final long stickyNanos;
+	private final ConcurrentHashMap<String, Long> lastWrites = new ConcurrentHashMap<String, Long>();
+	private final AtomicInteger next = new AtomicInteger();
+	private final ScheduledExecutorService healthCheck;
+
+	private final LongAdder stickyReads = new LongAdder();
+	private final LongAdder failovers = new LongAdder();
+
+	/**
+	 * Constructor - opens the minimum number of connections to every replica.
+	 *
+	 * @param primary
+	 *            pool of connections to the primary, used for reads when no
+	 *            replica can serve them.
+	 * @param properties
+	 *            driver and pool properties, holding the replica.* settings.
+	 */
+	public ReplicaRouter(ConnectionPool primary, Properties properties) {
+		this.primary = primary;
+		this.stickyNanos = TimeUnit.MILLISECONDS
+				.toNanos(ConnectionPool.longProperty(properties, "replica.stickyMillis", 5000L));
+
+		ArrayList<Replica> replicas = new ArrayList<Replica>();
+		for (String url : properties.getProperty("replica.urls", "").split(",")) {
+			if (!url.trim().isEmpty())
+				replicas.add(new Replica(url.trim(), new ConnectionPool(url.trim(), properties)));
+		}
+		if (replicas.isEmpty())
+			throw new IllegalArgumentException("replica.urls holds no urls");
+		this.replicas = replicas.toArray(new Replica[replicas.size()]);
+		for (Replica replica : this.replicas) {
+			try {
+				replica.pool.fill();
+			} catch (SQLException e) {
+				replica.healthy = false;
+				System.err.println("Replica " + replica.url + " is unavailable");
+			}
+		}
+
+		this.healthCheck = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "replica-health-check");
+			thread.setDaemon(true);
+			return thread;
+		});
+		long period = Math.max(100L, ConnectionPool.longProperty(properties, "replica.healthCheckMillis", 5000L));
+		healthCheck.scheduleWithFixedDelay(this::checkReplicas, period, period, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Borrows a connection for a read about a user. The connection must be
+	 * returned by closing it.
+	 *
+	 * @param user
+	 *            the user the read is about, or null if it is not about one user.
+	 * @return a connection to a healthy replica, or to the primary if the user
+	 *         was written to recently or no replica is healthy.
+	 * @throws SQLException
+	 *             if no connection could be borrowed from the primary either.
+	 */
+	public PooledConnection borrowRead(String user) throws SQLException {
+		if (user != null && isSticky(user)) {
+			stickyReads.increment();
+			return primary.borrow();
+		}
+
+		int start = next.getAndIncrement();
+		for (int i = 0; i < replicas.length; i++) {
+			Replica replica = replicas[Math.floorMod(start + i, replicas.length)];
+			if (!replica.healthy)
+				continue;
+			try {
+				PooledConnection connection = replica.pool.borrow();
+				replica.reads.increment();
+				return connection;
+			} catch (SQLTimeoutException e) {
+				// the replica is busy rather than down, so try the next one
+			} catch (SQLException e) {
+				replica.healthy = false;
+				System.err.println("Replica " + replica.url + " is unavailable");
+			}
+		}
+		failovers.increment();
+		return primary.borrow();
+	}
+
+	/**
+	 * Method to record a write about a user, so that reads about the user go to
+	 * the primary for replica.stickyMillis.
+	 */
+	public void wrote(String user) {
+		if (stickyNanos > 0)
+			lastWrites.put(user, System.nanoTime());
+	}
+
+	private boolean isSticky(String user) {
+		Long lastWrite = lastWrites.get(user);
+		return lastWrite != null && System.nanoTime() - lastWrite < stickyNanos;
+	}
+
+	private void check(Replica replica) {
+		try {
+			replica.pool.borrow().close();
+			if (!replica.healthy)
+				System.err.println("Replica " + replica.url + " is available again");
+			replica.healthy = true;
+		} catch (SQLTimeoutException e) {
+			// every connection is in use, so the replica is serving reads
+		} catch (SQLException e) {
+			replica.healthy = false;
+		}
+	}
+
+	/**
+	 * Checks the health of every replica and forgets writes that are no longer
+	 * sticky.
+	 */
+	void checkReplicas() {
+		for (Replica replica : replicas) {
+			check(replica);
+		}
+		long now = System.nanoTime();
+		Iterator<Map.Entry<String, Long>> writes = lastWrites.entrySet().iterator();
+		while (writes.hasNext()) {
+			if (now - writes.next().getValue() >= stickyNanos)
+				writes.remove();
+		}
+	}
+
+	/**
+	 * @return number of replicas, healthy or not.
+	 */
+	public int getReplicaCount() {
+		return replicas.length;
+	}
+
+	/**
+	 * @return number of replicas currently serving reads.
+	 */
+	public int getHealthyReplicaCount() {
+		int count = 0;
+		for (Replica replica : replicas) {
+			if (replica.healthy)
+				count++;
+		}
+		return count;
+	}
+
+	/**
+	 * @return number of reads served by the replicas.
+	 */
+	public long getReplicaReads() {
+		long reads = 0;
+		for (Replica replica : replicas) {
+			reads += replica.reads.sum();
+		}
+		return reads;
+	}
+
+	/**
+	 * @return number of reads sent to the primary because no replica could
+	 *         serve them.
+	 */
+	public long getFailoverCount() {
+		return failovers.sum();
+	}
+
+	/**
+	 * @return number of reads sent to the primary because the user was written
+	 *         to recently.
+	 */
+	public long getStickyReads() {
+		return stickyReads.sum();
+	}
+
+	/**
+	 * @return number of reads served by the primary.
+	 */
+	public long getPrimaryReads() {
+		return failovers.sum() + stickyReads.sum();
+	}
+
+	/**
+	 * Stops the health check and closes the pools of the replicas. The pool of
+	 * the primary is left open.
+	 */
+	public void close() {
+		healthCheck.shutdownNow();
+		for (Replica replica : replicas) {
+			replica.pool.close();
+		}
+	}
+}
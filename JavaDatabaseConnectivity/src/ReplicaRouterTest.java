@@ -0,0 +1,109 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Properties;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * JUnit tests for the routing of DbConnect reads to replicas, using two
+ * in-memory H2 databases that do not replicate to each other, so a read shows
+ * which database served it.
+ */
+public class ReplicaRouterTest {
+	private static final String PRIMARY_URL = "jdbc:h2:mem:primary;MODE=MySQL;DB_CLOSE_DELAY=-1";
+	private static final String REPLICA_URL = "jdbc:h2:mem:replica;MODE=MySQL;DB_CLOSE_DELAY=-1";
+
+	private Connection primary;
+	private Connection replica;
+
+	@Before
+	public void setUp() throws SQLException {
+		this.primary = DriverManager.getConnection(PRIMARY_URL, "sa", "");
+		this.replica = DriverManager.getConnection(REPLICA_URL, "sa", "");
+		for (Connection connection : new Connection[] { primary, replica }) {
+			try (Statement statement = connection.createStatement()) {
+				statement.execute("CREATE TABLE user_info (username VARCHAR(64) PRIMARY KEY, password VARCHAR(64), "
+						+ "nickname VARCHAR(64), high_score INT DEFAULT 0 NOT NULL, "
+						+ "number_games_played INT DEFAULT 0 NOT NULL, number_wins INT DEFAULT 0 NOT NULL)");
+			}
+		}
+		try (Statement statement = replica.createStatement()) {
+			statement.execute("INSERT INTO user_info (username, password) VALUES ('replicated', 'pw')");
+		}
+	}
+
+	@After
+	public void tearDown() throws SQLException {
+		for (Connection connection : new Connection[] { primary, replica }) {
+			try (Statement statement = connection.createStatement()) {
+				statement.execute("DROP ALL OBJECTS");
+			}
+			connection.close();
+		}
+	}
+
+	private static Properties properties(String replicaUrls, long stickyMillis) {
+		Properties properties = new Properties();
+		properties.setProperty("user", "sa");
+		properties.setProperty("replica.urls", replicaUrls);
+		properties.setProperty("replica.stickyMillis", String.valueOf(stickyMillis));
+		return properties;
+	}
+
+	@Test
+	public void testReadsGoToReplica() {
+		try (DbConnect con = new DbConnect(properties(REPLICA_URL, 0), PRIMARY_URL)) {
+			con.registerUser("ch4rlie", "1234a", "charlie");
+
+			assertFalse(con.checkUsernameExists("ch4rlie"));
+			assertTrue(con.checkUsernameExists("replicated"));
+			assertEquals(2, con.getReplicaRouter().getReplicaReads());
+			assertEquals(0, con.getReplicaRouter().getPrimaryReads());
+		}
+	}
+
+	@Test
+	public void testReadYourWrites() {
+		try (DbConnect con = new DbConnect(properties(REPLICA_URL, 60000), PRIMARY_URL)) {
+			con.registerUser("ch4rlie", "1234a", "charlie");
+
+			assertTrue(con.checkUsernameExists("ch4rlie"));
+			assertTrue(con.checkLogin("ch4rlie", "1234a"));
+			assertTrue(con.checkUsernameExists("replicated"));
+			assertEquals(2, con.getReplicaRouter().getStickyReads());
+			assertEquals(1, con.getReplicaRouter().getReplicaReads());
+		}
+	}
+
+	@Test
+	public void testReadsAreBalanced() {
+		try (DbConnect con = new DbConnect(properties(REPLICA_URL + "," + REPLICA_URL, 0), PRIMARY_URL)) {
+			for (int i = 0; i < 10; i++) {
+				assertTrue(con.checkUsernameExists("replicated"));
+			}
+
+			assertEquals(2, con.getReplicaRouter().getReplicaCount());
+			assertEquals(10, con.getReplicaRouter().getReplicaReads());
+		}
+	}
+
+	@Test
+	public void testUnavailableReplicaFailsOver() {
+		String missing = "jdbc:h2:mem:missing;IFEXISTS=TRUE";
+		try (DbConnect con = new DbConnect(properties(missing, 0), PRIMARY_URL)) {
+			con.registerUser("ch4rlie", "1234a", "charlie");
+
+			assertTrue(con.checkUsernameExists("ch4rlie"));
+			assertEquals(0, con.getReplicaRouter().getHealthyReplicaCount());
+			assertEquals(1, con.getReplicaRouter().getFailoverCount());
+		}
+	}
+}
@@ -0,0 +1,227 @@
+import java.sql.SQLException;
+import java.sql.SQLRecoverableException;
+import java.sql.SQLTransientConnectionException;
+import java.sql.SQLTransientException;
+import java.util.Properties;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Retries database calls that fail with a transient error and stops calling a
+ * database that keeps failing, using a CircuitBreaker. The policy is
+ * configured with the following properties:
+ * <ul>
+ * <li>resilience.maxRetries - retries of an idempotent call after a transient
+ * error (default 2)</li>
+ * <li>resilience.backoffMillis - upper bound of the random wait before the
+ * first retry, doubled for each later retry (default 50)</li>
+ * <li>resilience.maxBackoffMillis - largest upper bound of the wait (default
+ * 1000)</li>
+ * <li>resilience.transientSqlStates - comma separated SQLState prefixes of
+ * transient errors (default 08,40: connection errors and transactions rolled
+ * back by a deadlock or serialization failure)</li>
+ * <li>resilience.failureThreshold - consecutive transient errors that open the
+ * circuit breaker (default 5)</li>
+ * <li>resilience.openMillis - time the breaker rejects calls before a trial
+ * call (default 10000)</li>
+ * <li>resilience.failFast - throw a DatabaseException when a call fails or is
+ * rejected, instead of returning the default value (default false)</li>
+ * </ul>
+ * Drivers' SQLTransientException and SQLRecoverableException are transient
+ * whatever their SQLState. Other errors, e.g. a duplicate username, are
+ * neither retried nor counted against the database.
+ */
+public class ResiliencePolicy {
+	/**
+	 * Receives the events of a policy. Every method does nothing by default.
+	 */
+	public interface Listener extends CircuitBreaker.Listener {
+		/**
+		 * Called before waiting to retry a call.
+		 *
+		 * @param attempt
+		 *            number of the retry, from 1.
+		 */
+		default void retrying(String operation, int attempt, long delayMillis, SQLException cause) {
+		}
+
+		/**
+		 * Called when a call is rejected because the circuit breaker is open.
+		 */
+		default void rejected(String operation) {
+		}
+
+		/**
+		 * Called when a call has failed and will not be retried.
+		 */
+		default void failed(String operation, SQLException cause) {
+		}
+
+		@Override
+		default void stateChanged(CircuitBreaker.State from, CircuitBreaker.State to) {
+		}
+	}
+
+	private final int maxRetries;
+	private final long backoffMillis;
+	private final long maxBackoffMillis;
+	private final String[] transientSqlStates;
+	private final boolean failFast;
+	private final CircuitBreaker breaker;
+	private final CopyOnWriteArrayList<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+
+	private final AtomicLong retryCount = new AtomicLong();
+	private final AtomicLong failureCount = new AtomicLong();
+
+	public ResiliencePolicy(Properties properties) {
+		this.maxRetries = Math.max(0, ConnectionPool.intProperty(properties, "resilience.maxRetries", 2));
+		this.backoffMillis = Math.max(1L, ConnectionPool.longProperty(properties, "resilience.backoffMillis", 50L));
+		this.maxBackoffMillis = ConnectionPool.longProperty(properties, "resilience.maxBackoffMillis", 1000L);
+		this.transientSqlStates = properties.getProperty("resilience.transientSqlStates", "08,40").trim()
+				.split("\\s*,\\s*");
+		this.failFast = Boolean.parseBoolean(properties.getProperty("resilience.failFast"));
+		this.breaker = new CircuitBreaker(
+				Math.max(1, ConnectionPool.intProperty(properties, "resilience.failureThreshold", 5)),
+				ConnectionPool.longProperty(properties, "resilience.openMillis", 10000L));
+		breaker.addListener((from, to) -> {
+			for (Listener listener : listeners) {
+				listener.stateChanged(from, to);
+			}
+		});
+	}
+
+	public void addListener(Listener listener) {
+		listeners.add(listener);
+	}
+
+	/**
+	 * Method to make a call under the policy. The call reports a failure by
+	 * throwing a DatabaseException, as DbConnect does when its failures are
+	 * thrown.
+	 *
+	 * @param operation
+	 *            name of the call, for the listeners.
+	 * @param idempotent
+	 *            true if making the call twice has the same effect as making it
+	 *            once, so it can be retried.
+	 * @param fallback
+	 *            value returned if the call fails or is rejected and the policy
+	 *            does not fail fast.
+	 * @return the result of the call, or fallback.
+	 * @throws DatabaseException
+	 *             if the call fails or is rejected and the policy fails fast.
+	 */
+	public <T> T call(String operation, boolean idempotent, T fallback, Supplier<T> call) {
+		if (!breaker.allow()) {
+			for (Listener listener : listeners) {
+				listener.rejected(operation);
+			}
+			if (failFast)
+				throw new DatabaseException(operation,
+						new SQLTransientConnectionException("Circuit breaker is open", "08000"));
+			return fallback;
+		}
+
+		for (int attempt = 0;; attempt++) {
+			DatabaseException failure;
+			try {
+				T result = call.get();
+				breaker.recordSuccess();
+				return result;
+			} catch (DatabaseException e) {
+				failure = e;
+			} catch (RuntimeException | Error e) {
+				breaker.recordSuccess();
+				throw e;
+			}
+
+			SQLException cause = failure.getCause();
+			boolean transientError = isTransient(cause);
+			if (transientError)
+				breaker.recordFailure();
+			else
+				breaker.recordSuccess();
+
+			if (transientError && idempotent && attempt < maxRetries && breaker.allow()) {
+				long delay = backoffMillis(attempt);
+				retryCount.incrementAndGet();
+				for (Listener listener : listeners) {
+					listener.retrying(operation, attempt + 1, delay, cause);
+				}
+				if (sleep(delay))
+					continue;
+				// the retry was allowed as a call, so it must be reported
+				breaker.recordFailure();
+			}
+
+			failureCount.incrementAndGet();
+			for (Listener listener : listeners) {
+				listener.failed(operation, cause);
+			}
+			if (failFast)
+				throw failure;
+			return fallback;
+		}
+	}
+
+	/**
+	 * @return true if an error is likely to go away by itself, e.g. a lost
+	 *         connection or a deadlock.
+	 */
+	public boolean isTransient(SQLException e) {
+		if (e instanceof SQLTransientException || e instanceof SQLRecoverableException)
+			return true;
+		String state = e.getSQLState();
+		if (state == null)
+			return false;
+		for (String prefix : transientSqlStates) {
+			if (!prefix.isEmpty() && state.startsWith(prefix))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @return a random wait before a retry, up to backoffMillis doubled for each
+	 *         earlier retry, so that callers that failed together do not retry
+	 *         together.
+	 */
+	long backoffMillis(int attempt) {
+		long bound = Math.min(maxBackoffMillis, backoffMillis << Math.min(attempt, 30));
+		return ThreadLocalRandom.current().nextLong(Math.max(1L, bound) + 1);
+	}
+
+	private static boolean sleep(long millis) {
+		try {
+			Thread.sleep(millis);
+			return true;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	public CircuitBreaker getCircuitBreaker() {
+		return breaker;
+	}
+
+	public boolean isFailFast() {
+		return failFast;
+	}
+
+	/**
+	 * @return number of retries made.
+	 */
+	public long getRetryCount() {
+		return retryCount.get();
+	}
+
+	/**
+	 * @return number of calls that failed and were not retried again.
+	 */
+	public long getFailureCount() {
+		return failureCount.get();
+	}
+}
@@ -0,0 +1,150 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Properties;
+import java.util.function.Supplier;
+
+/**
+ * A DbConnectInterface that makes every operation of a DbConnect under a
+ * ResiliencePolicy: idempotent operations that fail with a transient error are
+ * retried, and while the database keeps failing operations are rejected at
+ * once by the circuit breaker. An operation that fails or is rejected returns
+ * the same default value as DbConnect, or throws a DatabaseException if the
+ * policy fails fast.
+ *
+ * Operations that insert rows or add to a count are not retried, since a lost
+ * connection does not tell whether they were applied, and neither are
+ * operations of a UnitOfWork, whose transaction the error has ended.
+ */
+public class ResilientDbConnect implements DbConnectInterface {
+	private final DbConnect db;
+	private final ResiliencePolicy policy;
+
+	/**
+	 * Constructor - reads the policy from the resilience.* properties.
+	 */
+	public ResilientDbConnect(DbConnect db, Properties properties) {
+		this(db, new ResiliencePolicy(properties));
+	}
+
+	/**
+	 * Constructor - the operations made through this object report their
+	 * failures to the policy by throwing a DatabaseException, while other
+	 * callers of db still get the default values of DbConnect.
+	 *
+	 * @param db
+	 *            the implementation that operations are delegated to.
+	 * @param policy
+	 *            the retry and circuit breaker policy.
+	 */
+	public ResilientDbConnect(DbConnect db, ResiliencePolicy policy) {
+		this.db = db;
+		this.policy = policy;
+	}
+
+	public ResiliencePolicy getPolicy() {
+		return policy;
+	}
+
+	private <T> T call(String operation, boolean idempotent, T fallback, Supplier<T> call) {
+		return policy.call(operation, idempotent && !db.inUnitOfWork(), fallback, () -> db.throwingErrors(call));
+	}
+
+	private void run(String operation, boolean idempotent, Runnable operationCall) {
+		call(operation, idempotent, null, () -> {
+			operationCall.run();
+			return null;
+		});
+	}
+
+	public void registerUser(String username, String password, String nickname) {
+		run("registerUser", false, () -> db.registerUser(username, password, nickname));
+	}
+
+	public BulkResult registerUsers(Iterable<NewUser> users, int batchSize) {
+		return call("registerUsers", false, new BulkResult(), () -> db.registerUsers(users, batchSize));
+	}
+
+	public void updateNickname(String username, String nickname) {
+		run("updateNickname", true, () -> db.updateNickname(username, nickname));
+	}
+
+	public boolean checkUsernameExists(String username) {
+		return call("checkUsernameExists", true, false, () -> db.checkUsernameExists(username));
+	}
+
+	public boolean checkLogin(String username, String password) {
+		return call("checkLogin", true, false, () -> db.checkLogin(username, password));
+	}
+
+	public int retrieveHighScore(String user) {
+		return call("retrieveHighScore", true, 0, () -> db.retrieveHighScore(user));
+	}
+
+	public UserProfile retrieveProfile(String user) {
+		return call("retrieveProfile", true, null, () -> db.retrieveProfile(user));
+	}
+
+	public int getNumberGamesPlayed(String user) {
+		return call("getNumberGamesPlayed", true, 0, () -> db.getNumberGamesPlayed(user));
+	}
+
+	public int getNumberWins(String user) {
+		return call("getNumberWins", true, 0, () -> db.getNumberWins(user));
+	}
+
+	public HashMap<String, Integer> retrieveAllHighscores() {
+		return call("retrieveAllHighscores", true, new HashMap<String, Integer>(), db::retrieveAllHighscores);
+	}
+
+	public LinkedHashMap<String, Integer> retrieveTopHighscores(int limit) {
+		return call("retrieveTopHighscores", true, new LinkedHashMap<String, Integer>(),
+				() -> db.retrieveTopHighscores(limit));
+	}
+
+	public LinkedHashMap<String, Integer> retrieveHighscoresBelow(int highScore, String username, int limit) {
+		return call("retrieveHighscoresBelow", true, new LinkedHashMap<String, Integer>(),
+				() -> db.retrieveHighscoresBelow(highScore, username, limit));
+	}
+
+	public void streamHighscores(ScoreConsumer consumer) {
+		// the consumer may already have been given some of the scores
+		run("streamHighscores", false, () -> db.streamHighscores(consumer));
+	}
+
+	public void updateHighScore(String user, int highScore) {
+		run("updateHighScore", true, () -> db.updateHighScore(user, highScore));
+	}
+
+	public void updateGames(String user) {
+		run("updateGames", false, () -> db.updateGames(user));
+	}
+
+	public void addFriend(String user_one, String user_two) {
+		run("addFriend", false, () -> db.addFriend(user_one, user_two));
+	}
+
+	public BulkResult addFriends(Iterable<FriendPair> requests, int batchSize) {
+		return call("addFriends", false, new BulkResult(), () -> db.addFriends(requests, batchSize));
+	}
+
+	public void acceptFriend(String user_one, String user_two) {
+		run("acceptFriend", true, () -> db.acceptFriend(user_one, user_two));
+	}
+
+	public void declineFriend(String user_one, String user_two) {
+		run("declineFriend", true, () -> db.declineFriend(user_one, user_two));
+	}
+
+	public void checkFriendship(String user_one, String user_two) {
+		run("checkFriendship", true, () -> db.checkFriendship(user_one, user_two));
+	}
+
+	public ArrayList<String> friendsList(String user) {
+		return call("friendsList", true, new ArrayList<String>(), () -> db.friendsList(user));
+	}
+
+	public boolean checkHighScore(String username, int latestScore) {
+		return call("checkHighScore", true, false, () -> db.checkHighScore(username, latestScore));
+	}
+}
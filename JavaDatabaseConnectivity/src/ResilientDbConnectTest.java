@@ -0,0 +1,184 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * JUnit tests for ResilientDbConnect, injecting faults into an in-memory H2
+ * database through FaultInjectingDriver.
+ */
+public class ResilientDbConnectTest {
+	private static final String URL = "jdbc:h2:mem:resilience;MODE=MySQL;DB_CLOSE_DELAY=-1";
+
+	private Connection setupConnection;
+	private FaultInjectingDriver driver;
+	private DbConnect db;
+	private final List<String> events = new ArrayList<String>();
+
+	@Before
+	public void setUp() throws SQLException {
+		this.setupConnection = DriverManager.getConnection(URL, "sa", "");
+		try (Statement statement = setupConnection.createStatement()) {
+			statement.execute("CREATE TABLE user_info (username VARCHAR(64) PRIMARY KEY, password VARCHAR(64), "
+					+ "nickname VARCHAR(64), high_score INT DEFAULT 0 NOT NULL, "
+					+ "number_games_played INT DEFAULT 0 NOT NULL, number_wins INT DEFAULT 0 NOT NULL)");
+			statement.execute("INSERT INTO user_info (username, password, high_score) VALUES ('ch4rlie', '1234a', 40)");
+		}
+		this.driver = FaultInjectingDriver.get();
+	}
+
+	@After
+	public void tearDown() throws SQLException {
+		driver.reset();
+		if (db != null)
+			db.close();
+		try (Statement statement = setupConnection.createStatement()) {
+			statement.execute("DROP ALL OBJECTS");
+		}
+		setupConnection.close();
+	}
+
+	private ResilientDbConnect connect(Properties extra) {
+		Properties properties = new Properties();
+		properties.setProperty("user", "sa");
+		properties.setProperty("resilience.backoffMillis", "1");
+		properties.setProperty("resilience.failureThreshold", "3");
+		properties.setProperty("resilience.openMillis", "200");
+		properties.putAll(extra);
+		this.db = new DbConnect(properties, FaultInjectingDriver.PREFIX + URL);
+		ResilientDbConnect con = new ResilientDbConnect(db, properties);
+		con.getPolicy().addListener(new ResiliencePolicy.Listener() {
+			public void retrying(String operation, int attempt, long delayMillis, SQLException cause) {
+				events.add("retry " + operation + " " + attempt);
+			}
+
+			public void rejected(String operation) {
+				events.add("rejected " + operation);
+			}
+
+			public void stateChanged(CircuitBreaker.State from, CircuitBreaker.State to) {
+				events.add(from + "->" + to);
+			}
+		});
+		return con;
+	}
+
+	@Test
+	public void testDeadlockIsRetried() {
+		ResilientDbConnect con = connect(new Properties());
+		driver.failStatements(2, "40001");
+
+		assertTrue(con.checkLogin("ch4rlie", "1234a"));
+		assertEquals(2, con.getPolicy().getRetryCount());
+		assertEquals("retry checkLogin 2", events.get(1));
+	}
+
+	@Test
+	public void testRetriesAreBounded() {
+		ResilientDbConnect con = connect(new Properties());
+		driver.failStatements(10, "40001");
+
+		assertEquals(0, con.retrieveHighScore("ch4rlie"));
+		assertEquals(2, con.getPolicy().getRetryCount());
+		assertEquals(1, con.getPolicy().getFailureCount());
+	}
+
+	@Test
+	public void testInsertIsNotRetried() {
+		ResilientDbConnect con = connect(new Properties());
+		driver.failStatements(1, "08S01");
+
+		con.registerUser("doggo", "woof", "dog");
+
+		assertEquals(0, con.getPolicy().getRetryCount());
+		assertFalse(con.checkUsernameExists("doggo"));
+	}
+
+	@Test
+	public void testConstraintViolationIsNotTransient() {
+		ResilientDbConnect con = connect(new Properties());
+		for (int i = 0; i < 5; i++) {
+			con.registerUser("ch4rlie", "again", null);
+		}
+
+		assertEquals(CircuitBreaker.State.CLOSED, con.getPolicy().getCircuitBreaker().getState());
+		assertEquals(0, con.getPolicy().getRetryCount());
+	}
+
+	@Test
+	public void testBreakerFailsFastDuringOutage() throws InterruptedException {
+		Properties properties = new Properties();
+		properties.setProperty("resilience.maxRetries", "0");
+		ResilientDbConnect con = connect(properties);
+		driver.setDown(true);
+
+		for (int i = 0; i < 3; i++) {
+			assertEquals(0, con.retrieveHighScore("ch4rlie"));
+		}
+		assertEquals(CircuitBreaker.State.OPEN, con.getPolicy().getCircuitBreaker().getState());
+		int connects = driver.getConnectCount();
+		assertEquals(0, con.retrieveHighScore("ch4rlie"));
+		assertEquals(connects, driver.getConnectCount());
+		assertTrue(events.contains("rejected retrieveHighScore"));
+
+		driver.setDown(false);
+		Thread.sleep(250);
+		assertEquals(40, con.retrieveHighScore("ch4rlie"));
+		assertEquals(CircuitBreaker.State.CLOSED, con.getPolicy().getCircuitBreaker().getState());
+	}
+
+	@Test
+	public void testFailFastThrows() {
+		Properties properties = new Properties();
+		properties.setProperty("resilience.failFast", "true");
+		ResilientDbConnect con = connect(properties);
+		driver.setDown(true);
+
+		try {
+			con.checkLogin("ch4rlie", "1234a");
+			fail();
+		} catch (DatabaseException e) {
+			assertEquals("checkLogin", e.getOperation());
+			assertTrue(e.getSQLState().startsWith("08"));
+		}
+	}
+
+	@Test
+	public void testDirectCallersKeepDefaultValues() {
+		ResilientDbConnect con = connect(new Properties());
+		driver.setDown(true);
+
+		assertEquals(0, db.retrieveHighScore("ch4rlie"));
+		assertFalse(db.checkLogin("ch4rlie", "1234a"));
+		assertEquals(0, con.getPolicy().getFailureCount());
+	}
+
+	@Test
+	public void testQueryTimeoutPerOperation() {
+		Properties properties = new Properties();
+		properties.setProperty("resilience.queryTimeoutSeconds.checkLogin", "1");
+		properties.setProperty("resilience.maxRetries", "0");
+		ResilientDbConnect con = connect(properties);
+
+		assertEquals(40, con.retrieveHighScore("ch4rlie"));
+		assertEquals(0, driver.getLastQueryTimeout());
+
+		driver.setStatementMillis(5000);
+		long start = System.nanoTime();
+		assertFalse(con.checkLogin("ch4rlie", "1234a"));
+		assertTrue(System.nanoTime() - start < 4000000000L);
+		assertEquals(1, driver.getLastQueryTimeout());
+	}
+}
@@ -0,0 +1,273 @@
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.ParameterMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Creates the user_info, friends and rank_snapshot tables and the indexes that
+ * the queries of DbConnect rely on, and finds the statements that would read
+ * a whole table.
+ */
+public class SchemaManager {
+	static final String CREATE_SCHEMA_VERSION = "CREATE TABLE schema_version (version INT NOT NULL PRIMARY KEY, description VARCHAR(255) NOT NULL, applied_at TIMESTAMP NOT NULL)";
+	static final String SELECT_VERSION = "SELECT MAX(version) FROM schema_version";
+	static final String INSERT_VERSION = "INSERT INTO schema_version (version, description, applied_at) VALUES (?, ?, ?)";
+
+	/**
+	 * One change to the schema, made only if the table or index it creates does
+	 * not exist yet.
+	 */
+	private static final class Step {
+		final String table;
+		final String index;
+		final String ddl;
+
+		Step(String table, String index, String ddl) {
+			this.table = table;
+			this.index = index;
+			this.ddl = ddl;
+		}
+	}
+
+	/**
+	 * A numbered set of steps. Migrations are applied in order and never
+	 * changed once released; later changes are new migrations.
+	 */
+	private static final class Migration {
+		final int version;
+		final String description;
+		final Step[] steps;
+
+		Migration(int version, String description, Step... steps) {
+			this.version = version;
+			this.description = description;
+			this.steps = steps;
+		}
+	}
+
+	private static final Migration[] MIGRATIONS = {
+			new Migration(1, "Create user_info and friends",
+					new Step("user_info", null,
+							"CREATE TABLE user_info (username VARCHAR(64) NOT NULL PRIMARY KEY, "
+									+ "password VARCHAR(64) NOT NULL, nickname VARCHAR(64), "
+									+ "high_score INT DEFAULT 0 NOT NULL, number_games_played INT DEFAULT 0 NOT NULL, "
+									+ "number_wins INT DEFAULT 0 NOT NULL)"),
+					new Step("friends", null,
+							"CREATE TABLE friends (user_one VARCHAR(64) NOT NULL, user_two VARCHAR(64) NOT NULL, "
+									+ "relation INT NOT NULL, action_user VARCHAR(64), PRIMARY KEY (user_one, user_two))")),
+			new Migration(2, "Index high scores and received friend requests",
+					new Step("user_info", "idx_user_info_high_score",
+							"CREATE INDEX idx_user_info_high_score ON user_info (high_score DESC, username)"),
+					new Step("friends", "idx_friends_user_two",
+							"CREATE INDEX idx_friends_user_two ON friends (user_two, relation)")),
+			new Migration(3, "Create rank_snapshot",
+					new Step("rank_snapshot", null,
+							"CREATE TABLE rank_snapshot (place INT NOT NULL PRIMARY KEY, username VARCHAR(64) NOT NULL, "
+									+ "high_score INT NOT NULL, taken_at TIMESTAMP NOT NULL)")) };
+
+	/**
+	 * Version of the schema after every migration.
+	 */
+	public static final int LATEST_VERSION = MIGRATIONS[MIGRATIONS.length - 1].version;
+
+	/**
+	 * Method to apply every migration the database has not had yet, recording
+	 * each in the schema_version table. Each step first checks the database
+	 * metadata, so a database whose tables were created by hand only gets what
+	 * is missing, and an up to date database only has its version read.
+	 *
+	 * @param connection
+	 *            connection to the database, in autocommit mode.
+	 * @return the number of migrations applied.
+	 */
+	public int migrate(Connection connection) throws SQLException {
+		if (findTable(connection, "schema_version") == null)
+			execute(connection, CREATE_SCHEMA_VERSION);
+		int version = getVersion(connection);
+		int applied = 0;
+		for (Migration migration : MIGRATIONS) {
+			if (migration.version <= version)
+				continue;
+			for (Step step : migration.steps) {
+				apply(connection, step);
+			}
+			try (PreparedStatement insert = connection.prepareStatement(INSERT_VERSION)) {
+				insert.setInt(1, migration.version);
+				insert.setString(2, migration.description);
+				insert.setTimestamp(3, new Timestamp(System.currentTimeMillis()));
+				insert.executeUpdate();
+			} catch (SQLException e) {
+				// another process applied the same migration at the same time
+				if (e.getSQLState() == null || !e.getSQLState().startsWith("23"))
+					throw e;
+			}
+			applied++;
+		}
+		return applied;
+	}
+
+	/**
+	 * @return the version of the schema of the database, or 0 if it has had no
+	 *         migration.
+	 */
+	public int getVersion(Connection connection) throws SQLException {
+		if (findTable(connection, "schema_version") == null)
+			return 0;
+		try (Statement statement = connection.createStatement();
+				ResultSet rs = statement.executeQuery(SELECT_VERSION)) {
+			return rs.next() ? rs.getInt(1) : 0;
+		}
+	}
+
+	private static void apply(Connection connection, Step step) throws SQLException {
+		String table = findTable(connection, step.table);
+		if (step.index == null ? table == null : table != null && !hasIndex(connection, table, step.index))
+			execute(connection, step.ddl);
+	}
+
+	private static void execute(Connection connection, String ddl) throws SQLException {
+		try (Statement statement = connection.createStatement()) {
+			statement.execute(ddl);
+		}
+	}
+
+	/**
+	 * @return the name of a table as the database stores it, which may differ
+	 *         in case from the name in the SQL, or null if it does not exist.
+	 */
+	private static String findTable(Connection connection, String table) throws SQLException {
+		DatabaseMetaData metadata = connection.getMetaData();
+		for (String name : new String[] { table, table.toUpperCase(Locale.ROOT), table.toLowerCase(Locale.ROOT) }) {
+			try (ResultSet rs = metadata.getTables(connection.getCatalog(), null, name, new String[] { "TABLE" })) {
+				if (rs.next())
+					return rs.getString("TABLE_NAME");
+			}
+		}
+		return null;
+	}
+
+	private static boolean hasIndex(Connection connection, String table, String index) throws SQLException {
+		try (ResultSet rs = connection.getMetaData().getIndexInfo(connection.getCatalog(), null, table, false,
+				true)) {
+			while (rs.next()) {
+				if (index.equalsIgnoreCase(rs.getString("INDEX_NAME")))
+					return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Method to find the statements whose plan reads a whole table, so that a
+	 * missing index is found before it causes load. Plans are read from the
+	 * "type" column of MySQL's EXPLAIN, where a full scan is ALL, or from the
+	 * text of the plan, where H2 reports a tableScan and PostgreSQL a Seq Scan.
+	 * Statements other than SELECT, UPDATE and DELETE are skipped.
+	 *
+	 * @param statements
+	 *            statements to explain, whose parameters are bound to sample
+	 *            values.
+	 * @param expectedScans
+	 *            statements that read every row by design, which are not
+	 *            reported.
+	 * @return a description of every full scan found, empty if there are none.
+	 */
+	public List<String> advise(Connection connection, String[] statements, Collection<String> expectedScans) {
+		ArrayList<String> findings = new ArrayList<String>();
+		for (String sql : statements) {
+			String verb = sql.trim().split("\\s+", 2)[0].toUpperCase(Locale.ROOT);
+			if (expectedScans.contains(sql) || !(verb.equals("SELECT") || verb.equals("UPDATE")
+					|| verb.equals("DELETE")))
+				continue;
+			try (PreparedStatement explain = connection.prepareStatement("EXPLAIN " + stripSemicolon(sql))) {
+				bindSamples(explain);
+				try (ResultSet plan = explain.executeQuery()) {
+					String scan = fullScan(plan);
+					if (scan != null)
+						findings.add("Full scan (" + scan + ") in: " + sql);
+				}
+			} catch (SQLException e) {
+				findings.add("Could not explain (" + e.getSQLState() + "): " + sql);
+			}
+		}
+		return findings;
+	}
+
+	private static String stripSemicolon(String sql) {
+		String trimmed = sql.trim();
+		return trimmed.endsWith(";") ? trimmed.substring(0, trimmed.length() - 1) : trimmed;
+	}
+
+	/**
+	 * Method to bind a number to each numeric parameter and a string to every
+	 * other, using the parameter types when the driver reports them.
+	 */
+	private static void bindSamples(PreparedStatement statement) throws SQLException {
+		ParameterMetaData parameters = statement.getParameterMetaData();
+		for (int i = 1; i <= parameters.getParameterCount(); i++) {
+			int type;
+			try {
+				type = parameters.getParameterType(i);
+			} catch (SQLException e) {
+				type = Types.VARCHAR;
+			}
+			switch (type) {
+			case Types.INTEGER:
+			case Types.BIGINT:
+			case Types.SMALLINT:
+			case Types.TINYINT:
+			case Types.NUMERIC:
+			case Types.DECIMAL:
+				statement.setInt(i, 1);
+				break;
+			default:
+				statement.setString(i, "advisor");
+			}
+		}
+	}
+
+	/**
+	 * @return the table or plan fragment of the first full scan in a plan, or
+	 *         null if the plan only uses indexes.
+	 */
+	private static String fullScan(ResultSet plan) throws SQLException {
+		ResultSetMetaData columns = plan.getMetaData();
+		int typeColumn = 0;
+		int tableColumn = 0;
+		for (int i = 1; i <= columns.getColumnCount(); i++) {
+			if (columns.getColumnLabel(i).equalsIgnoreCase("type"))
+				typeColumn = i;
+			else if (columns.getColumnLabel(i).equalsIgnoreCase("table"))
+				tableColumn = i;
+		}
+		while (plan.next()) {
+			if (typeColumn > 0) {
+				if ("ALL".equalsIgnoreCase(plan.getString(typeColumn)))
+					return tableColumn > 0 ? plan.getString(tableColumn) : "ALL";
+				continue;
+			}
+			for (int i = 1; i <= columns.getColumnCount(); i++) {
+				String text = plan.getString(i);
+				if (text == null)
+					continue;
+				int at = text.indexOf("tableScan");
+				if (at < 0)
+					at = text.indexOf("Seq Scan");
+				if (at >= 0)
+					return text.substring(Math.max(0, text.lastIndexOf("/*", at)), at).replace("/*", "").trim()
+							+ text.substring(at, Math.min(text.length(), at + 9));
+			}
+		}
+		return null;
+	}
+}
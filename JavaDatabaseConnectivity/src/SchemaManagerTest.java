@@ -0,0 +1,97 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * JUnit tests for SchemaManager against an in-memory H2 database.
+ */
+public class SchemaManagerTest {
+	private static final String URL = "jdbc:h2:mem:schema;MODE=MySQL;DB_CLOSE_DELAY=-1";
+
+	private Connection connection;
+	private SchemaManager schema;
+
+	@Before
+	public void setUp() throws SQLException {
+		this.connection = DriverManager.getConnection(URL, "sa", "");
+		this.schema = new SchemaManager();
+	}
+
+	@After
+	public void tearDown() throws SQLException {
+		try (Statement statement = connection.createStatement()) {
+			statement.execute("DROP ALL OBJECTS");
+		}
+		connection.close();
+	}
+
+	@Test
+	public void testMigrateCreatesSchemaOnce() throws SQLException {
+		assertEquals(0, schema.getVersion(connection));
+		assertEquals(SchemaManager.LATEST_VERSION, schema.migrate(connection));
+		assertEquals(SchemaManager.LATEST_VERSION, schema.getVersion(connection));
+		assertEquals(0, schema.migrate(connection));
+
+		try (Statement statement = connection.createStatement();
+				ResultSet rs = statement.executeQuery("SELECT COUNT(*) FROM friends")) {
+			rs.next();
+			assertEquals(0, rs.getInt(1));
+		}
+	}
+
+	@Test
+	public void testMigrateKeepsExistingTables() throws SQLException {
+		try (Statement statement = connection.createStatement()) {
+			statement.execute("CREATE TABLE user_info (username VARCHAR(64) PRIMARY KEY, password VARCHAR(64), "
+					+ "nickname VARCHAR(64), high_score INT DEFAULT 0 NOT NULL, "
+					+ "number_games_played INT DEFAULT 0 NOT NULL, number_wins INT DEFAULT 0 NOT NULL)");
+			statement.execute("INSERT INTO user_info (username, password) VALUES ('ch4rlie', '1234a')");
+		}
+
+		schema.migrate(connection);
+
+		try (Statement statement = connection.createStatement();
+				ResultSet rs = statement.executeQuery("SELECT COUNT(*) FROM user_info")) {
+			rs.next();
+			assertEquals(1, rs.getInt(1));
+		}
+	}
+
+	@Test
+	public void testAdvisorFlagsFullScans() throws SQLException {
+		schema.migrate(connection);
+		String byNickname = "SELECT username FROM user_info WHERE nickname = ?;";
+
+		List<String> findings = schema.advise(connection, new String[] { DbConnect.SELECT_PASSWORD, byNickname },
+				Collections.<String>emptyList());
+
+		assertEquals(1, findings.size());
+		assertTrue(findings.get(0).endsWith(byNickname));
+	}
+
+	@Test
+	public void testDbConnectLookupsUseIndexes() throws SQLException {
+		Properties properties = new Properties();
+		properties.setProperty("user", "sa");
+		properties.setProperty("schema.bootstrap", "true");
+		try (DbConnect con = new DbConnect(properties, URL)) {
+			assertEquals(SchemaManager.LATEST_VERSION, schema.getVersion(connection));
+			for (String finding : con.adviseIndexes()) {
+				assertFalse(finding, finding.contains("username = ?") || finding.contains("user_one = ?"));
+			}
+		}
+	}
+}
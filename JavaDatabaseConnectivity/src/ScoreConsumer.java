@@ -0,0 +1,17 @@
+/**
+ * Receives the rows of a leaderboard query one at a time, so that the rows do
+ * not need to be held in memory together.
+ */
+@FunctionalInterface
+public interface ScoreConsumer {
+
+	/**
+	 * Method called once for every row, in rank order.
+	 * 
+	 * @param username
+	 *            username of the user.
+	 * @param highScore
+	 *            high score of the user.
+	 */
+	public void accept(String username, int highScore);
+}
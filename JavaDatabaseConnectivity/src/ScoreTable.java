@@ -0,0 +1,92 @@
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+
+/**
+ * A reusable table of usernames and high scores, kept in a String array and
+ * an int array rather than a map, so that reading a leaderboard into it boxes
+ * no score and allocates no entry per row. Clearing the table keeps its
+ * arrays, so a table that is filled again and again only allocates when it
+ * has to grow.
+ */
+public class ScoreTable implements ScoreConsumer {
+	private String[] usernames;
+	private int[] scores;
+	private int size;
+
+	/**
+	 * Constructor - creates an empty table.
+	 */
+	public ScoreTable() {
+		this(16);
+	}
+
+	/**
+	 * @param capacity
+	 *            number of rows the table holds before it grows.
+	 */
+	public ScoreTable(int capacity) {
+		this.usernames = new String[Math.max(1, capacity)];
+		this.scores = new int[usernames.length];
+	}
+
+	/**
+	 * Method to add a row after the others.
+	 */
+	@Override
+	public void accept(String username, int highScore) {
+		if (size == usernames.length) {
+			usernames = Arrays.copyOf(usernames, size * 2);
+			scores = Arrays.copyOf(scores, size * 2);
+		}
+		usernames[size] = username;
+		scores[size++] = highScore;
+	}
+
+	/**
+	 * Method to remove every row, keeping the arrays for the next rows.
+	 */
+	public void clear() {
+		Arrays.fill(usernames, 0, size, null);
+		size = 0;
+	}
+
+	/**
+	 * @return number of rows.
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @param row
+	 *            index of the row, from 0.
+	 */
+	public String getUsername(int row) {
+		if (row >= size)
+			throw new IndexOutOfBoundsException("Row " + row + " of " + size);
+		return usernames[row];
+	}
+
+	/**
+	 * @param row
+	 *            index of the row, from 0.
+	 */
+	public int getScore(int row) {
+		if (row >= size)
+			throw new IndexOutOfBoundsException("Row " + row + " of " + size);
+		return scores[row];
+	}
+
+	/**
+	 * @return LinkedHashMap<String, Integer> of username to high score, in the
+	 *         order of the rows, e.g. to compare with the map methods of
+	 *         DbConnect.
+	 */
+	public LinkedHashMap<String, Integer> toMap() {
+		LinkedHashMap<String, Integer> map = new LinkedHashMap<String, Integer>();
+		for (int row = 0; row < size; row++) {
+			map.put(usernames[row], scores[row]);
+		}
+		return map;
+	}
+}
@@ -0,0 +1,63 @@
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+/**
+ * JUnit tests for ScoreTable
+ */
+public class ScoreTableTest {
+
+	@Test
+	public void testRowsKeepOrder() {
+		ScoreTable table = new ScoreTable(1);
+		table.accept("dog", 30);
+		table.accept("ben", 20);
+		table.accept("tomo", 20);
+
+		assertEquals(3, table.size());
+		assertEquals("ben", table.getUsername(1));
+		assertEquals(20, table.getScore(2));
+		assertEquals(Arrays.asList("dog", "ben", "tomo"), new ArrayList<String>(table.toMap().keySet()));
+	}
+
+	@Test
+	public void testClearKeepsCapacity() {
+		ScoreTable table = new ScoreTable(2);
+		table.accept("dog", 30);
+		table.accept("ben", 20);
+		table.clear();
+		table.accept("ch4rlie", 10);
+
+		assertEquals(1, table.size());
+		assertEquals("ch4rlie", table.getUsername(0));
+		assertEquals(10, table.getScore(0));
+	}
+
+	@Test(expected = IndexOutOfBoundsException.class)
+	public void testRowAfterClear() {
+		ScoreTable table = new ScoreTable();
+		table.accept("dog", 30);
+		table.clear();
+		table.getUsername(0);
+	}
+
+	@Test
+	public void testFilledFromLeaderboard() {
+		Leaderboard leaderboard = new Leaderboard();
+		leaderboard.update("ch4rlie", 10);
+		leaderboard.update("dog", 30);
+		leaderboard.update("tomo", 20);
+		leaderboard.update("ben", 20);
+		ScoreTable table = new ScoreTable();
+
+		leaderboard.forEach(3, table);
+		assertEquals(leaderboard.top(3), table.toMap());
+
+		table.clear();
+		leaderboard.forEach(table);
+		assertEquals(leaderboard.top(10), table.toMap());
+	}
+}
@@ -0,0 +1,874 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Spreads the users over several databases, each holding the user_info and
+ * friends tables, by consistent hashing of the username. Every operation about
+ * a user is made by the DbConnect of the user's shard. A friend request
+ * between users of different shards is stored on both shards, so the friends
+ * of a user can always be read from the user's own shard; a change to it that
+ * fails on one shard is undone on the other. Operations across
+ * every user merge the high scores of each shard, which are already sorted,
+ * one page at a time.
+ *
+ * The shards are configured by the following keys, which are not forwarded to
+ * the driver; every other property configures the DbConnect of each shard:
+ * <ul>
+ * <li>shard.urls - comma separated JDBC urls of the shards</li>
+ * <li>shard.virtualNodes - points per shard on the hash ring (default 128)</li>
+ * </ul>
+ * Usernames are compared as Java strings, so the databases must sort them
+ * with a binary collation for high scores to be merged in order.
+ */
+public class ShardedDbConnect implements DbConnectInterface, AutoCloseable {
+	static final String SELECT_USERS = "SELECT username, password, nickname, high_score, number_games_played, number_wins FROM user_info;";
+	static final String SELECT_USER = "SELECT username, password, nickname, high_score, number_games_played, number_wins FROM user_info WHERE username = ?;";
+	static final String INSERT_USER = "INSERT INTO user_info (username, password, nickname, high_score, number_games_played, number_wins) VALUES (?, ?, ?, ?, ?, ?);";
+	static final String DELETE_USER = "DELETE FROM user_info WHERE username = ?;";
+	static final String SELECT_EDGES = "SELECT user_one, user_two, relation, action_user FROM friends;";
+	static final String SELECT_EDGE = "SELECT user_one, user_two, relation, action_user FROM friends WHERE user_one = ? AND user_two = ?;";
+	static final String SELECT_USER_EDGES = "SELECT user_one, user_two, relation, action_user FROM friends WHERE user_one = ? OR user_two = ?;";
+	static final String INSERT_EDGE = "INSERT INTO friends (user_one, user_two, relation, action_user) VALUES (?, ?, ?, ?);";
+	static final String DELETE_EDGE = "DELETE FROM friends WHERE user_one = ? AND user_two = ?;";
+	static final String DELETE_USER_EDGES = "DELETE FROM friends WHERE user_one = ? OR user_two = ?;";
+
+	/**
+	 * Number of rows copied per transaction when a shard is added, and number of
+	 * high scores read from each shard at a time when merging.
+	 */
+	static final int PAGE_SIZE = 1000;
+
+	/**
+	 * Highest score first, then by username, the order of every high score
+	 * query.
+	 */
+	private static final Comparator<ShardCursor> ORDER = new Comparator<ShardCursor>() {
+		public int compare(ShardCursor a, ShardCursor b) {
+			if (a.highScore != b.highScore)
+				return a.highScore > b.highScore ? -1 : 1;
+			return a.username.compareTo(b.username);
+		}
+	};
+
+	/**
+	 * Reads the high scores of one shard a page at a time, skipping the users
+	 * that the shard no longer owns because they were moved to a new shard and
+	 * have not been deleted yet.
+	 */
+	private static final class ShardCursor {
+		private final int index;
+		private final DbConnect shard;
+		private final ConsistentHashRing ring;
+		private final int pageSize;
+		private boolean fromTop;
+		private boolean lastPage;
+		private Iterator<Map.Entry<String, Integer>> page;
+		String username;
+		int highScore;
+
+		ShardCursor(int index, DbConnect shard, ConsistentHashRing ring, int pageSize, Integer highScore,
+				String username) {
+			this.index = index;
+			this.shard = shard;
+			this.ring = ring;
+			this.pageSize = pageSize;
+			this.fromTop = highScore == null;
+			this.highScore = highScore == null ? 0 : highScore;
+			this.username = username;
+		}
+
+		/**
+		 * @return true if the cursor moved to the next high score of the shard.
+		 */
+		boolean advance() {
+			while (true) {
+				if (page == null || !page.hasNext()) {
+					if (lastPage)
+						return false;
+					LinkedHashMap<String, Integer> rows = fromTop ? shard.retrieveTopHighscores(pageSize)
+							: shard.retrieveHighscoresBelow(highScore, username, pageSize);
+					fromTop = false;
+					lastPage = rows.size() < pageSize;
+					page = rows.entrySet().iterator();
+					if (!page.hasNext())
+						return false;
+				}
+				Map.Entry<String, Integer> row = page.next();
+				username = row.getKey();
+				highScore = row.getValue();
+				if (ring.nodeFor(username) == index)
+					return true;
+			}
+		}
+	}
+
+	private final Properties properties;
+	private final int virtualNodes;
+	private final boolean failFast;
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+	private final Object rebalancing = new Object();
+	private volatile DbConnect[] shards;
+	private volatile ConsistentHashRing ring;
+	private volatile Set<String> written;
+
+	/**
+	 * Constructor - connects to the shards listed in the shard.urls property.
+	 *
+	 * @param path
+	 *            The path to the location of the properties file which cannot be
+	 *            null.
+	 */
+	public ShardedDbConnect(String path) {
+		this(DbConnect.loadProperties(path));
+	}
+
+	/**
+	 * Constructor - connects to the shards listed in the shard.urls property of
+	 * properties that have already been loaded.
+	 *
+	 * @param properties
+	 *            driver, pool and shard properties.
+	 */
+	public ShardedDbConnect(Properties properties) {
+		this(properties, Arrays.asList(properties.getProperty("shard.urls", "").split("\\s*,\\s*")));
+	}
+
+	/**
+	 * Constructor - connects to the given shards.
+	 *
+	 * @param properties
+	 *            driver and pool properties of every shard.
+	 * @param urls
+	 *            JDBC urls of the shards, which must be listed in the same order
+	 *            every time.
+	 */
+	public ShardedDbConnect(Properties properties, List<String> urls) {
+		this.properties = properties;
+		this.virtualNodes = ConnectionPool.intProperty(properties, "shard.virtualNodes", 128);
+		this.failFast = Boolean.parseBoolean(properties.getProperty("resilience.failFast"));
+		this.ring = new ConsistentHashRing(urls, virtualNodes);
+		DbConnect[] shards = new DbConnect[urls.size()];
+		for (int i = 0; i < shards.length; i++) {
+			shards[i] = new DbConnect(shardProperties(i), urls.get(i));
+		}
+		this.shards = shards;
+	}
+
+	/**
+	 * @return the properties of one shard, with the files and names that must
+	 *         differ between shards suffixed by the index of the shard.
+	 */
+	private Properties shardProperties(int index) {
+		Properties shard = new Properties();
+		shard.putAll(properties);
+		for (String key : new String[] { "filter.file", "metrics.name" }) {
+			String value = properties.getProperty(key);
+			if (value != null)
+				shard.setProperty(key, value + "." + index);
+		}
+		return shard;
+	}
+
+	/**
+	 * @return index of the shard that holds a user.
+	 */
+	public int shardOf(String username) {
+		return ring.nodeFor(username);
+	}
+
+	/**
+	 * @return the DbConnect of every shard, e.g. to read their metrics.
+	 */
+	public List<DbConnect> getShards() {
+		return Arrays.asList(shards.clone());
+	}
+
+	private DbConnect shardFor(String username) {
+		return shards[ring.nodeFor(username)];
+	}
+
+	/**
+	 * Method to record a write about a user while a shard is being added, so
+	 * that it is copied again before the new shard is used. Must be called with
+	 * the read lock held.
+	 */
+	private void wrote(String username) {
+		Set<String> written = this.written;
+		if (written != null)
+			written.add(username);
+	}
+
+	public void registerUser(String username, String password, String nickname) {
+		lock.readLock().lock();
+		try {
+			wrote(username);
+			shardFor(username).registerUser(username, password, nickname);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Method to register many users, each on the shard of its username. The
+	 * users are read a chunk at a time and each shard registers its part of
+	 * the chunk in batches.
+	 */
+	public BulkResult registerUsers(Iterable<NewUser> users, int batchSize) {
+		return bulk(users, batchSize, NewUser::getUsername, null,
+				(shard, part) -> shard.registerUsers(part, batchSize));
+	}
+
+	public void updateNickname(String username, String nickname) {
+		lock.readLock().lock();
+		try {
+			wrote(username);
+			shardFor(username).updateNickname(username, nickname);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	public boolean checkUsernameExists(String username) {
+		lock.readLock().lock();
+		try {
+			return shardFor(username).checkUsernameExists(username);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	public boolean checkLogin(String username, String password) {
+		if (username == null)
+			return false;
+		lock.readLock().lock();
+		try {
+			return shardFor(username).checkLogin(username, password);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	public int retrieveHighScore(String user) {
+		lock.readLock().lock();
+		try {
+			return shardFor(user).retrieveHighScore(user);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	public UserProfile retrieveProfile(String user) {
+		lock.readLock().lock();
+		try {
+			return shardFor(user).retrieveProfile(user);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	public int getNumberGamesPlayed(String user) {
+		UserProfile profile = retrieveProfile(user);
+		return profile == null ? 0 : profile.getGamesPlayed();
+	}
+
+	public int getNumberWins(String user) {
+		UserProfile profile = retrieveProfile(user);
+		return profile == null ? 0 : profile.getWins();
+	}
+
+	/**
+	 * Method to retrieve all high scores and their associated usernames, merged
+	 * from every shard.
+	 *
+	 * @return LinkedHashMap<String, Integer> corresponding to username and high
+	 *         score, iterating from the highest score.
+	 */
+	public LinkedHashMap<String, Integer> retrieveAllHighscores() {
+		LinkedHashMap<String, Integer> scores = new LinkedHashMap<String, Integer>();
+		merge(null, null, Integer.MAX_VALUE, scores::put);
+		return scores;
+	}
+
+	public LinkedHashMap<String, Integer> retrieveTopHighscores(int limit) {
+		LinkedHashMap<String, Integer> scores = new LinkedHashMap<String, Integer>();
+		merge(null, null, limit, scores::put);
+		return scores;
+	}
+
+	public LinkedHashMap<String, Integer> retrieveHighscoresBelow(int highScore, String username, int limit) {
+		LinkedHashMap<String, Integer> scores = new LinkedHashMap<String, Integer>();
+		merge(highScore, username, limit, scores::put);
+		return scores;
+	}
+
+	/**
+	 * Method to pass every high score and its associated username to a consumer,
+	 * highest score first, reading a page at a time from every shard.
+	 */
+	public void streamHighscores(ScoreConsumer consumer) {
+		merge(null, null, Integer.MAX_VALUE, consumer);
+	}
+
+	/**
+	 * Method to merge the sorted high scores of every shard: the next score is
+	 * always the highest of the next scores of the shards.
+	 *
+	 * @param highScore
+	 *            score to start below, or null to start at the highest score.
+	 * @param username
+	 *            username of the score to start after, or null to start strictly
+	 *            below highScore.
+	 * @param limit
+	 *            maximum number of scores passed to the consumer.
+	 */
+	private void merge(Integer highScore, String username, int limit, ScoreConsumer consumer) {
+		if (limit <= 0)
+			return;
+		lock.readLock().lock();
+		try {
+			DbConnect[] shards = this.shards;
+			ConsistentHashRing ring = this.ring;
+			PriorityQueue<ShardCursor> heads = new PriorityQueue<ShardCursor>(shards.length, ORDER);
+			for (int i = 0; i < shards.length; i++) {
+				ShardCursor cursor = new ShardCursor(i, shards[i], ring, Math.min(PAGE_SIZE, limit), highScore,
+						username);
+				if (cursor.advance())
+					heads.add(cursor);
+			}
+			for (int merged = 0; merged < limit && !heads.isEmpty(); merged++) {
+				ShardCursor head = heads.poll();
+				consumer.accept(head.username, head.highScore);
+				if (head.advance())
+					heads.add(head);
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	public void updateHighScore(String user, int highScore) {
+		lock.readLock().lock();
+		try {
+			wrote(user);
+			shardFor(user).updateHighScore(user, highScore);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	public void updateGames(String user) {
+		lock.readLock().lock();
+		try {
+			wrote(user);
+			shardFor(user).updateGames(user);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	public boolean checkHighScore(String username, int latestScore) {
+		lock.readLock().lock();
+		try {
+			wrote(username);
+			return shardFor(username).checkHighScore(username, latestScore);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Method to add a pending friend request, on the shard of each user.
+	 */
+	public void addFriend(String user_one, String user_two) {
+		onBothShards("addFriend", user_one, user_two, shard -> shard.addFriend(user_one, user_two));
+	}
+
+	/**
+	 * Method to add many pending friend requests, each on the shard of each of
+	 * its users. A request is counted once however many shards hold it.
+	 */
+	public BulkResult addFriends(Iterable<FriendPair> requests, int batchSize) {
+		return bulk(requests, batchSize, FriendPair::getUserOne, FriendPair::getUserTwo,
+				(shard, part) -> shard.addFriends(part, batchSize));
+	}
+
+	public void acceptFriend(String user_one, String user_two) {
+		onBothShards("acceptFriend", user_two, user_one, shard -> shard.acceptFriend(user_one, user_two));
+	}
+
+	public void declineFriend(String user_one, String user_two) {
+		onBothShards("declineFriend", user_two, user_one, shard -> shard.declineFriend(user_one, user_two));
+	}
+
+	/**
+	 * Method to change the friend request from sender to receiver on the shard
+	 * of each user. The shards are written one after the other, so if the
+	 * change fails on the receiver's shard the row on the sender's shard is put
+	 * back as it was, and no user is left with a one-sided friendship.
+	 */
+	private void onBothShards(String operation, String sender, String receiver, Consumer<DbConnect> change) {
+		lock.readLock().lock();
+		try {
+			wrote(sender);
+			wrote(receiver);
+			DbConnect first = shardFor(sender);
+			DbConnect second = shardFor(receiver);
+			if (first == second) {
+				change.accept(first);
+				return;
+			}
+
+			Object[] before;
+			try {
+				before = readEdge(first, sender, receiver);
+			} catch (SQLException e) {
+				failed(new DatabaseException(operation, e));
+				return;
+			}
+			try {
+				first.throwingErrors(() -> {
+					change.accept(first);
+					return null;
+				});
+			} catch (DatabaseException e) {
+				failed(e);
+				return;
+			}
+			try {
+				second.throwingErrors(() -> {
+					change.accept(second);
+					return null;
+				});
+			} catch (DatabaseException e) {
+				try {
+					restoreEdge(first, sender, receiver, before);
+					first.friendRequestRestored(sender, receiver, before == null ? null : ((Number) before[2]).intValue());
+				} catch (SQLException restoreError) {
+					e.addSuppressed(restoreError);
+					System.err.println("Error restoring friend request from " + sender + " to " + receiver
+							+ " on shard " + shardOf(sender));
+				}
+				failed(e);
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Method to report a failed operation the way DbConnect does.
+	 */
+	private void failed(DatabaseException e) {
+		if (failFast)
+			throw e;
+		System.err.println("Error processing SQL statement");
+	}
+
+	/**
+	 * @return the row of the friend request from sender to receiver, or null
+	 *         if there is none.
+	 */
+	private static Object[] readEdge(DbConnect shard, String sender, String receiver) throws SQLException {
+		try (PooledConnection connection = shard.getConnectionPool().borrow()) {
+			PreparedStatement query = connection.prepareStatement(SELECT_EDGE);
+			query.setString(1, sender);
+			query.setString(2, receiver);
+			try (ResultSet rs = query.executeQuery()) {
+				return rs.next() ? row(rs, 4) : null;
+			}
+		}
+	}
+
+	/**
+	 * Method to put back the row of the friend request from sender to receiver
+	 * as read by readEdge.
+	 */
+	private static void restoreEdge(DbConnect shard, String sender, String receiver, Object[] row)
+			throws SQLException {
+		try (PooledConnection connection = shard.getConnectionPool().borrow()) {
+			Connection jdbc = connection.getConnection();
+			jdbc.setAutoCommit(false);
+			PreparedStatement delete = connection.prepareStatement(DELETE_EDGE);
+			delete.setString(1, sender);
+			delete.setString(2, receiver);
+			delete.executeUpdate();
+			if (row != null)
+				batch(connection, INSERT_EDGE, Collections.singletonList(row));
+			jdbc.commit();
+		}
+	}
+
+	public void checkFriendship(String user_one, String user_two) {
+		lock.readLock().lock();
+		try {
+			shardFor(user_one).checkFriendship(user_one, user_two);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	public ArrayList<String> friendsList(String user) {
+		lock.readLock().lock();
+		try {
+			return shardFor(user).friendsList(user);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Method to import rows on the shards of their users. The rows are read a
+	 * chunk at a time, outside the lock, and each chunk is split by shard.
+	 *
+	 * @param first
+	 *            user whose shard counts the row as inserted.
+	 * @param second
+	 *            another user whose shard also holds the row, or null.
+	 * @param importer
+	 *            imports part of a chunk on one shard.
+	 */
+	private <T> BulkResult bulk(Iterable<T> rows, int batchSize, Function<T, String> first,
+			Function<T, String> second, BiFunction<DbConnect, List<T>, BulkResult> importer) {
+		BulkResult result = new BulkResult();
+		int chunkSize = Math.max(1, batchSize) * shards.length;
+		ArrayList<T> chunk = new ArrayList<T>(chunkSize);
+		long offset = 0;
+		Iterator<T> iterator = rows.iterator();
+		while (iterator.hasNext()) {
+			chunk.add(iterator.next());
+			if (chunk.size() == chunkSize || !iterator.hasNext()) {
+				importChunk(chunk, offset, first, second, importer, result);
+				offset += chunk.size();
+				chunk.clear();
+			}
+		}
+		return result;
+	}
+
+	private <T> void importChunk(List<T> chunk, long offset, Function<T, String> first,
+			Function<T, String> second, BiFunction<DbConnect, List<T>, BulkResult> importer, BulkResult result) {
+		lock.readLock().lock();
+		try {
+			DbConnect[] shards = this.shards;
+			ConsistentHashRing ring = this.ring;
+			ArrayList<List<T>> owned = new ArrayList<List<T>>();
+			ArrayList<List<T>> mirrored = new ArrayList<List<T>>();
+			ArrayList<List<Long>> ownedIndexes = new ArrayList<List<Long>>();
+			ArrayList<List<Long>> mirroredIndexes = new ArrayList<List<Long>>();
+			for (int i = 0; i < shards.length; i++) {
+				owned.add(new ArrayList<T>());
+				mirrored.add(new ArrayList<T>());
+				ownedIndexes.add(new ArrayList<Long>());
+				mirroredIndexes.add(new ArrayList<Long>());
+			}
+			for (int i = 0; i < chunk.size(); i++) {
+				T row = chunk.get(i);
+				String one = first.apply(row);
+				wrote(one);
+				int shard = ring.nodeFor(one);
+				owned.get(shard).add(row);
+				ownedIndexes.get(shard).add(offset + i);
+				if (second != null) {
+					String two = second.apply(row);
+					wrote(two);
+					int other = ring.nodeFor(two);
+					if (other != shard) {
+						mirrored.get(other).add(row);
+						mirroredIndexes.get(other).add(offset + i);
+					}
+				}
+			}
+
+			TreeMap<Long, BulkResult.Failure> failures = new TreeMap<Long, BulkResult.Failure>();
+			for (int i = 0; i < shards.length; i++) {
+				if (!owned.get(i).isEmpty()) {
+					BulkResult part = importer.apply(shards[i], owned.get(i));
+					result.addInserted(part.getInserted());
+					collect(part, ownedIndexes.get(i), failures);
+				}
+				if (!mirrored.get(i).isEmpty())
+					collect(importer.apply(shards[i], mirrored.get(i)), mirroredIndexes.get(i), failures);
+			}
+			for (Map.Entry<Long, BulkResult.Failure> failure : failures.entrySet()) {
+				result.addFailure(failure.getKey(), failure.getValue().getKey(), failure.getValue().getSqlState(),
+						failure.getValue().getMessage());
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Method to collect the failures of part of a chunk by their index in the
+	 * whole input.
+	 */
+	private static void collect(BulkResult part, List<Long> indexes, Map<Long, BulkResult.Failure> failures) {
+		for (BulkResult.Failure failure : part.getFailures()) {
+			long index = indexes.get((int) failure.getIndex());
+			if (!failures.containsKey(index))
+				failures.put(index, failure);
+		}
+	}
+
+	/**
+	 * Method to add a shard while the other shards stay in use. The users that
+	 * consistent hashing moves to the new shard, roughly 1/n of them, are
+	 * copied with their friend requests while reads and writes continue, and
+	 * the users written to during the copy are recorded. Operations are then
+	 * paused while those users are copied again and the new shard is started,
+	 * after which the moved rows are deleted from their old shards. The tables
+	 * must already exist in the new database.
+	 *
+	 * @param url
+	 *            JDBC url of the new shard.
+	 * @throws SQLException
+	 *             if the rows could not be copied, in which case the new shard
+	 *             is not used and the copy can be retried.
+	 */
+	public void addShard(String url) throws SQLException {
+		synchronized (rebalancing) {
+			lock.writeLock().lock();
+			try {
+				flushWriteBehind();
+				this.written = ConcurrentHashMap.newKeySet();
+			} finally {
+				lock.writeLock().unlock();
+			}
+
+			DbConnect[] shards = this.shards;
+			ConsistentHashRing ring = this.ring;
+			ConsistentHashRing grown = ring.withNode(url);
+			int index = shards.length;
+			ConnectionPool pool = new ConnectionPool(url, properties);
+			try (PooledConnection target = pool.borrow()) {
+				for (DbConnect shard : shards) {
+					copyMoved(shard, grown, index, target);
+				}
+
+				lock.writeLock().lock();
+				try {
+					flushWriteBehind();
+					for (String username : written) {
+						if (grown.nodeFor(username) == index)
+							copyUser(shards[ring.nodeFor(username)], username, target);
+					}
+					DbConnect[] added = Arrays.copyOf(shards, index + 1);
+					added[index] = new DbConnect(shardProperties(index), url);
+					this.shards = added;
+					this.ring = grown;
+				} finally {
+					this.written = null;
+					lock.writeLock().unlock();
+				}
+			} finally {
+				this.written = null;
+				pool.close();
+			}
+
+			for (int i = 0; i < index; i++) {
+				deleteMoved(shards[i], i, grown);
+			}
+		}
+	}
+
+	private void flushWriteBehind() throws SQLException {
+		for (DbConnect shard : shards) {
+			if (shard.getWriteBehindBuffer() != null)
+				shard.getWriteBehindBuffer().flush();
+		}
+	}
+
+	/**
+	 * Method to copy the users of a shard that move to the new shard, and every
+	 * friend request of those users.
+	 */
+	private static void copyMoved(DbConnect shard, ConsistentHashRing grown, int index, PooledConnection target)
+			throws SQLException {
+		try (PooledConnection source = shard.getConnectionPool().borrow()) {
+			ArrayList<Object[]> rows = new ArrayList<Object[]>(PAGE_SIZE);
+			PreparedStatement users = source.prepareStatement(SELECT_USERS);
+			users.setFetchSize(PAGE_SIZE);
+			try (ResultSet rs = users.executeQuery()) {
+				while (rs.next()) {
+					if (grown.nodeFor(rs.getString(1)) == index)
+						rows.add(row(rs, 6));
+					if (rows.size() == PAGE_SIZE)
+						write(target, DELETE_USER, 1, INSERT_USER, rows);
+				}
+			}
+			write(target, DELETE_USER, 1, INSERT_USER, rows);
+
+			PreparedStatement edges = source.prepareStatement(SELECT_EDGES);
+			edges.setFetchSize(PAGE_SIZE);
+			try (ResultSet rs = edges.executeQuery()) {
+				while (rs.next()) {
+					if (grown.nodeFor(rs.getString(1)) == index || grown.nodeFor(rs.getString(2)) == index)
+						rows.add(row(rs, 4));
+					if (rows.size() == PAGE_SIZE)
+						write(target, DELETE_EDGE, 2, INSERT_EDGE, rows);
+				}
+			}
+			write(target, DELETE_EDGE, 2, INSERT_EDGE, rows);
+		}
+	}
+
+	/**
+	 * Method to copy one user and their friend requests again, replacing any
+	 * earlier copy.
+	 */
+	private static void copyUser(DbConnect shard, String username, PooledConnection target) throws SQLException {
+		ArrayList<Object[]> users = new ArrayList<Object[]>(1);
+		ArrayList<Object[]> edges = new ArrayList<Object[]>();
+		try (PooledConnection source = shard.getConnectionPool().borrow()) {
+			PreparedStatement user = source.prepareStatement(SELECT_USER);
+			user.setString(1, username);
+			try (ResultSet rs = user.executeQuery()) {
+				while (rs.next())
+					users.add(row(rs, 6));
+			}
+			PreparedStatement userEdges = source.prepareStatement(SELECT_USER_EDGES);
+			userEdges.setString(1, username);
+			userEdges.setString(2, username);
+			try (ResultSet rs = userEdges.executeQuery()) {
+				while (rs.next())
+					edges.add(row(rs, 4));
+			}
+		}
+
+		Connection jdbc = target.getConnection();
+		jdbc.setAutoCommit(false);
+		PreparedStatement delete = target.prepareStatement(DELETE_USER_EDGES);
+		delete.setString(1, username);
+		delete.setString(2, username);
+		delete.executeUpdate();
+		delete = target.prepareStatement(DELETE_USER);
+		delete.setString(1, username);
+		delete.executeUpdate();
+		batch(target, INSERT_USER, users);
+		batch(target, INSERT_EDGE, edges);
+		jdbc.commit();
+	}
+
+	/**
+	 * Method to delete the rows of a shard that it no longer owns: the users of
+	 * other shards and the friend requests between them.
+	 */
+	private static void deleteMoved(DbConnect shard, int index, ConsistentHashRing ring) {
+		try (PooledConnection connection = shard.getConnectionPool().borrow()) {
+			ArrayList<Object[]> moved = new ArrayList<Object[]>();
+			PreparedStatement users = connection.prepareStatement(SELECT_USERS);
+			users.setFetchSize(PAGE_SIZE);
+			try (ResultSet rs = users.executeQuery()) {
+				while (rs.next()) {
+					if (ring.nodeFor(rs.getString(1)) != index)
+						moved.add(new Object[] { rs.getString(1) });
+				}
+			}
+			ArrayList<Object[]> edges = new ArrayList<Object[]>();
+			PreparedStatement select = connection.prepareStatement(SELECT_EDGES);
+			select.setFetchSize(PAGE_SIZE);
+			try (ResultSet rs = select.executeQuery()) {
+				while (rs.next()) {
+					if (ring.nodeFor(rs.getString(1)) != index && ring.nodeFor(rs.getString(2)) != index)
+						edges.add(new Object[] { rs.getString(1), rs.getString(2) });
+				}
+			}
+
+			Connection jdbc = connection.getConnection();
+			jdbc.setAutoCommit(false);
+			batch(connection, DELETE_EDGE, edges);
+			jdbc.commit();
+			for (int from = 0; from < moved.size(); from += PAGE_SIZE) {
+				batch(connection, DELETE_USER, moved.subList(from, Math.min(moved.size(), from + PAGE_SIZE)));
+				jdbc.commit();
+			}
+			for (Object[] edge : edges) {
+				shard.evictFriendRequest((String) edge[0], (String) edge[1]);
+			}
+			for (Object[] user : moved) {
+				shard.evict((String) user[0]);
+			}
+			shard.refreshRankSnapshot();
+		} catch (SQLException e) {
+			System.err.println("Error deleting moved users from shard " + index);
+		}
+	}
+
+	private static Object[] row(ResultSet rs, int columns) throws SQLException {
+		Object[] row = new Object[columns];
+		for (int i = 0; i < columns; i++) {
+			row[i] = rs.getObject(i + 1);
+		}
+		return row;
+	}
+
+	/**
+	 * Method to replace rows in one transaction: the rows with the same key are
+	 * deleted, then the rows are inserted. The list is cleared.
+	 *
+	 * @param keys
+	 *            number of leading columns of each row that form its key.
+	 */
+	private static void write(PooledConnection target, String deleteSql, int keys, String insertSql,
+			List<Object[]> rows) throws SQLException {
+		if (rows.isEmpty())
+			return;
+		Connection jdbc = target.getConnection();
+		jdbc.setAutoCommit(false);
+		PreparedStatement delete = target.prepareStatement(deleteSql);
+		for (Object[] row : rows) {
+			for (int i = 0; i < keys; i++) {
+				delete.setObject(i + 1, row[i]);
+			}
+			delete.addBatch();
+		}
+		delete.executeBatch();
+		batch(target, insertSql, rows);
+		jdbc.commit();
+		rows.clear();
+	}
+
+	/**
+	 * Method to run a statement once per row, in one batch.
+	 */
+	private static void batch(PooledConnection target, String sql, List<Object[]> rows) throws SQLException {
+		if (rows.isEmpty())
+			return;
+		PreparedStatement statement = target.prepareStatement(sql);
+		for (Object[] row : rows) {
+			for (int i = 0; i < row.length; i++) {
+				statement.setObject(i + 1, row[i]);
+			}
+			statement.addBatch();
+		}
+		statement.executeBatch();
+	}
+
+	/**
+	 * Method to close every shard.
+	 */
+	public void close() {
+		for (DbConnect shard : shards) {
+			shard.close();
+		}
+	}
+}
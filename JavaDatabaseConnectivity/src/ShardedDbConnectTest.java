@@ -0,0 +1,304 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * JUnit tests for ShardedDbConnect, using four in-memory H2 databases: three
+ * shards and one that is added as a fourth shard.
+ */
+public class ShardedDbConnectTest {
+	private static final int USERS = 300;
+
+	private final List<String> urls = new ArrayList<String>();
+	private final List<Connection> databases = new ArrayList<Connection>();
+	private ShardedDbConnect con;
+
+	@Before
+	public void setUp() throws SQLException {
+		for (int i = 0; i < 4; i++) {
+			String url = "jdbc:h2:mem:shard" + i + ";MODE=MySQL;DB_CLOSE_DELAY=-1";
+			create(url);
+			urls.add(url);
+		}
+
+		Properties properties = new Properties();
+		properties.setProperty("user", "sa");
+		this.con = new ShardedDbConnect(properties, urls.subList(0, 3));
+		for (int i = 0; i < USERS; i++) {
+			con.registerUser("user" + i, "user" + i + "pw", "nick" + i);
+			con.updateHighScore("user" + i, (i * 37) % 101);
+		}
+	}
+
+	/**
+	 * Method to create the tables of a shard in a new database, which is
+	 * dropped after the test.
+	 */
+	private Connection create(String url) throws SQLException {
+		Connection connection = DriverManager.getConnection(url, "sa", "");
+		try (Statement statement = connection.createStatement()) {
+			statement.execute("CREATE TABLE user_info (username VARCHAR(64) PRIMARY KEY, password VARCHAR(64), "
+					+ "nickname VARCHAR(64), high_score INT DEFAULT 0 NOT NULL, "
+					+ "number_games_played INT DEFAULT 0 NOT NULL, number_wins INT DEFAULT 0 NOT NULL)");
+			statement.execute("CREATE TABLE friends (user_one VARCHAR(64) NOT NULL, user_two VARCHAR(64) NOT NULL, "
+					+ "relation INT NOT NULL, action_user VARCHAR(64), PRIMARY KEY (user_one, user_two))");
+		}
+		databases.add(connection);
+		return connection;
+	}
+
+	@After
+	public void tearDown() throws SQLException {
+		con.close();
+		for (Connection connection : databases) {
+			try (Statement statement = connection.createStatement()) {
+				statement.execute("DROP ALL OBJECTS");
+			}
+			connection.close();
+		}
+	}
+
+	private int count(int database, String table) throws SQLException {
+		try (Statement statement = databases.get(database).createStatement();
+				ResultSet rs = statement.executeQuery("SELECT COUNT(*) FROM " + table)) {
+			rs.next();
+			return rs.getInt(1);
+		}
+	}
+
+	/**
+	 * @return relation of the friend request from sender to receiver, or -1 if
+	 *         there is none.
+	 */
+	private static int relation(Connection database, String sender, String receiver) throws SQLException {
+		try (Statement statement = database.createStatement();
+				ResultSet rs = statement.executeQuery("SELECT relation FROM friends WHERE user_one = '" + sender
+						+ "' AND user_two = '" + receiver + "'")) {
+			return rs.next() ? rs.getInt(1) : -1;
+		}
+	}
+
+	private static void assertSorted(Map<String, Integer> scores) {
+		Map.Entry<String, Integer> previous = null;
+		for (Map.Entry<String, Integer> score : scores.entrySet()) {
+			if (previous != null) {
+				assertTrue(previous.getValue() > score.getValue() || (previous.getValue().equals(score.getValue())
+						&& previous.getKey().compareTo(score.getKey()) < 0));
+			}
+			previous = score;
+		}
+	}
+
+	@Test
+	public void testUsersAreSpreadOverShards() throws SQLException {
+		int total = 0;
+		for (int i = 0; i < 3; i++) {
+			int users = count(i, "user_info");
+			assertTrue(users > USERS / 6);
+			total += users;
+		}
+
+		assertEquals(USERS, total);
+		for (int i = 0; i < USERS; i++) {
+			assertTrue(con.checkLogin("user" + i, "user" + i + "pw"));
+			assertEquals((i * 37) % 101, con.retrieveHighScore("user" + i));
+		}
+	}
+
+	@Test
+	public void testHighscoresAreMerged() {
+		LinkedHashMap<String, Integer> all = con.retrieveAllHighscores();
+
+		assertEquals(USERS, all.size());
+		assertSorted(all);
+		assertEquals(new ArrayList<String>(all.keySet()).subList(0, 10),
+				new ArrayList<String>(con.retrieveTopHighscores(10).keySet()));
+
+		Iterator<Map.Entry<String, Integer>> iterator = all.entrySet().iterator();
+		Map.Entry<String, Integer> tenth = null;
+		for (int i = 0; i < 10; i++) {
+			tenth = iterator.next();
+		}
+		LinkedHashMap<String, Integer> next = con.retrieveHighscoresBelow(tenth.getValue(), tenth.getKey(), 5);
+		assertEquals(new ArrayList<String>(all.keySet()).subList(10, 15), new ArrayList<String>(next.keySet()));
+	}
+
+	@Test
+	public void testFriendsAcrossShards() {
+		String one = "user0";
+		String two = null;
+		for (int i = 1; two == null; i++) {
+			if (con.shardOf("user" + i) != con.shardOf(one))
+				two = "user" + i;
+		}
+
+		con.addFriend(one, two);
+		con.acceptFriend(two, one);
+
+		assertEquals(Arrays.asList(two), con.friendsList(one));
+		assertEquals(Arrays.asList(one), con.friendsList(two));
+	}
+
+	@Test
+	public void testFailureOnSecondShardIsUndone() throws SQLException {
+		String healthy = "jdbc:h2:mem:mirror0;MODE=MySQL;DB_CLOSE_DELAY=-1";
+		String faulty = "jdbc:h2:mem:mirror1;MODE=MySQL;DB_CLOSE_DELAY=-1";
+		Connection first = create(healthy);
+		Connection second = create(faulty);
+		Properties properties = new Properties();
+		properties.setProperty("user", "sa");
+		properties.setProperty("friends.graph", "true");
+		properties.setProperty("friends.cacheSize", "10");
+		FaultInjectingDriver driver = FaultInjectingDriver.get();
+		try (ShardedDbConnect sharded = new ShardedDbConnect(properties,
+				Arrays.asList(healthy, FaultInjectingDriver.PREFIX + faulty))) {
+			String sender = null;
+			String receiver = null;
+			for (int i = 0; sender == null || receiver == null; i++) {
+				if (sharded.shardOf("user" + i) == 0 && sender == null)
+					sender = "user" + i;
+				else if (sharded.shardOf("user" + i) == 1 && receiver == null)
+					receiver = "user" + i;
+			}
+			sharded.registerUser(sender, "pw", null);
+			sharded.registerUser(receiver, "pw", null);
+			DbConnect senderShard = sharded.getShards().get(0);
+
+			driver.failStatements(1, "08S01");
+			sharded.addFriend(sender, receiver);
+			assertEquals(-1, relation(first, sender, receiver));
+			assertEquals(-1, relation(second, sender, receiver));
+			assertTrue(senderShard.pendingRequests(receiver).isEmpty());
+
+			sharded.addFriend(sender, receiver);
+			driver.failStatements(1, "08S01");
+			sharded.acceptFriend(receiver, sender);
+			assertEquals(0, relation(first, sender, receiver));
+			assertEquals(0, relation(second, sender, receiver));
+			assertTrue(sharded.friendsList(sender).isEmpty());
+			assertEquals(Arrays.asList(sender), senderShard.pendingRequests(receiver));
+
+			sharded.acceptFriend(receiver, sender);
+			assertEquals(Arrays.asList(receiver), sharded.friendsList(sender));
+			assertEquals(Arrays.asList(sender), sharded.friendsList(receiver));
+		} finally {
+			driver.reset();
+		}
+	}
+
+	@Test
+	public void testAddShardMovesOnlyToNewShard() throws SQLException {
+		int[] before = new int[USERS];
+		for (int i = 0; i < USERS; i++) {
+			before[i] = con.shardOf("user" + i);
+		}
+		con.addFriend("user1", "user2");
+		con.acceptFriend("user2", "user1");
+
+		con.addShard(urls.get(3));
+
+		int moved = 0;
+		for (int i = 0; i < USERS; i++) {
+			int after = con.shardOf("user" + i);
+			if (after != before[i]) {
+				assertEquals(3, after);
+				moved++;
+			}
+			assertTrue(con.checkLogin("user" + i, "user" + i + "pw"));
+			assertEquals((i * 37) % 101, con.retrieveHighScore("user" + i));
+		}
+		assertTrue(moved > 0);
+		assertEquals(moved, count(3, "user_info"));
+		assertEquals(USERS, count(0, "user_info") + count(1, "user_info") + count(2, "user_info") + moved);
+		assertEquals(USERS, con.retrieveAllHighscores().size());
+		assertEquals(Arrays.asList("user1"), con.friendsList("user2"));
+		assertEquals(Arrays.asList("user2"), con.friendsList("user1"));
+	}
+
+	@Test
+	public void testAddShardEvictsMovedUsers() throws SQLException {
+		String[] evicted = new String[3];
+		for (int i = 0; i < 3; i++) {
+			evicted[i] = "jdbc:h2:mem:evict" + i + ";MODE=MySQL;DB_CLOSE_DELAY=-1";
+			create(evicted[i]);
+		}
+		Properties properties = new Properties();
+		properties.setProperty("user", "sa");
+		properties.setProperty("leaderboard.enabled", "true");
+		properties.setProperty("snapshot.enabled", "true");
+		properties.setProperty("friends.graph", "true");
+		properties.setProperty("friends.cacheSize", String.valueOf(USERS));
+		try (ShardedDbConnect sharded = new ShardedDbConnect(properties, Arrays.asList(evicted[0], evicted[1]))) {
+			int[] before = new int[USERS];
+			for (int i = 0; i < USERS; i++) {
+				sharded.registerUser("user" + i, "pw", null);
+				sharded.updateHighScore("user" + i, i);
+				before[i] = sharded.shardOf("user" + i);
+			}
+			for (int i = 0; i + 1 < USERS; i++) {
+				sharded.addFriend("user" + i, "user" + (i + 1));
+				sharded.acceptFriend("user" + (i + 1), "user" + i);
+			}
+			List<DbConnect> shards = sharded.getShards();
+			for (int i = 0; i < USERS; i++) {
+				DbConnect shard = shards.get(before[i]);
+				FriendCache cache = shard.getFriendCache();
+				cache.put("user" + i, shard.friendsList("user" + i), cache.generation());
+				shard.refreshRankSnapshot();
+			}
+
+			sharded.addShard(evicted[2]);
+
+			int pairs = 0;
+			for (int i = 0; i < USERS; i++) {
+				if (sharded.shardOf("user" + i) != 2)
+					continue;
+				DbConnect source = shards.get(before[i]);
+				assertEquals(null, source.getFriendCache().get("user" + i));
+				assertEquals(0, source.getRank("user" + i));
+				if (i + 1 < USERS && sharded.shardOf("user" + (i + 1)) == 2 && before[i + 1] == before[i]) {
+					assertFalse(source.getFriendGraph().areFriends("user" + i, "user" + (i + 1)));
+					pairs++;
+				}
+			}
+			assertTrue(pairs > 0);
+			for (int i = 0; i < 2; i++) {
+				assertEquals(count(databases.size() - 3 + i, "user_info"), shards.get(i).getRankSnapshot().size());
+			}
+		}
+	}
+
+	@Test
+	public void testBulkImportAcrossShards() {
+		List<NewUser> users = new ArrayList<NewUser>();
+		for (int i = 0; i < 50; i++) {
+			users.add(new NewUser("bulk" + i, "pw", null));
+		}
+		users.add(new NewUser("user7", "pw", null));
+
+		BulkResult result = con.registerUsers(users, 8);
+
+		assertEquals(50, result.getInserted());
+		assertEquals(1, result.getFailures().size());
+		assertEquals(50, result.getFailures().get(0).getIndex());
+		assertTrue(con.checkUsernameExists("bulk49"));
+		assertFalse(con.checkUsernameExists("bulk50"));
+	}
+}
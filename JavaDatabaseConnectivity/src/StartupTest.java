@@ -0,0 +1,190 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * JUnit tests for the startup modes of DbConnect against an in-memory H2
+ * database.
+ */
+public class StartupTest {
+	private static final String URL = "jdbc:h2:mem:startup;MODE=MySQL;DB_CLOSE_DELAY=-1";
+
+	private Connection setupConnection;
+
+	@Before
+	public void setUp() throws SQLException {
+		this.setupConnection = DriverManager.getConnection(URL, "sa", "");
+		try (Statement statement = setupConnection.createStatement()) {
+			statement.execute("CREATE TABLE user_info (username VARCHAR(64) PRIMARY KEY, password VARCHAR(64), "
+					+ "nickname VARCHAR(64), high_score INT DEFAULT 0 NOT NULL, "
+					+ "number_games_played INT DEFAULT 0 NOT NULL, number_wins INT DEFAULT 0 NOT NULL)");
+			statement.execute("CREATE TABLE friends (user_one VARCHAR(64) NOT NULL, user_two VARCHAR(64) NOT NULL, "
+					+ "relation INT NOT NULL, action_user VARCHAR(64), PRIMARY KEY (user_one, user_two))");
+			statement.execute("INSERT INTO user_info (username, password, high_score) VALUES ('ch4rlie', '1234a', 40)");
+		}
+	}
+
+	@After
+	public void tearDown() throws SQLException {
+		try (Statement statement = setupConnection.createStatement()) {
+			statement.execute("DROP ALL OBJECTS");
+		}
+		setupConnection.close();
+	}
+
+	private static Properties properties(String mode) {
+		Properties properties = new Properties();
+		properties.setProperty("user", "sa");
+		properties.setProperty("pool.minSize", "2");
+		properties.setProperty("leaderboard.enabled", "true");
+		properties.setProperty("filter.enabled", "true");
+		properties.setProperty("startup.mode", mode);
+		properties.setProperty("startup.backoffMillis", "1");
+		return properties;
+	}
+
+	@Test
+	public void testBlockingIsReadyAfterConstructor() {
+		try (DbConnect con = new DbConnect(properties("blocking"), URL)) {
+			assertTrue(con.isReady());
+			assertTrue(con.getStartupMillis() >= 0);
+			assertEquals(2, con.getConnectionPool().getOpenCount());
+			assertNotNull(con.getLeaderboard());
+		}
+	}
+
+	@Test
+	public void testLazyConnectsOnFirstUse() {
+		try (DbConnect con = new DbConnect(properties("lazy"), URL)) {
+			assertFalse(con.isReady());
+			assertEquals(-1, con.getStartupMillis());
+			assertEquals(0, con.getConnectionPool().getOpenCount());
+
+			assertEquals(40, con.retrieveHighScore("ch4rlie"));
+			assertTrue(con.isReady());
+			assertNotNull(con.getLeaderboard());
+			assertNotNull(con.getUsernameFilter());
+		}
+	}
+
+	@Test
+	public void testPrewarmPreparesEveryStatement() {
+		try (DbConnect con = new DbConnect(properties("prewarm"), URL)) {
+			assertTrue(con.isReady());
+			ConnectionPool pool = con.getConnectionPool();
+			assertEquals(2, pool.getOpenCount());
+			assertEquals(2L * DbConnect.STATEMENTS.length, pool.getStatementCacheMisses());
+			assertNotNull(con.getLeaderboard());
+			assertTrue(con.getUsernameFilter().mightContain("ch4rlie"));
+
+			long misses = pool.getStatementCacheMisses();
+			assertTrue(con.checkLogin("ch4rlie", "1234a"));
+			assertEquals(misses, pool.getStatementCacheMisses());
+		}
+	}
+
+	@Test
+	public void testFailedStartupIsRetriedByOperations() throws InterruptedException {
+		Properties properties = properties("lazy");
+		properties.setProperty("startup.retries", "2");
+		try (DbConnect con = new DbConnect(properties, "jdbc:nosuchdriver:startup")) {
+			assertEquals(0, con.retrieveHighScore("ch4rlie"));
+			assertFalse(con.isReady());
+			assertFalse(con.awaitReady(1, TimeUnit.SECONDS));
+			assertEquals(4, con.getMetrics().stats("connect").getErrors());
+		}
+	}
+
+	@Test
+	public void testSavedFilterIsOnlyReadForSameUsers() throws IOException, SQLException {
+		File file = File.createTempFile("usernames", ".filter");
+		try {
+			assertTrue(file.delete());
+			Properties properties = properties("blocking");
+			properties.setProperty("filter.file", file.getPath());
+			properties.setProperty("filter.expectedUsers", "1000");
+			new DbConnect(properties, URL).close();
+			assertTrue(file.isFile());
+
+			properties.setProperty("filter.expectedUsers", "2000");
+			long saved;
+			try (DbConnect con = new DbConnect(properties, URL)) {
+				saved = con.getUsernameFilter().getBitCount();
+			}
+			try (Statement statement = setupConnection.createStatement()) {
+				statement.execute("UPDATE user_info SET username = 'dog' WHERE username = 'ch4rlie'");
+			}
+			try (DbConnect con = new DbConnect(properties, URL)) {
+				assertTrue(con.getUsernameFilter().getBitCount() > saved);
+				assertTrue(con.checkUsernameExists("dog"));
+			}
+		} finally {
+			file.delete();
+		}
+	}
+
+	@Test
+	public void testSavedFilterIsRebuiltAfterSameLengthRename() throws IOException, SQLException {
+		File file = File.createTempFile("usernames", ".filter");
+		try {
+			assertTrue(file.delete());
+			try (Statement statement = setupConnection.createStatement()) {
+				statement.execute("INSERT INTO user_info (username, password) VALUES ('ann', 'a'), ('bob', 'b'), "
+						+ "('cat', 'c')");
+			}
+			Properties properties = properties("blocking");
+			properties.setProperty("filter.file", file.getPath());
+			properties.setProperty("filter.expectedUsers", "1000");
+			new DbConnect(properties, URL).close();
+			assertTrue(file.isFile());
+
+			try (Statement statement = setupConnection.createStatement()) {
+				statement.execute("UPDATE user_info SET username = 'bea' WHERE username = 'bob'");
+			}
+			properties.setProperty("filter.expectedUsers", "2000");
+			try (DbConnect con = new DbConnect(properties, URL)) {
+				assertEquals(new BloomFilter(2000, 0.01).getBitCount(), con.getUsernameFilter().getBitCount());
+				assertTrue(con.checkUsernameExists("bea"));
+			}
+		} finally {
+			file.delete();
+		}
+	}
+
+	@Test
+	public void testFilterIsNotSavedAfterUsersChanged() throws IOException, SQLException {
+		File file = File.createTempFile("usernames", ".filter");
+		try {
+			assertTrue(file.delete());
+			Properties properties = properties("blocking");
+			properties.setProperty("filter.file", file.getPath());
+			DbConnect changed = new DbConnect(properties, URL);
+			try (Statement statement = setupConnection.createStatement()) {
+				statement.execute("INSERT INTO user_info (username, password) VALUES ('dog', 'b')");
+			}
+			changed.close();
+			assertFalse(file.exists());
+
+			try (DbConnect con = new DbConnect(properties, URL)) {
+				assertTrue(con.checkUsernameExists("dog"));
+			}
+			assertTrue(file.isFile());
+		} finally {
+			file.delete();
+		}
+	}
+}
@@ -0,0 +1,104 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A least recently used cache of the prepared statements of one connection,
+ * keyed by SQL text. A statement is closed when it is evicted. The cache is
+ * only used by the thread that has borrowed the connection, so it is not
+ * synchronized; the counters may be shared by every cache of a pool.
+ */
+public class StatementCache {
+	private final Connection connection;
+	private final int maxSize;
+	private final LongAdder hits;
+	private final LongAdder misses;
+	private final LongAdder evictions;
+	private final LinkedHashMap<String, PreparedStatement> statements;
+
+	/**
+	 * Constructor - creates an empty cache.
+	 *
+	 * @param connection
+	 *            connection the statements are prepared on.
+	 * @param maxSize
+	 *            maximum number of statements kept open.
+	 * @param hits
+	 *            counter incremented when a statement is found in the cache.
+	 * @param misses
+	 *            counter incremented when a statement has to be prepared.
+	 * @param evictions
+	 *            counter incremented when a statement is evicted.
+	 */
+	public StatementCache(Connection connection, int maxSize, LongAdder hits, LongAdder misses,
+			LongAdder evictions) {
+		this.connection = connection;
+		this.maxSize = maxSize;
+		this.hits = hits;
+		this.misses = misses;
+		this.evictions = evictions;
+		this.statements = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+				if (size() <= StatementCache.this.maxSize)
+					return false;
+				StatementCache.this.evictions.increment();
+				close(eldest.getValue());
+				return true;
+			}
+		};
+	}
+
+	/**
+	 * Method to retrieve the prepared statement for some SQL, preparing it if it
+	 * is not already cached. The statement must not be closed by the caller.
+	 *
+	 * @param sql
+	 *            SQL text of the statement.
+	 * @return the prepared statement with its parameters cleared.
+	 */
+	public PreparedStatement prepare(String sql) throws SQLException {
+		PreparedStatement statement = statements.get(sql);
+		if (statement != null && !statement.isClosed()) {
+			hits.increment();
+			statement.clearParameters();
+			return statement;
+		}
+		misses.increment();
+		statement = connection.prepareStatement(sql);
+		statements.put(sql, statement);
+		return statement;
+	}
+
+	/**
+	 * @return number of statements currently cached.
+	 */
+	public int size() {
+		return statements.size();
+	}
+
+	/**
+	 * Closes and removes every cached statement.
+	 */
+	public void clear() {
+		Iterator<PreparedStatement> iterator = statements.values().iterator();
+		while (iterator.hasNext()) {
+			close(iterator.next());
+			iterator.remove();
+		}
+	}
+
+	private static void close(PreparedStatement statement) {
+		try {
+			statement.close();
+		} catch (SQLException e) {
+			System.err.println("Error closing SQL statement");
+		}
+	}
+}
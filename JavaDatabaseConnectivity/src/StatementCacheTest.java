@@ -0,0 +1,71 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * JUnit tests for StatementCache, run against an in-memory H2 database.
+ */
+public class StatementCacheTest {
+	private Connection connection;
+	private StatementCache cache;
+	private LongAdder hits = new LongAdder();
+	private LongAdder misses = new LongAdder();
+	private LongAdder evictions = new LongAdder();
+
+	@Before
+	public void setUp() throws SQLException {
+		this.connection = DriverManager.getConnection("jdbc:h2:mem:", "sa", "");
+		this.cache = new StatementCache(connection, 2, hits, misses, evictions);
+	}
+
+	@After
+	public void tearDown() throws SQLException {
+		cache.clear();
+		connection.close();
+	}
+
+	@Test
+	public void testSameSqlReturnsCachedStatement() throws SQLException {
+		PreparedStatement first = cache.prepare("SELECT 1");
+		PreparedStatement second = cache.prepare("SELECT 1");
+
+		assertSame(first, second);
+		assertEquals(1, hits.sum());
+		assertEquals(1, misses.sum());
+	}
+
+	@Test
+	public void testLeastRecentlyUsedIsClosedOnEvict() throws SQLException {
+		PreparedStatement first = cache.prepare("SELECT 1");
+		PreparedStatement second = cache.prepare("SELECT 2");
+		cache.prepare("SELECT 1");
+		cache.prepare("SELECT 3");
+
+		assertEquals(2, cache.size());
+		assertEquals(1, evictions.sum());
+		assertFalse(first.isClosed());
+		assertTrue(second.isClosed());
+		assertNotSame(second, cache.prepare("SELECT 2"));
+	}
+
+	@Test
+	public void testClearClosesStatements() throws SQLException {
+		PreparedStatement statement = cache.prepare("SELECT 1");
+		cache.clear();
+
+		assertTrue(statement.isClosed());
+		assertEquals(0, cache.size());
+	}
+}
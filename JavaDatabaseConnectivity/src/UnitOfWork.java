@@ -0,0 +1,193 @@
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+
+/**
+ * A database transaction spanning several DbConnect operations, begun by
+ * DbConnect.begin. Until the unit of work is closed, every operation that the
+ * thread that began it makes on the DbConnect runs on one connection in one
+ * transaction, e.g. the games played, high scores and friend actions of every
+ * player at the end of a match, which are then committed together:
+ *
+ * <pre>
+ * try (UnitOfWork work = db.begin()) {
+ * 	db.updateGames(winner);
+ * 	db.checkHighScore(winner, score);
+ * 	work.commit();
+ * }
+ * </pre>
+ *
+ * The in-memory caches and leaderboard of the DbConnect are only updated once
+ * the transaction commits, and are not read by the operations of the unit of
+ * work, so those operations see their own writes. Writes are made directly
+ * even when the DbConnect writes behind. An operation that fails makes the
+ * commit fail, unless the transaction is first rolled back to a savepoint set
+ * before the failure.
+ */
+public class UnitOfWork implements AutoCloseable {
+	private final DbConnect db;
+	private final PooledConnection connection;
+	private final int previousIsolation;
+	private final Thread owner;
+	private final ArrayList<Runnable> changes = new ArrayList<Runnable>();
+	private final IdentityHashMap<Savepoint, int[]> savepoints = new IdentityHashMap<Savepoint, int[]>();
+	private int failures;
+	private boolean active = true;
+
+	/**
+	 * Constructor - starts a transaction on a borrowed connection.
+	 *
+	 * @param isolationLevel
+	 *            one of the Connection.TRANSACTION_ levels, or -1 to keep the
+	 *            level of the connection.
+	 */
+	UnitOfWork(DbConnect db, PooledConnection connection, int isolationLevel) throws SQLException {
+		this.db = db;
+		this.connection = connection;
+		this.owner = Thread.currentThread();
+		Connection jdbc = connection.getConnection();
+		this.previousIsolation = jdbc.getTransactionIsolation();
+		if (isolationLevel >= 0 && isolationLevel != previousIsolation)
+			jdbc.setTransactionIsolation(isolationLevel);
+		jdbc.setAutoCommit(false);
+		connection.setPinned(true);
+	}
+
+	/**
+	 * @return the connection of the unit of work, if it is active and the
+	 *         current thread began it, otherwise null.
+	 */
+	PooledConnection connection() {
+		return active && Thread.currentThread() == owner ? connection : null;
+	}
+
+	/**
+	 * Method to defer a change of the in-memory state of the DbConnect until
+	 * the transaction commits.
+	 */
+	void afterCommit(Runnable change) {
+		changes.add(change);
+	}
+
+	/**
+	 * Method to record that an operation of the unit of work failed.
+	 */
+	void failed() {
+		failures++;
+	}
+
+	/**
+	 * @return true until the unit of work is committed, rolled back or closed.
+	 */
+	public boolean isActive() {
+		return active;
+	}
+
+	/**
+	 * @return number of operations that failed since the transaction began, or
+	 *         since the savepoint it was last rolled back to.
+	 */
+	public int getFailureCount() {
+		return failures;
+	}
+
+	/**
+	 * Method to mark a point that the transaction can be rolled back to.
+	 *
+	 * @param name
+	 *            name of the savepoint, for the database's logs.
+	 */
+	public Savepoint setSavepoint(String name) throws SQLException {
+		checkActive();
+		Savepoint savepoint = connection.getConnection().setSavepoint(name);
+		savepoints.put(savepoint, new int[] { changes.size(), failures });
+		return savepoint;
+	}
+
+	/**
+	 * Method to undo the operations made since a savepoint, including their
+	 * failures and their changes to the in-memory state. The transaction stays
+	 * active.
+	 */
+	public void rollbackTo(Savepoint savepoint) throws SQLException {
+		checkActive();
+		int[] mark = savepoints.get(savepoint);
+		if (mark == null)
+			throw new SQLException("Savepoint was not set by this unit of work");
+		connection.getConnection().rollback(savepoint);
+		changes.subList(mark[0], changes.size()).clear();
+		failures = mark[1];
+	}
+
+	/**
+	 * Method to commit every operation of the unit of work in one transaction
+	 * and then update the in-memory state of the DbConnect. The unit of work
+	 * ends either way.
+	 *
+	 * @throws SQLException
+	 *             if an operation failed, in which case the transaction is
+	 *             rolled back instead, or the commit failed.
+	 */
+	public void commit() throws SQLException {
+		checkActive();
+		try {
+			if (failures > 0) {
+				connection.getConnection().rollback();
+				throw new SQLException(failures + " operations of the unit of work failed, so it was rolled back");
+			}
+			connection.getConnection().commit();
+		} finally {
+			end();
+		}
+		for (Runnable change : changes) {
+			change.run();
+		}
+	}
+
+	/**
+	 * Method to undo every operation of the unit of work. The unit of work ends.
+	 */
+	public void rollback() throws SQLException {
+		checkActive();
+		try {
+			connection.getConnection().rollback();
+		} finally {
+			end();
+		}
+	}
+
+	/**
+	 * Rolls back the transaction unless it was committed, and returns the
+	 * connection to the pool.
+	 */
+	public void close() {
+		if (!active)
+			return;
+		try {
+			connection.getConnection().rollback();
+		} catch (SQLException e) {
+			System.err.println("Error rolling back transaction");
+		}
+		end();
+	}
+
+	private void checkActive() throws SQLException {
+		if (!active)
+			throw new SQLException("The unit of work has ended");
+	}
+
+	private void end() {
+		active = false;
+		savepoints.clear();
+		try {
+			connection.getConnection().setTransactionIsolation(previousIsolation);
+		} catch (SQLException e) {
+			System.err.println("Error restoring transaction isolation");
+		}
+		connection.setPinned(false);
+		connection.close();
+		db.ended(this);
+	}
+}
@@ -0,0 +1,153 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.Properties;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * JUnit tests for UnitOfWork against an in-memory H2 database.
+ */
+public class UnitOfWorkTest {
+	private static final String URL = "jdbc:h2:mem:unitofwork;MODE=MySQL;DB_CLOSE_DELAY=-1";
+
+	private Connection setupConnection;
+	private DbConnect con;
+
+	@Before
+	public void setUp() throws SQLException {
+		this.setupConnection = DriverManager.getConnection(URL, "sa", "");
+		try (Statement statement = setupConnection.createStatement()) {
+			statement.execute("CREATE TABLE user_info (username VARCHAR(64) PRIMARY KEY, password VARCHAR(64), "
+					+ "nickname VARCHAR(64), high_score INT DEFAULT 0 NOT NULL, "
+					+ "number_games_played INT DEFAULT 0 NOT NULL, number_wins INT DEFAULT 0 NOT NULL)");
+		}
+
+		Properties properties = new Properties();
+		properties.setProperty("user", "sa");
+		properties.setProperty("pool.maxSize", "4");
+		properties.setProperty("leaderboard.enabled", "true");
+		properties.setProperty("transaction.isolation", "READ_COMMITTED");
+		this.con = new DbConnect(properties, URL);
+		con.registerUser("ch4rlie", "1234a", "charlie");
+		con.registerUser("doggo", "woof", "dog");
+	}
+
+	@After
+	public void tearDown() throws SQLException {
+		con.close();
+		try (Statement statement = setupConnection.createStatement()) {
+			statement.execute("DROP ALL OBJECTS");
+		}
+		setupConnection.close();
+	}
+
+	@Test
+	public void testCommitAppliesEveryOperation() throws SQLException {
+		try (UnitOfWork work = con.begin()) {
+			con.updateGames("ch4rlie");
+			con.updateGames("doggo");
+			assertTrue(con.checkHighScore("ch4rlie", 50));
+			assertEquals(50, con.retrieveHighScore("ch4rlie"));
+			assertEquals(Integer.valueOf(0), con.getLeaderboard().getScore("ch4rlie"));
+			work.commit();
+		}
+
+		assertEquals(1, con.getNumberGamesPlayed("ch4rlie"));
+		assertEquals(1, con.getNumberGamesPlayed("doggo"));
+		assertEquals(50, con.retrieveHighScore("ch4rlie"));
+		assertEquals(Integer.valueOf(50), con.getLeaderboard().getScore("ch4rlie"));
+		assertEquals(0, con.getConnectionPool().getActiveCount());
+	}
+
+	@Test
+	public void testOtherThreadsDoNotSeeUncommittedWrites() throws Exception {
+		try (UnitOfWork work = con.begin()) {
+			con.updateHighScore("ch4rlie", 70);
+			int[] seen = new int[1];
+			Thread reader = new Thread(() -> seen[0] = con.retrieveHighScore("ch4rlie"));
+			reader.start();
+			reader.join();
+
+			assertEquals(0, seen[0]);
+			work.commit();
+		}
+		assertEquals(70, con.retrieveHighScore("ch4rlie"));
+	}
+
+	@Test
+	public void testCloseWithoutCommitRollsBack() throws SQLException {
+		try (UnitOfWork work = con.begin()) {
+			con.updateHighScore("ch4rlie", 90);
+			con.updateNickname("ch4rlie", "chaz");
+			assertTrue(work.isActive());
+		}
+
+		assertEquals(0, con.retrieveHighScore("ch4rlie"));
+		assertEquals("charlie", con.retrieveProfile("ch4rlie").getNickname());
+		assertEquals(Integer.valueOf(0), con.getLeaderboard().getScore("ch4rlie"));
+	}
+
+	@Test
+	public void testRollbackToSavepoint() throws SQLException {
+		try (UnitOfWork work = con.begin()) {
+			con.updateHighScore("ch4rlie", 10);
+			Savepoint savepoint = work.setSavepoint("before-doggo");
+			con.updateHighScore("doggo", 20);
+			work.rollbackTo(savepoint);
+			work.commit();
+		}
+
+		assertEquals(10, con.retrieveHighScore("ch4rlie"));
+		assertEquals(0, con.retrieveHighScore("doggo"));
+		assertEquals(Integer.valueOf(0), con.getLeaderboard().getScore("doggo"));
+	}
+
+	@Test
+	public void testFailedOperationFailsCommit() throws SQLException {
+		try (UnitOfWork work = con.begin()) {
+			con.updateHighScore("ch4rlie", 30);
+			con.registerUser("doggo", "again", "duplicate");
+			assertEquals(1, work.getFailureCount());
+			try {
+				work.commit();
+				fail();
+			} catch (SQLException e) {
+				assertFalse(work.isActive());
+			}
+		}
+
+		assertEquals(0, con.retrieveHighScore("ch4rlie"));
+	}
+
+	@Test
+	public void testBulkImportJoinsTransaction() throws SQLException {
+		try (UnitOfWork work = con.begin()) {
+			BulkResult result = con.registerUsers(Arrays.asList(new NewUser("a", "pw", null),
+					new NewUser("doggo", "pw", null), new NewUser("b", "pw", null)), 10);
+			assertEquals(2, result.getInserted());
+			work.rollback();
+		}
+
+		assertFalse(con.checkUsernameExists("a"));
+		assertFalse(con.checkUsernameExists("b"));
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testUnitsOfWorkDoNotNest() throws SQLException {
+		try (UnitOfWork work = con.begin()) {
+			assertTrue(work.isActive());
+			con.begin();
+		}
+	}
+}
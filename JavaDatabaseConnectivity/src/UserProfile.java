@@ -0,0 +1,62 @@
+/**
+ * The statistics and nickname of a user, as held in the user_info table.
+ * Instances are immutable; the with methods return an updated copy.
+ */
+public final class UserProfile {
+	private final int highScore;
+	private final int gamesPlayed;
+	private final int wins;
+	private final String nickname;
+
+	/**
+	 * Constructor
+	 * 
+	 * @param highScore
+	 *            high score of the user.
+	 * @param gamesPlayed
+	 *            number of games played by the user.
+	 * @param wins
+	 *            number of games won by the user.
+	 * @param nickname
+	 *            nickname of the user.
+	 */
+	public UserProfile(int highScore, int gamesPlayed, int wins, String nickname) {
+		this.highScore = highScore;
+		this.gamesPlayed = gamesPlayed;
+		this.wins = wins;
+		this.nickname = nickname;
+	}
+
+	public int getHighScore() {
+		return highScore;
+	}
+
+	public int getGamesPlayed() {
+		return gamesPlayed;
+	}
+
+	public int getWins() {
+		return wins;
+	}
+
+	public String getNickname() {
+		return nickname;
+	}
+
+	public UserProfile withHighScore(int highScore) {
+		return new UserProfile(highScore, gamesPlayed, wins, nickname);
+	}
+
+	public UserProfile withGamesPlayed(int gamesPlayed) {
+		return new UserProfile(highScore, gamesPlayed, wins, nickname);
+	}
+
+	public UserProfile withNickname(String nickname) {
+		return new UserProfile(highScore, gamesPlayed, wins, nickname);
+	}
+
+	@Override
+	public String toString() {
+		return nickname + " (high score " + highScore + ", " + gamesPlayed + " games, " + wins + " wins)";
+	}
+}
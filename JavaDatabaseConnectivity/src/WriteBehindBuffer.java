@@ -0,0 +1,523 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.OptionalInt;
+import java.util.Properties;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Buffers the games played and high score updates made at the end of each
+ * match and writes them to the database in batches. Increments of the number
+ * of games played by the same user are added together. A high score is either
+ * raised, when only the highest buffered score is kept, or set, when it
+ * replaces any score buffered before it. A flush writes every buffered user
+ * with JDBC batches in a single transaction, and is triggered when
+ * writeBehind.maxPending users are buffered, every
+ * writeBehind.flushIntervalMillis, and when the buffer is closed.
+ */
+public class WriteBehindBuffer implements AutoCloseable {
+	/**
+	 * Reads the high score of a user stored in the database.
+	 */
+	public interface ScoreReader {
+		/**
+		 * @return the high score of the user, or an empty OptionalInt if there
+		 *         is no such user.
+		 */
+		OptionalInt read(String user) throws SQLException;
+	}
+
+	/**
+	 * Receives the updates of a buffer, e.g. to keep in-memory copies of the
+	 * scores.
+	 */
+	public interface Listener {
+		/**
+		 * Called with the lock of the buffer held when a high score is buffered,
+		 * so that a copy of the score is updated before a flush can write it.
+		 *
+		 * @param set
+		 *            true if the score replaces the stored one, false if it
+		 *            raises it.
+		 */
+		default void highScoreBuffered(String user, int highScore, boolean set) {
+		}
+
+		/**
+		 * Called after a flush has committed, in the order of the flushes, for
+		 * every user whose games were added to.
+		 *
+		 * @param games
+		 *            number of games added by the flush.
+		 */
+		default void gamesWritten(String user, int games) {
+		}
+
+		/**
+		 * Called after a flush has committed, in the order of the flushes, for
+		 * every user whose high score was changed.
+		 */
+		default void highScoreWritten(String user, int highScore) {
+		}
+	}
+
+	private static final class Pending {
+		int games;
+		boolean hasHighScore;
+		// true if the high score replaces the stored one rather than raising it
+		boolean setsHighScore;
+		int highScore;
+	}
+
+	private final ConnectionPool pool;
+	private final QueryMetrics metrics;
+	private final int maxPending;
+	private final ScheduledExecutorService flusher;
+	private final Object flushLock = new Object();
+	private final AtomicBoolean flushQueued = new AtomicBoolean();
+	private final CopyOnWriteArrayList<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+	private HashMap<String, Pending> pending = new HashMap<String, Pending>();
+	// the batch being written, which is neither in pending nor committed yet
+	private HashMap<String, Pending> flushing;
+	// incremented when a batch is committed, after which stored scores change
+	private volatile long commits;
+	private volatile boolean closed;
+
+	private final AtomicLong flushCount = new AtomicLong();
+	private final AtomicLong failedFlushCount = new AtomicLong();
+	private final AtomicLong rowCount = new AtomicLong();
+	private final AtomicLong flushNanos = new AtomicLong();
+	private volatile int lastBatchSize;
+	private volatile int maxBatchSize;
+	private volatile long lastFlushNanos;
+	private volatile long maxFlushNanos;
+
+	/**
+	 * Constructor - creates an empty buffer and schedules the periodic flush.
+	 *
+	 * @param pool
+	 *            pool the flushes borrow their connection from.
+	 * @param metrics
+	 *            metrics the errors of the periodic flushes are recorded in.
+	 * @param properties
+	 *            properties holding the writeBehind settings.
+	 */
+	public WriteBehindBuffer(ConnectionPool pool, QueryMetrics metrics, Properties properties) {
+		this.pool = pool;
+		this.metrics = metrics;
+		this.maxPending = Math.max(1, ConnectionPool.intProperty(properties, "writeBehind.maxPending", 500));
+		long interval = Math.max(1L,
+				ConnectionPool.longProperty(properties, "writeBehind.flushIntervalMillis", 1000L));
+
+		this.flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "write-behind-flusher");
+			thread.setDaemon(true);
+			return thread;
+		});
+		flusher.scheduleWithFixedDelay(this::flushQuietly, interval, interval, TimeUnit.MILLISECONDS);
+	}
+
+	public void addListener(Listener listener) {
+		listeners.add(listener);
+	}
+
+	/**
+	 * Method to buffer one more game played by a user.
+	 */
+	public void incrementGames(String user) {
+		boolean full;
+		synchronized (this) {
+			pendingFor(user).games++;
+			full = pending.size() >= maxPending;
+		}
+		if (full)
+			requestFlush();
+	}
+
+	/**
+	 * Method to buffer a raised high score if it is at least the high score
+	 * the user has, counting the buffered updates. The comparison and the
+	 * update are made under the lock of the buffer, so of concurrent offers
+	 * only those that raise the score succeed. The stored score is read again
+	 * if a flush commits while it is read.
+	 *
+	 * @param storedScore
+	 *            reads the high score of the user in the database, or a copy
+	 *            of it that the listeners keep up to date.
+	 * @return true if the high score is now the given score, false if it is
+	 *         lower or there is no such user.
+	 * @throws SQLException
+	 *             if the stored score could not be read.
+	 */
+	public boolean offerHighScore(String user, int highScore, ScoreReader storedScore) throws SQLException {
+		boolean full;
+		while (true) {
+			long committed = commits;
+			OptionalInt stored = storedScore.read(user);
+			if (!stored.isPresent())
+				return false;
+			synchronized (this) {
+				if (committed != commits)
+					continue;
+				if (highScore < getHighScore(user, stored.getAsInt()))
+					return false;
+				Pending entry = pendingFor(user);
+				// a buffered set stays a set, now of the higher score
+				entry.hasHighScore = true;
+				entry.highScore = highScore;
+				buffered(user, highScore, false);
+				full = pending.size() >= maxPending;
+				break;
+			}
+		}
+		if (full)
+			requestFlush();
+		return true;
+	}
+
+	/**
+	 * Method to buffer a high score that replaces the stored score, even if it
+	 * is lower, and any score buffered before it.
+	 */
+	public void setHighScore(String user, int highScore) {
+		boolean full;
+		synchronized (this) {
+			Pending entry = pendingFor(user);
+			entry.hasHighScore = true;
+			entry.setsHighScore = true;
+			entry.highScore = highScore;
+			buffered(user, highScore, true);
+			full = pending.size() >= maxPending;
+		}
+		if (full)
+			requestFlush();
+	}
+
+	private void buffered(String user, int highScore, boolean set) {
+		for (Listener listener : listeners) {
+			listener.highScoreBuffered(user, highScore, set);
+		}
+	}
+
+	/**
+	 * @param storedScore
+	 *            the high score of the user in the database.
+	 * @return the high score the user will have once the buffered updates,
+	 *         including those being written, are written.
+	 */
+	public synchronized int getHighScore(String user, int storedScore) {
+		int highScore = flushing == null ? storedScore : applyHighScore(flushing.get(user), storedScore);
+		return applyHighScore(pending.get(user), highScore);
+	}
+
+	private static int applyHighScore(Pending entry, int score) {
+		if (entry == null || !entry.hasHighScore)
+			return score;
+		return entry.setsHighScore ? entry.highScore : Math.max(score, entry.highScore);
+	}
+
+	/**
+	 * @return number of games buffered for the user.
+	 */
+	public synchronized int getPendingGames(String user) {
+		Pending entry = pending.get(user);
+		Pending written = flushing == null ? null : flushing.get(user);
+		return (entry == null ? 0 : entry.games) + (written == null ? 0 : written.games);
+	}
+
+	/**
+	 * @return number of users with buffered updates.
+	 */
+	public synchronized int getPendingCount() {
+		return pending.size();
+	}
+
+	private Pending pendingFor(String user) {
+		Pending entry = pending.get(user);
+		if (entry == null) {
+			entry = new Pending();
+			pending.put(user, entry);
+		}
+		return entry;
+	}
+
+	private void requestFlush() {
+		if (!closed && flushQueued.compareAndSet(false, true))
+			flusher.execute(this::flushQuietly);
+	}
+
+	/**
+	 * Method for the flusher thread. A failed flush leaves the updates in the
+	 * buffer, so they are written by the next one.
+	 */
+	private void flushQuietly() {
+		flushQueued.set(false);
+		try {
+			flush();
+		} catch (SQLException e) {
+			metrics.recordError("flushWriteBehind", e);
+			System.err.println("Error flushing buffered updates");
+		}
+	}
+
+	/**
+	 * Method to write every buffered update to the database in one transaction.
+	 * If the transaction fails it is rolled back and the updates are put back
+	 * in the buffer.
+	 *
+	 * @throws SQLException
+	 *             if the updates could not be written.
+	 */
+	public void flush() throws SQLException {
+		synchronized (flushLock) {
+			HashMap<String, Pending> batch;
+			synchronized (this) {
+				if (pending.isEmpty())
+					return;
+				batch = pending;
+				flushing = batch;
+				pending = new HashMap<String, Pending>();
+			}
+
+			long start = System.nanoTime();
+			HashMap<String, Pending> written;
+			try (PooledConnection connection = pool.borrow()) {
+				Connection jdbc = connection.getConnection();
+				jdbc.setAutoCommit(false);
+				PreparedStatement games = connection.prepareStatement(DbConnect.ADD_GAMES);
+				PreparedStatement raises = connection.prepareStatement(DbConnect.RAISE_HIGH_SCORE);
+				PreparedStatement sets = connection.prepareStatement(DbConnect.UPDATE_HIGH_SCORE);
+				try {
+					written = write(batch, games, raises, sets);
+					jdbc.commit();
+					committed();
+					jdbc.setAutoCommit(true);
+				} catch (SQLException e) {
+					// the statements are cached, so no row of this batch may be left in them
+					try {
+						games.clearBatch();
+						raises.clearBatch();
+						sets.clearBatch();
+						jdbc.rollback();
+						jdbc.setAutoCommit(true);
+					} catch (SQLException rollbackError) {
+						e.addSuppressed(rollbackError);
+					}
+					throw e;
+				}
+			} catch (SQLException e) {
+				failedFlushCount.incrementAndGet();
+				restore(batch);
+				throw e;
+			}
+
+			long elapsed = System.nanoTime() - start;
+			int size = batch.size();
+			flushCount.incrementAndGet();
+			rowCount.addAndGet(size);
+			flushNanos.addAndGet(elapsed);
+			lastBatchSize = size;
+			lastFlushNanos = elapsed;
+			if (size > maxBatchSize)
+				maxBatchSize = size;
+			if (elapsed > maxFlushNanos)
+				maxFlushNanos = elapsed;
+			written(written);
+		}
+	}
+
+	/**
+	 * Method to add every update of a batch to the JDBC batches and execute
+	 * them.
+	 *
+	 * @return the updates that changed a row, by user. A driver that does not
+	 *         report the rows of each update is taken to have changed them.
+	 */
+	private static HashMap<String, Pending> write(HashMap<String, Pending> batch, PreparedStatement games,
+			PreparedStatement raises, PreparedStatement sets) throws SQLException {
+		ArrayList<String> gameUsers = new ArrayList<String>();
+		ArrayList<String> raiseUsers = new ArrayList<String>();
+		ArrayList<String> setUsers = new ArrayList<String>();
+		for (Map.Entry<String, Pending> entry : batch.entrySet()) {
+			Pending update = entry.getValue();
+			if (update.games > 0) {
+				games.setInt(1, update.games);
+				games.setString(2, entry.getKey());
+				games.addBatch();
+				gameUsers.add(entry.getKey());
+			}
+			if (update.hasHighScore && update.setsHighScore) {
+				sets.setInt(1, update.highScore);
+				sets.setString(2, entry.getKey());
+				sets.addBatch();
+				setUsers.add(entry.getKey());
+			} else if (update.hasHighScore) {
+				raises.setInt(1, update.highScore);
+				raises.setString(2, entry.getKey());
+				raises.setInt(3, update.highScore);
+				raises.addBatch();
+				raiseUsers.add(entry.getKey());
+			}
+		}
+
+		HashMap<String, Pending> written = new HashMap<String, Pending>();
+		if (!gameUsers.isEmpty()) {
+			int[] counts = games.executeBatch();
+			for (int i = 0; i < counts.length; i++) {
+				if (changed(counts[i]))
+					writtenFor(written, gameUsers.get(i)).games = batch.get(gameUsers.get(i)).games;
+			}
+		}
+		for (ArrayList<String> users : Arrays.asList(raiseUsers, setUsers)) {
+			if (users.isEmpty())
+				continue;
+			int[] counts = (users == raiseUsers ? raises : sets).executeBatch();
+			for (int i = 0; i < counts.length; i++) {
+				if (!changed(counts[i]))
+					continue;
+				Pending update = writtenFor(written, users.get(i));
+				update.hasHighScore = true;
+				update.highScore = batch.get(users.get(i)).highScore;
+			}
+		}
+		return written;
+	}
+
+	private static boolean changed(int updateCount) {
+		return updateCount > 0 || updateCount == Statement.SUCCESS_NO_INFO;
+	}
+
+	private static Pending writtenFor(HashMap<String, Pending> written, String user) {
+		Pending entry = written.get(user);
+		if (entry == null) {
+			entry = new Pending();
+			written.put(user, entry);
+		}
+		return entry;
+	}
+
+	private void written(HashMap<String, Pending> written) {
+		if (listeners.isEmpty())
+			return;
+		for (Map.Entry<String, Pending> entry : written.entrySet()) {
+			Pending update = entry.getValue();
+			for (Listener listener : listeners) {
+				if (update.games > 0)
+					listener.gamesWritten(entry.getKey(), update.games);
+				if (update.hasHighScore)
+					listener.highScoreWritten(entry.getKey(), update.highScore);
+			}
+		}
+	}
+
+	private synchronized void committed() {
+		flushing = null;
+		commits++;
+	}
+
+	/**
+	 * Merges updates that could not be written back into the buffer, before the
+	 * updates buffered since, which were made after them.
+	 */
+	private synchronized void restore(HashMap<String, Pending> batch) {
+		// a batch that was committed before an error is not written again
+		if (flushing != batch)
+			return;
+		flushing = null;
+		for (Map.Entry<String, Pending> entry : batch.entrySet()) {
+			Pending failed = entry.getValue();
+			Pending current = pendingFor(entry.getKey());
+			current.games += failed.games;
+			if (!failed.hasHighScore || current.setsHighScore)
+				continue;
+			if (!current.hasHighScore) {
+				current.hasHighScore = true;
+				current.highScore = failed.highScore;
+			} else {
+				current.highScore = Math.max(current.highScore, failed.highScore);
+			}
+			current.setsHighScore = failed.setsHighScore;
+		}
+	}
+
+	/**
+	 * Stops the periodic flush and writes every buffered update.
+	 *
+	 * @throws DatabaseException
+	 *             if the buffered updates could not be written. They are left
+	 *             in the buffer, where getPendingCount counts them.
+	 */
+	public void close() {
+		closed = true;
+		flusher.shutdown();
+		try {
+			flusher.awaitTermination(30, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		try {
+			flush();
+		} catch (SQLException e) {
+			metrics.recordError("flushWriteBehind", e);
+			throw new DatabaseException("flushWriteBehind", e);
+		}
+	}
+
+	/**
+	 * @return number of successful flushes.
+	 */
+	public long getFlushCount() {
+		return flushCount.get();
+	}
+
+	/**
+	 * @return number of flushes that failed and were put back in the buffer.
+	 */
+	public long getFailedFlushCount() {
+		return failedFlushCount.get();
+	}
+
+	/**
+	 * @return number of user rows written by successful flushes.
+	 */
+	public long getRowCount() {
+		return rowCount.get();
+	}
+
+	/**
+	 * @return number of users written by the last successful flush.
+	 */
+	public int getLastBatchSize() {
+		return lastBatchSize;
+	}
+
+	public int getMaxBatchSize() {
+		return maxBatchSize;
+	}
+
+	/**
+	 * @return average time taken by a successful flush, in nanoseconds.
+	 */
+	public long getAverageFlushNanos() {
+		long flushes = flushCount.get();
+		return flushes == 0 ? 0 : flushNanos.get() / flushes;
+	}
+
+	public long getLastFlushNanos() {
+		return lastFlushNanos;
+	}
+
+	public long getMaxFlushNanos() {
+		return maxFlushNanos;
+	}
+}
@@ -0,0 +1,384 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.OptionalInt;
+import java.util.Properties;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * JUnit tests for WriteBehindBuffer, run against an EmbeddedDatabase through
+ * FaultInjectingDriver so that flushes can be made to fail.
+ */
+public class WriteBehindBufferTest {
+	private static final String CH4RLIE = EmbeddedDatabase.username(0);
+	private static final String DOG = EmbeddedDatabase.username(1);
+
+	private EmbeddedDatabase db;
+	private FaultInjectingDriver driver;
+	private ConnectionPool pool;
+	private QueryMetrics metrics;
+	private WriteBehindBuffer buffer;
+
+	@Before
+	public void setUp() throws SQLException {
+		this.db = new EmbeddedDatabase();
+		db.seed(10, 1, 1);
+		this.driver = FaultInjectingDriver.get();
+		this.pool = new ConnectionPool(FaultInjectingDriver.PREFIX + db.getUrl(), db.properties(2));
+		this.metrics = new QueryMetrics(new Properties());
+	}
+
+	@After
+	public void tearDown() throws SQLException {
+		driver.reset();
+		if (buffer != null) {
+			try {
+				buffer.close();
+			} catch (DatabaseException e) {
+				// a test left updates that cannot be written
+			}
+		}
+		pool.close();
+		db.close();
+	}
+
+	private WriteBehindBuffer buffer(int maxPending, long flushIntervalMillis) {
+		Properties properties = new Properties();
+		properties.setProperty("writeBehind.maxPending", String.valueOf(maxPending));
+		properties.setProperty("writeBehind.flushIntervalMillis", String.valueOf(flushIntervalMillis));
+		this.buffer = new WriteBehindBuffer(pool, metrics, properties);
+		return buffer;
+	}
+
+	private int stored(String column, String user) throws SQLException {
+		try (Connection connection = DriverManager.getConnection(db.getUrl(), "sa", "");
+				PreparedStatement query = connection
+						.prepareStatement("SELECT " + column + " FROM user_info WHERE username = ?")) {
+			query.setString(1, user);
+			try (ResultSet rs = query.executeQuery()) {
+				rs.next();
+				return rs.getInt(1);
+			}
+		}
+	}
+
+	private int storedScore(String user) throws SQLException {
+		return stored("high_score", user);
+	}
+
+	private OptionalInt read(String user) throws SQLException {
+		return OptionalInt.of(storedScore(user));
+	}
+
+	private static void awaitFlushes(WriteBehindBuffer buffer, long flushes) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 5000;
+		while (buffer.getFlushCount() < flushes) {
+			if (System.currentTimeMillis() > deadline)
+				fail("No flush within 5 seconds");
+			Thread.sleep(5);
+		}
+	}
+
+	@Test
+	public void testGamesAreAddedTogether() throws SQLException {
+		WriteBehindBuffer buffer = buffer(100, 60000);
+		buffer.incrementGames(CH4RLIE);
+		buffer.incrementGames(CH4RLIE);
+		buffer.incrementGames(CH4RLIE);
+		buffer.incrementGames(DOG);
+		assertEquals(2, buffer.getPendingCount());
+		assertEquals(3, buffer.getPendingGames(CH4RLIE));
+
+		buffer.flush();
+
+		assertEquals(3, stored("number_games_played", CH4RLIE));
+		assertEquals(1, stored("number_games_played", DOG));
+		assertEquals(0, buffer.getPendingCount());
+		assertEquals(1, buffer.getFlushCount());
+		assertEquals(2, buffer.getRowCount());
+		assertEquals(2, buffer.getLastBatchSize());
+	}
+
+	@Test
+	public void testHighestRaiseIsKept() throws SQLException {
+		WriteBehindBuffer buffer = buffer(100, 60000);
+		assertTrue(buffer.offerHighScore(CH4RLIE, 2000000, this::read));
+		assertFalse(buffer.offerHighScore(CH4RLIE, 1500000, this::read));
+		assertTrue(buffer.offerHighScore(CH4RLIE, 2500000, this::read));
+		assertEquals(2500000, buffer.getHighScore(CH4RLIE, 0));
+
+		buffer.flush();
+
+		assertEquals(2500000, stored("high_score", CH4RLIE));
+	}
+
+	@Test
+	public void testRaiseBelowStoredScoreIsRejected() throws SQLException {
+		WriteBehindBuffer buffer = buffer(100, 60000);
+		assertFalse(buffer.offerHighScore(CH4RLIE, -1, this::read));
+		assertTrue(buffer.offerHighScore(CH4RLIE, db.highScore(0), this::read));
+		assertEquals(1, buffer.getPendingCount());
+	}
+
+	@Test
+	public void testRaiseOfUnknownUserIsRejected() throws SQLException {
+		WriteBehindBuffer buffer = buffer(100, 60000);
+		assertFalse(buffer.offerHighScore("nobody", Integer.MAX_VALUE, user -> OptionalInt.empty()));
+		assertEquals(0, buffer.getPendingCount());
+	}
+
+	@Test
+	public void testListenersSeeBufferedScores() throws SQLException {
+		WriteBehindBuffer buffer = buffer(100, 60000);
+		StringBuilder seen = new StringBuilder();
+		buffer.addListener(new WriteBehindBuffer.Listener() {
+			@Override
+			public void highScoreBuffered(String user, int highScore, boolean set) {
+				seen.append(user).append(set ? " set " : " raised ").append(highScore).append(';');
+			}
+		});
+		buffer.offerHighScore(CH4RLIE, 2000000, this::read);
+		buffer.offerHighScore(CH4RLIE, 1, this::read);
+		buffer.setHighScore(DOG, 5);
+
+		assertEquals(CH4RLIE + " raised 2000000;" + DOG + " set 5;", seen.toString());
+	}
+
+	@Test
+	public void testListenersSeeOnlyCommittedWrites() throws SQLException {
+		WriteBehindBuffer buffer = buffer(100, 60000);
+		StringBuilder seen = new StringBuilder();
+		buffer.addListener(new WriteBehindBuffer.Listener() {
+			@Override
+			public void gamesWritten(String user, int games) {
+				seen.append(user).append(" games ").append(games).append(';');
+			}
+
+			@Override
+			public void highScoreWritten(String user, int highScore) {
+				seen.append(user).append(" score ").append(highScore).append(';');
+			}
+		});
+		buffer.incrementGames(CH4RLIE);
+		buffer.incrementGames(CH4RLIE);
+		buffer.offerHighScore(CH4RLIE, 2000000, this::read);
+		buffer.setHighScore("no_such_user", 5);
+		assertEquals("", seen.toString());
+
+		driver.failStatements(1, "40001");
+		try {
+			buffer.flush();
+			fail("The flush did not fail");
+		} catch (SQLException e) {
+			assertEquals("40001", e.getSQLState());
+		}
+		assertEquals("", seen.toString());
+
+		buffer.flush();
+		assertEquals(CH4RLIE + " games 2;" + CH4RLIE + " score 2000000;", seen.toString());
+	}
+
+	@Test
+	public void testOfferRereadsScoreFlushedWhileReading() throws SQLException {
+		WriteBehindBuffer buffer = buffer(100, 60000);
+		assertTrue(buffer.offerHighScore(CH4RLIE, 2000000, this::read));
+
+		// the first read sees the score from before the buffered raise is committed
+		boolean[] flushed = new boolean[1];
+		assertFalse(buffer.offerHighScore(CH4RLIE, 1500000, user -> {
+			int stale = storedScore(user);
+			if (!flushed[0]) {
+				flushed[0] = true;
+				buffer.flush();
+			}
+			return OptionalInt.of(stale);
+		}));
+		assertEquals(2000000, stored("high_score", CH4RLIE));
+	}
+
+	@Test
+	public void testSetCanLowerScore() throws SQLException {
+		WriteBehindBuffer buffer = buffer(100, 60000);
+		buffer.offerHighScore(CH4RLIE, 2000000, this::read);
+		buffer.setHighScore(CH4RLIE, 5);
+		assertEquals(5, buffer.getHighScore(CH4RLIE, db.highScore(0)));
+
+		buffer.flush();
+
+		assertEquals(5, stored("high_score", CH4RLIE));
+	}
+
+	@Test
+	public void testRaiseAfterSetIsMerged() throws SQLException {
+		WriteBehindBuffer buffer = buffer(100, 60000);
+		buffer.setHighScore(CH4RLIE, 5);
+		assertFalse(buffer.offerHighScore(CH4RLIE, 3, this::read));
+		assertTrue(buffer.offerHighScore(CH4RLIE, 8, this::read));
+		buffer.setHighScore(DOG, 5);
+		assertFalse(buffer.offerHighScore(DOG, 3, this::read));
+
+		buffer.flush();
+
+		assertEquals(8, stored("high_score", CH4RLIE));
+		assertEquals(5, stored("high_score", DOG));
+	}
+
+	@Test
+	public void testFlushWhenFull() throws SQLException, InterruptedException {
+		WriteBehindBuffer buffer = buffer(2, 60000);
+		buffer.incrementGames(CH4RLIE);
+		buffer.incrementGames(DOG);
+
+		awaitFlushes(buffer, 1);
+
+		assertEquals(1, stored("number_games_played", DOG));
+	}
+
+	@Test
+	public void testFlushOnInterval() throws SQLException, InterruptedException {
+		WriteBehindBuffer buffer = buffer(100, 10);
+		buffer.incrementGames(CH4RLIE);
+
+		awaitFlushes(buffer, 1);
+
+		assertEquals(1, stored("number_games_played", CH4RLIE));
+	}
+
+	@Test
+	public void testFailedFlushIsRestored() throws SQLException {
+		WriteBehindBuffer buffer = buffer(100, 60000);
+		buffer.incrementGames(CH4RLIE);
+		buffer.offerHighScore(CH4RLIE, 2000000, this::read);
+		driver.failStatements(1, "40001");
+		try {
+			buffer.flush();
+			fail("The flush did not fail");
+		} catch (SQLException e) {
+			assertEquals("40001", e.getSQLState());
+		}
+		assertEquals(1, buffer.getFailedFlushCount());
+
+		buffer.incrementGames(CH4RLIE);
+		buffer.setHighScore(CH4RLIE, 7);
+		assertEquals(2, buffer.getPendingGames(CH4RLIE));
+		buffer.flush();
+
+		assertEquals(2, stored("number_games_played", CH4RLIE));
+		assertEquals(7, stored("high_score", CH4RLIE));
+	}
+
+	@Test
+	public void testCloseFlushes() throws SQLException {
+		WriteBehindBuffer buffer = buffer(100, 60000);
+		buffer.incrementGames(DOG);
+
+		buffer.close();
+
+		assertEquals(1, stored("number_games_played", DOG));
+	}
+
+	@Test
+	public void testFailedCloseThrows() throws SQLException {
+		WriteBehindBuffer buffer = buffer(100, 60000);
+		buffer.incrementGames(DOG);
+		driver.setDown(true);
+
+		try {
+			buffer.close();
+			fail("The close did not fail");
+		} catch (DatabaseException e) {
+			assertEquals("flushWriteBehind", e.getOperation());
+		}
+		assertEquals(1, buffer.getPendingCount());
+		assertEquals(1, metrics.stats("flushWriteBehind").getErrors());
+		this.buffer = null;
+	}
+
+	@Test
+	public void testDbConnectCheckHighScore() {
+		Properties properties = new Properties();
+		properties.setProperty("writeBehind.enabled", "true");
+		try (DbConnect con = db.open(properties)) {
+			assertTrue(con.checkHighScore(CH4RLIE, 2000000));
+			assertFalse(con.checkHighScore(CH4RLIE, 1500000));
+			assertTrue(con.checkHighScore(CH4RLIE, 2000000));
+
+			assertEquals(2000000, con.retrieveHighScore(CH4RLIE));
+		}
+	}
+
+	@Test
+	public void testDbConnectCheckHighScoreOfUnknownUser() {
+		for (String leaderboard : new String[] { "false", "true" }) {
+			Properties properties = new Properties();
+			properties.setProperty("writeBehind.enabled", "true");
+			properties.setProperty("leaderboard.enabled", leaderboard);
+			properties.setProperty("snapshot.enabled", "true");
+			properties.setProperty("changes.enabled", "true");
+			try (DbConnect con = db.open(properties)) {
+				assertFalse(con.checkHighScore("no_such_user", Integer.MAX_VALUE));
+				con.updateHighScore("no_such_user", Integer.MAX_VALUE);
+
+				assertFalse("no_such_user".equals(con.getFirstPlace()));
+				assertEquals(0, con.getRank("no_such_user"));
+			}
+		}
+	}
+
+	@Test
+	public void testDbConnectPublishesChangesOnceWritten() throws SQLException {
+		Properties properties = new Properties();
+		properties.setProperty("writeBehind.enabled", "true");
+		properties.setProperty("changes.enabled", "true");
+		try (DbConnect con = db.open(properties)) {
+			con.updateGames(CH4RLIE);
+			assertTrue(con.checkHighScore(CH4RLIE, 2000000));
+			con.updateHighScore(DOG, 5);
+			assertEquals(0, con.getChangeFeed().getLastSequence());
+
+			con.getWriteBehindBuffer().flush();
+			assertEquals(3, con.getChangeFeed().getLastSequence());
+		}
+	}
+
+	@Test
+	public void testDbConnectReadsScoreFromLeaderboard() {
+		Properties properties = new Properties();
+		properties.setProperty("writeBehind.enabled", "true");
+		properties.setProperty("leaderboard.enabled", "true");
+		try (DbConnect con = db.open(properties)) {
+			assertTrue(con.checkHighScore(CH4RLIE, 2000000));
+			assertFalse(con.checkHighScore(CH4RLIE, 1500000));
+			con.updateHighScore(CH4RLIE, 5);
+			assertTrue(con.checkHighScore(CH4RLIE, 6));
+			assertFalse(con.checkHighScore(CH4RLIE, 5));
+
+			assertEquals(0, con.getMetrics().stats("checkHighScore").getCalls());
+			assertEquals(Integer.valueOf(6), con.getLeaderboard().getScore(CH4RLIE));
+			assertEquals(6, con.retrieveHighScore(CH4RLIE));
+		}
+	}
+
+	@Test
+	public void testDbConnectUpdateCanLowerScore() {
+		Properties properties = new Properties();
+		properties.setProperty("writeBehind.enabled", "true");
+		properties.setProperty("leaderboard.enabled", "true");
+		try (DbConnect con = db.open(properties)) {
+			con.updateHighScore(CH4RLIE, 5);
+
+			assertEquals(5, con.retrieveHighScore(CH4RLIE));
+			assertEquals(Integer.valueOf(5), con.retrieveAllHighscores().get(CH4RLIE));
+		}
+	}
+}